@@ -16,23 +16,43 @@
 
 package com.example.android.notepad;
 
+import android.app.SearchManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
 
 /*
  */
@@ -790,6 +810,2466 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that provider operations are counted and reported by the stats call.
+     */
+    public void testStatsCall() {
+        insertData();
+
+        // Runs one list query and one single-note query.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(
+            ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1), null, null, null, null);
+        cursor.close();
+
+        Bundle stats = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_STATS, null, null);
+        assertNotNull(stats);
+        assertEquals(1, stats.getLong("query.notes.calls"));
+        assertEquals(1, stats.getLong("query.note_id.calls"));
+        assertEquals(TEST_NOTES.length + 1, stats.getLong("rows_returned"));
+
+        // Each histogram holds exactly one sample per recorded call.
+        long samples = 0;
+        for (long bucket : stats.getLongArray("query.notes.histogram")) {
+            samples += bucket;
+        }
+        assertEquals(1, samples);
+    }
+
+    /*
+     * Tests that the slow-query log keeps only queries at or above its threshold, with their
+     * literals stripped, keeps the latest of them when full, and starts over on a reset.
+     */
+    public void testSlowQueryLog() {
+        assertEquals("title = ? AND _id IN (?, ?) AND note LIKE ?", SlowQueryLog.normalize(
+            "title = 'it''s' AND _id IN (12, 3.5) AND note LIKE '%milk%'"));
+        assertEquals("content://com.google.provider.NotePad/notes/?",
+            SlowQueryLog.normalize("content://com.google.provider.NotePad/notes/42"));
+        assertNull(SlowQueryLog.normalize(null));
+
+        // URIs are logged as their patterns, without the search text.
+        assertEquals("content://com.google.provider.NotePad/notes/search",
+            NotePadProvider.uriPattern(searchUri("secret plans", null)));
+        assertEquals("content://com.google.provider.NotePad/search_suggest_query/*",
+            NotePadProvider.uriPattern(Uri.parse("content://com.google.provider.NotePad/"
+                + SearchManager.SUGGEST_URI_PATH_QUERY + "/secret?limit=5")));
+        assertEquals("content://com.google.provider.NotePad/notes/#/revisions/#",
+            NotePadProvider.uriPattern(Uri.withAppendedPath(ContentUris.withAppendedId(
+                NotePad.Notes.CONTENT_ID_URI_BASE, 42), NotePad.Revisions.PATH_REVISIONS + "/7")));
+        assertEquals("content://com.google.provider.NotePad/*",
+            NotePadProvider.uriPattern(Uri.parse("content://com.google.provider.NotePad/secret")));
+
+        SlowQueryLog log = new SlowQueryLog();
+        log.setThresholdMillis(10);
+        assertFalse(log.isSlow(9999999));
+        assertTrue(log.isSlow(10000000));
+        for (int i = 0; i < 40; i++) {
+            log.record("content://notes/" + i, "_id = " + i, null, i, 10000000L + i * 1000L);
+        }
+        Bundle bundle = log.toBundle();
+        assertEquals(10, bundle.getLong("threshold_ms"));
+        assertEquals(40, bundle.getLong("total_recorded"));
+        ArrayList<Bundle> queries = bundle.getParcelableArrayList("queries");
+        assertEquals(32, queries.size());
+        assertEquals(8, queries.get(0).getInt("rows"));
+        assertEquals(39, queries.get(31).getInt("rows"));
+        assertEquals("_id = ?", queries.get(31).getString("selection"));
+        assertEquals(10039, queries.get(31).getLong("duration_us"));
+
+        log.clear();
+        bundle = log.toBundle();
+        assertEquals(0, bundle.getLong("total_recorded"));
+        assertEquals(0, bundle.getParcelableArrayList("queries").size());
+
+        // A threshold of 0 turns the log off.
+        log.setThresholdMillis(0);
+        assertFalse(log.isSlow(Long.MAX_VALUE));
+
+        bundle = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_SLOW_QUERIES,
+            "reset", null);
+        assertEquals(0, bundle.getLong("total_recorded"));
+        assertEquals(0, bundle.getParcelableArrayList("queries").size());
+    }
+
+    /*
+     * Tests that a main-thread call is put down to the first frame of app code below the
+     * provider, past the framework's frames, and that provider cursors are watched for
+     * requeries only while the watchdog is on.
+     */
+    public void testFindCallSite() {
+        StackTraceElement end = new StackTraceElement(MainThreadIoWatchdog.class.getName(),
+            "end", "MainThreadIoWatchdog.java", 110);
+        StackTraceElement query = new StackTraceElement(NotePadProvider.class.getName(),
+            "query", "NotePadProvider.java", 620);
+        StackTraceElement resolver = new StackTraceElement("android.content.ContentResolver",
+            "query", "ContentResolver.java", 1100);
+        StackTraceElement caller = new StackTraceElement(NotesList.class.getName(),
+            "onCreate", "NotesList.java", 240);
+        StackTraceElement looper = new StackTraceElement("android.os.Looper", "loop",
+            "Looper.java", 200);
+        assertEquals("NotesList.onCreate(NotesList.java:240)", MainThreadIoWatchdog.findCallSite(
+            new StackTraceElement[]{end, query, resolver, caller, looper}));
+
+        // A requery is put down to the code that requeried, past the framework's wrappers.
+        StackTraceElement requery = new StackTraceElement(
+            MainThreadIoWatchdog.class.getName() + "$WatchedCursor", "requery",
+            "MainThreadIoWatchdog.java", 180);
+        StackTraceElement wrapper = new StackTraceElement("android.database.CursorWrapper",
+            "requery", "CursorWrapper.java", 190);
+        StackTraceElement refresh = new StackTraceElement(TrashActivity.class.getName(),
+            "onRestart", "TrashActivity.java", 90);
+        assertEquals("TrashActivity.onRestart(TrashActivity.java:90)",
+            MainThreadIoWatchdog.findCallSite(
+                new StackTraceElement[]{end, requery, wrapper, wrapper, refresh, looper}));
+
+        // Without app code below the provider, or without the provider, the site is unknown.
+        assertEquals("unknown", MainThreadIoWatchdog.findCallSite(
+            new StackTraceElement[]{end, query, resolver, looper}));
+        assertEquals("unknown", MainThreadIoWatchdog.findCallSite(
+            new StackTraceElement[]{caller, looper}));
+
+        MainThreadIoWatchdog watchdog = new MainThreadIoWatchdog();
+        Cursor c = new MatrixCursor(new String[]{NotePad.Notes._ID});
+        assertSame(c, watchdog.watch(c, NotePad.Notes.CONTENT_URI));
+        watchdog.setEnabled(true);
+        Cursor watched = watchdog.watch(c, NotePad.Notes.CONTENT_URI);
+        assertNotSame(c, watched);
+        // Off the main thread, a requery isn't recorded.
+        assertTrue(watched.requery());
+        assertEquals(0, watchdog.toBundle().getLong("total_calls"));
+        watched.close();
+    }
+
+    /*
+     * Tests that the count URI and the aggregate call follow inserts, updates and deletes.
+     */
+    public void testCountsAndAggregate() {
+        assertEquals(NotePad.Notes.CONTENT_COUNT_TYPE, mMockResolver.getType(NotePad.Notes.COUNT_URI));
+        assertEquals(0, queryCount(null, null));
+
+        insertData();
+        assertEquals(TEST_NOTES.length, queryCount(null, null));
+
+        // A selection counts only the matching notes.
+        assertEquals(1, queryCount(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[]{"Note1"}));
+
+        // Moves one note to another color.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_COLOR, 2);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[]{"Note1"});
+
+        Bundle counts = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_AGGREGATE, null, null);
+        assertNotNull(counts);
+        assertEquals(TEST_NOTES.length, counts.getLong("total"));
+        int[] colors = counts.getIntArray("colors");
+        long[] colorCounts = counts.getLongArray("color_counts");
+        assertEquals(2, colors.length);
+        assertEquals(0, colors[0]);
+        assertEquals(TEST_NOTES.length - 1, colorCounts[0]);
+        assertEquals(2, colors[1]);
+        assertEquals(1, colorCounts[1]);
+
+        // insertData() modifies the notes a week apart, so each one has its own day.
+        assertEquals(TEST_NOTES.length, counts.getLongArray("days").length);
+        assertEquals(TEST_NOTES.length, counts.getLong("today") + counts.getLong("last_7_days")
+            + counts.getLong("last_30_days") + counts.getLong("older"));
+
+        // Deleting the recolored note removes its color row.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[]{"Note1"});
+        counts = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_AGGREGATE, null, null);
+        assertEquals(TEST_NOTES.length - 1, counts.getLong("total"));
+        assertEquals(1, counts.getIntArray("colors").length);
+        assertEquals(TEST_NOTES.length - 1, queryCount(null, null));
+    }
+
+    /*
+     * Tests that notes are counted by local day, that a change of the time zone offset
+     * rebuilds the counts, and that the triggers keep using the offset the counts were built
+     * with.
+     */
+    public void testLocalDayCounts() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        TimeZone zone = TimeZone.getTimeZone("GMT+08:00");
+        try {
+            TimeZone.setDefault(zone);
+            NoteCounts.checkZone(mDb);
+            Calendar midnight = new GregorianCalendar(zone);
+            midnight.clear();
+            midnight.set(2020, Calendar.MARCH, 1);
+            long now = midnight.getTimeInMillis() + ONE_DAY_MILLIS / 24;
+
+            // Both are on the same day in UTC, but on different local days.
+            insertNote("Today", "", 0, midnight.getTimeInMillis() + 60 * 1000);
+            long yesterday = insertNote("Yesterday", "", 0, midnight.getTimeInMillis() - 60 * 1000);
+            Bundle counts = NoteCounts.aggregate(mDb, now);
+            assertEquals(8 * 60 * 60 * 1000, counts.getLong("zone_offset"));
+            assertEquals(1, counts.getLong("today"));
+            assertEquals(1, counts.getLong("last_7_days"));
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+            mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                yesterday), values, null, null);
+            counts = NoteCounts.aggregate(mDb, now);
+            assertEquals(2, counts.getLong("today"));
+            assertEquals(1, counts.getLongArray("days").length);
+
+            // A range without an end reaches the last day, even with the offset added.
+            assertEquals(2, NoteCounts.countModified(mDb, now - ONE_DAY_MILLIS, Long.MAX_VALUE));
+            assertEquals(2, SearchPlanner.plan(mDb, SearchQuery.parse("after:2020-02-01"))
+                .estimate);
+
+            // Back in UTC, both notes are on the day before the local one.
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+            NoteCounts.checkZone(mDb);
+            counts = NoteCounts.aggregate(mDb, now);
+            assertEquals(0, counts.getLong("zone_offset"));
+            assertEquals(2, counts.getLong("today"));
+            assertEquals(2, NoteCounts.countModified(mDb, now - ONE_DAY_MILLIS / 24, now + 1));
+        } finally {
+            TimeZone.setDefault(defaultZone);
+            NoteCounts.checkZone(mDb);
+        }
+    }
+
+    /*
+     * Tests that single-note reads are served from the row cache, and that updates and deletes
+     * invalidate it.
+     */
+    public void testRowCache() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        String[] projection = {NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE};
+
+        assertEquals(TEST_NOTES[0].note, queryNoteText(noteUri, projection));
+        assertEquals(TEST_NOTES[0].note, queryNoteText(noteUri, projection));
+        Bundle stats = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_STATS, null, null);
+        assertEquals(1, stats.getLong("row_cache.misses"));
+        assertEquals(1, stats.getLong("row_cache.hits"));
+        assertTrue(stats.getLong("row_cache.size_bytes") > 0);
+
+        // An update through the note's URI must not leave the old text in the cache.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Updated note 0");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Updated note 0", queryNoteText(noteUri, projection));
+
+        // Neither must an update that selects notes by title.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Updated again");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[]{TEST_NOTES[0].title});
+        assertEquals("Updated again", queryNoteText(noteUri, projection));
+
+        mMockResolver.delete(noteUri, null, null);
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that every edit increments the note's version, and nothing else does, and that an
+     * update conditional on an old version doesn't overwrite a newer one.
+     */
+    public void testVersionedUpdates() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        assertEquals(1, queryVersion(noteUri));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First writer");
+        assertEquals(1, mMockResolver.update(noteUri, values,
+            NotePad.Notes.VERSION_SELECTION, new String[]{"1"}));
+        assertEquals(2, queryVersion(noteUri));
+
+        // A second writer that also read version 1 loses.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second writer");
+        assertEquals(0, mMockResolver.update(noteUri, values,
+            NotePad.Notes.VERSION_SELECTION, new String[]{"1"}));
+        assertEquals("First writer", queryNoteText(noteUri,
+            new String[]{NotePad.Notes.COLUMN_NAME_NOTE}));
+
+        // Clients can't set the version themselves; unconditional updates still increment it.
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 100);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(3, queryVersion(noteUri));
+
+        // Trashing and restoring a note isn't an edit: an editor holding version 3 still wins.
+        mMockResolver.delete(noteUri, null, null);
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_RESTORE, "1", null);
+        assertEquals(3, queryVersion(noteUri));
+        values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+        assertEquals(1, mMockResolver.update(noteUri, values,
+            NotePad.Notes.VERSION_SELECTION, new String[]{"3"}));
+        assertEquals(4, queryVersion(noteUri));
+    }
+
+    /*
+     * Tests that the provider keeps the content hash and length in step with the note text,
+     * and reports notes with the same text as duplicates.
+     */
+    public void testContentHashAndDuplicates() {
+        Uri first = insertNote("Shopping", "milk, eggs");
+        Uri second = insertNote("Shopping again", "milk, eggs");
+        Uri third = insertNote("Other", "bread");
+        insertNote("Empty 1", "");
+        insertNote("Empty 2", "");
+
+        String[] projection = {NotePad.Notes.COLUMN_NAME_CONTENT_HASH,
+            NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH};
+        Cursor cursor = mMockResolver.query(first, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentHash.of("milk, eggs"), cursor.getLong(0));
+        assertEquals("milk, eggs".length(), cursor.getLong(1));
+        cursor.close();
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_DUPLICATES, null, null);
+        ArrayList<Bundle> groups = result.getParcelableArrayList("groups");
+        assertEquals(1, groups.size());
+        long[] ids = groups.get(0).getLongArray("ids");
+        assertEquals(2, ids.length);
+        assertTrue(ids[0] == ContentUris.parseId(first) || ids[1] == ContentUris.parseId(first));
+        assertTrue(ids[0] == ContentUris.parseId(second) || ids[1] == ContentUris.parseId(second));
+
+        // Editing one of them rehashes it, and the group goes away.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "milk, eggs, butter");
+        mMockResolver.update(second, values, null, null);
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_DUPLICATES, null, null);
+        assertEquals(0, result.getParcelableArrayList("groups").size());
+
+        // A client can't write a hash that disagrees with the text.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CONTENT_HASH, 42);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(third, values, null, null);
+        cursor = mMockResolver.query(third, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentHash.of("bread"), cursor.getLong(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests the revision history: every save through a note URI is recorded, and every
+     * recorded version can be read back, whether it is rebuilt forward from a snapshot or
+     * backward from the current text.
+     */
+    public void testRevisionHistory() {
+        Uri noteUri = insertNote("Diary", "Day 0");
+        long noteId = ContentUris.parseId(noteUri);
+        ArrayList<String> texts = new ArrayList<>();
+        texts.add("Day 0");
+        ContentValues values = new ContentValues();
+        String text = "Day 0";
+        for (int i = 1; i <= 30; i++) {
+            // Mixes appends, edits in the middle and removals.
+            if (i % 5 == 0) {
+                text = text.substring(0, text.length() / 2);
+            } else if (i % 3 == 0) {
+                text = "Start " + i + ". " + text;
+            } else {
+                text = text + "\nDay " + i;
+            }
+            texts.add(text);
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+        // A color change is not a save of the title or text, so it isn't recorded.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_COLOR, 2);
+        mMockResolver.update(noteUri, values, null, null);
+
+        Uri revisionsUri = NotePad.Revisions.contentUri(noteId);
+        Cursor cursor = mMockResolver.query(revisionsUri, new String[]{
+            NotePad.Revisions.COLUMN_NAME_REVISION, NotePad.Revisions.COLUMN_NAME_CHANGE_SIZE},
+            null, null, null);
+        // The version before the first save is kept too.
+        assertEquals(31, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(31, cursor.getLong(0));
+        // The last save cut the text in half.
+        assertEquals(texts.get(29).length() - texts.get(30).length(), cursor.getLong(1));
+        cursor.close();
+
+        for (int version = 1; version <= 31; version++) {
+            cursor = mMockResolver.query(NotePad.Revisions.revisionUri(noteId, version),
+                new String[]{NotePad.Revisions.COLUMN_NAME_TITLE, NotePad.Revisions.COLUMN_NAME_NOTE},
+                null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Diary", cursor.getString(0));
+            assertEquals(texts.get(version - 1), cursor.getString(1));
+            cursor.close();
+        }
+
+        cursor = mMockResolver.query(NotePad.Revisions.revisionUri(noteId, 99), null, null, null,
+            null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Compacting turns the oldest revision kept into a snapshot, which still lists the
+        // size of its own change rather than of the whole text.
+        assertEquals(26, RevisionStore.compact(mDb, noteId, 5, texts.get(30)));
+        cursor = mMockResolver.query(revisionsUri, new String[]{
+            NotePad.Revisions.COLUMN_NAME_REVISION, NotePad.Revisions.COLUMN_NAME_CHANGE_SIZE},
+            null, null, null);
+        assertEquals(5, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals(27, cursor.getLong(0));
+        assertEquals(RevisionStore.Delta.between(texts.get(25), texts.get(26)).size(),
+            cursor.getLong(1));
+        cursor.close();
+        for (int version = 27; version <= 31; version++) {
+            cursor = mMockResolver.query(NotePad.Revisions.revisionUri(noteId, version),
+                new String[]{NotePad.Revisions.COLUMN_NAME_NOTE}, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(texts.get(version - 1), cursor.getString(0));
+            cursor.close();
+        }
+
+        // Deleting the note deletes its history.
+        mMockResolver.delete(noteUri, null, null);
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Changes a note's text through the notes URI, which isn't recorded, between two recorded
+     * saves, and checks that every version can still be read back, and that a delta that
+     * doesn't fit the text it is replayed on fails cleanly instead of cutting the text.
+     */
+    public void testRevisionHistoryAfterBulkUpdate() {
+        Uri noteUri = insertNote("Diary", "Day 0");
+        long noteId = ContentUris.parseId(noteUri);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Day 0\nDay 1");
+        mMockResolver.update(noteUri, values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes._ID + " = ?", new String[]{String.valueOf(noteId)}));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten\nDay 3");
+        mMockResolver.update(noteUri, values, null, null);
+
+        String[] texts = {"Day 0", "Day 0\nDay 1", "Rewritten", "Rewritten\nDay 3"};
+        for (int version = 1; version <= texts.length; version++) {
+            Cursor cursor = mMockResolver.query(NotePad.Revisions.revisionUri(noteId, version),
+                new String[]{NotePad.Revisions.COLUMN_NAME_NOTE}, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(texts[version - 1], cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        }
+
+        RevisionStore.Delta delta = RevisionStore.Delta.between("Day 0\nDay 1", "Day 1");
+        try {
+            delta.apply("Day");
+            fail("applied a delta to a text it doesn't fit");
+        } catch (IllegalArgumentException expected) {
+            // Rather than a StringIndexOutOfBoundsException, or a cut text.
+        }
+        try {
+            delta.revert("");
+            fail("reverted a delta on a text it doesn't fit");
+        } catch (IllegalArgumentException expected) {
+            // Likewise.
+        }
+    }
+
+    /*
+     * Tests the trash: deleting moves notes there, they can be restored, and they are only
+     * gone for good when purged or deleted from the trash.
+     */
+    public void testTrash() {
+        Uri first = insertNote("First", "one");
+        Uri second = insertNote("Second", "two");
+        insertNote("Third", "three");
+        long firstId = ContentUris.parseId(first);
+
+        assertEquals(1, mMockResolver.delete(first, null, null));
+        assertEquals(2, queryCount(null, null));
+        Cursor cursor = mMockResolver.query(first, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.TRASH_URI,
+            new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_DELETED_AT}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(firstId, cursor.getLong(0));
+        assertTrue(cursor.getLong(1) > 0);
+        cursor.close();
+
+        // Notes in the trash can't be edited.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Edited");
+        assertEquals(0, mMockResolver.update(first, values, null, null));
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_RESTORE,
+            String.valueOf(firstId), null);
+        assertEquals(1, result.getInt("restored"));
+        assertEquals(3, queryCount(null, null));
+        assertEquals("one", queryNoteText(first, null));
+
+        // Only notes deleted before the cutoff are purged.
+        mMockResolver.delete(first, null, null);
+        mMockResolver.delete(second, null, null);
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_PURGE_TRASH, "1", null);
+        assertEquals(0, result.getInt("purged"));
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_PURGE_TRASH,
+            String.valueOf(System.currentTimeMillis() + 1), null);
+        assertEquals(2, result.getInt("purged"));
+        assertEquals(0, mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_RESTORE,
+            String.valueOf(firstId), null).getInt("restored"));
+        assertEquals(1, queryCount(null, null));
+
+        // A missing or malformed ID or cutoff is rejected.
+        for (String method : new String[]{NotePad.METHOD_RESTORE, NotePad.METHOD_PURGE_TRASH}) {
+            for (String arg : new String[]{null, "", "one"}) {
+                try {
+                    mMockResolver.call(NotePad.Notes.CONTENT_URI, method, arg, null);
+                    fail(method + " accepted " + arg);
+                } catch (IllegalArgumentException expected) {
+                    // Rather than a NumberFormatException, or a purge of nothing.
+                }
+            }
+        }
+
+        // Emptying the trash deletes more notes than fit in one batch.
+        int many = NotePadProvider.TRASH_PURGE_BATCH * 2 + 5;
+        for (int i = 0; i < many; i++) {
+            insertNote("Note " + i, "text " + i);
+        }
+        assertEquals(many + 1, mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null));
+        assertEquals(0, queryCount(null, null));
+        assertEquals(many + 1, mMockResolver.delete(NotePad.Notes.TRASH_URI, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.TRASH_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Runs every maintenance task after a mass delete and checks that the vacuum gives the
+     * freed pages back and that each result is recorded.
+     */
+    public void testMaintenance() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4000) {
+            text.append("Some text to fill a few pages. ");
+        }
+        for (int i = 0; i < 200; i++) {
+            insertNote("Note " + i, text.toString() + i);
+        }
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        mMockResolver.delete(NotePad.Notes.TRASH_URI, null, null);
+
+        long reclaimed = 0;
+        Bundle result;
+        do {
+            result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE,
+                DatabaseMaintenance.TASK_VACUUM, null);
+            assertFalse(result.getBoolean("cancelled"));
+            reclaimed += result.getLong("reclaimed_bytes");
+        } while (result.getLong("remaining_pages") > 0);
+        assertTrue(reclaimed > 0);
+
+        for (String task : DatabaseMaintenance.TASKS) {
+            result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE,
+                task, null);
+            assertEquals(task, result.getString("task"));
+            assertTrue(result.getLong("duration_ms") >= 0);
+        }
+        assertTrue(result.getBoolean("ok"));
+
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE,
+            null, null);
+        for (String task : DatabaseMaintenance.TASKS) {
+            assertTrue(result.containsKey(task + ".duration_ms"));
+        }
+        assertTrue(result.getBoolean(DatabaseMaintenance.TASK_INTEGRITY + ".ok"));
+
+        // Cancelling with no task in progress does nothing.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE, "cancel", null);
+        try {
+            mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE, "defrag",
+                null);
+            fail("ran an unknown maintenance task");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+     * Tests that tuning picks one of the profiles, is skipped until the notes have grown, and
+     * shows up in the provider stats.
+     */
+    public void testStorageTuning() {
+        getMockContext().getSharedPreferences("storage_tuning", 0).edit().clear().commit();
+        insertData();
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE,
+            DatabaseMaintenance.TASK_TUNE, null);
+        assertFalse(result.getBoolean("skipped"));
+        String profile = result.getString("profile");
+        boolean known = false;
+        for (StorageTuner.Profile p : StorageTuner.PROFILES) {
+            known |= p.name.equals(profile);
+        }
+        assertTrue(profile, known);
+        assertTrue(result.getInt("gain_percent") == 0
+            || result.getInt("gain_percent") >= StorageTuner.MIN_GAIN_PERCENT);
+
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_MAINTENANCE,
+            DatabaseMaintenance.TASK_TUNE, null);
+        assertTrue(result.getBoolean("skipped"));
+
+        Bundle stats = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_STATS, null, null);
+        assertEquals(profile, stats.getString("storage.profile"));
+        assertEquals(TEST_NOTES.length, stats.getLong("storage.tuned_notes"));
+        assertTrue(stats.getLong("storage.page_size") > 0);
+    }
+
+    /*
+     * Loads the in-memory title index from the provider, looks titles up in it, and measures
+     * its footprint and lookup time with 10,000 notes.
+     */
+    public void testNoteIndex() throws InterruptedException {
+        insertData();
+
+        NoteIndex index = new NoteIndex(mMockResolver);
+        for (int i = 0; i < 50 && !index.isLoaded(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(index.isLoaded());
+
+        long[] ids = index.findByPrefix("note", 100);
+        assertEquals(TEST_NOTES.length, ids.length);
+        // Most recently modified first.
+        assertEquals("Note9", index.title(ids[0]));
+        assertEquals(3, index.findByPrefix("NOTE", 3).length);
+
+        ids = index.findBySubstring("E3", 100);
+        assertEquals(1, ids.length);
+        assertEquals("Note3", index.title(ids[0]));
+        assertEquals(0, index.findBySubstring("zzz", 100).length);
+
+        long note5 = index.findTitle("note5", -1);
+        assertTrue(note5 >= 0);
+        assertEquals(-1, index.findTitle("Note5", note5));
+        assertEquals(-1, index.findTitle("", -1));
+
+        index.put(note5, "Renamed", START_DATE, 0);
+        assertEquals(-1, index.findTitle("Note5", -1));
+        assertEquals(note5, index.findTitle("renamed", -1));
+        index.remove(note5);
+        assertNull(index.title(note5));
+        assertEquals(TEST_NOTES.length - 1, index.findByPrefix("note", 100).length);
+
+        for (int i = 0; i < 10000; i++) {
+            index.put(1000 + i, "Indexed note " + i, START_DATE + i, 0);
+        }
+        // Replacing every title leaves garbage behind, which compaction must drop.
+        for (int i = 0; i < 10000; i++) {
+            index.put(1000 + i, "Indexed note " + i + " again", START_DATE + i, 0);
+        }
+        long start = System.nanoTime();
+        ids = index.findBySubstring("note 9999 ag", 10);
+        long lookupMicros = (System.nanoTime() - start) / 1000;
+        assertEquals(1, ids.length);
+        assertEquals(10999, ids[0]);
+        assertEquals(10, index.findByPrefix("indexed", 10).length);
+
+        long bytes = index.footprintBytes();
+        Log.i("NotePadProviderTest", "Note index: " + bytes + " bytes for 10k notes, substring"
+            + " lookup " + lookupMicros + " us");
+        assertTrue("footprint " + bytes, bytes < 2 * 1024 * 1024);
+    }
+
+    /*
+     * Replaces and inserts titles until the title buffer is compacted, and checks that every
+     * title survives: a compaction must copy the live titles only, not the one being replaced
+     * or the one of a note shifted to make room for a new ID.
+     */
+    public void testNoteIndexCompaction() throws InterruptedException {
+        NoteIndex index = new NoteIndex(mMockResolver);
+        for (int i = 0; i < 50 && !index.isLoaded(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(index.isLoaded());
+
+        // 1,000 of the 1,024 chars of the initial buffer: 300 of them garbage, 700 live.
+        index.put(2000, repeat('a', 300), START_DATE, 0);
+        index.put(2001, repeat('b', 400), START_DATE, 0);
+        index.put(2002, repeat('c', 300), START_DATE, 0);
+        index.put(2002, "", START_DATE, 0);
+        // The new title doesn't fit; the compaction that makes room must not copy the old one.
+        index.put(2000, repeat('d', 400), START_DATE, 0);
+        assertEquals(repeat('d', 400), index.title(2000));
+        assertEquals(repeat('b', 400), index.title(2001));
+        assertEquals("", index.title(2002));
+
+        Random random = new Random(40);
+        String[] titles = new String[100];
+        for (int round = 0; round < 2000; round++) {
+            int k = random.nextInt(titles.length);
+            titles[k] = repeat((char) ('a' + k % 26), random.nextInt(500));
+            // Even IDs below the others, so that inserting them shifts the slots.
+            index.put(k % 2 == 0 ? k : 1000 + k, titles[k], START_DATE, 0);
+        }
+        for (int k = 0; k < titles.length; k++) {
+            assertEquals(titles[k], index.title(k % 2 == 0 ? k : 1000 + k));
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /*
+     * Tests that a search which extends the previous one is answered from the previous result,
+     * and that broadening the search, changing the searched field, or changing the notes goes
+     * back to the provider.
+     */
+    public void testSearchSession() {
+        insertData();
+        String[] projection = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE};
+        String titleOnly = NotePad.Notes.COLUMN_NAME_TITLE;
+        SearchSession session = new SearchSession(mMockResolver, NotePad.Notes.CONTENT_URI,
+            projection, NotePad.Notes.DEFAULT_SORT_ORDER);
+
+        // The list comes from the provider, and isn't kept or counted as a search.
+        assertSearch(session, "", titleOnly, TEST_NOTES.length, 0f);
+        assertSearch(session, "note", titleOnly, TEST_NOTES.length, 0f);
+        assertSearch(session, "NOTE3", titleOnly, 1, 1f / 2);
+        assertSearch(session, "note", titleOnly, TEST_NOTES.length, 1f / 3);
+        assertSearch(session, "note", null, TEST_NOTES.length, 1f / 4);
+        assertSearch(session, "note 4", null, 1, 2f / 5);
+        // LIKE wildcards are matched literally, in memory as by the provider.
+        assertSearch(session, "note 4%", null, 0, 3f / 6);
+
+        session.invalidate();
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+            new String[]{"Note4"});
+        assertSearch(session, "note 4", null, 0, 3f / 7);
+    }
+
+    private static void assertSearch(SearchSession session, String text, String in,
+            int expectedCount, float expectedHitRatio) {
+        Cursor c = session.search(text, in);
+        try {
+            assertEquals(text, expectedCount, c.getCount());
+        } finally {
+            c.close();
+        }
+        assertEquals(text, expectedHitRatio, session.hitRatio(), 0.001f);
+    }
+
+    /*
+     * Tests that the list snapshot reads back the first rows it captured, with the text cut to
+     * the preview length and the extra columns empty.
+     */
+    public void testListSnapshot() throws IOException {
+        String[] columns = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_COLOR, NotePad.Notes.COLUMN_NAME_TITLE_PINYIN};
+        MatrixCursor list = new MatrixCursor(columns);
+        list.addRow(new Object[]{1L, "First", repeat('x', ListSnapshot.PREVIEW_CHARS + 10),
+            START_DATE, 2, null});
+        list.addRow(new Object[]{2L, null, null, START_DATE + 1, 0, null});
+        for (int i = 3; i <= ListSnapshot.MAX_ROWS + 5; i++) {
+            list.addRow(new Object[]{(long) i, "Note" + i, "\u7b14\u8bb0", START_DATE + i, 1,
+                null});
+        }
+        File file = new File(getContext().getCacheDir(), "list_snapshot_test.bin");
+        assertNull(ListSnapshot.read(file, columns));
+
+        ListSnapshot.write(file, ListSnapshot.capture(list));
+        Cursor c = ListSnapshot.read(file, columns);
+        try {
+            assertEquals(ListSnapshot.MAX_ROWS, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getLong(0));
+            assertEquals("First", c.getString(1));
+            assertEquals(repeat('x', ListSnapshot.PREVIEW_CHARS), c.getString(2));
+            assertEquals(START_DATE, c.getLong(3));
+            assertEquals(2, c.getInt(4));
+            assertTrue(c.isNull(5));
+            assertTrue(c.moveToNext());
+            assertTrue(c.isNull(1));
+            assertTrue(c.isNull(2));
+            assertTrue(c.moveToLast());
+            assertEquals("Note" + ListSnapshot.MAX_ROWS, c.getString(1));
+            assertEquals("\u7b14\u8bb0", c.getString(2));
+        } finally {
+            c.close();
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests that a truncated or damaged snapshot is ignored rather than read past its end or
+     * allocated from.
+     */
+    public void testCorruptListSnapshot() throws IOException {
+        String[] columns = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_COLOR};
+        Object[][] rows = {{1L, "Title", "Text", START_DATE, 0}};
+        File file = new File(getContext().getCacheDir(), "list_snapshot_test.bin");
+        // The row count follows the magic number and format version, and the first title
+        // follows the count and the first row's ID, date and color.
+        int countOffset = 8;
+        int titleOffset = countOffset + 4 + 8 + 8 + 4;
+        try {
+            ListSnapshot.write(file, rows);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 2);
+            raf.close();
+            assertNull(ListSnapshot.read(file, columns));
+
+            for (int[] damage : new int[][]{{countOffset, Integer.MAX_VALUE}, {countOffset, -2},
+                    {titleOffset, Integer.MAX_VALUE}, {titleOffset, -2}}) {
+                ListSnapshot.write(file, rows);
+                raf = new RandomAccessFile(file, "rw");
+                raf.seek(damage[0]);
+                raf.writeInt(damage[1]);
+                raf.close();
+                assertNull(damage[0] + ": " + damage[1], ListSnapshot.read(file, columns));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the ranked search: title matches first, snippets around the matches, the searched
+     * field, literal wildcards, and the same order from a search narrowed in memory.
+     */
+    public void testRankedSearch() {
+        insertData();
+        long meeting = ContentUris.parseId(insertNote("Meeting notes", "Agenda"));
+        long groceries = ContentUris.parseId(insertNote("Groceries",
+            "Buy milk before the meeting.\nThe meeting is at noon, then more shopping."));
+        long old = ContentUris.parseId(insertNote("Old", "A meeting"));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, old),
+            values, null, null);
+
+        String[] projection = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES,
+            NotePad.Notes.COLUMN_NAME_SCORE};
+        long[] ids = querySearch("MEETING", null, projection);
+        assertEquals(3, ids.length);
+        assertEquals(meeting, ids[0]);
+
+        Cursor c = mMockResolver.query(searchUri("meeting", null), projection, null, null, null);
+        try {
+            double previousScore = Double.MAX_VALUE;
+            while (c.moveToNext()) {
+                assertTrue(c.getDouble(4) <= previousScore);
+                previousScore = c.getDouble(4);
+                if (c.getLong(0) == groceries) {
+                    String snippet = c.getString(2);
+                    assertFalse(snippet, snippet.contains("\n"));
+                    int[] matches = SearchRanker.parseMatches(c.getString(3));
+                    assertEquals(4, matches.length);
+                    for (int i = 0; i < matches.length; i += 2) {
+                        assertEquals("meeting", snippet.substring(matches[i], matches[i + 1]));
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        ids = querySearch("meeting", NotePad.Notes.COLUMN_NAME_NOTE, projection);
+        assertEquals(2, ids.length);
+        assertEquals(0, querySearch("meeting%", null, projection).length);
+        assertEquals(1, querySearch("milk NOON", null, projection).length);
+
+        try {
+            querySearch("meeting", null, new String[]{"no_such_column"});
+            fail("searched with an unknown column");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        SearchSession session = new SearchSession(mMockResolver, NotePad.Notes.CONTENT_URI,
+            new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE},
+            NotePad.Notes.DEFAULT_SORT_ORDER);
+        session.search("meet", null).close();
+        c = session.search("meeting", null);
+        try {
+            assertEquals(1f / 2, session.hitRatio(), 0.001f);
+            ids = querySearch("meeting", null, projection);
+            assertEquals(ids.length, c.getCount());
+            for (long id : ids) {
+                assertTrue(c.moveToNext());
+                assertEquals(id, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Uri searchUri(String text, String in) {
+        Uri.Builder uri = NotePad.Notes.SEARCH_URI.buildUpon()
+            .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, text);
+        if (in != null) {
+            uri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_IN, in);
+        }
+        return uri.build();
+    }
+
+    // Runs a ranked search and returns the IDs of the results, best first.
+    private long[] querySearch(String text, String in, String[] projection) {
+        return queryIds(mMockResolver.query(searchUri(text, in), projection, null, null, null));
+    }
+
+    public void testFuzzySearch() {
+        assertEquals(0, TrigramIndex.editDistance("meeting", "meeting"));
+        assertEquals(1, TrigramIndex.editDistance("meetign", "meeting"));
+        assertEquals(2, TrigramIndex.editDistance("meting", "meetings"));
+        assertEquals(1.0, TrigramIndex.similarity(TrigramIndex.trigrams("note"),
+            TrigramIndex.trigrams("note")), 0.001);
+
+        insertData();
+        long meeting = ContentUris.parseId(insertNote("Meeting notes", "Agenda for Tuesday"));
+        long groceries = ContentUris.parseId(insertNote("Groceries",
+            "Buy milk before the meeting."));
+        long trashed = ContentUris.parseId(insertNote("Meetings archive", "Old agendas"));
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+            trashed), null, null);
+        // As the provider does in the background after writes.
+        TrigramIndex.catchUp(mDb);
+
+        String[] projection = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES, NotePad.Notes.COLUMN_NAME_SCORE};
+        long[] ids = queryFuzzy("meetign", projection);
+        assertEquals(2, ids.length);
+        assertEquals(meeting + groceries, ids[0] + ids[1]);
+
+        // Every word must match; "agneda" only occurs with the meeting.
+        ids = queryFuzzy("Meetng agneda", projection);
+        assertEquals(1, ids.length);
+        assertEquals(meeting, ids[0]);
+        assertEquals(0, queryFuzzy("xylophone", projection).length);
+
+        // The snippet highlights the word that was found, not the one that was typed.
+        Cursor c = mMockResolver.query(fuzzyUri("grocries mlik"), projection, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            int[] matches = SearchRanker.parseMatches(c.getString(2));
+            assertEquals(2, matches.length);
+            assertEquals("milk", c.getString(1).substring(matches[0], matches[1]));
+        } finally {
+            c.close();
+        }
+
+        // An edit not indexed yet is found by its exact words, and no longer by its old ones.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Buy bread");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+            groceries), values, null, null);
+        assertEquals(1, queryFuzzy("meetign", projection).length);
+        assertEquals(1, queryFuzzy("bread", projection).length);
+        TrigramIndex.catchUp(mDb);
+        assertEquals(1, queryFuzzy("braed", projection).length);
+    }
+
+    public void testPinyinSearch() {
+        assertEquals("huiyijilu|hyjl", Pinyin.of("会议记录"));
+        assertEquals("q3huiyilvse|q3hyls", Pinyin.of("Q3 会议, 绿色"));
+        assertNull(Pinyin.of("Meeting notes"));
+
+        insertData();
+        long minutes = ContentUris.parseId(insertNote("会议记录", "周二下午"));
+        long plan = ContentUris.parseId(insertNote("Q3 计划", "会议之后再定"));
+        Cursor c = mMockResolver.query(
+            ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, minutes),
+            new String[]{NotePad.Notes.COLUMN_NAME_TITLE_PINYIN}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("huiyijilu|hyjl", c.getString(0));
+        } finally {
+            c.close();
+        }
+
+        String[] projection = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_SCORE};
+        long[] ids = querySearch("hy", null, projection);
+        assertEquals(1, ids.length);
+        assertEquals(minutes, ids[0]);
+        assertEquals(1, querySearch("HuiYi", null, projection).length);
+        assertEquals(1, querySearch("q3jihua", null, projection).length);
+        // The pinyin of note texts is off by default.
+        assertEquals(0, querySearch("huiyi", NotePad.Notes.COLUMN_NAME_NOTE, projection).length);
+
+        // Renaming a note changes its pinyin, and clients can't write it.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "周会");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN, "hy");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, plan),
+            values, null, null);
+        ids = querySearch("zh", null, projection);
+        assertEquals(1, ids.length);
+        assertEquals(plan, ids[0]);
+        assertEquals(1, querySearch("hy", null, projection).length);
+
+        // Narrowing in memory matches the pinyin as the provider does.
+        SearchSession session = new SearchSession(mMockResolver, NotePad.Notes.CONTENT_URI,
+            new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE},
+            NotePad.Notes.DEFAULT_SORT_ORDER);
+        session.search("h", null).close();
+        c = session.search("hui", null);
+        try {
+            assertEquals(1f / 2, session.hitRatio(), 0.001f);
+            assertEquals(2, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Tests that turning the pinyin of note texts on and off fills and clears it for every
+     * note, over more than one batch, without counting as an edit.
+     */
+    public void testPinyinBackfill() {
+        int count = NotePadMigrations.BACKFILL_BATCH_SIZE + 5;
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, i % 2 == 0 ? "会议" : "Meeting");
+                mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        String filled = "SELECT count(*) FROM notes WHERE note_pinyin = 'huiyi|hy'";
+        String edited = "SELECT count(*) FROM notes WHERE version <> 1";
+
+        Pinyin.backfillInBatches(mDb, NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+        assertEquals((count + 1) / 2, DatabaseUtils.longForQuery(mDb, filled, null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, edited, null));
+
+        Pinyin.backfillInBatches(mDb, null, NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+            "SELECT count(*) FROM notes WHERE note_pinyin IS NOT NULL", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, edited, null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+            "SELECT count(*) FROM sqlite_master WHERE name = 'notes_version'", null));
+    }
+
+    /*
+     * Indexes 100,000 notes and checks that a misspelled two-word search finds its note, logging
+     * the best time of five runs.
+     */
+    public void testFuzzySearchBenchmark() {
+        final int noteCount = 100000;
+        File file = new File(getContext().getCacheDir(), "fuzzy_benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            seedNotes(db, noteCount, new Random(42));
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(noteCount, TrigramIndex.catchUp(db));
+            Log.i("NotePadProviderTest", "Indexed " + noteCount + " notes in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+
+            // The two longest words of a note, each with two letters swapped.
+            String[] words = DatabaseUtils.stringForQuery(db,
+                "SELECT note FROM notes WHERE _id = 4242", null).trim().split(" ");
+            Arrays.sort(words, (a, b) -> b.length() - a.length());
+            String text = swapLetters(words[0]) + " " + swapLetters(words[1]);
+            boolean found = false;
+            for (long id : TrigramIndex.search(db, text).noteIds) {
+                found |= id == 4242;
+            }
+            assertTrue("note not found for " + text, found);
+            long best = bestMicros(() -> TrigramIndex.search(db, text));
+            Log.i("NotePadProviderTest", "Fuzzy search over " + noteCount + " notes in "
+                + best + " us");
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /*
+     * Creates the tables in an empty database and adds notes of random colors and days over
+     * about three years, each titled with one word and written with twelve, drawn from 20,000
+     * made-up words. The notes are left for the caller to index.
+     */
+    private void seedNotes(SQLiteDatabase db, int noteCount, Random random) {
+        String[] syllables = {"ba", "ke", "lo", "mi", "nu", "ra", "se", "ti", "vo", "za",
+            "dre", "gan", "pol", "sto", "wen"};
+        String[] vocabulary = new String[20000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int n = 2 + random.nextInt(3); n > 0; n--) {
+                word.append(syllables[random.nextInt(syllables.length)]);
+            }
+            vocabulary[i] = word.toString();
+        }
+
+        new NotePadProvider.DatabaseHelper(getContext()).onCreate(db);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO notes"
+            + " (title, note, color, created, modified) VALUES (?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < noteCount; i++) {
+                StringBuilder note = new StringBuilder();
+                for (int w = 0; w < 12; w++) {
+                    note.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+                }
+                long modified = START_DATE + random.nextInt(1000) * ONE_DAY_MILLIS;
+                insert.bindString(1, vocabulary[random.nextInt(vocabulary.length)]);
+                insert.bindString(2, note.toString());
+                insert.bindLong(3, random.nextInt(5));
+                insert.bindLong(4, modified);
+                insert.bindLong(5, modified);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    // Runs a task five times and returns its best time in microseconds.
+    private static long bestMicros(Runnable task) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1000);
+        }
+        return best;
+    }
+
+    // Swaps the two letters in the middle of a word.
+    private static String swapLetters(String word) {
+        char[] chars = word.toCharArray();
+        int i = chars.length / 2;
+        char first = chars[i - 1];
+        chars[i - 1] = chars[i];
+        chars[i] = first;
+        return new String(chars);
+    }
+
+    private static Uri fuzzyUri(String text) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+            .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, text)
+            .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_MODE,
+                NotePad.Notes.SEARCH_MODE_FUZZY)
+            .build();
+    }
+
+    // Runs a fuzzy search and returns the IDs of the results, best first.
+    private long[] queryFuzzy(String text, String[] projection) {
+        return queryIds(mMockResolver.query(fuzzyUri(text), projection, null, null, null));
+    }
+
+    public void testStructuredSearch() {
+        assertFalse(SearchQuery.isStructured("meeting e-mail"));
+        assertFalse(SearchQuery.isStructured("todo: call"));
+        assertTrue(SearchQuery.isStructured("color:red"));
+        assertTrue(SearchQuery.isStructured("notes -draft"));
+        assertTrue(SearchQuery.isStructured("\"next week\""));
+
+        List<List<SearchQuery.Predicate>> groups = SearchQuery.parse(
+            "Title:Plan color:红 OR color:blue -draft \"Next week\" after:2010-01-10 before:soon")
+            .groups();
+        assertEquals(6, groups.size());
+        assertEquals("[title:plan]", groups.get(0).toString());
+        assertEquals("[color:4, color:3]", groups.get(1).toString());
+        assertEquals("[-word:draft]", groups.get(2).toString());
+        assertEquals("[text:next week]", groups.get(3).toString());
+        assertEquals(new GregorianCalendar(2010, Calendar.JANUARY, 10).getTimeInMillis(),
+            groups.get(4).get(0).value);
+        // A field whose value doesn't parse is searched as text.
+        assertEquals("[text:before:soon]", groups.get(5).toString());
+
+        long plan = insertNote("Budget plan", "Spending for next week", 4,
+            new GregorianCalendar(2010, Calendar.JANUARY, 5).getTimeInMillis());
+        long draft = insertNote("Draft budget", "Numbers to check", 4,
+            new GregorianCalendar(2010, Calendar.FEBRUARY, 10).getTimeInMillis());
+        long trip = insertNote("Trip plan", "Budgets and tickets for next week", 3,
+            new GregorianCalendar(2010, Calendar.JANUARY, 20).getTimeInMillis());
+        long minutes = insertNote("会议记录", "预算 next week", 1,
+            new GregorianCalendar(2010, Calendar.JANUARY, 8).getTimeInMillis());
+
+        // Words match the start of words, phrases and titles match anywhere.
+        assertStructuredSearch("budget", plan, draft, trip);
+        assertStructuredSearch("udget");
+        assertStructuredSearch("budget color:red", plan, draft);
+        assertStructuredSearch("budget -draft", plan, trip);
+        assertStructuredSearch("budget color:red OR color:blue after:2010-01-10", draft, trip);
+        assertStructuredSearch("\"next week\" before:2010-01-10", plan, minutes);
+        assertStructuredSearch("-title:plan", draft, minutes);
+        assertStructuredSearch("title:hyjl color:黄", minutes);
+        // Words also match pinyin, as in plain searches.
+        assertStructuredSearch("hyjl color:黄", minutes);
+        assertStructuredSearch("huiyi OR trip -draft", trip, minutes);
+        assertStructuredSearch("after:soon");
+
+        // The most selective indexed condition drives the query, and the text is scanned last.
+        TrigramIndex.catchUp(mDb);
+        SearchPlanner.Plan planned = SearchPlanner.plan(mDb,
+            SearchQuery.parse("\"next week\" budget color:red"));
+        assertEquals("color:4", planned.driver);
+        assertEquals(2, planned.estimate);
+        assertTrue(planned.where, planned.where.startsWith("(color = 4)"));
+        assertTrue(planned.where, planned.where.indexOf("+_id IN") < planned.where.indexOf("LIKE"));
+        assertNull(SearchPlanner.plan(mDb, SearchQuery.parse("-budget \"next week\"")).driver);
+        for (String text : new String[]{"\"next week\" budget color:red", "budget -draft",
+                "color:red OR color:blue after:2010-01-10 before:2010-02-01",
+                "huiyi OR budget -draft"}) {
+            SearchQuery query = SearchQuery.parse(text);
+            assertTrue(text, Arrays.equals(queryPlan(mDb, SearchPlanner.scanPlan(query)),
+                queryPlan(mDb, SearchPlanner.plan(mDb, query))));
+        }
+        // A pinyin word counts the notes its pinyin matches, and reads them from their index.
+        planned = SearchPlanner.plan(mDb, SearchQuery.parse("huiyi"));
+        assertEquals("word:huiyi", planned.driver);
+        assertEquals(1, planned.estimate);
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT _id FROM notes WHERE " + planned.where,
+            planned.args);
+        try {
+            StringBuilder details = new StringBuilder();
+            while (c.moveToNext()) {
+                details.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+            }
+            assertTrue(details.toString(), details.indexOf("idx_notes_pinyin") >= 0);
+        } finally {
+            c.close();
+        }
+
+        // Notes in the trash are left out.
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, draft),
+            null, null);
+        assertStructuredSearch("budget color:red", plan);
+    }
+
+    private void assertStructuredSearch(String text, long... expected) {
+        Cursor c = mMockResolver.query(NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, text)
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_MODE,
+                    NotePad.Notes.SEARCH_MODE_QUERY)
+                .build(),
+            new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_SCORE}, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                assertTrue(c.getDouble(1) > 0);
+            }
+            Arrays.sort(ids);
+            Arrays.sort(expected);
+            assertTrue(text + ": " + Arrays.toString(ids), Arrays.equals(expected, ids));
+        } finally {
+            c.close();
+        }
+    }
+
+    // Runs a plan directly and returns the IDs of the live notes it matches, in order.
+    private static long[] queryPlan(SQLiteDatabase db, SearchPlanner.Plan plan) {
+        return queryIds(db.rawQuery("SELECT _id FROM notes WHERE "
+            + (plan.where.isEmpty() ? "" : plan.where + " AND ") + "deleted_at IS NULL"
+            + " ORDER BY _id", plan.args));
+    }
+
+    /*
+     * Seeds 100,000 notes of random colors and dates, and checks that a planned structured
+     * query is driven by an index and finds what the same query scanned in the order it was
+     * written finds, logging the best time of five runs of each. The query starts with a
+     * phrase, so the scan reads every note body.
+     */
+    public void testStructuredSearchBenchmark() {
+        final int noteCount = 100000;
+        File file = new File(getContext().getCacheDir(), "query_benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            seedNotes(db, noteCount, new Random(45));
+            TrigramIndex.catchUp(db);
+
+            // A phrase, the color, a word and the day of one note.
+            Cursor c = db.rawQuery("SELECT note, color, modified FROM notes WHERE _id = 4242",
+                null);
+            String text;
+            try {
+                assertTrue(c.moveToFirst());
+                String[] words = c.getString(0).trim().split(" ");
+                text = "\"" + words[0] + " " + words[1] + "\" color:" + c.getInt(1) + " "
+                    + words[5] + " after:" + new SimpleDateFormat("yyyy-MM-dd")
+                    .format(new Date(c.getLong(2)));
+            } finally {
+                c.close();
+            }
+            SearchQuery query = SearchQuery.parse(text);
+            SearchPlanner.Plan planned = SearchPlanner.plan(db, query);
+            SearchPlanner.Plan scan = SearchPlanner.scanPlan(query);
+            assertNotNull(planned.driver);
+            logQueryPlan(db, planned);
+            logQueryPlan(db, scan);
+
+            long[] plannedIds = queryPlan(db, planned);
+            assertTrue(Arrays.equals(queryPlan(db, scan), plannedIds));
+            assertTrue("note not found for " + text, Arrays.binarySearch(plannedIds, 4242) >= 0);
+            long bestPlanned = bestMicros(() -> queryPlan(db, planned));
+            long bestScan = bestMicros(() -> queryPlan(db, scan));
+            Log.i("NotePadProviderTest", "Structured search \"" + text + "\" over " + noteCount
+                + " notes: planned " + bestPlanned + " us, scanned " + bestScan + " us");
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    private static void logQueryPlan(SQLiteDatabase db, SearchPlanner.Plan plan) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT _id FROM notes WHERE " + plan.where
+            + " AND deleted_at IS NULL", plan.args);
+        try {
+            StringBuilder details = new StringBuilder(plan.toString());
+            while (c.moveToNext()) {
+                details.append("\n  ").append(c.getString(c.getColumnIndexOrThrow("detail")));
+            }
+            Log.i("NotePadProviderTest", details.toString());
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Tests the suggestions trie on its own, and then the suggestions URI: loaded in the
+     * background by the first query, recent searches before titles, and kept up to date by
+     * renames, deletes and new searches.
+     */
+    public void testSuggestions() throws InterruptedException {
+        SuggestionTrie trie = new SuggestionTrie();
+        trie.putNote(1, "Budget 2024", 10);
+        trie.putNote(2, "budget 2024", 20);
+        trie.putNote(3, "Bud", 5);
+        trie.putSearch("budget review", 1);
+        List<SuggestionTrie.Suggestion> suggestions = trie.suggest("BUD", 10);
+        assertEquals(3, suggestions.size());
+        // Recent searches come first, and a title shared by notes suggests the latest one.
+        assertEquals("budget review", suggestions.get(0).text);
+        assertTrue(suggestions.get(0).recent);
+        assertEquals(-1, suggestions.get(0).noteId);
+        assertEquals(2, suggestions.get(1).noteId);
+        assertEquals(3, suggestions.get(2).noteId);
+        assertEquals(1, trie.suggest("bud", 1).size());
+        trie.removeNote(2);
+        assertEquals(1, trie.suggest("  budget 2", 10).get(0).noteId);
+        trie.putNote(1, "Other", -1);
+        assertEquals(0, trie.suggest("budget 2", 10).size());
+        trie.removeSearch("Budget Review");
+        assertEquals(1, trie.suggest("bud", 10).size());
+        assertEquals(0, trie.suggest("x", 10).size());
+        assertEquals(2, trie.size());
+
+        // Searches recorded by earlier runs would come before the titles.
+        getMockContext().getSharedPreferences("search_history", 0).edit().clear().commit();
+        insertData();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 50 && texts.isEmpty(); i++) {
+            Thread.sleep(100);
+            texts = querySuggestions("note", 3, null);
+        }
+        assertEquals(Arrays.asList("Note9", "Note8", "Note7"), texts);
+        assertEquals(TEST_NOTES.length, querySuggestions("NOTE", 100, null).size());
+
+        List<String> data = new ArrayList<>();
+        querySuggestions("note5", 1, data);
+        Uri note5 = Uri.parse(data.get(0));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Zebra crossing");
+        assertEquals(1, mMockResolver.update(note5, values, null, null));
+        assertTrue(querySuggestions("note5", 10, null).isEmpty());
+        data.clear();
+        assertEquals(Collections.singletonList("Zebra crossing"),
+            querySuggestions("zebra", 10, data));
+        assertEquals(note5.toString(), data.get(0));
+
+        mMockResolver.delete(note5, null, null);
+        assertTrue(querySuggestions("zeb", 10, null).isEmpty());
+
+        Uri inserted = insertNote("Zeppelin", "");
+        data.clear();
+        querySuggestions("ZE", 10, data);
+        assertEquals(Collections.singletonList(inserted.toString()), data);
+
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_ADD_RECENT_SEARCH,
+            "note quarterly", null);
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_ADD_RECENT_SEARCH,
+            "  note weekly ", null);
+        data.clear();
+        texts = querySuggestions("note", 3, data);
+        assertEquals(Arrays.asList("note weekly", "note quarterly", "Note9"), texts);
+        assertNull(data.get(0));
+        // Searching again moves a search up rather than adding it twice.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_ADD_RECENT_SEARCH,
+            "Note Quarterly", null);
+        assertEquals(Arrays.asList("Note Quarterly", "note weekly"),
+            querySuggestions("note ", 2, null));
+    }
+
+    /*
+     * Queries the suggestions URI and returns the suggested texts, adding the note URIs, or
+     * null for searches, to the given list if there is one.
+     */
+    private List<String> querySuggestions(String text, int limit, List<String> data) {
+        Cursor c = mMockResolver.query(NotePad.Notes.SUGGEST_URI.buildUpon()
+                .appendPath(text)
+                .appendQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT,
+                    Integer.toString(limit))
+                .build(),
+            null, null, null, null);
+        try {
+            List<String> texts = new ArrayList<>();
+            while (c.moveToNext()) {
+                texts.add(c.getString(c.getColumnIndexOrThrow(
+                    SearchManager.SUGGEST_COLUMN_TEXT_1)));
+                if (data != null) {
+                    data.add(c.getString(c.getColumnIndexOrThrow(
+                        SearchManager.SUGGEST_COLUMN_INTENT_DATA)));
+                }
+            }
+            return texts;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Tests that a smart folder holds the notes matching its saved search as notes are added,
+     * edited, moved to the trash and restored, and that listing it is driven by its members.
+     */
+    public void testSmartFolders() {
+        long redTodo = insertNote("Groceries", "TODO buy milk", 4, START_DATE);
+        long blueTodo = insertNote("Work", "todo: report", 3, START_DATE);
+        long holiday = insertNote("Holiday", "Pack the bags", 4, START_DATE);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.SavedSearches.COLUMN_NAME_QUERY, "color:red todo");
+        Uri folder = mMockResolver.insert(NotePad.SavedSearches.CONTENT_URI, values);
+        long folderId = ContentUris.parseId(folder);
+        assertSmartFolder(folderId, redTodo);
+
+        // The name defaults to the query, and the count comes from the members.
+        Cursor c = mMockResolver.query(folder, null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("color:red todo", c.getString(
+                c.getColumnIndexOrThrow(NotePad.SavedSearches.COLUMN_NAME_NAME)));
+            assertEquals(1, c.getInt(
+                c.getColumnIndexOrThrow(NotePad.SavedSearches.COLUMN_NAME_NOTE_COUNT)));
+        } finally {
+            c.close();
+        }
+
+        Uri blueUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, blueTodo);
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_COLOR, 4);
+        mMockResolver.update(blueUri, values, null, null);
+        assertSmartFolder(folderId, redTodo, blueTodo);
+
+        Uri redUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, redTodo);
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Bought the milk");
+        mMockResolver.update(redUri, values, null, null);
+        assertSmartFolder(folderId, blueTodo);
+
+        long added = insertNote("Red todos", "", 4, START_DATE);
+        assertSmartFolder(folderId, blueTodo, added);
+
+        mMockResolver.delete(blueUri, null, null);
+        assertSmartFolder(folderId, added);
+        Bundle restored = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+            NotePad.METHOD_RESTORE, String.valueOf(blueTodo), null);
+        assertEquals(1, restored.getInt("restored"));
+        assertSmartFolder(folderId, blueTodo, added);
+
+        // Changing the query fills the folder again.
+        values = new ContentValues();
+        values.put(NotePad.SavedSearches.COLUMN_NAME_QUERY, "title:holiday OR milk");
+        assertEquals(1, mMockResolver.update(folder, values, null, null));
+        assertSmartFolder(folderId, redTodo, holiday);
+
+        // Listing the folder reads its members by key and the notes by ID, never scanning them.
+        List<String> args = new ArrayList<>();
+        String members = SmartFolders.membersWhere(mDb, folderId, args);
+        c = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT notes._id FROM notes WHERE " + members
+            + " AND deleted_at IS NULL", args.toArray(new String[0]));
+        try {
+            while (c.moveToNext()) {
+                String detail = c.getString(c.getColumnIndexOrThrow("detail"));
+                assertFalse(detail, detail.matches("SCAN (TABLE )?notes\\b.*"));
+            }
+        } finally {
+            c.close();
+        }
+
+        try {
+            values = new ContentValues();
+            values.put(NotePad.SavedSearches.COLUMN_NAME_QUERY, "  ");
+            mMockResolver.insert(NotePad.SavedSearches.CONTENT_URI, values);
+            fail("saved a search without conditions");
+        } catch (IllegalArgumentException expected) {
+            // The query is required.
+        }
+
+        assertEquals(1, mMockResolver.delete(folder, null, null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+            "SELECT count(*) FROM " + SmartFolders.MEMBERS_TABLE, null));
+    }
+
+    private void assertSmartFolder(long folderId, long... expected) {
+        assertSameIds(queryIds(NotePad.SavedSearches.notesUri(folderId)), expected);
+    }
+
+    /*
+     * Tests tagging notes by ID and by name, the counts kept by the triggers through trash,
+     * restore and purge, listing the notes with a tag and the tags of a note, renaming, and
+     * deleting a tag.
+     */
+    public void testTags() {
+        long groceries = insertNote("Groceries", "milk", 0, START_DATE);
+        long work = insertNote("Work", "report", 0, START_DATE);
+
+        // Tagging by name creates the tag once, whatever the case.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Tags.COLUMN_NAME_NAME, " Home ");
+        Uri homeOfGroceries = mMockResolver.insert(NotePad.Tags.noteTagsUri(groceries), values);
+        long home = Long.parseLong(homeOfGroceries.getPathSegments()
+            .get(NotePad.Tags.NOTE_TAG_ID_PATH_POSITION));
+        values = new ContentValues();
+        values.put(NotePad.Tags.COLUMN_NAME_NAME, "home");
+        assertEquals(ContentUris.withAppendedId(NotePad.Tags.CONTENT_ID_URI_BASE, home),
+            mMockResolver.insert(NotePad.Tags.CONTENT_URI, values));
+        values = new ContentValues();
+        values.put(NotePad.Tags.COLUMN_NAME_NAME, "Urgent");
+        long urgent = ContentUris.parseId(mMockResolver.insert(NotePad.Tags.CONTENT_URI, values));
+
+        values = new ContentValues();
+        values.put(NotePad.Tags._ID, urgent);
+        mMockResolver.insert(NotePad.Tags.noteTagsUri(groceries), values);
+        mMockResolver.insert(NotePad.Tags.noteTagsUri(work), values);
+        // Tagging a note with a tag it has changes nothing.
+        assertEquals(NotePad.Tags.noteTagUri(work, urgent),
+            mMockResolver.insert(NotePad.Tags.noteTagsUri(work), values));
+        assertTagCount(home, 1);
+        assertTagCount(urgent, 2);
+        assertTagNotes(urgent, groceries, work);
+        assertNoteTags(groceries, "Home", "Urgent");
+
+        // Notes in the trash leave the counts and the lists, and come back with their tags.
+        Uri workUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, work);
+        mMockResolver.delete(workUri, null, null);
+        assertTagCount(urgent, 1);
+        assertTagNotes(urgent, groceries);
+        try {
+            values = new ContentValues();
+            values.put(NotePad.Tags._ID, home);
+            mMockResolver.insert(NotePad.Tags.noteTagsUri(work), values);
+            fail("tagged a note in the trash");
+        } catch (SQLException expected) {
+            // Only live notes are tagged.
+        }
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_RESTORE,
+            String.valueOf(work), null);
+        assertTagCount(urgent, 2);
+        assertTagNotes(urgent, groceries, work);
+
+        // Purging a note from the trash doesn't count it out twice.
+        mMockResolver.delete(workUri, null, null);
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.TRASH_URI, work), null,
+            null);
+        assertTagCount(urgent, 1);
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+            "SELECT count(*) FROM note_tags WHERE note_id = " + work, null));
+
+        assertEquals(1, mMockResolver.delete(NotePad.Tags.noteTagUri(groceries, urgent), null,
+            null));
+        assertTagCount(urgent, 0);
+        assertNoteTags(groceries, "Home");
+
+        // Renaming keeps names unique.
+        values = new ContentValues();
+        values.put(NotePad.Tags.COLUMN_NAME_NAME, "HOME");
+        try {
+            mMockResolver.update(ContentUris.withAppendedId(NotePad.Tags.CONTENT_ID_URI_BASE,
+                urgent), values, null, null);
+            fail("renamed a tag to the name of another");
+        } catch (SQLException expected) {
+            // The name is taken.
+        }
+        values.put(NotePad.Tags.COLUMN_NAME_NAME, "Family");
+        assertEquals(1, mMockResolver.update(ContentUris.withAppendedId(
+            NotePad.Tags.CONTENT_ID_URI_BASE, home), values, null, null));
+        assertNoteTags(groceries, "Family");
+
+        try {
+            values = new ContentValues();
+            values.put(NotePad.Tags.COLUMN_NAME_NAME, "  ");
+            mMockResolver.insert(NotePad.Tags.CONTENT_URI, values);
+            fail("created a tag without a name");
+        } catch (IllegalArgumentException expected) {
+            // The name is required.
+        }
+
+        // Deleting a tag takes it off its notes.
+        assertEquals(1, mMockResolver.delete(ContentUris.withAppendedId(
+            NotePad.Tags.CONTENT_ID_URI_BASE, home), null, null));
+        assertNoteTags(groceries);
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM note_tags", null));
+    }
+
+    private void assertTagCount(long tagId, int expected) {
+        Cursor c = mMockResolver.query(ContentUris.withAppendedId(
+            NotePad.Tags.CONTENT_ID_URI_BASE, tagId), null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(expected, c.getInt(
+                c.getColumnIndexOrThrow(NotePad.Tags.COLUMN_NAME_NOTE_COUNT)));
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertTagNotes(long tagId, long... expected) {
+        assertSameIds(queryIds(NotePad.Tags.notesUri(tagId)), expected);
+    }
+
+    private void assertNoteTags(long noteId, String... expected) {
+        Cursor c = mMockResolver.query(NotePad.Tags.noteTagsUri(noteId),
+            new String[]{NotePad.Tags.COLUMN_NAME_NAME}, null, null, null);
+        try {
+            List<String> names = new ArrayList<String>();
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+            assertEquals(Arrays.asList(expected), names);
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Tests filing notes in a tree of notebooks: the counts and lists of a notebook with the
+     * notebooks inside it through moves, trash and deletes, the moves and parents that are
+     * refused, and that listing a subtree reads the notes by index.
+     */
+    public void testNotebooks() {
+        long work = insertNotebook("Work", -1);
+        long projects = insertNotebook("Projects", work);
+        long launch = insertNotebook("Launch", projects);
+        long home = insertNotebook("Home", -1);
+        long report = insertNote("Report", "quarterly", 0, START_DATE);
+        long plan = insertNote("Plan", "milestones", 0, START_DATE);
+        long draft = insertNote("Draft", "press release", 0, START_DATE);
+        long loose = insertNote("Loose", "anywhere", 0, START_DATE);
+        fileNote(report, work);
+        fileNote(plan, projects);
+        fileNote(draft, launch);
+
+        // Each notebook counts its own notes and those of the notebooks inside it.
+        assertNotebookCounts(work, 1, 3);
+        assertNotebookCounts(projects, 1, 2);
+        assertNotebookCounts(launch, 1, 1);
+        assertNotebookCounts(home, 0, 0);
+        assertNotebookNotes(work, report, plan, draft);
+        assertNotebookNotes(projects, plan, draft);
+        assertNotebookNotes(home);
+
+        // Moving a notebook moves its subtree and counts, and leaves the notes alone.
+        Uri draftUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, draft);
+        long draftVersion = queryVersion(draftUri);
+        moveNotebook(launch, home);
+        assertNotebookCounts(work, 1, 2);
+        assertNotebookCounts(projects, 1, 1);
+        assertNotebookCounts(home, 0, 1);
+        assertNotebookNotes(home, draft);
+        assertNotebookNotes(work, report, plan);
+        assertEquals(draftVersion, queryVersion(draftUri));
+        long sub = insertNotebook("Sub", launch);
+        moveNotebook(home, projects);
+        assertNotebookCounts(work, 1, 3);
+        assertNotebookNotes(work, report, plan, draft);
+        assertEquals("/" + work + "/" + projects + "/" + home + "/" + launch + "/" + sub + "/",
+            DatabaseUtils.stringForQuery(mDb,
+                "SELECT path FROM notebooks WHERE _id = " + sub, null));
+        moveNotebook(home, -1);
+        assertNotebookCounts(work, 1, 2);
+        assertNotebookCounts(home, 0, 1);
+
+        // A notebook can't move into itself, a notebook inside it, or one that doesn't exist,
+        // and a note can't be filed in a notebook that doesn't exist.
+        for (long parent : new long[]{home, sub, sub + 1000}) {
+            try {
+                moveNotebook(home, parent);
+                fail("moved a notebook under " + parent);
+            } catch (SQLException expected) {
+                // The tree is left as it was.
+            }
+        }
+        try {
+            insertNotebook("Orphan", sub + 1000);
+            fail("created a notebook in one that doesn't exist");
+        } catch (SQLException expected) {
+            // The parent must exist.
+        }
+        try {
+            fileNote(loose, sub + 1000);
+            fail("filed a note in a notebook that doesn't exist");
+        } catch (SQLException expected) {
+            // The notebook must exist.
+        }
+        assertNotebookCounts(home, 0, 1);
+
+        // Notes in the trash leave the counts, and come back with the notebook they were in.
+        Uri planUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, plan);
+        mMockResolver.delete(planUri, null, null);
+        assertNotebookCounts(projects, 0, 0);
+        assertNotebookCounts(work, 1, 1);
+        assertNotebookNotes(work, report);
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_RESTORE,
+            String.valueOf(plan), null);
+        assertNotebookCounts(work, 1, 2);
+        fileNote(plan, -1);
+        assertNotebookCounts(projects, 0, 0);
+        assertNotebookCounts(work, 1, 1);
+        fileNote(plan, projects);
+
+        // Purging a note from the trash doesn't count it out twice.
+        mMockResolver.delete(draftUri, null, null);
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.TRASH_URI, draft), null,
+            null);
+        assertNotebookCounts(launch, 0, 0);
+        assertNotebookCounts(home, 0, 0);
+
+        // Deleting a notebook deletes the notebooks inside it; their notes stay, in none.
+        fileNote(loose, sub);
+        assertNotebookCounts(home, 0, 1);
+        assertEquals(1, mMockResolver.delete(ContentUris.withAppendedId(
+            NotePad.Notebooks.CONTENT_ID_URI_BASE, home), null, null));
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, NotePad.Notebooks.TABLE_NAME));
+        assertNotebookCounts(work, 1, 2);
+        assertTrue(DatabaseUtils.longForQuery(mDb,
+            "SELECT notebook_id IS NULL FROM notes WHERE _id = " + loose, null) != 0);
+
+        try {
+            insertNotebook("  ", -1);
+            fail("created a notebook without a name");
+        } catch (IllegalArgumentException expected) {
+            // The name is required.
+        }
+
+        // Listing a subtree reads a range of the notebooks and the notes of each by index.
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT _id FROM notes WHERE notebook_id IN"
+            + " (SELECT _id FROM notebooks WHERE " + NotebookTree.subtree(String.valueOf(work))
+            + ") AND deleted_at IS NULL", null);
+        try {
+            while (c.moveToNext()) {
+                String detail = c.getString(c.getColumnIndexOrThrow("detail"));
+                assertFalse(detail, detail.startsWith("SCAN"));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private long insertNotebook(String name, long parentId) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notebooks.COLUMN_NAME_NAME, name);
+        if (parentId >= 0) {
+            values.put(NotePad.Notebooks.COLUMN_NAME_PARENT_ID, parentId);
+        }
+        return ContentUris.parseId(mMockResolver.insert(NotePad.Notebooks.CONTENT_URI, values));
+    }
+
+    private void moveNotebook(long notebookId, long parentId) {
+        ContentValues values = new ContentValues();
+        if (parentId >= 0) {
+            values.put(NotePad.Notebooks.COLUMN_NAME_PARENT_ID, parentId);
+        } else {
+            values.putNull(NotePad.Notebooks.COLUMN_NAME_PARENT_ID);
+        }
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notebooks.CONTENT_ID_URI_BASE,
+            notebookId), values, null, null);
+    }
+
+    private void fileNote(long noteId, long notebookId) {
+        ContentValues values = new ContentValues();
+        if (notebookId >= 0) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID, notebookId);
+        } else {
+            values.putNull(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID);
+        }
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+            noteId), values, null, null);
+    }
+
+    private void assertNotebookCounts(long notebookId, int notes, int total) {
+        Cursor c = mMockResolver.query(ContentUris.withAppendedId(
+            NotePad.Notebooks.CONTENT_ID_URI_BASE, notebookId), null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(notes, c.getInt(
+                c.getColumnIndexOrThrow(NotePad.Notebooks.COLUMN_NAME_NOTE_COUNT)));
+            assertEquals(total, c.getInt(
+                c.getColumnIndexOrThrow(NotePad.Notebooks.COLUMN_NAME_TOTAL_COUNT)));
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertNotebookNotes(long notebookId, long... expected) {
+        assertSameIds(queryIds(NotePad.Notebooks.notesUri(notebookId)), expected);
+    }
+
+    /*
+     * Orders notes by hand: new notes go first, a move or a pin writes only the note moved,
+     * keys that aren't valid are refused, a batch of moves is all or nothing, and the list is
+     * read in order from an index.
+     */
+    public void testManualOrder() throws OperationApplicationException {
+        long first = insertNote("First", "one", 0, START_DATE);
+        long second = insertNote("Second", "two", 0, START_DATE);
+        long third = insertNote("Third", "three", 0, START_DATE);
+        assertManualOrder(third, second, first);
+
+        // A move takes a key between its new neighbours; the other notes aren't written, and
+        // a move isn't an edit, so no version changes.
+        Uri firstUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, first);
+        Uri secondUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, second);
+        Uri thirdUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, third);
+        long firstVersion = queryVersion(firstUri);
+        long secondVersion = queryVersion(secondUri);
+        long thirdVersion = queryVersion(thirdUri);
+        setOrder(first, NoteOrder.between(positionOf(third), positionOf(second)), false);
+        assertManualOrder(third, first, second);
+        assertEquals(firstVersion, queryVersion(firstUri));
+        assertEquals(secondVersion, queryVersion(secondUri));
+        assertEquals(thirdVersion, queryVersion(thirdUri));
+
+        // A pinned note goes to the top of the pinned notes, an unpinned one to the top of the
+        // others.
+        setPinned(second, true);
+        assertManualOrder(second, third, first);
+        setPinned(first, true);
+        assertManualOrder(first, second, third);
+        setPinned(second, false);
+        assertManualOrder(first, second, third);
+        assertEquals(firstVersion, queryVersion(firstUri));
+        assertEquals(secondVersion, queryVersion(secondUri));
+        assertEquals(thirdVersion, queryVersion(thirdUri));
+
+        // A key set on many notes at once would be shared by all of them.
+        ContentValues shared = new ContentValues();
+        shared.put(NotePad.Notes.COLUMN_NAME_POSITION, "a5");
+        try {
+            mMockResolver.update(NotePad.Notes.CONTENT_URI, shared, null, null);
+            fail("set one position on every note");
+        } catch (IllegalArgumentException expected) {
+            // Positions are set one note at a time.
+        }
+
+        for (String position : new String[]{null, "", "a00", "a0!", "b0"}) {
+            try {
+                setOrder(third, position, false);
+                fail("moved a note to " + position);
+            } catch (IllegalArgumentException expected) {
+                // The key must be one NoteOrder could have made.
+            }
+        }
+
+        // A batch of moves is applied in one transaction, and not at all if one fails.
+        ArrayList<ContentProviderOperation> moves = new ArrayList<ContentProviderOperation>();
+        moves.add(orderOperation(third, NoteOrder.between(null, positionOf(second))));
+        moves.add(orderOperation(first, "a00"));
+        try {
+            getProvider().applyBatch(moves);
+            fail("applied a batch with a key that isn't valid");
+        } catch (IllegalArgumentException expected) {
+            // Nothing was moved.
+        }
+        assertManualOrder(first, second, third);
+        moves.set(1, orderOperation(first, NoteOrder.between(positionOf(second), null)));
+        assertEquals(2, getProvider().applyBatch(moves).length);
+        assertManualOrder(third, second, first);
+
+        // Keys stay short at the ends and between neighbours, and always sort between them.
+        String top = NoteOrder.between(null, null);
+        for (int i = 0; i < 1000; i++) {
+            top = NoteOrder.between(null, top);
+        }
+        assertTrue(top, top.length() <= 3);
+        Random random = new Random(42);
+        List<String> keys = new ArrayList<String>();
+        keys.add(NoteOrder.between(null, null));
+        for (int i = 0; i < 1000; i++) {
+            int at = random.nextInt(keys.size() + 1);
+            String key = NoteOrder.between(at > 0 ? keys.get(at - 1) : null,
+                at < keys.size() ? keys.get(at) : null);
+            keys.add(at, key);
+        }
+        List<String> sorted = new ArrayList<String>(keys);
+        Collections.sort(sorted);
+        assertEquals(keys, sorted);
+
+        // The list is read in its order from the index, with no sort and no table lookup.
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT _id, pinned, position FROM notes"
+            + " WHERE deleted_at IS NULL ORDER BY " + NotePad.Notes.MANUAL_SORT_ORDER, null);
+        try {
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+            }
+            assertTrue(plan.toString(),
+                plan.indexOf("USING COVERING INDEX idx_notes_position") >= 0);
+            assertTrue(plan.toString(), plan.indexOf("TEMP B-TREE") < 0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private String positionOf(long noteId) {
+        return DatabaseUtils.stringForQuery(mDb,
+            "SELECT position FROM notes WHERE _id = " + noteId, null);
+    }
+
+    private void setOrder(long noteId, String position, boolean pinned) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_POSITION, position);
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, pinned);
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+            noteId), values, null, null);
+    }
+
+    // Pins or unpins a note without a position, so that the provider puts it at the top.
+    private void setPinned(long noteId, boolean pinned) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, pinned);
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+            noteId), values, null, null);
+    }
+
+    private static ContentProviderOperation orderOperation(long noteId, String position) {
+        return ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId))
+            .withValue(NotePad.Notes.COLUMN_NAME_POSITION, position)
+            .withValue(NotePad.Notes.COLUMN_NAME_PINNED, 0)
+            .build();
+    }
+
+    private void assertManualOrder(long... expected) {
+        long[] ids = queryIds(mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[]{NotePad.Notes._ID}, null, null, NotePad.Notes.MANUAL_SORT_ORDER));
+        assertTrue(Arrays.toString(ids), Arrays.equals(expected, ids));
+    }
+
+    /*
+     * Lists the notes with a tag among 100,000 notes with 20 tags of very different sizes, and
+     * checks that the list is read from the join table's index and the notes by ID, whatever
+     * the size of the tag, logging its best time of five runs against a scan of the notes
+     * joined to the tags.
+     */
+    public void testTagListBenchmark() {
+        final int noteCount = 100000;
+        final int tagCount = 20;
+        Random random = new Random(48);
+        File file = new File(getContext().getCacheDir(), "tag_benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            new NotePadProvider.DatabaseHelper(getContext()).onCreate(db);
+            long[] tags = new long[tagCount];
+            for (int t = 0; t < tagCount; t++) {
+                tags[t] = NoteTags.tagId(db, "tag" + t);
+            }
+            SQLiteStatement insert = db.compileStatement("INSERT INTO notes"
+                + " (title, note, created, modified) VALUES (?, ?, ?, ?)");
+            SQLiteStatement tag = db.compileStatement("INSERT INTO note_tags VALUES (?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < noteCount; i++) {
+                    long modified = START_DATE + random.nextInt(1000) * ONE_DAY_MILLIS;
+                    insert.bindString(1, "Note " + i);
+                    insert.bindString(2, "text " + i);
+                    insert.bindLong(3, modified);
+                    insert.bindLong(4, modified);
+                    long id = insert.executeInsert();
+                    // Tag t is on one note in 2^(t/2), from every note to about 200 of them.
+                    for (int t = 0; t < tagCount; t++) {
+                        if (random.nextInt(1 << (t / 2)) == 0) {
+                            tag.bindLong(1, id);
+                            tag.bindLong(2, tags[t]);
+                            tag.executeInsert();
+                        }
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+                tag.close();
+            }
+
+            for (long tagId : new long[]{tags[0], tags[tagCount / 2], tags[tagCount - 1]}) {
+                String tagged = "SELECT notes._id FROM " + NoteTags.NOTES_WITH_TAG
+                    + " WHERE note_tags.tag_id = " + tagId + " AND deleted_at IS NULL"
+                    + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER;
+                String scanned = "SELECT notes._id FROM notes WHERE deleted_at IS NULL AND"
+                    + " EXISTS (SELECT 1 FROM note_tags WHERE note_id = notes._id"
+                    + " AND +tag_id = " + tagId + ") ORDER BY "
+                    + NotePad.Notes.DEFAULT_SORT_ORDER;
+                Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + tagged, null);
+                try {
+                    StringBuilder details = new StringBuilder();
+                    while (c.moveToNext()) {
+                        String detail = c.getString(c.getColumnIndexOrThrow("detail"));
+                        details.append("\n  ").append(detail);
+                        assertFalse(detail, detail.startsWith("SCAN"));
+                    }
+                    Log.i("NotePadProviderTest", "Tag " + tagId + ":" + details);
+                } finally {
+                    c.close();
+                }
+
+                long count = DatabaseUtils.longForQuery(db, "SELECT note_count FROM tags"
+                    + " WHERE _id = " + tagId, null);
+                long[] taggedIds = queryIds(db, tagged);
+                long[] scannedIds = queryIds(db, scanned);
+                assertEquals(count, taggedIds.length);
+                // Notes modified on the same day may come in either order.
+                Arrays.sort(taggedIds);
+                Arrays.sort(scannedIds);
+                assertTrue(Arrays.equals(scannedIds, taggedIds));
+                long bestTagged = bestMicros(() -> queryIds(db, tagged));
+                long bestScanned = bestMicros(() -> queryIds(db, scanned));
+                Log.i("NotePadProviderTest", "Tag " + tagId + " with " + count + " of "
+                    + noteCount + " notes: listed " + bestTagged + " us, scanned "
+                    + bestScanned + " us");
+            }
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    private static long[] queryIds(SQLiteDatabase db, String sql) {
+        return queryIds(db.rawQuery(sql, null));
+    }
+
+    // Returns the IDs of the notes listed at a URI, in the order listed.
+    private long[] queryIds(Uri uri) {
+        return queryIds(mMockResolver.query(uri, new String[]{NotePad.Notes._ID}, null, null,
+            null));
+    }
+
+    // Returns the first column of every row of a cursor, in order, and closes the cursor.
+    private static long[] queryIds(Cursor c) {
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    // Asserts that the IDs are the expected ones, in any order.
+    private static void assertSameIds(long[] ids, long... expected) {
+        Arrays.sort(ids);
+        Arrays.sort(expected);
+        assertTrue(Arrays.toString(ids), Arrays.equals(expected, ids));
+    }
+
+    /*
+     * Upgrades a database of every version the migrations support, with a few notes in it, and
+     * checks that the notes survive and that the schema ends up the same as a new database's.
+     */
+    public void testUpgradeFromEveryVersion() {
+        SQLiteDatabase expected = SQLiteDatabase.create(null);
+        new NotePadProvider.DatabaseHelper(getContext()).onCreate(expected);
+        List<String> expectedSchema = describeSchema(expected);
+        expected.close();
+
+        for (int version = NotePadMigrations.OLDEST_VERSION;
+                version < NotePadMigrations.LATEST_VERSION; version++) {
+            SQLiteDatabase db = createHistoricalDatabase(version);
+            if (version >= 15) {
+                // From version 15 on, new notes also got a place at the top of the list.
+                db.execSQL("INSERT INTO notes (title, note, created, modified, content_hash,"
+                    + " content_length, position) VALUES ('First', 'one', 1, 2, ?, 3, 'a0'),"
+                    + " ('Empty', NULL, 3, 4, ?, 0, 'Zz')",
+                    new Object[]{ContentHash.of("one"), ContentHash.of("")});
+            } else if (version >= 6) {
+                // From version 6 on, the provider stored the hashes along with the notes.
+                db.execSQL("INSERT INTO notes (title, note, created, modified, content_hash,"
+                    + " content_length) VALUES ('First', 'one', 1, 2, ?, 3),"
+                    + " ('Empty', NULL, 3, 4, ?, 0)",
+                    new Object[]{ContentHash.of("one"), ContentHash.of("")});
+            } else {
+                db.execSQL("INSERT INTO notes (title, note, created, modified)"
+                    + " VALUES ('First', 'one', 1, 2), ('Empty', NULL, 3, 4)");
+            }
+            migrateInTransaction(db, version);
+            assertEquals("upgrade from version " + version,
+                expectedSchema, describeSchema(db));
+
+            Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[]{
+                    NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_CONTENT_HASH,
+                    NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH, NotePad.Notes.COLUMN_NAME_VERSION,
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT},
+                null, null, null, null, NotePad.Notes._ID);
+            assertEquals(2, cursor.getCount());
+            while (cursor.moveToNext()) {
+                String note = cursor.isNull(0) ? "" : cursor.getString(0);
+                assertEquals(ContentHash.of(note), cursor.getLong(1));
+                assertEquals(note.length(), cursor.getLong(2));
+                assertEquals(1, cursor.getLong(3));
+                assertTrue(cursor.isNull(4));
+            }
+            cursor.close();
+            // The manual order starts out as the list was, newest first.
+            assertTrue(Arrays.equals(new long[]{2, 1}, queryIds(db, "SELECT _id FROM notes"
+                + " ORDER BY " + NotePad.Notes.MANUAL_SORT_ORDER)));
+            assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT count FROM "
+                + NoteCounts.TABLE_NAME + " WHERE kind = '" + NoteCounts.KIND_TOTAL + "'", null));
+            db.close();
+        }
+
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            NotePadMigrations.migrate(db, NotePadMigrations.OLDEST_VERSION - 1,
+                NotePadMigrations.LATEST_VERSION);
+            fail("migrated from a version older than the oldest supported one");
+        } catch (IllegalArgumentException expectedException) {
+            // The database is left alone rather than recreated.
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Upgrades a database of 100,000 notes from the oldest supported version, on disk as on a
+     * device, and checks that it fits in the 5 second input dispatch timeout: the upgrade runs
+     * on whichever thread opens the database first, which can be the main thread.
+     */
+    public void testUpgradeBenchmark() {
+        final int noteCount = 100000;
+        final long budgetMillis = 5000;
+        File file = new File(getContext().getCacheDir(), "migration_benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = createHistoricalDatabase(file, NotePadMigrations.OLDEST_VERSION);
+        try {
+            SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO notes (title, note, created, modified) VALUES (?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < noteCount; i++) {
+                    insert.bindString(1, "Note " + i);
+                    insert.bindString(2, "Line " + i + " of a note of a typical length, "
+                        + "repeated to give the backfill some text to hash. " + i);
+                    insert.bindLong(3, TEST_CALENDAR.getTimeInMillis() + i * 1000L);
+                    insert.bindLong(4, TEST_CALENDAR.getTimeInMillis() + i * 60000L);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            migrateInTransaction(db, NotePadMigrations.OLDEST_VERSION);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.i("NotePadProviderTest", "Upgraded " + noteCount + " notes in " + elapsed + " ms");
+            assertTrue("upgrade took " + elapsed + " ms", elapsed < budgetMillis);
+            assertEquals(noteCount, DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME));
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    // Runs the migrations in one transaction, as SQLiteOpenHelper does.
+    private static void migrateInTransaction(SQLiteDatabase db, int fromVersion) {
+        db.beginTransaction();
+        try {
+            NotePadMigrations.migrate(db, fromVersion, NotePadMigrations.LATEST_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static SQLiteDatabase createHistoricalDatabase(int version) {
+        return createHistoricalDatabase(null, version);
+    }
+
+    /*
+     * Creates a database with the schema a new install of the given version created. The SQL is
+     * frozen here rather than taken from the provider, so that later schema changes can't
+     * change the starting point of the upgrade tests.
+     */
+    private static SQLiteDatabase createHistoricalDatabase(File file, int version) {
+        SQLiteDatabase db = file == null ? SQLiteDatabase.create(null)
+            : SQLiteDatabase.openOrCreateDatabase(file, null);
+        String columns = "_id INTEGER PRIMARY KEY,title TEXT,note TEXT,created INTEGER,modified INTEGER";
+        if (version >= 3) {
+            columns += ",color INTEGER DEFAULT 0";
+        }
+        if (version >= 5) {
+            columns += ",version INTEGER NOT NULL DEFAULT 1";
+        }
+        if (version >= 6) {
+            columns += ",content_hash INTEGER,content_length INTEGER";
+        }
+        db.execSQL("CREATE TABLE notes (" + columns + ")");
+        if (version >= 3) {
+            db.execSQL("CREATE INDEX idx_notes_title ON notes(title)");
+            db.execSQL("CREATE INDEX idx_notes_note ON notes(note)");
+        }
+        if (version >= 4) {
+            // The trigger bodies are shortened to the total count; version 8 replaces them.
+            db.execSQL("CREATE TABLE note_counts (kind TEXT NOT NULL, bucket INTEGER NOT NULL,"
+                + " count INTEGER NOT NULL, PRIMARY KEY (kind, bucket)) WITHOUT ROWID");
+            db.execSQL("INSERT INTO note_counts VALUES ('total', 0, 0)");
+            db.execSQL("CREATE TRIGGER note_counts_insert AFTER INSERT ON notes BEGIN"
+                + " UPDATE note_counts SET count = count + 1 WHERE kind = 'total'; END");
+            db.execSQL("CREATE TRIGGER note_counts_delete AFTER DELETE ON notes BEGIN"
+                + " UPDATE note_counts SET count = count - 1 WHERE kind = 'total'; END");
+            db.execSQL("CREATE TRIGGER note_counts_update AFTER UPDATE OF color, modified"
+                + " ON notes BEGIN SELECT 1; END");
+        }
+        if (version >= 5) {
+            db.execSQL("CREATE TRIGGER notes_version AFTER UPDATE ON notes"
+                + " WHEN NEW.version = OLD.version BEGIN UPDATE notes"
+                + " SET version = OLD.version + 1 WHERE _id = NEW._id; END");
+        }
+        if (version >= 6) {
+            db.execSQL("CREATE INDEX idx_notes_content_hash ON notes(content_hash)");
+        }
+        if (version >= 7) {
+            db.execSQL("CREATE TABLE revisions (_id INTEGER PRIMARY KEY,"
+                + "note_id INTEGER NOT NULL,revision INTEGER NOT NULL,created INTEGER,"
+                + "title TEXT,body TEXT,prefix INTEGER NOT NULL DEFAULT 0,"
+                + "suffix INTEGER NOT NULL DEFAULT 0,removed TEXT,inserted TEXT,"
+                + "content_hash INTEGER,UNIQUE (note_id, revision))");
+            db.execSQL("CREATE TRIGGER revisions_cleanup AFTER DELETE ON notes"
+                + " BEGIN DELETE FROM revisions WHERE note_id = OLD._id; END");
+        }
+        if (version >= 8) {
+            db.execSQL("ALTER TABLE notes ADD COLUMN deleted_at INTEGER");
+            db.execSQL("CREATE INDEX idx_notes_deleted_at ON notes(deleted_at)"
+                + " WHERE deleted_at IS NOT NULL");
+            db.execSQL("CREATE TRIGGER note_counts_trash AFTER UPDATE OF deleted_at ON notes"
+                + " BEGIN SELECT 1; END");
+            db.execSQL("CREATE TRIGGER note_counts_restore AFTER UPDATE OF deleted_at ON notes"
+                + " BEGIN SELECT 1; END");
+        }
+        if (version >= 9) {
+            db.execSQL("CREATE TABLE search_terms (_id INTEGER PRIMARY KEY,"
+                + " term TEXT NOT NULL UNIQUE)");
+            db.execSQL("CREATE TABLE term_trigrams (trigram INTEGER NOT NULL,"
+                + " term_id INTEGER NOT NULL, PRIMARY KEY (trigram, term_id)) WITHOUT ROWID");
+            db.execSQL("CREATE TABLE note_terms (note_id INTEGER NOT NULL,"
+                + " term_id INTEGER NOT NULL, PRIMARY KEY (note_id, term_id)) WITHOUT ROWID");
+            db.execSQL("CREATE INDEX idx_note_terms_term ON note_terms (term_id)");
+            db.execSQL("CREATE TABLE search_pending (note_id INTEGER PRIMARY KEY)");
+            db.execSQL("CREATE TRIGGER search_pending_insert AFTER INSERT ON notes"
+                + " BEGIN INSERT OR IGNORE INTO search_pending VALUES (NEW._id); END");
+            db.execSQL("CREATE TRIGGER search_pending_update AFTER UPDATE OF title, note"
+                + " ON notes BEGIN INSERT OR IGNORE INTO search_pending VALUES (NEW._id); END");
+            db.execSQL("CREATE TRIGGER search_postings_cleanup AFTER DELETE ON notes BEGIN"
+                + " DELETE FROM note_terms WHERE note_id = OLD._id;"
+                + " DELETE FROM search_pending WHERE note_id = OLD._id; END");
+        }
+        if (version >= 10) {
+            db.execSQL("ALTER TABLE notes ADD COLUMN title_pinyin TEXT");
+            db.execSQL("ALTER TABLE notes ADD COLUMN note_pinyin TEXT");
+        }
+        if (version >= 11) {
+            db.execSQL("CREATE INDEX idx_notes_color ON notes(color)");
+            db.execSQL("CREATE INDEX idx_notes_modified ON notes(modified)");
+        }
+        if (version >= 12) {
+            db.execSQL("CREATE TABLE saved_searches (_id INTEGER PRIMARY KEY, name TEXT,"
+                + " query TEXT NOT NULL, created INTEGER)");
+            db.execSQL("CREATE TABLE saved_search_notes (search_id INTEGER NOT NULL,"
+                + " note_id INTEGER NOT NULL, PRIMARY KEY (search_id, note_id)) WITHOUT ROWID");
+            db.execSQL("CREATE INDEX idx_saved_search_notes_note ON saved_search_notes"
+                + " (note_id)");
+            db.execSQL("CREATE TABLE saved_search_pending (note_id INTEGER PRIMARY KEY)");
+            String queue = " WHEN EXISTS (SELECT 1 FROM saved_searches)"
+                + " BEGIN INSERT OR IGNORE INTO saved_search_pending VALUES (NEW._id); END";
+            db.execSQL("CREATE TRIGGER saved_search_pending_insert AFTER INSERT ON notes"
+                + queue);
+            db.execSQL("CREATE TRIGGER saved_search_pending_update AFTER UPDATE OF title,"
+                + " note, color, modified, deleted_at, title_pinyin, note_pinyin ON notes"
+                + queue);
+            db.execSQL("CREATE TRIGGER saved_search_notes_cleanup AFTER DELETE ON notes"
+                + " BEGIN DELETE FROM saved_search_notes WHERE note_id = OLD._id;"
+                + " DELETE FROM saved_search_pending WHERE note_id = OLD._id; END");
+            db.execSQL("CREATE TRIGGER saved_search_cleanup AFTER DELETE ON saved_searches"
+                + " BEGIN DELETE FROM saved_search_notes WHERE search_id = OLD._id; END");
+        }
+        if (version >= 13) {
+            // The trigger bodies are shortened; only their names are compared.
+            db.execSQL("CREATE TABLE tags (_id INTEGER PRIMARY KEY,"
+                + " name TEXT NOT NULL UNIQUE COLLATE NOCASE,"
+                + " note_count INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE TABLE note_tags (note_id INTEGER NOT NULL,"
+                + " tag_id INTEGER NOT NULL, PRIMARY KEY (note_id, tag_id)) WITHOUT ROWID");
+            db.execSQL("CREATE INDEX idx_note_tags_tag ON note_tags (tag_id)");
+            db.execSQL("CREATE TRIGGER note_tags_insert AFTER INSERT ON note_tags"
+                + " BEGIN SELECT 1; END");
+            db.execSQL("CREATE TRIGGER note_tags_delete AFTER DELETE ON note_tags"
+                + " BEGIN SELECT 1; END");
+            db.execSQL("CREATE TRIGGER note_tags_trash AFTER UPDATE OF deleted_at ON notes"
+                + " BEGIN SELECT 1; END");
+            db.execSQL("CREATE TRIGGER note_tags_restore AFTER UPDATE OF deleted_at ON notes"
+                + " BEGIN SELECT 1; END");
+            db.execSQL("CREATE TRIGGER note_tags_purge BEFORE DELETE ON notes"
+                + " BEGIN SELECT 1; END");
+            db.execSQL("CREATE TRIGGER note_tags_cleanup AFTER DELETE ON notes"
+                + " BEGIN DELETE FROM note_tags WHERE note_id = OLD._id; END");
+            db.execSQL("CREATE TRIGGER tags_cleanup AFTER DELETE ON tags"
+                + " BEGIN DELETE FROM note_tags WHERE tag_id = OLD._id; END");
+        }
+        if (version >= 14) {
+            // The trigger bodies are shortened; only their names are compared.
+            db.execSQL("ALTER TABLE notes ADD COLUMN notebook_id INTEGER");
+            db.execSQL("CREATE TABLE notebooks (_id INTEGER PRIMARY KEY, name TEXT NOT NULL,"
+                + " parent_id INTEGER, path TEXT NOT NULL DEFAULT '',"
+                + " note_count INTEGER NOT NULL DEFAULT 0,"
+                + " total_count INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE INDEX idx_notebooks_path ON notebooks (path)");
+            db.execSQL("CREATE INDEX idx_notes_notebook ON notes (notebook_id)");
+            for (String trigger : new String[]{"notebooks_parent BEFORE INSERT ON notebooks",
+                    "notebooks_path AFTER INSERT ON notebooks",
+                    "notebooks_move_check BEFORE UPDATE OF parent_id ON notebooks",
+                    "notebooks_move AFTER UPDATE OF parent_id ON notebooks",
+                    "notebooks_notes_release BEFORE DELETE ON notebooks",
+                    "notebooks_cleanup AFTER DELETE ON notebooks",
+                    "notebooks_note_insert_check BEFORE INSERT ON notes",
+                    "notebooks_note_update_check BEFORE UPDATE OF notebook_id ON notes",
+                    "notebooks_count_insert AFTER INSERT ON notes",
+                    "notebooks_count_delete AFTER DELETE ON notes",
+                    "notebooks_count_update AFTER UPDATE OF notebook_id, deleted_at ON notes"}) {
+                db.execSQL("CREATE TRIGGER " + trigger + " BEGIN SELECT 1; END");
+            }
+        }
+        if (version >= 15) {
+            db.execSQL("ALTER TABLE notes ADD COLUMN position TEXT");
+            db.execSQL("ALTER TABLE notes ADD COLUMN pinned INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX idx_notes_position ON notes (pinned DESC, position,"
+                + " deleted_at)");
+        }
+        db.setVersion(version);
+        return db;
+    }
+
+    /*
+     * Lists the tables, indexes and triggers of a database, and the columns of each table, in
+     * a form that doesn't depend on whether a table was created whole or altered into shape.
+     */
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor objects = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master"
+            + " WHERE name NOT LIKE 'sqlite_%' AND name <> 'android_metadata'", null);
+        while (objects.moveToNext()) {
+            schema.add(objects.getString(0) + " " + objects.getString(1) + " on "
+                + objects.getString(2));
+            if ("table".equals(objects.getString(0))) {
+                Cursor columns = db.rawQuery("PRAGMA table_info(" + objects.getString(1) + ")", null);
+                while (columns.moveToNext()) {
+                    schema.add(objects.getString(1) + "." + columns.getString(1) + " "
+                        + columns.getString(2) + " notnull=" + columns.getInt(3)
+                        + " default=" + columns.getString(4) + " pk=" + columns.getInt(5));
+                }
+                columns.close();
+            }
+        }
+        objects.close();
+        Collections.sort(schema);
+        return schema;
+    }
+
+    // Inserts a note through the provider, so that provider-maintained columns are filled in.
+    private Uri insertNote(String title, String note) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        return mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    // Inserts a note with the given color and modification date, and returns its ID.
+    private long insertNote(String title, String note, int color, long modified) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        values.put(NotePad.Notes.COLUMN_NAME_COLOR, color);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        return ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+    }
+
+    // Reads the version of a single note.
+    private long queryVersion(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+            new String[]{NotePad.Notes.COLUMN_NAME_VERSION}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Reads the text of a single note.
+    private String queryNoteText(Uri noteUri, String[] projection) {
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Reads the single value returned by the count URI.
+    private long queryCount(String selection, String[] selectionArgs) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.COUNT_URI, null, selection, selectionArgs, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(cursor.getColumnIndex(NotePad.Notes._COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
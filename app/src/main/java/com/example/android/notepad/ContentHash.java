@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+/**
+ * The 64-bit FNV-1a hash of a note's text, stored by {@link NotePadProvider} next to the text
+ * together with its length.
+ * <p>
+ * Comparing an edited text against the stored one then costs a length check, which settles
+ * most cases, and one pass over the edited text without reading the stored text at all. Equal
+ * hashes of different texts are possible but so unlikely that callers treat them as equal;
+ * duplicate detection double-checks the text itself.
+ * 笔记正文的 64 位哈希：配合长度列可快速判断文本是否与已保存内容相同，并用于查找重复笔记。
+ */
+final class ContentHash {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ContentHash() {
+    }
+
+    /**
+     * Hashes the UTF-16 code units of the text, low byte first.
+     */
+    static long of(CharSequence text) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns whether the text is (with overwhelming probability) the text that was stored with
+     * the given hash and length. The length is compared first, so most edits are detected
+     * without hashing.
+     */
+    static boolean matches(CharSequence text, long hash, long length) {
+        return text.length() == length && of(text) == hash;
+    }
+
+    /**
+     * If the values contain note text, adds its hash and length, so the columns never
+     * disagree with the text.
+     */
+    static void putInto(ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return;
+        }
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (note == null) {
+            note = "";
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_CONTENT_HASH, of(note));
+        values.put(NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH, note.length());
+    }
+}
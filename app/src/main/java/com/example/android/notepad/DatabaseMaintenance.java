@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Database housekeeping tasks, run one at a time by {@link MaintenanceWorker} through
+ * {@link NotePad#METHOD_MAINTENANCE} while the device is idle and charging:
+ * <ul>
+ * <li>{@link #TASK_OPTIMIZE} refreshes the query planner statistics and drops the words of
+ * the fuzzy search index that no note contains any more.</li>
+ * <li>{@link #TASK_TUNE} measures the storage profiles, see {@link StorageTuner}.</li>
+ * <li>{@link #TASK_VACUUM} returns the pages freed by deleted notes to the file system, a
+ * bounded number of pages per run.</li>
+ * <li>{@link #TASK_CHECKPOINT} copies the write-ahead log into the database and truncates
+ * it.</li>
+ * <li>{@link #TASK_INTEGRITY} checks the database for corruption.</li>
+ * </ul>
+ * A running task can be cancelled from another thread with {@link #cancel()}, which interrupts
+ * the SQLite statement in progress. The last result of each task is kept in shared
+ * preferences, so that the diagnostics report shows it after the process is restarted.
+ * 数据库维护任务：统计信息更新、增量 VACUUM、WAL 检查点和完整性检查，并记录每次耗时与回收的空间。
+ */
+final class DatabaseMaintenance {
+    private static final String TAG = "DatabaseMaintenance";
+
+    static final String TASK_OPTIMIZE = "optimize";
+    static final String TASK_TUNE = "tune";
+    static final String TASK_VACUUM = "vacuum";
+    static final String TASK_CHECKPOINT = "checkpoint";
+    static final String TASK_INTEGRITY = "integrity";
+
+    /**
+     * The tasks in the order a maintenance run performs them. The storage profiles are
+     * measured with fresh planner statistics, and the checkpoint follows the vacuum so that
+     * the pages the vacuum moved through the log are written back.
+     */
+    static final String[] TASKS = {
+            TASK_OPTIMIZE, TASK_TUNE, TASK_VACUUM, TASK_CHECKPOINT, TASK_INTEGRITY
+    };
+
+    /**
+     * Maximum number of free pages an incremental vacuum releases per call; the caller repeats
+     * the task while "remaining_pages" is positive.
+     */
+    static final int VACUUM_PAGES = 1024;
+
+    // Number of integrity problems kept in a result.
+    private static final int MAX_PROBLEMS = 10;
+
+    // Values of PRAGMA auto_vacuum.
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final SharedPreferences mLog;
+    private final StorageTuner mTuner;
+    private volatile CancellationSignal mSignal;
+
+    DatabaseMaintenance(SharedPreferences log, StorageTuner tuner) {
+        mLog = log;
+        mTuner = tuner;
+    }
+
+    /**
+     * Runs one task and records its result.
+     *
+     * @return the result: the "task" name, "duration_ms", "reclaimed_bytes", whether it was
+     * "cancelled", and task-specific values ("skipped", "profile" and "gain_percent" for the
+     * tuning, "full" and "remaining_pages" for the vacuum,
+     * "skipped" and "busy" for the checkpoint, "ok" and "problems" for the integrity check)
+     * @throws IllegalArgumentException if the task is unknown
+     */
+    Bundle run(SQLiteDatabase db, String task) {
+        CancellationSignal signal = new CancellationSignal();
+        mSignal = signal;
+        Bundle result = new Bundle();
+        result.putString("task", task);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            if (TASK_OPTIMIZE.equals(task)) {
+                optimize(db, signal);
+            } else if (TASK_TUNE.equals(task)) {
+                mTuner.tune(db, signal, result);
+            } else if (TASK_VACUUM.equals(task)) {
+                vacuum(db, signal, result);
+            } else if (TASK_CHECKPOINT.equals(task)) {
+                checkpoint(db, signal, result);
+            } else if (TASK_INTEGRITY.equals(task)) {
+                checkIntegrity(db, signal, result);
+            } else {
+                throw new IllegalArgumentException("Unknown maintenance task " + task);
+            }
+        } catch (OperationCanceledException e) {
+            result.putBoolean("cancelled", true);
+        } finally {
+            mSignal = null;
+        }
+        result.putLong("duration_ms", SystemClock.elapsedRealtime() - start);
+        record(result);
+        Log.i(TAG, task + ": " + result.getLong("duration_ms") + " ms, "
+                + result.getLong("reclaimed_bytes") + " bytes reclaimed"
+                + (result.getBoolean("cancelled") ? ", cancelled" : ""));
+        return result;
+    }
+
+    /**
+     * Interrupts the task in progress, if any. Its result is recorded as cancelled.
+     */
+    void cancel() {
+        CancellationSignal signal = mSignal;
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
+    private static void optimize(SQLiteDatabase db, CancellationSignal signal) {
+        // Words no note contains any more only slow down fuzzy searches.
+        TrigramIndex.prune(db);
+        // PRAGMA optimize, added in SQLite 3.18 (API 26), only analyzes the tables whose
+        // statistics are missing or stale; older versions analyze everything.
+        execute(db, Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? "PRAGMA optimize" : "ANALYZE",
+                signal);
+    }
+
+    /*
+     * Databases created before incremental vacuum was turned on in onConfigure are converted
+     * with one full VACUUM; from then on each run frees at most VACUUM_PAGES pages.
+     */
+    private static void vacuum(SQLiteDatabase db, CancellationSignal signal, Bundle result) {
+        long pageSize = pragma(db, "page_size");
+        long pagesBefore = pragma(db, "page_count");
+        if (pragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            execute(db, "VACUUM", signal);
+            result.putBoolean("full", true);
+        } else if (pragma(db, "freelist_count") > 0) {
+            execute(db, "PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", signal);
+        }
+        result.putLong("reclaimed_bytes",
+                Math.max(0, pagesBefore - pragma(db, "page_count")) * pageSize);
+        result.putLong("remaining_pages", pragma(db, "freelist_count"));
+    }
+
+    private static void checkpoint(SQLiteDatabase db, CancellationSignal signal, Bundle result) {
+        if (!"wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode",
+                null))) {
+            result.putBoolean("skipped", true);
+            return;
+        }
+        File wal = new File(db.getPath() + "-wal");
+        long walBefore = wal.length();
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null, signal);
+        try {
+            // One row: busy, frames in the log, frames checkpointed.
+            result.putBoolean("busy", c.moveToFirst() && c.getInt(0) != 0);
+        } finally {
+            c.close();
+        }
+        result.putLong("reclaimed_bytes", Math.max(0, walBefore - wal.length()));
+    }
+
+    private static void checkIntegrity(SQLiteDatabase db, CancellationSignal signal,
+                                       Bundle result) {
+        ArrayList<String> problems = new ArrayList<>();
+        Cursor c = db.rawQuery("PRAGMA quick_check(" + MAX_PROBLEMS + ")", null, signal);
+        try {
+            while (c.moveToNext()) {
+                problems.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        boolean ok = problems.size() == 1 && "ok".equals(problems.get(0));
+        if (ok) {
+            problems.clear();
+        } else {
+            Log.e(TAG, "Integrity check failed: " + problems);
+        }
+        result.putBoolean("ok", ok);
+        result.putStringArrayList("problems", problems);
+    }
+
+    private static long pragma(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+    }
+
+    /*
+     * Runs a statement through a cursor, the only way to give SQLiteDatabase a cancellation
+     * signal, and steps it to completion.
+     */
+    private static void execute(SQLiteDatabase db, String sql, CancellationSignal signal) {
+        Cursor c = db.rawQuery(sql, null, signal);
+        try {
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void record(Bundle result) {
+        String task = result.getString("task");
+        SharedPreferences.Editor editor = mLog.edit()
+                .putLong(task + ".time", System.currentTimeMillis())
+                .putLong(task + ".duration_ms", result.getLong("duration_ms"))
+                .putLong(task + ".reclaimed_bytes", result.getLong("reclaimed_bytes"))
+                .putBoolean(task + ".cancelled", result.getBoolean("cancelled"));
+        if (result.containsKey("ok")) {
+            editor.putBoolean(task + ".ok", result.getBoolean("ok"));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the last recorded result of every task that has run, under "&lt;task&gt;.time",
+     * "&lt;task&gt;.duration_ms", "&lt;task&gt;.reclaimed_bytes" and "&lt;task&gt;.cancelled" keys,
+     * plus "integrity.ok".
+     */
+    Bundle toBundle() {
+        Bundle b = new Bundle();
+        for (String task : TASKS) {
+            if (!mLog.contains(task + ".time")) {
+                continue;
+            }
+            b.putLong(task + ".time", mLog.getLong(task + ".time", 0));
+            b.putLong(task + ".duration_ms", mLog.getLong(task + ".duration_ms", 0));
+            b.putLong(task + ".reclaimed_bytes", mLog.getLong(task + ".reclaimed_bytes", 0));
+            b.putBoolean(task + ".cancelled", mLog.getBoolean(task + ".cancelled", false));
+        }
+        if (mLog.contains(TASK_INTEGRITY + ".ok")) {
+            b.putBoolean(TASK_INTEGRITY + ".ok", mLog.getBoolean(TASK_INTEGRITY + ".ok", true));
+        }
+        return b;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Maintenance (last run of each task)");
+        for (String task : TASKS) {
+            if (!mLog.contains(task + ".time")) {
+                pw.println("  " + task + ": never run");
+                continue;
+            }
+            StringBuilder line = new StringBuilder("  ").append(task).append(": ")
+                    .append(new Date(mLog.getLong(task + ".time", 0))).append(", ")
+                    .append(mLog.getLong(task + ".duration_ms", 0)).append(" ms, ")
+                    .append(mLog.getLong(task + ".reclaimed_bytes", 0)).append(" bytes reclaimed");
+            if (mLog.getBoolean(task + ".cancelled", false)) {
+                line.append(", cancelled");
+            }
+            if (mLog.contains(task + ".ok")) {
+                line.append(mLog.getBoolean(task + ".ok", true) ? ", ok" : ", PROBLEMS FOUND");
+            }
+            pw.println(line);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Collects per-frame timings for one screen while it is resumed, and appends a one-line jank
+ * summary for that screen to {@code files/frame_metrics.log} when it pauses.
+ * <p>
+ * Frame timings come from {@link Window#addOnFrameMetricsAvailableListener}, which needs
+ * API 24; on older devices {@link #attach} returns null and callers skip collection. Combined
+ * with the trace sections in NotesList, NoteEditor and NotePadProvider, a Perfetto capture
+ * shows where the time of each janky frame went.
+ * 帧耗时统计：页面可见期间记录每帧耗时，暂停时把卡顿统计追加写入本地文件。
+ */
+final class FrameMetricsCollector {
+    private static final String TAG = "FrameMetrics";
+
+    // Log file in the app's files directory, and the size at which it is started over.
+    static final String LOG_FILE_NAME = "frame_metrics.log";
+    private static final long MAX_LOG_BYTES = 256 * 1024;
+
+    // A frame slower than this is reported as frozen rather than just janky.
+    private static final long FROZEN_FRAME_NANOS = 700_000_000L;
+
+    // Frame durations are bucketed per millisecond; the last bucket holds everything slower.
+    private static final int HISTOGRAM_MILLIS = 128;
+
+    // Frame metrics are delivered and files are written on this thread, never on the UI thread.
+    private static HandlerThread sThread;
+
+    private final Activity mActivity;
+    private final String mScreen;
+    private final long mFrameBudgetNanos;
+    private final Handler mHandler;
+    private Window.OnFrameMetricsAvailableListener mListener;
+
+    // Touched only on mHandler's thread.
+    private long mFrames;
+    private long mJankyFrames;
+    private long mFrozenFrames;
+    private long mMaxTotalNanos;
+    private final long[] mPhaseNanos = new long[7];
+    private final int[] mHistogram = new int[HISTOGRAM_MILLIS];
+
+    private FrameMetricsCollector(Activity activity, String screen, Handler handler) {
+        mActivity = activity;
+        mScreen = screen;
+        mHandler = handler;
+        float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        if (refreshRate < 1f) {
+            refreshRate = 60f;
+        }
+        mFrameBudgetNanos = (long) (1_000_000_000L / refreshRate);
+    }
+
+    /**
+     * Starts collecting frame metrics for the activity's window. Call from onResume() and
+     * pair with {@link #detach()} in onPause().
+     *
+     * @return the collector, or null if frame metrics are not available on this device.
+     */
+    static FrameMetricsCollector attach(Activity activity, String screen) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return null;
+        }
+        Handler handler = new Handler(backgroundLooperThread().getLooper());
+        FrameMetricsCollector collector = new FrameMetricsCollector(activity, screen, handler);
+        collector.start();
+        return collector;
+    }
+
+    private static synchronized HandlerThread backgroundLooperThread() {
+        if (sThread == null) {
+            sThread = new HandlerThread("FrameMetrics");
+            sThread.start();
+        }
+        return sThread;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    private void start() {
+        mListener = (window, frameMetrics, dropCount) -> onFrame(frameMetrics);
+        mActivity.getWindow().addOnFrameMetricsAvailableListener(mListener, mHandler);
+    }
+
+    /**
+     * Stops collecting and appends this screen's summary to the log file, on the background
+     * thread.
+     */
+    void detach() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && mListener != null) {
+            try {
+                mActivity.getWindow().removeOnFrameMetricsAvailableListener(mListener);
+            } catch (IllegalArgumentException e) {
+                // The window already dropped the listener, nothing left to remove.
+            }
+            mListener = null;
+        }
+        final File file = new File(mActivity.getFilesDir(), LOG_FILE_NAME);
+        mHandler.post(() -> writeSummary(file));
+    }
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    private void onFrame(FrameMetrics metrics) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && metrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1) {
+            // The first frame includes inflation and the initial layout, which is reported
+            // separately as startup time rather than jank.
+            return;
+        }
+        long total = metrics.getMetric(FrameMetrics.TOTAL_DURATION);
+        mFrames++;
+        if (total > mFrameBudgetNanos) {
+            mJankyFrames++;
+        }
+        if (total > FROZEN_FRAME_NANOS) {
+            mFrozenFrames++;
+        }
+        mMaxTotalNanos = Math.max(mMaxTotalNanos, total);
+        mPhaseNanos[0] += metrics.getMetric(FrameMetrics.INPUT_HANDLING_DURATION);
+        mPhaseNanos[1] += metrics.getMetric(FrameMetrics.ANIMATION_DURATION);
+        mPhaseNanos[2] += metrics.getMetric(FrameMetrics.LAYOUT_MEASURE_DURATION);
+        mPhaseNanos[3] += metrics.getMetric(FrameMetrics.DRAW_DURATION);
+        mPhaseNanos[4] += metrics.getMetric(FrameMetrics.SYNC_DURATION);
+        mPhaseNanos[5] += metrics.getMetric(FrameMetrics.COMMAND_ISSUE_DURATION);
+        mPhaseNanos[6] += metrics.getMetric(FrameMetrics.SWAP_BUFFERS_DURATION);
+        int bucket = (int) Math.min(total / 1_000_000L, HISTOGRAM_MILLIS - 1);
+        mHistogram[bucket]++;
+    }
+
+    // Upper bound of the millisecond bucket holding the given fraction of frames.
+    private int percentileMillis(double fraction) {
+        long rank = (long) Math.ceil(mFrames * fraction);
+        long seen = 0;
+        for (int i = 0; i < HISTOGRAM_MILLIS; i++) {
+            seen += mHistogram[i];
+            if (seen >= rank) {
+                return i + 1;
+            }
+        }
+        return HISTOGRAM_MILLIS;
+    }
+
+    private void writeSummary(File file) {
+        if (mFrames == 0) {
+            return;
+        }
+        String line = String.format(Locale.US,
+                "%d screen=%s frames=%d janky=%d (%.1f%%) frozen=%d p50=%dms p90=%dms p99=%dms"
+                        + " max=%.1fms budget=%.1fms avg_ms[input=%.2f anim=%.2f layout=%.2f"
+                        + " draw=%.2f sync=%.2f command=%.2f swap=%.2f]",
+                System.currentTimeMillis(), mScreen, mFrames, mJankyFrames,
+                100.0 * mJankyFrames / mFrames, mFrozenFrames,
+                percentileMillis(0.50), percentileMillis(0.90), percentileMillis(0.99),
+                mMaxTotalNanos / 1e6, mFrameBudgetNanos / 1e6,
+                mPhaseNanos[0] / 1e6 / mFrames, mPhaseNanos[1] / 1e6 / mFrames,
+                mPhaseNanos[2] / 1e6 / mFrames, mPhaseNanos[3] / 1e6 / mFrames,
+                mPhaseNanos[4] / 1e6 / mFrames, mPhaseNanos[5] / 1e6 / mFrames,
+                mPhaseNanos[6] / 1e6 / mFrames);
+        boolean append = file.length() < MAX_LOG_BYTES;
+        try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file, append), StandardCharsets.UTF_8))) {
+            pw.println(line);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A binary copy of the first screenful of the notes list, kept in the app's files directory
+ * so that {@link NotesList} can show the list on a cold start before the database is open.
+ * <p>
+ * The file holds a header (magic number, format version, row count) followed by one record per
+ * note: ID, modification time, color, then the title and the start of the text as
+ * length-prefixed UTF-8. It is read through a memory mapping, without a copy through a read
+ * buffer, and replaced atomically, so a crash while writing leaves the previous snapshot. The
+ * row count and lengths read back are checked against {@link #MAX_ROWS} and the size of the
+ * file, so a damaged file is ignored rather than allocated from.
+ * 笔记列表首屏快照：冷启动时内存映射读取并立即显示，数据库就绪后再替换为实时数据。
+ */
+final class ListSnapshot {
+    private static final String TAG = "ListSnapshot";
+
+    static final String FILE_NAME = "list_snapshot.bin";
+
+    private static final int MAGIC = 0x4e4c5331; // "NLS1"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Number of notes kept, enough to fill the first screen of the list on a large phone.
+     */
+    static final int MAX_ROWS = 30;
+
+    /**
+     * Number of characters of the note text kept for the preview line.
+     */
+    static final int PREVIEW_CHARS = 200;
+
+    // This class cannot be instantiated
+    private ListSnapshot() {
+    }
+
+    /**
+     * Reads the snapshot as a cursor with the given columns, which must start with the ID,
+     * title, note, modification date and color columns in that order; any others are null.
+     *
+     * @return the snapshot, or null if there is none or it can't be read
+     */
+    static Cursor read(File file, String[] columns) {
+        // Opened as it was written, so that a write interrupted by a crash is rolled back.
+        try (FileInputStream in = new AtomicFile(file).openRead();
+             FileChannel channel = in.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = buf.getInt();
+            if (count < 0 || count > MAX_ROWS) {
+                Log.w(TAG, "Ignoring snapshot of " + count + " rows");
+                return null;
+            }
+            MatrixCursor cursor = new MatrixCursor(columns, count);
+            for (int i = 0; i < count; i++) {
+                long id = buf.getLong();
+                long modified = buf.getLong();
+                int color = buf.getInt();
+                String title = readString(buf);
+                String preview = readString(buf);
+                Object[] row = new Object[columns.length];
+                row[0] = id;
+                row[1] = title;
+                row[2] = preview;
+                row[3] = modified;
+                row[4] = color;
+                cursor.addRow(row);
+            }
+            return cursor;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring unreadable snapshot", e);
+            return null;
+        }
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        int length = buf.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Captures the first rows of a list cursor, with the columns passed to {@link #read}.
+     * Call on the thread that owns the cursor; the result can be written on any thread.
+     */
+    static Object[][] capture(Cursor cursor) {
+        int count = Math.min(cursor.getCount(), MAX_ROWS);
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            String note = cursor.getString(2);
+            rows[i] = new Object[]{
+                    cursor.getLong(0), cursor.getString(1), truncate(note),
+                    cursor.getLong(3), cursor.getInt(4)
+            };
+        }
+        return rows;
+    }
+
+    private static String truncate(String text) {
+        if (text == null || text.length() <= PREVIEW_CHARS) {
+            return text;
+        }
+        int end = PREVIEW_CHARS;
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * Replaces the snapshot with the given rows, as returned by {@link #capture}.
+     */
+    static void write(File file, Object[][] rows) {
+        AtomicFile atomic = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomic.startWrite();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeInt(rows.length);
+            for (Object[] row : rows) {
+                data.writeLong((Long) row[0]);
+                data.writeLong((Long) row[3]);
+                data.writeInt((Integer) row[4]);
+                writeString(data, (String) row[1]);
+                writeString(data, (String) row[2]);
+            }
+            data.flush();
+            atomic.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write the list snapshot", e);
+            if (out != null) {
+                atomic.failWrite(out);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        if (s == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+}
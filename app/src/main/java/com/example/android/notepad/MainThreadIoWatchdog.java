@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Records every provider call made on the main thread, attributed to the app code that made
+ * it, so the remaining blocking paths can be listed and driven to zero.
+ * <p>
+ * The provider runs in the app's own process, so a ContentResolver call from an activity
+ * reaches {@link NotePadProvider} on the caller's thread. The provider asks
+ * {@link #begin()} on entry and reports to {@link #end(String, Uri, long)} on exit;
+ * the call site is the first frame of app code below the provider on the current stack.
+ * A cursor's requery() runs its query again without going through the provider, so the
+ * provider hands out its cursors through {@link #watch(Cursor, Uri)}, which reports those too.
+ * Walking the stack is only affordable in debug builds, which is the only place the watchdog
+ * is turned on.
+ * 主线程 I/O 监控：调试版本中记录主线程上的每次 Provider 调用及其调用位置和耗时。
+ */
+final class MainThreadIoWatchdog {
+    private static final String TAG = "MainThreadIo";
+
+    // Calls slower than one frame are also logged as they happen.
+    private static final long LOG_THRESHOLD_NANOS = 16_000_000L;
+
+    // Number of call sites printed in the top-offenders report.
+    private static final int REPORT_LIMIT = 20;
+
+    private static final String APP_PACKAGE = "com.example.android.notepad.";
+    private static final String PROVIDER_CLASS = NotePadProvider.class.getName();
+    private static final String WATCHDOG_CLASS = MainThreadIoWatchdog.class.getName();
+
+    /**
+     * Aggregated numbers for one operation at one call site.
+     */
+    static final class Site {
+        final String op;
+        final String callSite;
+        long calls;
+        long totalMicros;
+        long maxMicros;
+        String lastUri;
+
+        Site(String op, String callSite) {
+            this.op = op;
+            this.callSite = callSite;
+        }
+    }
+
+    private final HashMap<String, Site> mSites = new HashMap<>();
+    private volatile boolean mEnabled;
+
+    // Nesting depth of provider calls on the main thread; only touched on the main thread.
+    // Only the outermost call is attributed, should the provider call itself.
+    private int mDepth;
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Called when a provider operation starts.
+     *
+     * @return true if this call is on the main thread and must be reported to {@link #end}.
+     */
+    boolean begin() {
+        if (!mEnabled || Looper.myLooper() != Looper.getMainLooper()) {
+            return false;
+        }
+        mDepth++;
+        return true;
+    }
+
+    /**
+     * Called when a provider operation that {@link #begin()} accepted has finished.
+     */
+    void end(String op, Uri uri, long elapsedNanos) {
+        if (--mDepth > 0) {
+            return;
+        }
+        String callSite = findCallSite(new Throwable().getStackTrace());
+        long micros = elapsedNanos / 1000L;
+        String key = op + " " + callSite;
+        synchronized (mSites) {
+            Site site = mSites.get(key);
+            if (site == null) {
+                site = new Site(op, callSite);
+                mSites.put(key, site);
+            }
+            site.calls++;
+            site.totalMicros += micros;
+            site.maxMicros = Math.max(site.maxMicros, micros);
+            site.lastUri = uri.toString();
+        }
+        if (elapsedNanos >= LOG_THRESHOLD_NANOS) {
+            Log.w(TAG, "Main-thread " + op + " of " + uri + " took " + (micros / 1000.0)
+                    + " ms at " + callSite);
+        }
+    }
+
+    /**
+     * Returns the cursor wrapped so that a requery() on the main thread is recorded as a
+     * "requery" of the URI, or the cursor itself if the watchdog is off.
+     */
+    Cursor watch(Cursor c, Uri uri) {
+        if (!mEnabled || c == null) {
+            return c;
+        }
+        return new WatchedCursor(c, uri);
+    }
+
+    /**
+     * Returns the first frame of app code that called into the provider, as
+     * "Class.method(File:line)", or "unknown" if the call didn't come from app code.
+     */
+    static String findCallSite(StackTraceElement[] stack) {
+        boolean inProvider = false;
+        for (StackTraceElement frame : stack) {
+            String cls = frame.getClassName();
+            if (cls.startsWith(PROVIDER_CLASS) || cls.startsWith(WATCHDOG_CLASS)) {
+                inProvider = true;
+                continue;
+            }
+            if (inProvider && cls.startsWith(APP_PACKAGE)) {
+                return cls.substring(APP_PACKAGE.length()) + "." + frame.getMethodName()
+                        + "(" + frame.getFileName() + ":" + frame.getLineNumber() + ")";
+            }
+        }
+        return "unknown";
+    }
+
+    void reset() {
+        synchronized (mSites) {
+            mSites.clear();
+        }
+    }
+
+    // A provider cursor whose requery() is reported like a provider call. Its frames count as
+    // the watchdog's, so the call site is the app code that requeried it.
+    private final class WatchedCursor extends CursorWrapper {
+        private final Uri mUri;
+
+        WatchedCursor(Cursor cursor, Uri uri) {
+            super(cursor);
+            mUri = uri;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean requery() {
+            if (!begin()) {
+                return super.requery();
+            }
+            long start = System.nanoTime();
+            try {
+                return super.requery();
+            } finally {
+                end("requery", mUri, System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Returns copies of the recorded sites, worst total blocking time first.
+    private ArrayList<Site> snapshot() {
+        ArrayList<Site> list = new ArrayList<>();
+        synchronized (mSites) {
+            for (Site s : mSites.values()) {
+                Site copy = new Site(s.op, s.callSite);
+                copy.calls = s.calls;
+                copy.totalMicros = s.totalMicros;
+                copy.maxMicros = s.maxMicros;
+                copy.lastUri = s.lastUri;
+                list.add(copy);
+            }
+        }
+        Collections.sort(list, (a, b) -> Long.compare(b.totalMicros, a.totalMicros));
+        return list;
+    }
+
+    /**
+     * Copies the report into a Bundle: "enabled", "total_calls", "total_us" and a parcelable
+     * list of per-site Bundles under "sites", worst total blocking time first.
+     */
+    Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putBoolean("enabled", mEnabled);
+        long totalCalls = 0;
+        long totalMicros = 0;
+        ArrayList<Bundle> sites = new ArrayList<>();
+        for (Site s : snapshot()) {
+            totalCalls += s.calls;
+            totalMicros += s.totalMicros;
+            Bundle site = new Bundle();
+            site.putString("op", s.op);
+            site.putString("call_site", s.callSite);
+            site.putLong("calls", s.calls);
+            site.putLong("total_us", s.totalMicros);
+            site.putLong("max_us", s.maxMicros);
+            site.putString("last_uri", s.lastUri);
+            sites.add(site);
+        }
+        b.putLong("total_calls", totalCalls);
+        b.putLong("total_us", totalMicros);
+        b.putParcelableArrayList("sites", sites);
+        return b;
+    }
+
+    /**
+     * Writes the top offenders, worst total blocking time first.
+     */
+    void dump(PrintWriter pw) {
+        if (!mEnabled) {
+            pw.println("Main-thread provider calls: watchdog off (release build)");
+            return;
+        }
+        ArrayList<Site> sites = snapshot();
+        long totalCalls = 0;
+        long totalMicros = 0;
+        for (Site s : sites) {
+            totalCalls += s.calls;
+            totalMicros += s.totalMicros;
+        }
+        pw.println("Main-thread provider calls: " + totalCalls + " calls, "
+                + (totalMicros / 1000.0) + " ms blocked, " + sites.size() + " call sites");
+        pw.println("    total_ms    calls   max_ms  op      call site");
+        for (int i = 0; i < sites.size() && i < REPORT_LIMIT; i++) {
+            Site s = sites.get(i);
+            pw.println(String.format(Locale.US, "  %10.1f %8d %8.1f  %-7s %s",
+                    s.totalMicros / 1000.0, s.calls, s.maxMicros / 1000.0, s.op, s.callSite));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.ProcessLifecycleOwner;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link DatabaseMaintenance} tasks once a day while the device is idle and
+ * charging.
+ * <p>
+ * Each task is a separate {@link NotePad#METHOD_MAINTENANCE} call, and the vacuum is repeated
+ * until no free pages remain. If the app comes to the foreground, or WorkManager stops the
+ * worker because the device is no longer idle, the task in progress is interrupted and the
+ * rest of the run is retried later, so maintenance never competes with the user for the
+ * database.
+ * 数据库维护任务：设备空闲且充电时每天运行一次，应用回到前台时立即中止。
+ */
+public class MaintenanceWorker extends Worker {
+
+    private static final String WORK_NAME = "db_maintenance";
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mForeground;
+
+    // Interrupts the run when any activity of the app starts. Registered on the main thread,
+    // where ProcessLifecycleOwner dispatches; if the app is already in the foreground, the
+    // observer gets ON_START as soon as it is added.
+    private final LifecycleEventObserver mForegroundObserver = (source, event) -> {
+        if (event == Lifecycle.Event.ON_START) {
+            mForeground = true;
+            cancelTask();
+        }
+    };
+
+    public MaintenanceWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Schedules the daily maintenance, unless it is already scheduled.
+     */
+    static void schedule(Context context) {
+        Constraints.Builder constraints = new Constraints.Builder()
+                .setRequiresCharging(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            constraints.setRequiresDeviceIdle(true);
+        }
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(
+                MaintenanceWorker.class, 1, TimeUnit.DAYS)
+                .setConstraints(constraints.build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+                WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        ContentResolver resolver = getApplicationContext().getContentResolver();
+        mMainHandler.post(() ->
+                ProcessLifecycleOwner.get().getLifecycle().addObserver(mForegroundObserver));
+        try {
+            for (String task : DatabaseMaintenance.TASKS) {
+                Bundle result;
+                do {
+                    if (isStopped() || mForeground) {
+                        return Result.retry();
+                    }
+                    result = resolver.call(NotePad.Notes.CONTENT_URI,
+                            NotePad.METHOD_MAINTENANCE, task, null);
+                    if (result == null || result.getBoolean("cancelled")) {
+                        return Result.retry();
+                    }
+                } while (result.getLong("remaining_pages") > 0);
+            }
+            return Result.success();
+        } finally {
+            mMainHandler.post(() ->
+                    ProcessLifecycleOwner.get().getLifecycle().removeObserver(mForegroundObserver));
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        cancelTask();
+    }
+
+    private void cancelTask() {
+        getApplicationContext().getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_MAINTENANCE, "cancel", null);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import java.util.TimeZone;
+
+/**
+ * Note counts kept up to date by triggers, so that counting notes reads a handful of summary
+ * rows instead of scanning the notes table.
+ * <p>
+ * The summary table holds one row per (kind, bucket): kind "total" has a single row with
+ * bucket 0, kind "color" has one row per palette index, and kind "day" has one row per local
+ * day of the modification date, counted in whole days since the epoch. Rows for colors and
+ * days that no note uses any more are removed. Notes in the trash are not counted.
+ * <p>
+ * Days are local to the time zone offset the table was built with, which kind "zone" holds
+ * as its bucket, in milliseconds. The triggers shift every date by that offset, so a note is
+ * always added to and removed from the same day. When the offset changes, with the time zone
+ * or daylight saving time, {@link #checkZone} rebuilds the table the next time the database
+ * is opened.
+ * 笔记计数汇总表：由触发器维护总数、按颜色和按修改日期的计数，计数查询无需扫描笔记表。
+ */
+final class NoteCounts {
+
+    static final String TABLE_NAME = "note_counts";
+
+    static final String KIND_TOTAL = "total";
+    static final String KIND_COLOR = "color";
+    static final String KIND_DAY = "day";
+    static final String KIND_ZONE = "zone";
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    // SQL expressions for the buckets of a notes row, given "NEW" or "OLD".
+    private static String colorOf(String row) {
+        return "IFNULL(" + row + "." + NotePad.Notes.COLUMN_NAME_COLOR + ",0)";
+    }
+
+    private static String dayOf(String row, long offset) {
+        return "((IFNULL(" + row + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ",0)+"
+                + offset + ")/" + DAY_MILLIS + ")";
+    }
+
+    // Statements that add one note, described by the given trigger row, to the counts.
+    private static String increment(String row, long offset) {
+        return "INSERT OR IGNORE INTO " + TABLE_NAME + " VALUES ('" + KIND_COLOR + "',"
+                + colorOf(row) + ",0),('" + KIND_DAY + "'," + dayOf(row, offset) + ",0);"
+                + "UPDATE " + TABLE_NAME + " SET count = count + 1 WHERE"
+                + " (kind = '" + KIND_COLOR + "' AND bucket = " + colorOf(row) + ")"
+                + " OR (kind = '" + KIND_DAY + "' AND bucket = " + dayOf(row, offset) + ");";
+    }
+
+    // Statements that remove one note from the counts, dropping rows that reach zero.
+    private static String decrement(String row, long offset) {
+        return "UPDATE " + TABLE_NAME + " SET count = count - 1 WHERE"
+                + " (kind = '" + KIND_COLOR + "' AND bucket = " + colorOf(row) + ")"
+                + " OR (kind = '" + KIND_DAY + "' AND bucket = " + dayOf(row, offset) + ");"
+                + "DELETE FROM " + TABLE_NAME + " WHERE kind IN ('" + KIND_COLOR + "','"
+                + KIND_DAY + "') AND count <= 0;";
+    }
+
+    // Whether the trigger row is a live note, one that is not in the trash.
+    private static String isLive(String row) {
+        return row + "." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+    }
+
+    private static String total(int delta) {
+        return "UPDATE " + TABLE_NAME + " SET count = count " + (delta < 0 ? "- " : "+ ")
+                + Math.abs(delta) + " WHERE kind = '" + KIND_TOTAL + "';";
+    }
+
+    private static final String[] TRIGGERS = {
+            "note_counts_insert", "note_counts_delete", "note_counts_update",
+            "note_counts_trash", "note_counts_restore"
+    };
+
+    private NoteCounts() {
+    }
+
+    // The offset of the default time zone from UTC at the given time, in milliseconds.
+    private static long zoneOffset(long now) {
+        return TimeZone.getDefault().getOffset(now);
+    }
+
+    /**
+     * Creates the summary table and its triggers, and fills it from the existing notes, with
+     * days local to the current time zone offset. Used for new databases, when upgrading, and
+     * by {@link #checkZone}. Older triggers are replaced.
+     */
+    static void create(SQLiteDatabase db) {
+        long offset = zoneOffset(System.currentTimeMillis());
+        String notes = NotePad.Notes.TABLE_NAME;
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                + "kind TEXT NOT NULL,"
+                + "bucket INTEGER NOT NULL,"
+                + "count INTEGER NOT NULL,"
+                + "PRIMARY KEY (kind, bucket)"
+                + ") WITHOUT ROWID;");
+
+        for (String trigger : TRIGGERS) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        }
+        db.execSQL("CREATE TRIGGER note_counts_insert AFTER INSERT ON " + notes
+                + " WHEN " + isLive("NEW")
+                + " BEGIN "
+                + total(1)
+                + increment("NEW", offset)
+                + " END;");
+        // Purging a note from the trash doesn't change the counts; moving it there did.
+        db.execSQL("CREATE TRIGGER note_counts_delete AFTER DELETE ON " + notes
+                + " WHEN " + isLive("OLD")
+                + " BEGIN "
+                + total(-1)
+                + decrement("OLD", offset)
+                + " END;");
+        // Only edits that move a note to another color or day touch the summary rows; plain
+        // text edits on the same day skip the trigger body entirely.
+        db.execSQL("CREATE TRIGGER note_counts_update AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_COLOR + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ON " + notes
+                + " WHEN " + isLive("OLD") + " AND " + isLive("NEW")
+                + " AND (" + colorOf("OLD") + " <> " + colorOf("NEW")
+                + " OR " + dayOf("OLD", offset) + " <> " + dayOf("NEW", offset) + ")"
+                + " BEGIN "
+                + decrement("OLD", offset)
+                + increment("NEW", offset)
+                + " END;");
+        db.execSQL("CREATE TRIGGER note_counts_trash AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " ON " + notes
+                + " WHEN " + isLive("OLD") + " AND NOT " + isLive("NEW")
+                + " BEGIN "
+                + total(-1)
+                + decrement("OLD", offset)
+                + " END;");
+        db.execSQL("CREATE TRIGGER note_counts_restore AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " ON " + notes
+                + " WHEN NOT " + isLive("OLD") + " AND " + isLive("NEW")
+                + " BEGIN "
+                + total(1)
+                + increment("NEW", offset)
+                + " END;");
+
+        // Backfill from whatever is already in the notes table.
+        db.execSQL("DELETE FROM " + TABLE_NAME);
+        String live = " WHERE " + isLive(notes);
+        db.execSQL("INSERT INTO " + TABLE_NAME + " SELECT '" + KIND_TOTAL + "', 0, COUNT(*) FROM "
+                + notes + live);
+        db.execSQL("INSERT INTO " + TABLE_NAME + " SELECT '" + KIND_COLOR + "', "
+                + colorOf(notes) + ", COUNT(*) FROM " + notes + live + " GROUP BY 2");
+        db.execSQL("INSERT INTO " + TABLE_NAME + " SELECT '" + KIND_DAY + "', "
+                + dayOf(notes, offset) + ", COUNT(*) FROM " + notes + live + " GROUP BY 2");
+        db.execSQL("INSERT INTO " + TABLE_NAME + " VALUES ('" + KIND_ZONE + "', " + offset
+                + ", 0)");
+    }
+
+    /**
+     * Rebuilds the summary table if the time zone offset has changed since it was built, so
+     * that days stay local. Call when the database is opened for writing.
+     */
+    static void checkZone(SQLiteDatabase db) {
+        Long offset = storedOffset(db);
+        if (offset != null && offset == zoneOffset(System.currentTimeMillis())) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            create(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The offset the table was built with, or null if it was built before days were local.
+    private static Long storedOffset(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT bucket FROM " + TABLE_NAME + " WHERE kind = ?",
+                new String[]{KIND_ZONE});
+        try {
+            return c.moveToFirst() ? c.getLong(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns a single-row cursor with the total number of notes in the
+     * {@link NotePad.Notes#_COUNT} column.
+     */
+    static Cursor queryTotal(SQLiteDatabase db) {
+        return db.rawQuery("SELECT count AS " + NotePad.Notes._COUNT + " FROM " + TABLE_NAME
+                + " WHERE kind = ? AND bucket = 0", new String[]{KIND_TOTAL});
+    }
+
+    /**
+     * Returns the number of notes of a color.
+     */
+    static long countColor(SQLiteDatabase db, int color) {
+        return sum(db, KIND_COLOR, color, color);
+    }
+
+    /**
+     * Returns an estimate of the number of notes modified from {@code from}, inclusive, until
+     * {@code to}, exclusive. Local days are counted whole, so notes modified on the days the
+     * range starts and ends in are counted even if outside it. Either end may be open, as
+     * {@code Long.MAX_VALUE} for no end.
+     */
+    static long countModified(SQLiteDatabase db, long from, long to) {
+        Long stored = storedOffset(db);
+        long offset = stored != null ? stored : 0;
+        return sum(db, KIND_DAY, localDay(from, offset), localDay(to - 1, offset));
+    }
+
+    // The local day of a time, saturating rather than overflowing near the ends of the range.
+    private static long localDay(long time, long offset) {
+        long local = time + offset;
+        if (((time ^ local) & (offset ^ local)) < 0) {
+            local = offset > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return local / DAY_MILLIS;
+    }
+
+    private static long sum(SQLiteDatabase db, String kind, long first, long last) {
+        Cursor c = db.rawQuery("SELECT IFNULL(SUM(count),0) FROM " + TABLE_NAME
+                + " WHERE kind = ? AND bucket BETWEEN ? AND ?",
+                new String[]{kind, Long.toString(first), Long.toString(last)});
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Reads all summary rows into a Bundle:
+     * <ul>
+     * <li>"total": the number of notes</li>
+     * <li>"colors" and "color_counts": palette indexes in use and the number of notes of each</li>
+     * <li>"days" and "day_counts": local modification days (days since the epoch, shifted by
+     * "zone_offset") and the number of notes last modified on each</li>
+     * <li>"zone_offset": the time zone offset of the days, in milliseconds</li>
+     * <li>"today", "last_7_days", "last_30_days" and "older": notes by age of their last
+     * modification, in local days relative to {@code now}; each note is in exactly one
+     * bucket, so "last_7_days" excludes today</li>
+     * </ul>
+     */
+    static Bundle aggregate(SQLiteDatabase db, long now) {
+        long offset = 0;
+        long total = 0;
+        long todayCount = 0;
+        long weekCount = 0;
+        long monthCount = 0;
+        long olderCount = 0;
+        int colorRows = 0;
+        int dayRows = 0;
+
+        Cursor c = db.rawQuery("SELECT kind, bucket, count FROM " + TABLE_NAME
+                + " ORDER BY kind, bucket", null);
+        int[] colors;
+        long[] colorCounts;
+        long[] days;
+        long[] dayCounts;
+        try {
+            while (c.moveToNext()) {
+                String kind = c.getString(0);
+                if (KIND_COLOR.equals(kind)) {
+                    colorRows++;
+                } else if (KIND_DAY.equals(kind)) {
+                    dayRows++;
+                } else if (KIND_ZONE.equals(kind)) {
+                    offset = c.getLong(1);
+                }
+            }
+            long today = (now + offset) / DAY_MILLIS;
+            colors = new int[colorRows];
+            colorCounts = new long[colorRows];
+            days = new long[dayRows];
+            dayCounts = new long[dayRows];
+            int color = 0;
+            int day = 0;
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                String kind = c.getString(0);
+                long bucket = c.getLong(1);
+                long count = c.getLong(2);
+                if (KIND_TOTAL.equals(kind)) {
+                    total = count;
+                } else if (KIND_COLOR.equals(kind)) {
+                    colors[color] = (int) bucket;
+                    colorCounts[color++] = count;
+                } else if (KIND_DAY.equals(kind)) {
+                    days[day] = bucket;
+                    dayCounts[day++] = count;
+                    long age = today - bucket;
+                    if (age <= 0) {
+                        todayCount += count;
+                    } else if (age < 7) {
+                        weekCount += count;
+                    } else if (age < 30) {
+                        monthCount += count;
+                    } else {
+                        olderCount += count;
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        Bundle b = new Bundle();
+        b.putLong("total", total);
+        b.putIntArray("colors", colors);
+        b.putLongArray("color_counts", colorCounts);
+        b.putLongArray("days", days);
+        b.putLongArray("day_counts", dayCounts);
+        b.putLong("zone_offset", offset);
+        b.putLong("today", todayCount);
+        b.putLong("last_7_days", weekCount);
+        b.putLong("last_30_days", monthCount);
+        b.putLong("older", olderCount);
+        return b;
+    }
+}
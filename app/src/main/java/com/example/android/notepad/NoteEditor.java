@@ -20,6 +20,7 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -31,7 +32,9 @@ import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.Editable;
+import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -46,6 +49,7 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.AppCompatEditText;
+import androidx.tracing.Trace;
 
 import com.google.android.material.appbar.MaterialToolbar;
 
@@ -78,7 +82,10 @@ public class NoteEditor extends AppCompatActivity {
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
                     NotePad.Notes.COLUMN_NAME_NOTE,
-                    NotePad.Notes.COLUMN_NAME_COLOR
+                    NotePad.Notes.COLUMN_NAME_COLOR,
+                    NotePad.Notes.COLUMN_NAME_VERSION,
+                    NotePad.Notes.COLUMN_NAME_CONTENT_HASH,
+                    NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH
             };
 
     // A label for the saved state of the activity
@@ -101,6 +108,18 @@ public class NoteEditor extends AppCompatActivity {
     private String mOriginalTitle = "";
     private boolean mIsFromPaste = false;
     private ActivityResultLauncher<Intent> exportFileLauncher;
+    private FrameMetricsCollector mFrameMetrics;
+    // Version of the note as last read or written by this editor. Saves only succeed if the
+    // note is still at this version, so edits made elsewhere are never silently overwritten.
+    private long mVersion;
+    // Whether the title, text or color changed since the note was last loaded or saved.
+    private boolean mDirty;
+    // What is stored in the provider, as last loaded or saved: the text only by its hash and
+    // length, so checking for unsaved changes never needs the stored text.
+    private long mStoredHash;
+    private long mStoredLength = -1;
+    private String mStoredTitle;
+    private int mStoredColor;
 
     /**
      * This method is called by Android when the Activity is first started. From the incoming
@@ -213,6 +232,7 @@ public class NoteEditor extends AppCompatActivity {
 
                 @Override
                 public void onTextChanged(CharSequence s, int start, int before, int count) {
+                    mDirty = true;
                     supportInvalidateOptionsMenu();
                 }
 
@@ -228,6 +248,7 @@ public class NoteEditor extends AppCompatActivity {
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mDirty = true;
                 supportInvalidateOptionsMenu();
             }
 
@@ -253,6 +274,7 @@ public class NoteEditor extends AppCompatActivity {
                         if (uri == null) return;
                         String title = mTitle != null ? mTitle.getText().toString() : "";
                         String text = mText != null ? mText.getText().toString() : "";
+                        Trace.beginSection("NoteEditor.export");
                         try (OutputStream os = getContentResolver().openOutputStream(uri);
                              PrintWriter pw = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
                             pw.println(title);
@@ -262,6 +284,8 @@ public class NoteEditor extends AppCompatActivity {
                             Toast.makeText(NoteEditor.this, "导出成功", Toast.LENGTH_SHORT).show();
                         } catch (IOException e) {
                             Toast.makeText(NoteEditor.this, "导出失败：" + e.getMessage(), Toast.LENGTH_LONG).show();
+                        } finally {
+                            Trace.endSection();
                         }
                     }
                 });
@@ -278,7 +302,20 @@ public class NoteEditor extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        mFrameMetrics = FrameMetricsCollector.attach(this, TAG);
+        Trace.beginSection("NoteEditor.load");
+        try {
+            loadNote();
+        } finally {
+            Trace.endSection();
+        }
+    }
 
+    /**
+     * Re-reads the note and puts its title, text and color into the editor. Called from
+     * onResume().
+     */
+    private void loadNote() {
         /*
          * mCursor is initialized, since onCreate() always precedes onResume for any running
          * process. This tests that it's not null, since it should always contain data.
@@ -337,6 +374,25 @@ public class NoteEditor extends AppCompatActivity {
                     mOriginalColor = mColor;
                     applyEditorColor();
                 }
+                int colVersionIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION);
+                if (colVersionIndex != -1) {
+                    mVersion = mCursor.getLong(colVersionIndex);
+                }
+                int colHashIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CONTENT_HASH);
+                int colLengthIndex =
+                        mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH);
+                if (colHashIndex != -1 && colLengthIndex != -1
+                        && !mCursor.isNull(colLengthIndex)) {
+                    mStoredHash = mCursor.getLong(colHashIndex);
+                    mStoredLength = mCursor.getLong(colLengthIndex);
+                } else {
+                    // Not hashed yet; the next save writes it.
+                    mStoredLength = -1;
+                }
+                mStoredTitle = titleVal;
+                mStoredColor = mColor;
+                // The editor now shows exactly what is saved.
+                mDirty = false;
 
                 // Stores the original note text, to allow the user to revert changes.
                 if (mOriginalContent == null) {
@@ -388,7 +444,23 @@ public class NoteEditor extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        if (mFrameMetrics != null) {
+            mFrameMetrics.detach();
+            mFrameMetrics = null;
+        }
+        Trace.beginSection("NoteEditor.save");
+        try {
+            saveNote();
+        } finally {
+            Trace.endSection();
+        }
+    }
 
+    /**
+     * Writes the user's work to the provider, or deletes the note if the user is leaving an
+     * empty note behind. Called from onPause().
+     */
+    private void saveNote() {
         if (mCursor != null) {
 
             String text = mText.getText().toString();
@@ -397,21 +469,10 @@ public class NoteEditor extends AppCompatActivity {
             // 仅当标题与正文都为空且正在结束时，删除笔记
             if (isFinishing() && text.trim().isEmpty() && (titleNow == null || titleNow.trim().isEmpty())) {
                 setResult(RESULT_CANCELED);
-                deleteNote();
+                deleteNote(true);
             } else {
-                // 读取当前数据库中的内容与颜色用于差异判断
-                mCursor.requery();
-                mCursor.moveToFirst();
-                int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                int colColorIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_COLOR);
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String savedNote = colNoteIndex != -1 ? mCursor.getString(colNoteIndex) : "";
-                int savedColor = colColorIndex != -1 ? mCursor.getInt(colColorIndex) : 0;
-                String savedTitle = colTitleIndex != -1 ? mCursor.getString(colTitleIndex) : "";
-
-                boolean changed = !text.equals(savedNote)
-                        || (mColor != savedColor)
-                        || ((titleNow != null) && !titleNow.equals(savedTitle));
+                // 只有编辑过标题、正文或颜色才需要保存；改回原样的编辑通过哈希识别，无需重新读取数据库比较
+                boolean changed = mDirty && !matchesStored(text, titleNow);
 
                 if (mState == STATE_EDIT) {
                     if (changed) {
@@ -464,22 +525,10 @@ public class NoteEditor extends AppCompatActivity {
             if (revert != null) revert.setVisible(false);
             return super.onPrepareOptionsMenu(menu);
         }
-        // 重新查询最新内容，检查是否发生变化以控制撤销按钮可见性
-        mCursor.requery();
-        if (!mCursor.moveToFirst()) {
-            MenuItem revert = menu.findItem(R.id.menu_revert);
-            if (revert != null) revert.setVisible(false);
-            return super.onPrepareOptionsMenu(menu);
-        }
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = colNoteIndex != -1 ? mCursor.getString(colNoteIndex) : "";
-        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-        String savedTitle = colTitleIndex != -1 ? mCursor.getString(colTitleIndex) : "";
-        String currentNote = mText.getText().toString();
-        String currentTitle = mTitle != null ? mTitle.getText().toString() : savedTitle;
+        // 有未保存的更改时才显示撤销按钮
         MenuItem revert = menu.findItem(R.id.menu_revert);
         if (revert != null) {
-            revert.setVisible(!savedNote.equals(currentNote) || !savedTitle.equals(currentTitle));
+            revert.setVisible(mDirty);
         }
         return super.onPrepareOptionsMenu(menu);
     }
@@ -509,12 +558,16 @@ public class NoteEditor extends AppCompatActivity {
             finish();
             return true;
         } else if (id == R.id.menu_delete) {
-            deleteNote();
+            deleteNote(false);
+            Toast.makeText(this, R.string.note_moved_to_trash, Toast.LENGTH_SHORT).show();
             finish();
             return true;
         } else if (id == R.id.menu_revert) {
             cancelNote();
             return true;
+        } else if (id == R.id.menu_history) {
+            showHistory();
+            return true;
         } else if (id == R.id.menu_export) {
             // 使用系统文件创建界面导出为文本
             String title = mTitle != null ? mTitle.getText().toString().trim() : "";
@@ -535,6 +588,15 @@ public class NoteEditor extends AppCompatActivity {
      * A helper method that replaces the note's data with the contents of the clipboard.
      */
     private void performPaste() {
+        Trace.beginSection("NoteEditor.paste");
+        try {
+            pasteClip();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void pasteClip() {
         // Gets a handle to the Clipboard Manager
         ClipboardManager clipboard = (ClipboardManager)
                 getSystemService(Context.CLIPBOARD_SERVICE);
@@ -589,6 +651,8 @@ public class NoteEditor extends AppCompatActivity {
             }
             mOriginalContent = text;
             mState = STATE_EDIT;
+            // The pasted text was just saved.
+            mDirty = false;
 
             // 确保光标存在，便于后续菜单刷新与撤销逻辑
             if (mUri != null && (mCursor == null || mCursor.isClosed())) {
@@ -652,16 +716,114 @@ public class NoteEditor extends AppCompatActivity {
          * local database, the block will be momentary, but in a real app you should use
          * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
+        if (!writeNote(values)) {
+            saveConflictCopy(values);
+        }
+    }
+//END_INCLUDE(paste)
+
+    /**
+     * Writes the values to the note, but only if it is still at the version this editor last
+     * read or wrote.
+     *
+     * @return false if the note was changed or deleted elsewhere in the meantime; nothing was
+     * written then.
+     */
+    private boolean writeNote(ContentValues values) {
+        int count = getContentResolver().update(
+                mUri,                                   // The URI for the record to update.
+                values,                                 // The columns and new values.
+                NotePad.Notes.VERSION_SELECTION,        // Only if nobody changed it since.
+                new String[]{String.valueOf(mVersion)}  // The version this editor holds.
         );
+        if (count == 0) {
+            return false;
+        }
+        // Read back rather than counted, so that this editor holds whatever version the
+        // provider gave the note.
+        mVersion = queryVersion();
+        mDirty = false;
+        rememberStored(values);
+        return true;
+    }
 
+    /**
+     * Returns the note's current version, or the one this editor holds if the note is gone.
+     */
+    private long queryVersion() {
+        Cursor c = getContentResolver().query(mUri,
+                new String[]{NotePad.Notes.COLUMN_NAME_VERSION}, null, null, null);
+        if (c == null) {
+            return mVersion;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : mVersion;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Records what was just written, for {@link #matchesStored}.
+     */
+    private void rememberStored(ContentValues values) {
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (note != null) {
+            mStoredHash = ContentHash.of(note);
+            mStoredLength = note.length();
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            mStoredTitle = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        }
+        Integer color = values.getAsInteger(NotePad.Notes.COLUMN_NAME_COLOR);
+        if (color != null) {
+            mStoredColor = color;
+        }
+    }
 
+    /**
+     * Returns whether the given text and title, and the current color, are what is stored,
+     * for example after the user typed something and deleted it again. The text is compared
+     * by length and hash, so the stored text is never read.
+     */
+    private boolean matchesStored(String text, String title) {
+        return mStoredLength >= 0
+                && ContentHash.matches(text, mStoredHash, mStoredLength)
+                && (title == null || title.equals(mStoredTitle))
+                && mColor == mStoredColor;
+    }
+
+    /**
+     * Called when a save lost against a change made elsewhere (another editor window, or the
+     * title editor). The other change is kept, and this editor's content is saved as a new
+     * note, which the editor keeps editing from now on.
+     */
+    private void saveConflictCopy(ContentValues values) {
+        String title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        if (title == null) {
+            title = mTitle != null ? mTitle.getText().toString() : "";
+        }
+        title = getString(R.string.conflict_copy_title, title);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        Uri copy = getContentResolver().insert(NotePad.Notes.CONTENT_URI, values);
+        if (copy == null) {
+            return;
+        }
+        mUri = copy;
+        mVersion = 1;
+        mState = STATE_EDIT;
+        rememberStored(values);
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        mCursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+        if (mTitle != null) {
+            mTitle.setTextKeepState(title);
+        }
+        mDirty = false;
+        Toast.makeText(this, R.string.conflict_copy_saved, Toast.LENGTH_LONG).show();
     }
-//END_INCLUDE(paste)
 
     private void cancelNote() {
         // 撤销更改：回滚到进入页面时的原始内容与颜色，不退出编辑页，不更新修改时间
@@ -680,7 +842,14 @@ public class NoteEditor extends AppCompatActivity {
                 mOriginalTitle = "";
                 mOriginalColor = 0;
             }
-            getContentResolver().update(mUri, values, null, null);
+            if (!writeNote(values)) {
+                // 笔记已在别处被修改：保留别处的修改并重新载入，而不是用原始内容覆盖它
+                Toast.makeText(this, R.string.note_changed_elsewhere, Toast.LENGTH_LONG).show();
+                loadNote();
+                supportInvalidateOptionsMenu();
+                setResult(RESULT_CANCELED);
+                return;
+            }
             // 同步界面与内部状态
             mText.setTextKeepState(mOriginalContent != null ? mOriginalContent : "");
             if (mTitle != null) {
@@ -688,24 +857,119 @@ public class NoteEditor extends AppCompatActivity {
             }
             mColor = (mState == STATE_EDIT) ? mOriginalColor : 0;
             applyEditorColor();
-            // 重新查询以便菜单逻辑正确识别“无变化”
-            if (mCursor != null) {
-                mCursor.requery();
-                mCursor.moveToFirst();
-            }
+            // 界面已与保存的内容一致
+            mDirty = false;
             supportInvalidateOptionsMenu();
         }
         setResult(RESULT_CANCELED);
     }
 
     /**
-     * Take care of deleting a note.  Simply deletes the entry.
+     * Lists the saved versions of the note, newest first. Picking one shows it, and it can be
+     * restored into the editor from there.
      */
-    private void deleteNote() {
+    private void showHistory() {
+        if (mUri == null || mCursor == null) {
+            return;
+        }
+        final long noteId = ContentUris.parseId(mUri);
+        Cursor c = getContentResolver().query(NotePad.Revisions.contentUri(noteId),
+                new String[]{
+                        NotePad.Revisions.COLUMN_NAME_REVISION,
+                        NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+                        NotePad.Revisions.COLUMN_NAME_CHANGE_SIZE
+                }, null, null, null);
+        if (c == null) {
+            return;
+        }
+        final long[] revisions;
+        CharSequence[] labels;
+        try {
+            if (c.getCount() == 0) {
+                Toast.makeText(this, R.string.history_empty, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            revisions = new long[c.getCount()];
+            labels = new CharSequence[c.getCount()];
+            while (c.moveToNext()) {
+                int i = c.getPosition();
+                revisions[i] = c.getLong(0);
+                labels[i] = getString(R.string.history_item, c.getLong(0),
+                        DateUtils.formatDateTime(this, c.getLong(1),
+                                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME
+                                        | DateUtils.FORMAT_ABBREV_ALL),
+                        c.getInt(2));
+            }
+        } finally {
+            c.close();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_history)
+                .setItems(labels, (d, which) -> showRevision(noteId, revisions[which]))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Shows one version of the note, with the option to restore it.
+     */
+    private void showRevision(long noteId, long revision) {
+        Cursor c = getContentResolver().query(NotePad.Revisions.revisionUri(noteId, revision),
+                new String[]{
+                        NotePad.Revisions.COLUMN_NAME_TITLE,
+                        NotePad.Revisions.COLUMN_NAME_NOTE
+                }, null, null, null);
+        if (c == null) {
+            return;
+        }
+        final String title;
+        final String text;
+        try {
+            if (!c.moveToFirst()) {
+                return;
+            }
+            title = c.getString(0);
+            text = c.getString(1);
+        } finally {
+            c.close();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.history_revision_title, revision))
+                .setMessage(TextUtils.isEmpty(title) ? text : title + "\n\n" + text)
+                .setPositiveButton(R.string.history_restore, (d, w) -> restoreRevision(title, text))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Puts an earlier version into the editor as an unsaved edit. Saving it then goes through
+     * the usual version check, and becomes a new version itself, so restoring loses nothing.
+     */
+    private void restoreRevision(String title, String text) {
+        mText.setText(text != null ? text : "");
+        if (mTitle != null && title != null) {
+            mTitle.setText(title);
+        }
+        mDirty = true;
+        supportInvalidateOptionsMenu();
+        Toast.makeText(this, R.string.history_restored, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Take care of deleting a note. A note the user deletes goes to the trash; an empty or
+     * abandoned new note is discarded for good, so it doesn't clutter the trash.
+     *
+     * @param discard true to delete the note permanently
+     */
+    private void deleteNote(boolean discard) {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
             getContentResolver().delete(mUri, null, null);
+            if (discard) {
+                getContentResolver().delete(ContentUris.withAppendedId(
+                        NotePad.Notes.TRASH_URI, ContentUris.parseId(mUri)), null, null);
+            }
             mText.setText("");
         }
     }
@@ -735,7 +999,7 @@ public class NoteEditor extends AppCompatActivity {
                     .setTitle("粘贴")
                     .setMessage("要取消粘贴并丢弃内容吗？")
                     .setPositiveButton("取消粘贴", (d, w) -> {
-                        deleteNote();
+                        deleteNote(true);
                         finish();
                     })
                     .setNegativeButton(R.string.menu_save, (d, w) -> {
@@ -752,7 +1016,7 @@ public class NoteEditor extends AppCompatActivity {
             String currentTitle = mTitle != null ? mTitle.getText().toString() : "";
             boolean empty = currentText.trim().isEmpty() && currentTitle.trim().isEmpty();
             if (empty) {
-                deleteNote();
+                deleteNote(true);
                 finish();
                 return;
             }
@@ -760,7 +1024,7 @@ public class NoteEditor extends AppCompatActivity {
                     .setTitle("新建")
                     .setMessage("要取消新建并丢弃内容吗？")
                     .setPositiveButton("取消创建", (d, w) -> {
-                        deleteNote();
+                        deleteNote(true);
                         finish();
                     })
                     .setNegativeButton(R.string.menu_save, (d, w) -> {
@@ -773,22 +1037,8 @@ public class NoteEditor extends AppCompatActivity {
         }
         String currentText = mText != null ? mText.getText().toString() : "";
         String currentTitle = mTitle != null ? mTitle.getText().toString() : "";
-        String savedText = "";
-        int savedColor = mColor;
-        String savedTitle = "";
-        if (mCursor != null) {
-            mCursor.requery();
-            if (mCursor.moveToFirst()) {
-                int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                if (colNoteIndex != -1) savedText = mCursor.getString(colNoteIndex);
-                int colColorIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_COLOR);
-                if (colColorIndex != -1) savedColor = mCursor.getInt(colColorIndex);
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                if (colTitleIndex != -1) savedTitle = mCursor.getString(colTitleIndex);
-            }
-        }
-        final boolean hasChanges = (!currentText.equals(savedText)) || (!currentTitle.equals(savedTitle))
-                || (mColor != savedColor) || mPendingPaste;
+        final boolean hasChanges = (mDirty && !matchesStored(currentText, currentTitle))
+                || mPendingPaste;
         if (!hasChanges) {
             finish();
             return;
@@ -824,6 +1074,7 @@ public class NoteEditor extends AppCompatActivity {
             mColor = 0;
         }
         applyEditorColor();
+        mDirty = true;
         // 颜色变化也刷新菜单（撤销按钮）
         supportInvalidateOptionsMenu();
     }
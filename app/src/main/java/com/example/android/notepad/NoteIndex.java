@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-memory index of the titles of all live notes, for lookups that must answer while the
+ * user types: finding notes by title prefix or substring, and telling whether a title is
+ * already taken.
+ * <p>
+ * Notes are held in parallel primitive arrays sorted by ID (IDs, modification times, colors,
+ * and the offset and length of each title), and the titles share one char buffer, so 10,000
+ * notes cost a few hundred kilobytes and no per-note objects. A lookup scans the buffer in
+ * place, case-insensitively. The index loads on a background thread and then follows the
+ * provider's change notifications: a change to one note reloads that note only, anything
+ * else reloads everything.
+ * 笔记标题内存索引：以并行基本类型数组保存全部笔记，按前缀或子串在微秒级查找标题。
+ */
+final class NoteIndex {
+    private static final String TAG = "NoteIndex";
+
+    private static final String[] PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_COLOR
+    };
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static NoteIndex sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    // Guarded by this. Entries 0..mCount-1 are sorted by ID.
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private long[] mModified = new long[INITIAL_CAPACITY];
+    private int[] mColors = new int[INITIAL_CAPACITY];
+    private int[] mTitleStart = new int[INITIAL_CAPACITY];
+    private int[] mTitleLength = new int[INITIAL_CAPACITY];
+    private int mCount;
+    // Titles are appended; a replaced title leaves garbage behind until the next compaction.
+    private char[] mTitles = new char[INITIAL_CAPACITY * 16];
+    private int mTitlesEnd;
+    private int mGarbageChars;
+    private boolean mLoaded;
+    private long mLastLookupNanos;
+
+    /**
+     * Returns the index of the app's notes, loading it in the background the first time.
+     */
+    static synchronized NoteIndex get(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteIndex(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    NoteIndex(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(this::reload);
+        mResolver.registerContentObserver(NotePad.Notes.CONTENT_URI, true,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onNotesChanged(uri);
+                    }
+                });
+    }
+
+    /**
+     * Returns whether the index has loaded; until then every lookup finds nothing.
+     */
+    synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    // Runs on the index thread.
+    private void onNotesChanged(Uri uri) {
+        List<String> segments = uri == null ? null : uri.getPathSegments();
+        if (segments != null && segments.size() == 2) {
+            try {
+                reloadNote(Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION)));
+            } catch (NumberFormatException e) {
+                // The trash or the count changed; the note URI is notified separately.
+            }
+        } else if (segments != null && segments.size() == 1) {
+            reload();
+        }
+    }
+
+    // Runs on the index thread.
+    private void reload() {
+        long start = SystemClock.elapsedRealtime();
+        Cursor c = mResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION, null, null,
+                NotePad.Notes._ID);
+        if (c == null) {
+            return;
+        }
+        try {
+            int n = c.getCount();
+            long[] ids = new long[Math.max(n, INITIAL_CAPACITY)];
+            long[] modified = new long[ids.length];
+            int[] colors = new int[ids.length];
+            int[] starts = new int[ids.length];
+            int[] lengths = new int[ids.length];
+            StringBuilder titles = new StringBuilder(n * 16);
+            int count = 0;
+            while (c.moveToNext()) {
+                String title = c.isNull(1) ? "" : c.getString(1);
+                ids[count] = c.getLong(0);
+                modified[count] = c.getLong(2);
+                colors[count] = c.getInt(3);
+                starts[count] = titles.length();
+                lengths[count] = title.length();
+                titles.append(title);
+                count++;
+            }
+            char[] buffer = new char[Math.max(titles.length(), INITIAL_CAPACITY * 16)];
+            titles.getChars(0, titles.length(), buffer, 0);
+            synchronized (this) {
+                mIds = ids;
+                mModified = modified;
+                mColors = colors;
+                mTitleStart = starts;
+                mTitleLength = lengths;
+                mCount = count;
+                mTitles = buffer;
+                mTitlesEnd = titles.length();
+                mGarbageChars = 0;
+                mLoaded = true;
+            }
+        } finally {
+            c.close();
+        }
+        Log.i(TAG, "Indexed " + mCount + " notes in " + (SystemClock.elapsedRealtime() - start)
+                + " ms, " + footprintBytes() + " bytes");
+    }
+
+    // Runs on the index thread.
+    private void reloadNote(long id) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                PROJECTION, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            if (c.moveToFirst()) {
+                put(id, c.isNull(1) ? "" : c.getString(1), c.getLong(2), c.getInt(3));
+            } else {
+                remove(id);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    synchronized void put(long id, String title, long modified, int color) {
+        int i = Arrays.binarySearch(mIds, 0, mCount, id);
+        if (i < 0) {
+            i = -i - 1;
+            ensureCapacity(mCount + 1);
+            int tail = mCount - i;
+            System.arraycopy(mIds, i, mIds, i + 1, tail);
+            System.arraycopy(mModified, i, mModified, i + 1, tail);
+            System.arraycopy(mColors, i, mColors, i + 1, tail);
+            System.arraycopy(mTitleStart, i, mTitleStart, i + 1, tail);
+            System.arraycopy(mTitleLength, i, mTitleLength, i + 1, tail);
+            mCount++;
+            mIds[i] = id;
+        } else {
+            mGarbageChars += mTitleLength[i];
+        }
+        // Until the new title is written, the slot holds no title, so that a compaction
+        // doesn't copy the old one, or the one of the note that was shifted out of the slot.
+        mTitleLength[i] = 0;
+        mModified[i] = modified;
+        mColors[i] = color;
+        if (mTitlesEnd + title.length() > mTitles.length) {
+            compactTitles(title.length());
+        }
+        title.getChars(0, title.length(), mTitles, mTitlesEnd);
+        mTitleStart[i] = mTitlesEnd;
+        mTitleLength[i] = title.length();
+        mTitlesEnd += title.length();
+    }
+
+    synchronized void remove(long id) {
+        int i = Arrays.binarySearch(mIds, 0, mCount, id);
+        if (i < 0) {
+            return;
+        }
+        mGarbageChars += mTitleLength[i];
+        int tail = mCount - i - 1;
+        System.arraycopy(mIds, i + 1, mIds, i, tail);
+        System.arraycopy(mModified, i + 1, mModified, i, tail);
+        System.arraycopy(mColors, i + 1, mColors, i, tail);
+        System.arraycopy(mTitleStart, i + 1, mTitleStart, i, tail);
+        System.arraycopy(mTitleLength, i + 1, mTitleLength, i, tail);
+        mCount--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+        int size = Math.max(capacity, mIds.length * 2);
+        mIds = Arrays.copyOf(mIds, size);
+        mModified = Arrays.copyOf(mModified, size);
+        mColors = Arrays.copyOf(mColors, size);
+        mTitleStart = Arrays.copyOf(mTitleStart, size);
+        mTitleLength = Arrays.copyOf(mTitleLength, size);
+    }
+
+    /*
+     * Makes room for another title, dropping replaced titles if they take up at least half of
+     * the buffer and growing it otherwise.
+     */
+    private void compactTitles(int extra) {
+        int live = mTitlesEnd - mGarbageChars;
+        int size = mTitles.length;
+        if (mGarbageChars < size / 2 || live + extra > size) {
+            size = Math.max(size * 2, live + extra);
+        }
+        char[] titles = new char[size];
+        int end = 0;
+        for (int i = 0; i < mCount; i++) {
+            System.arraycopy(mTitles, mTitleStart[i], titles, end, mTitleLength[i]);
+            mTitleStart[i] = end;
+            end += mTitleLength[i];
+        }
+        mTitles = titles;
+        mTitlesEnd = end;
+        mGarbageChars = 0;
+    }
+
+    /**
+     * Returns the IDs of the notes whose title starts with the prefix, ignoring case, most
+     * recently modified first.
+     */
+    long[] findByPrefix(String prefix, int limit) {
+        return find(prefix, true, limit);
+    }
+
+    /**
+     * Returns the IDs of the notes whose title contains the text, ignoring case, most recently
+     * modified first.
+     */
+    long[] findBySubstring(String text, int limit) {
+        return find(text, false, limit);
+    }
+
+    private synchronized long[] find(String text, boolean prefixOnly, int limit) {
+        long start = System.nanoTime();
+        // The newest matches so far, in a heap with the oldest of them at the root, so a short
+        // prefix that matches most notes costs log(limit) per match rather than a full sort.
+        int[] heap = new int[Math.max(0, Math.min(limit, Math.min(mCount, 16)))];
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (!(prefixOnly ? matchesAt(i, 0, text) : contains(i, text))) {
+                continue;
+            }
+            if (size < limit) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min(size * 2L, limit));
+                }
+                heap[size] = i;
+                siftUp(heap, size++);
+            } else if (size > 0 && newer(i, heap[0])) {
+                heap[0] = i;
+                siftDown(heap, 0, size);
+            }
+        }
+        // Takes the oldest off the root into the last free place, leaving them newest first.
+        long[] ids = new long[size];
+        for (int end = size - 1; end >= 0; end--) {
+            ids[end] = mIds[heap[0]];
+            heap[0] = heap[end];
+            siftDown(heap, 0, end);
+        }
+        mLastLookupNanos = System.nanoTime() - start;
+        return ids;
+    }
+
+    // Whether note a comes before note b in the results: modified later, or at the same time
+    // and earlier in the index.
+    private boolean newer(int a, int b) {
+        return mModified[a] > mModified[b] || mModified[a] == mModified[b] && a < b;
+    }
+
+    private void siftUp(int[] heap, int k) {
+        while (k > 0) {
+            int parent = (k - 1) / 2;
+            if (!newer(heap[parent], heap[k])) {
+                return;
+            }
+            swap(heap, parent, k);
+            k = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int k, int size) {
+        while (2 * k + 1 < size) {
+            int child = 2 * k + 1;
+            if (child + 1 < size && newer(heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!newer(heap[k], heap[child])) {
+                return;
+            }
+            swap(heap, k, child);
+            k = child;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b) {
+        int t = heap[a];
+        heap[a] = heap[b];
+        heap[b] = t;
+    }
+
+    /**
+     * Returns the ID of another note with the same title, ignoring case, or -1 if there is
+     * none. Empty titles are never reported.
+     */
+    synchronized long findTitle(String title, long excludeId) {
+        if (title.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mIds[i] != excludeId && mTitleLength[i] == title.length() && matchesAt(i, 0, title)) {
+                return mIds[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the title of a note, or null if the note isn't in the index.
+     */
+    synchronized String title(long id) {
+        int i = Arrays.binarySearch(mIds, 0, mCount, id);
+        return i < 0 ? null : new String(mTitles, mTitleStart[i], mTitleLength[i]);
+    }
+
+    private boolean contains(int i, String text) {
+        for (int offset = 0; offset + text.length() <= mTitleLength[i]; offset++) {
+            if (matchesAt(i, offset, text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesAt(int i, int offset, String text) {
+        if (offset + text.length() > mTitleLength[i]) {
+            return false;
+        }
+        int base = mTitleStart[i] + offset;
+        for (int k = 0; k < text.length(); k++) {
+            char a = mTitles[base + k];
+            char b = text.charAt(k);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the memory held by the index arrays, in bytes.
+     */
+    synchronized long footprintBytes() {
+        // Two long arrays and three int arrays per note slot, two bytes per title char.
+        return (long) mIds.length * (8 + 8 + 4 + 4 + 4) + 2L * mTitles.length;
+    }
+
+    void dump(PrintWriter pw) {
+        long bytes;
+        int count;
+        long lookupNanos;
+        synchronized (this) {
+            bytes = footprintBytes();
+            count = mCount;
+            lookupNanos = mLastLookupNanos;
+        }
+        pw.println("Note index: " + count + " notes, " + bytes + " bytes ("
+                + (count == 0 ? 0 : bytes * 10000 / count) + " bytes per 10k notes), last lookup "
+                + (lookupNanos / 1000) + " us");
+    }
+}
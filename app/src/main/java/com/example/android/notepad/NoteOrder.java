@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The keys that keep the notes in the order the user arranged them.
+ * <p>
+ * A key is an integer followed by a fraction, written with the base 62 digits 0-9, A-Z and
+ * a-z, which are in ASCII order, so keys compare as plain strings, in Java and in SQLite. The
+ * first character of the integer gives its length: "a" to "z" start the integers of 1 to 26
+ * digits and "Z" to "A" the negative ones, so longer integers sort further out. The fraction
+ * may be empty, and never ends in "0", so there is always a key between two others and a
+ * note moves by taking a key between those of its new neighbours: one row is written, however
+ * long the list. A key added at either end is the next integer, which gains a digit only
+ * every 62, 3844, ... notes, and a key between two others is the shortest fraction that
+ * fits, which gains a digit about every six moves into the same gap.
+ * 手动排序键：62 进制的变长整数加小数，移动一条笔记只需为它取相邻两键之间的新键，只写一行。
+ */
+final class NoteOrder {
+
+    static final String DIGITS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private static final int BASE = DIGITS.length();
+
+    // The smallest integer: nothing can be put before it without a fraction.
+    private static final String SMALLEST_INTEGER = "A00000000000000000000000000";
+
+    // Digits of the keys given to existing notes by the migration, for the modification date
+    // and the ID: 62^8 milliseconds is thousands of years, 62^5 IDs nearly a billion. The
+    // integers have 13 digits, so they start with "m".
+    private static final int DATE_DIGITS = 8;
+    private static final int ID_DIGITS = 5;
+
+    // This class cannot be instantiated
+    private NoteOrder() {
+    }
+
+    /**
+     * Returns a key between two keys: after {@code before} and before {@code after}, either of
+     * which can be null for the start or the end of the list.
+     *
+     * @throws IllegalArgumentException if a key isn't valid or they are out of order
+     */
+    static String between(String before, String after) {
+        if (before != null) {
+            check(before);
+        }
+        if (after != null) {
+            check(after);
+        }
+        if (before != null && after != null && before.compareTo(after) >= 0) {
+            throw new IllegalArgumentException("Keys out of order: " + before + ", " + after);
+        }
+        if (before == null) {
+            if (after == null) {
+                return "a0";
+            }
+            String integer = integerPart(after);
+            if (integer.equals(SMALLEST_INTEGER)) {
+                return integer + midpoint("", after.substring(integer.length()));
+            }
+            // The integer alone is smaller than the key if the key has a fraction.
+            return integer.length() < after.length() ? integer : decrement(integer);
+        }
+        String integer = integerPart(before);
+        String fraction = before.substring(integer.length());
+        if (after == null) {
+            String next = increment(integer);
+            return next != null ? next : integer + midpoint(fraction, null);
+        }
+        String afterInteger = integerPart(after);
+        if (integer.equals(afterInteger)) {
+            return integer + midpoint(fraction, after.substring(integer.length()));
+        }
+        String next = increment(integer);
+        if (next != null && next.compareTo(after) < 0) {
+            return next;
+        }
+        return integer + midpoint(fraction, null);
+    }
+
+    /**
+     * Checks that a key is one this class could have made: an integer whose length matches
+     * its first character, then a fraction of base 62 digits that doesn't end in "0".
+     *
+     * @throws IllegalArgumentException if it isn't
+     */
+    static void check(String key) {
+        if (key.isEmpty() || key.equals(SMALLEST_INTEGER)
+                || key.charAt(key.length() - 1) == '0'
+                && key.length() > integerLength(key.charAt(0))) {
+            throw new IllegalArgumentException("Invalid order key: \"" + key + "\"");
+        }
+        integerPart(key);
+        for (int i = 1; i < key.length(); i++) {
+            if (DIGITS.indexOf(key.charAt(i)) < 0) {
+                throw new IllegalArgumentException("Invalid order key: \"" + key + "\"");
+            }
+        }
+    }
+
+    // The length of an integer, its first character included, from that character.
+    private static int integerLength(char head) {
+        if (head >= 'a' && head <= 'z') {
+            return head - 'a' + 2;
+        }
+        if (head >= 'A' && head <= 'Z') {
+            return 'Z' - head + 2;
+        }
+        throw new IllegalArgumentException("Invalid order key head: " + head);
+    }
+
+    private static String integerPart(String key) {
+        int length = integerLength(key.charAt(0));
+        if (length > key.length()) {
+            throw new IllegalArgumentException("Invalid order key: \"" + key + "\"");
+        }
+        return key.substring(0, length);
+    }
+
+    // The next integer, one digit longer when the digits run out, or null after the largest.
+    private static String increment(String integer) {
+        char head = integer.charAt(0);
+        char[] digits = integer.substring(1).toCharArray();
+        for (int i = digits.length - 1; i >= 0; i--) {
+            int digit = DIGITS.indexOf(digits[i]) + 1;
+            if (digit < BASE) {
+                digits[i] = DIGITS.charAt(digit);
+                return head + new String(digits);
+            }
+            digits[i] = '0';
+        }
+        if (head == 'Z') {
+            return "a0";
+        }
+        if (head == 'z') {
+            return null;
+        }
+        // The digits are all zeros now: one more for a positive integer, one fewer for a
+        // negative one.
+        int length = head >= 'a' ? digits.length + 1 : digits.length - 1;
+        return (char) (head + 1) + new String(digits, 0, Math.min(length, digits.length))
+                + (length > digits.length ? "0" : "");
+    }
+
+    // The previous integer, one digit longer when the digits run out, or null before the
+    // smallest.
+    private static String decrement(String integer) {
+        char head = integer.charAt(0);
+        char[] digits = integer.substring(1).toCharArray();
+        char last = DIGITS.charAt(BASE - 1);
+        for (int i = digits.length - 1; i >= 0; i--) {
+            int digit = DIGITS.indexOf(digits[i]) - 1;
+            if (digit >= 0) {
+                digits[i] = DIGITS.charAt(digit);
+                return head + new String(digits);
+            }
+            digits[i] = last;
+        }
+        if (head == 'a') {
+            return "Z" + last;
+        }
+        if (head == 'A') {
+            return null;
+        }
+        // The digits are all the largest digit now: one more for a negative integer, one
+        // fewer for a positive one.
+        int length = head <= 'Z' ? digits.length + 1 : digits.length - 1;
+        return (char) (head - 1) + new String(digits, 0, Math.min(length, digits.length))
+                + (length > digits.length ? String.valueOf(last) : "");
+    }
+
+    // A fraction strictly between a and b, where a < b, a may be empty for 0 and b null for
+    // 1.
+    private static String midpoint(String a, String b) {
+        if (b != null) {
+            // The common prefix, reading a as padded with zeros, is kept as it is.
+            int n = 0;
+            while (n < b.length() && (n < a.length() ? a.charAt(n) : '0') == b.charAt(n)) {
+                n++;
+            }
+            if (n > 0) {
+                return b.substring(0, n)
+                        + midpoint(n < a.length() ? a.substring(n) : "", b.substring(n));
+            }
+        }
+        int digitA = a.isEmpty() ? 0 : DIGITS.indexOf(a.charAt(0));
+        int digitB = b != null ? DIGITS.indexOf(b.charAt(0)) : BASE;
+        if (digitB - digitA > 1) {
+            return String.valueOf(DIGITS.charAt((digitA + digitB + 1) / 2));
+        }
+        // The first digits are adjacent: b's first digit alone is between if b goes on,
+        // otherwise a's first digit followed by a fraction after the rest of a.
+        if (b != null && b.length() > 1) {
+            return b.substring(0, 1);
+        }
+        return DIGITS.charAt(digitA) + midpoint(a.isEmpty() ? "" : a.substring(1), null);
+    }
+
+    /**
+     * Returns the key for a note added at the top of its section of the list: the pinned
+     * notes, or the others.
+     */
+    static String top(SQLiteDatabase db, boolean pinned) {
+        String first = DatabaseUtils.stringForQuery(db, "SELECT MIN("
+                + NotePad.Notes.COLUMN_NAME_POSITION + ") FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_PINNED + " = " + (pinned ? 1 : 0),
+                null);
+        return between(null, first);
+    }
+
+    /**
+     * Creates the index the list is read from in its manual order. It holds the order and
+     * whether a note is in the trash, so the order of the live notes, and the neighbours of a
+     * note being moved, are read from the index alone.
+     */
+    static void createIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_position ON "
+                + NotePad.Notes.TABLE_NAME + " (" + NotePad.Notes.COLUMN_NAME_PINNED + " DESC, "
+                + NotePad.Notes.COLUMN_NAME_POSITION + ", "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + ")");
+    }
+
+    /**
+     * Returns an SQL expression for the key of an existing note that puts the notes in the
+     * order of {@link NotePad.Notes#DEFAULT_SORT_ORDER}, newest first, by modification date
+     * and then ID, so that the manual order starts out as the list looked. Used once, by the
+     * migration that adds the keys, as one UPDATE rather than a write per note from Java.
+     */
+    static String initialKey() {
+        long maxDate = 1;
+        for (int i = 0; i < DATE_DIGITS; i++) {
+            maxDate *= BASE;
+        }
+        maxDate--;
+        String date = "MIN(" + maxDate + ", MAX(0, " + maxDate + " - IFNULL("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", 0)))";
+        return "'" + (char) ('a' + DATE_DIGITS + ID_DIGITS - 1) + "' || "
+                + digits(date, DATE_DIGITS) + " || " + digits(NotePad.Notes._ID, ID_DIGITS);
+    }
+
+    // The expression's value as a fixed number of base 62 digits, most significant first.
+    private static String digits(String value, int count) {
+        StringBuilder sql = new StringBuilder();
+        long power = 1;
+        for (int i = 1; i < count; i++) {
+            power *= BASE;
+        }
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "" : " || ").append("substr('").append(DIGITS).append("', (")
+                    .append(value).append(" / ").append(power).append(") % ").append(BASE)
+                    .append(" + 1, 1)");
+            power /= BASE;
+        }
+        return sql.toString();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.example.android.notepad;
 
+import android.app.SearchManager;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -28,6 +29,75 @@ import android.provider.BaseColumns;
 public final class NotePad {
     public static final String AUTHORITY = "com.google.provider.NotePad";
 
+    /**
+     * Provider call method that returns the provider's call counters and latency histograms
+     * as a Bundle. Use with {@link android.content.ContentResolver#call(Uri, String, String,
+     * android.os.Bundle)} on {@link Notes#CONTENT_URI}.
+     */
+    public static final String METHOD_STATS = "stats";
+
+    /**
+     * Provider call method that returns the recorded slow queries: their normalized selection,
+     * sort order, row count, duration and query plan. Pass "reset" as the arg to start a new
+     * log.
+     */
+    public static final String METHOD_SLOW_QUERIES = "slow_queries";
+
+    /**
+     * Provider call method that returns the provider's full diagnostics report as text, under
+     * the "report" key of the result Bundle.
+     */
+    public static final String METHOD_DIAGNOSTICS = "diagnostics";
+
+    /**
+     * Provider call method that returns the provider calls made on the main thread, grouped by
+     * the app code that made them, worst first. Only recorded in debuggable builds. Pass
+     * "reset" as the arg to start a new measurement.
+     */
+    public static final String METHOD_MAIN_THREAD_IO = "main_thread_io";
+
+    /**
+     * Provider call method that returns note counts without querying the notes themselves:
+     * the total, counts per color and per modification day, and counts by age of the last
+     * modification ("today", "last_7_days", "last_30_days", "older").
+     */
+    public static final String METHOD_AGGREGATE = "aggregate";
+
+    /**
+     * Provider call method that returns groups of notes with identical text, found through
+     * the content hash column. Empty notes are not reported.
+     */
+    public static final String METHOD_DUPLICATES = "duplicates";
+
+    /**
+     * Provider call method that takes a note out of the trash. Pass the note ID as the arg.
+     * The result Bundle has the number of notes restored, 0 or 1, under "restored".
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Provider call method that permanently deletes notes that have been in the trash since
+     * before a cutoff time. Pass the cutoff, in milliseconds since the epoch, as the arg. Each
+     * call deletes at most one batch of notes in one short transaction and returns the number
+     * deleted under "purged", so callers repeat it until fewer than "batch_size" come back.
+     */
+    public static final String METHOD_PURGE_TRASH = "purge_trash";
+
+    /**
+     * Provider call method that runs one database maintenance task: "optimize", "vacuum",
+     * "checkpoint" or "integrity". The result Bundle has the task's "duration_ms",
+     * "reclaimed_bytes" and whether it was "cancelled". Pass "cancel" as the arg to interrupt
+     * the task in progress, or no arg for the last result of every task.
+     */
+    public static final String METHOD_MAINTENANCE = "maintenance";
+
+    /**
+     * Provider call method that records a search the user made, so that it is suggested from
+     * {@link Notes#SUGGEST_URI}. Pass the search text as the arg. The most recent searches are
+     * kept; making the same search again moves it up.
+     */
+    public static final String METHOD_ADD_RECENT_SEARCH = "add_recent_search";
+
     // This class cannot be instantiated
     private NotePad() {
     }
@@ -56,6 +126,12 @@ public final class NotePad {
          * note.
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
+
+        /**
+         * The MIME type of {@link #COUNT_URI}, a single row with a {@link #_COUNT} column.
+         */
+        public static final String CONTENT_COUNT_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.count";
         /**
          * The default sort order for this table
          */
@@ -87,6 +163,112 @@ public final class NotePad {
          * <P>Type: INTEGER</P>
          */
         public static final String COLUMN_NAME_COLOR = "color";
+        /**
+         * Column name for the note's version. It starts at 1 and the provider increments it on
+         * every update of the title, text or color; clients can't set it. Trashing, restoring,
+         * filing, pinning and moving a note don't change it. To update a note only if nobody
+         * else changed it since it was read, pass {@link #VERSION_SELECTION} with the version
+         * that was read: an update count of 0 then means the note was changed or deleted
+         * elsewhere.
+         * 笔记版本号，每次修改标题、内容或颜色时自动加一，用于检测并发修改
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_VERSION = "version";
+        /**
+         * Column name for the 64-bit hash of the note text, maintained by the provider on every
+         * write. Together with {@link #COLUMN_NAME_CONTENT_LENGTH} it tells whether a text
+         * equals the stored one without reading the stored text, and finds duplicate notes.
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_CONTENT_HASH = "content_hash";
+        /**
+         * Column name for the length of the note text in UTF-16 code units, maintained by the
+         * provider on every write.
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_CONTENT_LENGTH = "content_length";
+        /**
+         * Selection for a conditional update on a note URI, with the expected
+         * {@link #COLUMN_NAME_VERSION} as its only argument.
+         */
+        public static final String VERSION_SELECTION = COLUMN_NAME_VERSION + " = ?";
+        /**
+         * Column name for the time the note was moved to the trash, or null if it isn't in the
+         * trash. Deleting a note through {@link #CONTENT_URI} or a note URI moves it to the
+         * trash; trashed notes only show up under {@link #TRASH_URI}.
+         * 移入回收站的时间，未删除的笔记为空
+         * <P>Type: INTEGER (long from System.curentTimeMillis(), read only)</P>
+         */
+        public static final String COLUMN_NAME_DELETED_AT = "deleted_at";
+        /**
+         * The sort order for the trash, most recently deleted first
+         */
+        public static final String TRASH_SORT_ORDER = COLUMN_NAME_DELETED_AT + " DESC";
+        /**
+         * Column name for the pinyin of the title: the full toneless pinyin and the initials,
+         * separated by a bar, "huiyijilu|hyjl" for "会议记录". Null if the title has no Chinese
+         * text. Searches through {@link #SEARCH_URI} match it as well as the title.
+         * 标题的拼音（全拼|首字母）
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_TITLE_PINYIN = "title_pinyin";
+        /**
+         * Column name for the pinyin of the note text, in the form of
+         * {@link #COLUMN_NAME_TITLE_PINYIN}. Only kept while the pinyin search of note texts is
+         * turned on in the settings; null otherwise.
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_PINYIN = "note_pinyin";
+        /**
+         * Column name for the {@link Notebooks#_ID} of the notebook the note is filed in, or
+         * null if it isn't in one.
+         * 笔记所在的笔记本
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTEBOOK_ID = "notebook_id";
+        /**
+         * Column name for the note's place in the order the user arranged the list in, a key
+         * that sorts as a string; see {@link #MANUAL_SORT_ORDER}. New notes get a key that puts
+         * them first. To move a note, give it a key between those of its new neighbours, so
+         * only the note moved is written. It can only be set through a note URI, one note at a
+         * time.
+         * 手动排序中的位置键
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_POSITION = "position";
+        /**
+         * Column name for whether the note is pinned, 1 or 0. Pinned notes come before the
+         * others in {@link #MANUAL_SORT_ORDER}, each part in the order of its keys.
+         * 是否置顶
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_PINNED = "pinned";
+        /**
+         * The sort order the user arranged, pinned notes first; read from an index that holds
+         * it
+         */
+        public static final String MANUAL_SORT_ORDER = COLUMN_NAME_PINNED + " DESC, "
+                + COLUMN_NAME_POSITION;
+        /**
+         * Column name for an extract of the note text around the first match, only available
+         * from {@link #SEARCH_URI}.
+         * 搜索结果摘要
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+        /**
+         * Column name for the positions of the matches in {@link #COLUMN_NAME_SNIPPET}, as
+         * comma-separated pairs of start (inclusive) and end (exclusive) offsets, for example
+         * "2,6,40,44". Only available from {@link #SEARCH_URI}.
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET_MATCHES = "snippet_matches";
+        /**
+         * Column name for the relevance of a search result; higher is better. Only available
+         * from {@link #SEARCH_URI}.
+         * <P>Type: REAL (read only)</P>
+         */
+        public static final String COLUMN_NAME_SCORE = "score";
         /**
          * The scheme part for this provider's URI
          */
@@ -123,6 +305,66 @@ public final class NotePad {
          */
         public static final Uri CONTENT_ID_URI_PATTERN
                 = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
+        /**
+         * The content:// style URL for the number of notes. Without a selection the count comes
+         * from a summary row and costs the same however many notes there are; with a selection
+         * the matching notes are counted.
+         */
+        public static final Uri COUNT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_NOTES + "/count");
+        /**
+         * The content:// style URL for the notes in the trash. Deleting through it, or through
+         * a trashed note's URI under it, deletes notes permanently.
+         */
+        public static final Uri TRASH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_NOTES + "/trash");
+        /**
+         * 0-relative position of the note ID segment in the path of a trashed note's URI
+         */
+        public static final int TRASH_ID_PATH_POSITION = 2;
+        /**
+         * The content:// style URL for a ranked search of the notes, with the search text in
+         * the {@link #QUERY_PARAMETER_SEARCH} parameter. A note matches when every word of the
+         * text occurs in its title or text, ignoring case. Results come best match first; the
+         * sort order of the query is ignored.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_NOTES + "/search");
+        /**
+         * Query parameter of {@link #SEARCH_URI} holding the search text
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+        /**
+         * Optional query parameter of {@link #SEARCH_URI} restricting the search to
+         * {@link #COLUMN_NAME_TITLE} or {@link #COLUMN_NAME_NOTE}
+         */
+        public static final String QUERY_PARAMETER_SEARCH_IN = "in";
+        /**
+         * Optional query parameter of {@link #SEARCH_URI} selecting how the text is matched;
+         * {@link #SEARCH_MODE_FUZZY}, {@link #SEARCH_MODE_QUERY} or absent for exact terms
+         */
+        public static final String QUERY_PARAMETER_SEARCH_MODE = "mode";
+        /**
+         * Value of {@link #QUERY_PARAMETER_SEARCH_MODE} that matches words despite typos, such
+         * as "meetign" for "meeting". Searches titles and texts, ignoring
+         * {@link #QUERY_PARAMETER_SEARCH_IN}, and returns the best matches only.
+         */
+        public static final String SEARCH_MODE_FUZZY = "fuzzy";
+        /**
+         * Value of {@link #QUERY_PARAMETER_SEARCH_MODE} that reads the text as a structured
+         * query, such as {@code title:plan color:red after:2024-05-01 -draft "next week"}, with
+         * words, quoted phrases, title:, color:, before: and after: conditions, exclusions
+         * with a leading "-" and alternatives joined by OR. Ignores
+         * {@link #QUERY_PARAMETER_SEARCH_IN}.
+         */
+        public static final String SEARCH_MODE_QUERY = "query";
+        /**
+         * The content:// style URL for search suggestions: recent searches and note titles
+         * starting with the text appended as the last path segment, best first, in the
+         * columns of {@link SearchManager} suggestions. Answered from memory,
+         * without querying the notes; the first query after the provider starts loads the
+         * titles in the background and may come back empty. Honors the
+         * {@link SearchManager#SUGGEST_PARAMETER_LIMIT} parameter.
+         */
+        public static final Uri SUGGEST_URI = Uri.parse(SCHEME + AUTHORITY + "/"
+                + SearchManager.SUGGEST_URI_PATH_QUERY);
         /**
          * Path part for the Live Folder URI
          */
@@ -138,4 +380,390 @@ public final class NotePad {
         }
 
     }
+
+    /**
+     * Revision history contract. Every save of a note's title or text through a single-note
+     * URI records a revision, numbered with the note's {@link Notes#COLUMN_NAME_VERSION} after
+     * the save. The history of a note is read-only and is removed together with the note.
+     * 笔记修订历史
+     */
+    public static final class Revisions implements BaseColumns {
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "revisions";
+
+        /**
+         * 0-relative position of the revision segment in the path of a single revision URI
+         */
+        public static final int REVISION_PATH_POSITION = 3;
+
+        /**
+         * The MIME type of a note's list of revisions.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order, newest revision first
+         */
+        public static final String DEFAULT_SORT_ORDER = "revision DESC";
+
+        /**
+         * Column name for the ID of the note the revision belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+        /**
+         * Column name for the revision number: the note's version after the save
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+        /**
+         * Column name for the time the revision was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+        /**
+         * Column name for the note title as of the revision
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE = "title";
+        /**
+         * Column name for the note text as of the revision. Only single revision URIs have it;
+         * the text is rebuilt from the stored deltas when queried.
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+        /**
+         * Column name for the number of characters the save removed and inserted. Only the
+         * list of revisions has it.
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_CHANGE_SIZE = "change_size";
+
+        /**
+         * Path segment appended to a note URI for its revisions
+         */
+        public static final String PATH_REVISIONS = "revisions";
+
+        /**
+         * Returns the URI of the list of revisions of a note.
+         */
+        public static Uri contentUri(long noteId) {
+            return Uri.withAppendedPath(
+                    Uri.withAppendedPath(Notes.CONTENT_ID_URI_BASE, String.valueOf(noteId)),
+                    PATH_REVISIONS);
+        }
+
+        /**
+         * Returns the URI of one revision of a note, by revision number.
+         */
+        public static Uri revisionUri(long noteId, long revision) {
+            return Uri.withAppendedPath(contentUri(noteId), String.valueOf(revision));
+        }
+
+        // This class cannot be instantiated
+        private Revisions() {
+        }
+    }
+
+    /**
+     * Saved searches contract. A saved search is a structured query, in the syntax of
+     * {@link Notes#SEARCH_MODE_QUERY}, shown as a smart folder: the notes matching it are
+     * kept in a membership table that the provider updates as notes change, so listing the
+     * folder through {@link #notesUri} reads the members by index instead of searching.
+     * 保存的搜索（智能文件夹）
+     */
+    public static final class SavedSearches implements BaseColumns {
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "saved_searches";
+
+        /**
+         * 0-relative position of the saved search ID segment in the path of its URIs
+         */
+        public static final int SAVED_SEARCH_ID_PATH_POSITION = 1;
+
+        /**
+         * The MIME type of the list of saved searches.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.saved_search";
+
+        /**
+         * The MIME type of a single saved search.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.saved_search";
+
+        /**
+         * The default sort order, by name
+         */
+        public static final String DEFAULT_SORT_ORDER = "name COLLATE NOCASE";
+
+        /**
+         * Column name for the name of the smart folder
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+        /**
+         * Column name for the structured query
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_QUERY = "query";
+        /**
+         * Column name for the time the search was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+        /**
+         * Column name for the number of notes in the smart folder, counted from the members sorted
+         * in so far; notes written since are sorted in the background
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/"
+                + TABLE_NAME);
+
+        /**
+         * The content URI base for a single saved search. Callers must append a numeric ID.
+         */
+        public static final Uri CONTENT_ID_URI_BASE = Uri.parse("content://" + AUTHORITY + "/"
+                + TABLE_NAME + "/");
+
+        /**
+         * Path segment appended to a saved search URI for the notes in its smart folder
+         */
+        public static final String PATH_NOTES = "notes";
+
+        /**
+         * Returns the URI of the notes in a smart folder, with the columns of {@link Notes}.
+         * Notes in the trash are left out. The cursor is notified of changes to the notes.
+         */
+        public static Uri notesUri(long savedSearchId) {
+            return Uri.withAppendedPath(
+                    Uri.withAppendedPath(CONTENT_ID_URI_BASE, String.valueOf(savedSearchId)),
+                    PATH_NOTES);
+        }
+
+        // This class cannot be instantiated
+        private SavedSearches() {
+        }
+    }
+
+    /**
+     * Tags contract. A note can have any number of tags and a tag any number of notes; the
+     * tags of a note are under {@link #noteTagsUri}, and the notes with a tag under
+     * {@link #notesUri}, both read through an index on the pairs. Deleting a tag removes it
+     * from its notes; deleting a note for good removes its tags.
+     * 标签
+     */
+    public static final class Tags implements BaseColumns {
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "tags";
+
+        /**
+         * 0-relative position of the tag ID segment in the path of a tag's URIs
+         */
+        public static final int TAG_ID_PATH_POSITION = 1;
+
+        /**
+         * 0-relative position of the tag ID segment in the path of {@link #noteTagUri}
+         */
+        public static final int NOTE_TAG_ID_PATH_POSITION = 3;
+
+        /**
+         * The MIME type of a list of tags.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.tag";
+
+        /**
+         * The MIME type of a single tag.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.tag";
+
+        /**
+         * The default sort order, by name
+         */
+        public static final String DEFAULT_SORT_ORDER = "name COLLATE NOCASE";
+
+        /**
+         * Column name for the name of the tag, unique ignoring case
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+        /**
+         * Column name for the number of notes outside the trash with the tag, kept up to date
+         * by triggers
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+
+        /**
+         * The content:// style URL for this table. Inserting a name that exists returns the
+         * existing tag.
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/"
+                + TABLE_NAME);
+
+        /**
+         * The content URI base for a single tag. Callers must append a numeric ID.
+         */
+        public static final Uri CONTENT_ID_URI_BASE = Uri.parse("content://" + AUTHORITY + "/"
+                + TABLE_NAME + "/");
+
+        /**
+         * Path segment appended to a tag URI for its notes, and to a note URI for its tags
+         */
+        public static final String PATH_NOTES = "notes";
+        public static final String PATH_TAGS = "tags";
+
+        /**
+         * Returns the URI of the notes with a tag, with the columns of {@link Notes}. Notes in
+         * the trash are left out. The cursor is notified of changes to the notes.
+         */
+        public static Uri notesUri(long tagId) {
+            return Uri.withAppendedPath(
+                    Uri.withAppendedPath(CONTENT_ID_URI_BASE, String.valueOf(tagId)), PATH_NOTES);
+        }
+
+        /**
+         * Returns the URI of the tags of a note. Insert a {@link #_ID} or a
+         * {@link #COLUMN_NAME_NAME}, which creates the tag if there is none by that name, to
+         * tag the note.
+         */
+        public static Uri noteTagsUri(long noteId) {
+            return Uri.withAppendedPath(
+                    Uri.withAppendedPath(Notes.CONTENT_ID_URI_BASE, String.valueOf(noteId)),
+                    PATH_TAGS);
+        }
+
+        /**
+         * Returns the URI of one tag of a note. Delete it to untag the note.
+         */
+        public static Uri noteTagUri(long noteId, long tagId) {
+            return Uri.withAppendedPath(noteTagsUri(noteId), String.valueOf(tagId));
+        }
+
+        // This class cannot be instantiated
+        private Tags() {
+        }
+    }
+
+    /**
+     * Notebooks contract. Notebooks nest: each has an optional parent, and a note is filed in
+     * at most one notebook through {@link Notes#COLUMN_NAME_NOTEBOOK_ID}. The notes of a
+     * notebook, {@link #notesUri}, include those of the notebooks inside it. Moving a notebook
+     * is an update of its {@link #COLUMN_NAME_PARENT_ID}; its notes aren't written. Deleting a
+     * notebook deletes the notebooks inside it too; their notes stay, outside any notebook.
+     * 笔记本（可嵌套的文件夹）
+     */
+    public static final class Notebooks implements BaseColumns {
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "notebooks";
+
+        /**
+         * 0-relative position of the notebook ID segment in the path of a notebook's URIs
+         */
+        public static final int NOTEBOOK_ID_PATH_POSITION = 1;
+
+        /**
+         * The MIME type of a list of notebooks.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.notebook";
+
+        /**
+         * The MIME type of a single notebook.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.notebook";
+
+        /**
+         * The default sort order, parents before the notebooks inside them
+         */
+        public static final String DEFAULT_SORT_ORDER = "path";
+
+        /**
+         * Column name for the name of the notebook
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+        /**
+         * Column name for the {@link #_ID} of the notebook this one is inside, or null at the
+         * top level. Writing it moves the notebook, with everything inside it.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_PARENT_ID = "parent_id";
+        /**
+         * Column name for the IDs of the notebook's ancestors and its own, from the top, as in
+         * "/3/12/40/"
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_PATH = "path";
+        /**
+         * Column name for the number of notes outside the trash filed in the notebook itself,
+         * kept up to date by triggers
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+        /**
+         * Column name for the number of notes outside the trash in the notebook and the
+         * notebooks inside it, kept up to date by triggers
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_TOTAL_COUNT = "total_count";
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/"
+                + TABLE_NAME);
+
+        /**
+         * The content URI base for a single notebook. Callers must append a numeric ID.
+         */
+        public static final Uri CONTENT_ID_URI_BASE = Uri.parse("content://" + AUTHORITY + "/"
+                + TABLE_NAME + "/");
+
+        /**
+         * Path segment appended to a notebook URI for its notes
+         */
+        public static final String PATH_NOTES = "notes";
+
+        /**
+         * Returns the URI of the notes in a notebook and the notebooks inside it, with the
+         * columns of {@link Notes}. Notes in the trash are left out. The cursor is notified of
+         * changes to the notes.
+         */
+        public static Uri notesUri(long notebookId) {
+            return Uri.withAppendedPath(
+                    Uri.withAppendedPath(CONTENT_ID_URI_BASE, String.valueOf(notebookId)),
+                    PATH_NOTES);
+        }
+
+        // This class cannot be instantiated
+        private Notebooks() {
+        }
+    }
 }
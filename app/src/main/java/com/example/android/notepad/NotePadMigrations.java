@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The chain of schema migrations of the notes database. Each step upgrades the schema by one
+ * version and keeps every note; a database of any version from {@link #OLDEST_VERSION} on is
+ * upgraded by running the steps after its version in order. To change the schema, change
+ * {@link NotePadProvider.DatabaseHelper#onCreate} and append a step that makes the same change
+ * to an existing database: the database version follows the number of steps.
+ * <p>
+ * Steps must not drop user data and must stay cheap on large databases: columns are added
+ * with ALTER TABLE, which doesn't rewrite the table, and values that have to be computed for
+ * existing rows are backfilled in batches of {@link #BACKFILL_BATCH_SIZE} notes.
+ * 数据库增量迁移链：每一步将结构升级一个版本且不丢失笔记。
+ */
+final class NotePadMigrations {
+
+    private static final String TAG = "NotePadMigrations";
+
+    /**
+     * The oldest version that can be upgraded: the schema of the original Note Pad sample.
+     */
+    static final int OLDEST_VERSION = 2;
+
+    /**
+     * Number of notes read per query while backfilling a column. Each batch is a new, small
+     * query that resumes after the last ID seen, so memory stays flat and no cursor has to
+     * re-run its query to refill its window while the table it reads is being updated.
+     */
+    static final int BACKFILL_BATCH_SIZE = 1000;
+
+    private interface Step {
+        void migrate(SQLiteDatabase db);
+    }
+
+    // STEPS[i] upgrades version OLDEST_VERSION + i to OLDEST_VERSION + i + 1.
+    private static final Step[] STEPS = {
+            NotePadMigrations::addColor,          // 2 -> 3
+            db -> {
+                // 3 -> 4 added the note counts. Version 8 redefines them to leave trashed
+                // notes out, so they are only created by that step.
+            },
+            NotePadMigrations::addVersion,        // 4 -> 5
+            NotePadMigrations::addContentHash,    // 5 -> 6
+            RevisionStore::createTable,           // 6 -> 7
+            NotePadMigrations::addTrash,          // 7 -> 8
+            NotePadMigrations::addSearchIndex,    // 8 -> 9
+            NotePadMigrations::addPinyin,         // 9 -> 10
+            NotePadProvider.DatabaseHelper::createFilterIndexes, // 10 -> 11
+            SmartFolders::createTables,           // 11 -> 12
+            NoteTags::createTables,               // 12 -> 13
+            NotePadMigrations::addNotebooks,      // 13 -> 14
+            NotePadMigrations::addManualOrder,    // 14 -> 15
+            NotePadMigrations::narrowVersionTrigger, // 15 -> 16
+            NoteCounts::create,                   // 16 -> 17
+            NotePadProvider.DatabaseHelper::createPinyinIndex, // 17 -> 18
+    };
+
+    /**
+     * The current database version, reached after the last step.
+     */
+    static final int LATEST_VERSION = OLDEST_VERSION + STEPS.length;
+
+    // This class cannot be instantiated
+    private NotePadMigrations() {
+    }
+
+    /**
+     * Upgrades the database from one version to a later one. Call inside a transaction, as
+     * {@link android.database.sqlite.SQLiteOpenHelper#onUpgrade} is, so that a failing step
+     * leaves the database at its old version instead of half migrated.
+     *
+     * @throws IllegalArgumentException if there is no chain of steps between the versions
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        if (fromVersion < OLDEST_VERSION || toVersion > LATEST_VERSION
+                || fromVersion > toVersion) {
+            throw new IllegalArgumentException("No migration from version " + fromVersion
+                    + " to " + toVersion);
+        }
+        for (int version = fromVersion; version < toVersion; version++) {
+            long start = SystemClock.elapsedRealtime();
+            STEPS[version - OLDEST_VERSION].migrate(db);
+            Log.i(TAG, "Migrated to version " + (version + 1) + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    private static void addColor(SQLiteDatabase db) {
+        try {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_COLOR + " INTEGER DEFAULT 0;");
+        } catch (SQLException ignored) {
+            // Some early builds created the color column without changing the version.
+        }
+        // Version 3 databases created from scratch also got the title and text indexes.
+        NotePadProvider.DatabaseHelper.createNoteIndexes(db);
+    }
+
+    private static void addVersion(SQLiteDatabase db) {
+        // A column default is stored once in the schema; existing rows read it without a
+        // rewrite of the table.
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1");
+        NotePadProvider.DatabaseHelper.createVersionTrigger(db);
+    }
+
+    private static void addContentHash(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_CONTENT_HASH + " INTEGER");
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH + " INTEGER");
+        backfillContentHashes(db);
+        // Built once over the backfilled values rather than updated on every backfill write.
+        NotePadProvider.DatabaseHelper.createContentHashIndex(db);
+    }
+
+    private static void addTrash(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER");
+        NotePadProvider.DatabaseHelper.createTrashIndex(db);
+        NoteCounts.create(db);
+    }
+
+    private static void addSearchIndex(SQLiteDatabase db) {
+        TrigramIndex.createTables(db);
+        // The notes are indexed in the background after the upgrade, not inside it.
+        TrigramIndex.queueAll(db);
+    }
+
+    private static void addPinyin(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " TEXT");
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_NOTE_PINYIN + " TEXT");
+        // Titles are short; the texts wait until their pinyin is turned on in the settings.
+        Pinyin.backfill(db, NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+    }
+
+    // Existing notes start outside any notebook, so no counts need filling in.
+    private static void addNotebooks(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID + " INTEGER");
+        NotebookTree.createTables(db);
+    }
+
+    /**
+     * Adds the manual order and the pin. Existing notes get keys that keep them in the order
+     * of the list, newest first, computed in one UPDATE with the version trigger dropped, so
+     * that giving them a place doesn't count as an edit.
+     */
+    private static void addManualOrder(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_POSITION + " TEXT");
+        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                + NotePad.Notes.COLUMN_NAME_PINNED + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_version");
+        db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_POSITION + " = " + NoteOrder.initialKey());
+        NotePadProvider.DatabaseHelper.createVersionTrigger(db);
+        // Built once over the backfilled keys rather than updated on every backfill write.
+        NoteOrder.createIndex(db);
+    }
+
+    // The version trigger now fires on updates of the edited columns only.
+    private static void narrowVersionTrigger(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS notes_version");
+        NotePadProvider.DatabaseHelper.createVersionTrigger(db);
+    }
+
+    /**
+     * Computes the content hash and length of every existing note. SQLite has no FNV
+     * function, so this reads the notes and writes the hashes back from Java, batch by batch,
+     * with the version trigger dropped so the backfill doesn't count as an edit.
+     */
+    private static void backfillContentHashes(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS notes_version");
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_CONTENT_HASH + " = ?, "
+                + NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH + " = ? WHERE "
+                + NotePad.Notes._ID + " = ?");
+        String[] columns = {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE};
+        String limit = String.valueOf(BACKFILL_BATCH_SIZE);
+        long lastId = Long.MIN_VALUE;
+        int count;
+        try {
+            do {
+                count = 0;
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns,
+                        NotePad.Notes._ID + " > ?", new String[]{String.valueOf(lastId)},
+                        null, null, NotePad.Notes._ID, limit);
+                try {
+                    while (c.moveToNext()) {
+                        lastId = c.getLong(0);
+                        String note = c.isNull(1) ? "" : c.getString(1);
+                        update.bindLong(1, ContentHash.of(note));
+                        update.bindLong(2, note.length());
+                        update.bindLong(3, lastId);
+                        update.executeUpdateDelete();
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+            } while (count == BACKFILL_BATCH_SIZE);
+        } finally {
+            update.close();
+        }
+        NotePadProvider.DatabaseHelper.createVersionTrigger(db);
+    }
+}
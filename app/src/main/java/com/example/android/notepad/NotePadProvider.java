@@ -16,16 +16,23 @@
 
 package com.example.android.notepad;
 
+import android.app.SearchManager;
 import android.content.ClipDescription;
 import android.content.ContentProvider;
 import android.content.ContentProvider.PipeDataWriter;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.ApplicationInfo;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -33,17 +40,35 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.tracing.Trace;
+
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -60,11 +85,72 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static final String DATABASE_NAME = "note_pad.db";
 
+    /**
+     * Settings key holding the slow-query threshold in milliseconds, as a string. "0" turns the
+     * slow-query log off.
+     */
+    static final String PREF_SLOW_QUERY_MS = "pref_slow_query_ms";
+
+    /**
+     * Settings key holding the number of revisions kept per note, as a string. "0" turns the
+     * revision history off and "-1" keeps every revision.
+     */
+    static final String PREF_HISTORY_KEEP = "pref_history_keep";
+
+    /**
+     * Settings key of a boolean: whether the pinyin of note texts is kept for searching, as
+     * the pinyin of titles always is. Off by default; the pinyin of a long text costs about
+     * three times its length.
+     */
+    static final String PREF_PINYIN_NOTES = "pref_pinyin_notes";
+
+    /**
+     * Number of revisions kept per note unless the settings say otherwise.
+     */
+    static final int DEFAULT_HISTORY_KEEP = 100;
+
+    /**
+     * How long deleted notes stay in the trash before the purge worker deletes them for good.
+     */
+    static final long TRASH_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Maximum number of notes deleted from the trash by one statement. Each batch is a short
+     * transaction of its own, so emptying a large trash never holds the write lock for long.
+     */
+    static final int TRASH_PURGE_BATCH = 100;
+
+    // Selections for notes outside and inside the trash.
+    private static final String LIVE = NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+    private static final String TRASHED = NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NOT NULL";
+
+    /**
+     * Number of recent searches kept for the suggestions.
+     */
+    static final int MAX_RECENT_SEARCHES = 20;
+
+    // Suggestions returned when the query doesn't set a limit.
+    private static final int DEFAULT_SUGGESTIONS = 8;
+
+    // Columns of the suggestions cursor.
+    private static final String[] SUGGEST_COLUMNS = {
+            NotePad.Notes._ID,
+            SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_ICON_1,
+            SearchManager.SUGGEST_COLUMN_QUERY,
+            SearchManager.SUGGEST_COLUMN_INTENT_DATA
+    };
+
+    /**
+     * Upper bound of the memory used by the note row cache.
+     */
+    private static final int ROW_CACHE_MAX_BYTES = 1024 * 1024;
+
     /**
      * The database version
      * 数据库版本
      */
-    private static final int DATABASE_VERSION = 3;
+    static final int DATABASE_VERSION = NotePadMigrations.LATEST_VERSION;
     /**
      * Standard projection for the interesting columns of a normal note.
      * 用于选择数据库中笔记的普通列的投影
@@ -87,6 +173,52 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final int NOTE_ID = 2;
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
+    // The incoming URI matches the note count URI pattern
+    private static final int NOTES_COUNT = 4;
+    // The incoming URI matches the revisions of a note
+    private static final int NOTE_REVISIONS = 5;
+    // The incoming URI matches a single revision of a note
+    private static final int NOTE_REVISION = 6;
+    // The incoming URI matches the trash
+    private static final int TRASH = 7;
+    // The incoming URI matches a single note in the trash
+    private static final int TRASH_ID = 8;
+    // The incoming URI matches the ranked search
+    private static final int SEARCH = 9;
+    // The incoming URI matches the search suggestions
+    private static final int SUGGEST = 10;
+    // The incoming URI matches the saved searches
+    private static final int SAVED_SEARCHES = 11;
+    // The incoming URI matches a single saved search
+    private static final int SAVED_SEARCH_ID = 12;
+    // The incoming URI matches the notes in a smart folder
+    private static final int SAVED_SEARCH_NOTES = 13;
+    // The incoming URI matches the tags
+    private static final int TAGS = 14;
+    // The incoming URI matches a single tag
+    private static final int TAG_ID = 15;
+    // The incoming URI matches the notes with a tag
+    private static final int TAG_NOTES = 16;
+    // The incoming URI matches the tags of a note
+    private static final int NOTE_TAGS = 17;
+    // The incoming URI matches a single tag of a note
+    private static final int NOTE_TAG = 18;
+    // The incoming URI matches the notebooks
+    private static final int NOTEBOOKS = 19;
+    // The incoming URI matches a single notebook
+    private static final int NOTEBOOK_ID = 20;
+    // The incoming URI matches the notes in a notebook and the notebooks inside it
+    private static final int NOTEBOOK_NOTES = 21;
+    /**
+     * Names of the URI match codes above, indexed by match code, used to label provider stats.
+     * Index 0 collects URIs that didn't match any pattern.
+     */
+    private static final String[] MATCH_NAMES = {
+            "unknown", "notes", "note_id", "live_folder", "notes_count", "revisions", "revision",
+            "trash", "trash_id", "search", "suggest", "saved_searches", "saved_search_id",
+            "saved_search_notes", "tags", "tag_id", "tag_notes", "note_tags", "note_tag",
+            "notebooks", "notebook_id", "notebook_notes"
+    };
     /**
      * A UriMatcher instance
      * 用于匹配传入URI的模式
@@ -102,6 +234,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * 用于从数据库中选择列的投影映射
      */
     private static final HashMap<String, String> sLiveFolderProjectionMap = new HashMap<>();
+    /**
+     * A projection map used to select columns of the list of revisions of a note
+     */
+    private static final HashMap<String, String> sRevisionsProjectionMap = new HashMap<>();
+    /**
+     * A projection map used to select columns of the saved searches
+     */
+    private static final HashMap<String, String> sSavedSearchesProjectionMap = new HashMap<>();
+    /**
+     * A projection map used to select columns of the tags
+     */
+    private static final HashMap<String, String> sTagsProjectionMap = new HashMap<>();
+    /**
+     * A projection map used to select columns of the notebooks
+     */
+    private static final HashMap<String, String> sNotebooksProjectionMap = new HashMap<>();
     /**
      * This describes the MIME types that are supported for opening a note
      * URI as a stream.
@@ -133,6 +281,49 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with "notes/count" to a count operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/count", NOTES_COUNT);
+
+        // Add patterns for the revisions of a note, and for one of them by revision number
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_REVISIONS,
+                NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_REVISIONS
+                + "/#", NOTE_REVISION);
+
+        // Add patterns for the trash and for single notes in it
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/trash", TRASH);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/trash/#", TRASH_ID);
+
+        // Add a pattern for the ranked search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add patterns for the search suggestions, with and without the text typed so far
+        sUriMatcher.addURI(NotePad.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, SUGGEST);
+        sUriMatcher.addURI(NotePad.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*",
+                SUGGEST);
+
+        // Add patterns for the saved searches, a single one, and the notes in its smart folder
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.SavedSearches.TABLE_NAME, SAVED_SEARCHES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.SavedSearches.TABLE_NAME + "/#",
+                SAVED_SEARCH_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.SavedSearches.TABLE_NAME + "/#/"
+                + NotePad.SavedSearches.PATH_NOTES, SAVED_SEARCH_NOTES);
+
+        // Add patterns for the tags, a single one, the notes with it, and the tags of a note
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.Tags.TABLE_NAME, TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.Tags.TABLE_NAME + "/#", TAG_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.Tags.TABLE_NAME + "/#/"
+                + NotePad.Tags.PATH_NOTES, TAG_NOTES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Tags.PATH_TAGS, NOTE_TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Tags.PATH_TAGS + "/#",
+                NOTE_TAG);
+
+        // Add patterns for the notebooks, a single one, and the notes in its subtree
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.Notebooks.TABLE_NAME, NOTEBOOKS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.Notebooks.TABLE_NAME + "/#", NOTEBOOK_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, NotePad.Notebooks.TABLE_NAME + "/#/"
+                + NotePad.Notebooks.PATH_NOTES, NOTEBOOK_NOTES);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -158,6 +349,36 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "color" to "color"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_COLOR, NotePad.Notes.COLUMN_NAME_COLOR);
 
+        // Maps "version" to "version"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_VERSION,
+                NotePad.Notes.COLUMN_NAME_VERSION);
+
+        // Maps "content_hash" and "content_length" to themselves
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CONTENT_HASH,
+                NotePad.Notes.COLUMN_NAME_CONTENT_HASH);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH,
+                NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH);
+
+        // Maps "deleted_at" to "deleted_at"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_AT,
+                NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+        // Maps "title_pinyin" and "note_pinyin" to themselves
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN,
+                NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN,
+                NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+
+        // Maps "notebook_id" to "notebook_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID,
+                NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID);
+
+        // Maps "position" and "pinned" to themselves
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_POSITION,
+                NotePad.Notes.COLUMN_NAME_POSITION);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PINNED,
+                NotePad.Notes.COLUMN_NAME_PINNED);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -168,11 +389,114 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "NAME" to "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
                 LiveFolders.NAME);
+
+        /*
+         * Creates and initializes a projection map for the revisions of a note. The stored
+         * deltas stay private; the list offers the size of each change instead.
+         */
+        for (String column : new String[]{NotePad.Revisions._ID,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID, NotePad.Revisions.COLUMN_NAME_REVISION,
+                NotePad.Revisions.COLUMN_NAME_CREATE_DATE, NotePad.Revisions.COLUMN_NAME_TITLE}) {
+            sRevisionsProjectionMap.put(column, column);
+        }
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_CHANGE_SIZE,
+                RevisionStore.CHANGE_SIZE_EXPRESSION + " AS "
+                        + NotePad.Revisions.COLUMN_NAME_CHANGE_SIZE);
+
+        /*
+         * Creates and initializes a projection map for the saved searches. The note count is
+         * read from the members of each search, a range of the membership table's key.
+         */
+        for (String column : new String[]{NotePad.SavedSearches._ID,
+                NotePad.SavedSearches.COLUMN_NAME_NAME, NotePad.SavedSearches.COLUMN_NAME_QUERY,
+                NotePad.SavedSearches.COLUMN_NAME_CREATE_DATE}) {
+            sSavedSearchesProjectionMap.put(column, column);
+        }
+        sSavedSearchesProjectionMap.put(NotePad.SavedSearches.COLUMN_NAME_NOTE_COUNT,
+                "(SELECT count(*) FROM " + SmartFolders.MEMBERS_TABLE + " WHERE search_id = "
+                        + NotePad.SavedSearches.TABLE_NAME + "." + NotePad.SavedSearches._ID
+                        + ") AS " + NotePad.SavedSearches.COLUMN_NAME_NOTE_COUNT);
+
+        /*
+         * Creates and initializes a projection map for the tags. The columns are qualified,
+         * as the tags of a note are read joined to the note's rows of the join table.
+         */
+        for (String column : new String[]{NotePad.Tags._ID, NotePad.Tags.COLUMN_NAME_NAME,
+                NotePad.Tags.COLUMN_NAME_NOTE_COUNT}) {
+            sTagsProjectionMap.put(column, NotePad.Tags.TABLE_NAME + "." + column + " AS "
+                    + column);
+        }
+
+        // Creates and initializes a projection map for the notebooks
+        for (String column : new String[]{NotePad.Notebooks._ID,
+                NotePad.Notebooks.COLUMN_NAME_NAME, NotePad.Notebooks.COLUMN_NAME_PARENT_ID,
+                NotePad.Notebooks.COLUMN_NAME_PATH, NotePad.Notebooks.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Notebooks.COLUMN_NAME_TOTAL_COUNT}) {
+            sNotebooksProjectionMap.put(column, column);
+        }
     }
 
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Call counters and latency histograms, reported by dump() and call(METHOD_STATS).
+    private final ProviderStats mStats = new ProviderStats(MATCH_NAMES);
+
+    // The URIs changed by the applyBatch() running on this thread, notified when it is done.
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<>();
+
+    // Queries slower than the "pref_slow_query_ms" setting, reported by dump() and
+    // call(METHOD_SLOW_QUERIES).
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog();
+
+    // Whole note rows by ID, so repeated reads of the note being edited skip the database.
+    // Bounded by bytes; a long note costs more than a short one.
+    private final NoteRowCache mRowCache = new NoteRowCache(
+            (int) Math.min(ROW_CACHE_MAX_BYTES, Runtime.getRuntime().maxMemory() / 64));
+
+    // Main-thread provider calls by call site, recorded in debug builds only. Reported by
+    // dump() and call(METHOD_MAIN_THREAD_IO).
+    private final MainThreadIoWatchdog mMainThreadIo = new MainThreadIoWatchdog();
+
+    // Runs diagnostics work that shouldn't block the caller, such as EXPLAIN QUERY PLAN.
+    private final ExecutorService mBackgroundExecutor = Executors.newSingleThreadExecutor();
+
+    // Set while indexing of the notes queued for the fuzzy search is scheduled or running.
+    private final AtomicBoolean mSearchIndexing = new AtomicBoolean();
+
+    // The search suggestions, or null until the first suggestions query loads them. Writes
+    // update them in place; every write also bumps the counter, so that a load that may have
+    // missed one runs again.
+    private volatile SuggestionTrie mSuggestions;
+    private final AtomicInteger mSuggestionWrites = new AtomicInteger();
+    private final AtomicBoolean mSuggestionsLoading = new AtomicBoolean();
+
+    // Recent searches, newest first, one "time<TAB>text" line each under "searches".
+    private SharedPreferences mSearchHistory;
+
+    // Revisions kept per note, from the "pref_history_keep" setting.
+    private volatile int mHistoryKeep = DEFAULT_HISTORY_KEEP;
+
+    // Whether the pinyin of note texts is kept, from the "pref_pinyin_notes" setting.
+    private volatile boolean mPinyinNotes;
+
+    // Housekeeping tasks run by MaintenanceWorker through call(METHOD_MAINTENANCE), with the
+    // last result of each reported by dump().
+    private DatabaseMaintenance mMaintenance;
+
+    // Keeps the slow-query threshold and history policy in sync with the settings screen. Held
+    // in a field because SharedPreferences only keeps weak references to its listeners.
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener =
+            (prefs, key) -> {
+                if (PREF_SLOW_QUERY_MS.equals(key)) {
+                    applySlowQueryThreshold(prefs);
+                } else if (PREF_HISTORY_KEEP.equals(key)) {
+                    applyHistoryKeep(prefs);
+                } else if (PREF_PINYIN_NOTES.equals(key)) {
+                    applyPinyinNotes(prefs);
+                }
+            };
+
     /**
      * Initializes the provider by creating a new DatabaseHelper. onCreate() is called
      * automatically when Android creates the provider in response to a resolver request from a
@@ -185,10 +509,84 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // something tries to access it, and it's only created if it doesn't already exist.
         mOpenHelper = new DatabaseHelper(getContext());
 
+        // Walking the stack on every main-thread call is only acceptable while developing.
+        mMainThreadIo.setEnabled(
+                (getContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
+        SharedPreferences prefs =
+                getContext().getSharedPreferences("settings", Context.MODE_PRIVATE);
+        applySlowQueryThreshold(prefs);
+        applyHistoryKeep(prefs);
+        mPinyinNotes = prefs.getBoolean(PREF_PINYIN_NOTES, false);
+        prefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+
+        mSearchHistory = getContext().getSharedPreferences("search_history",
+                Context.MODE_PRIVATE);
+
+        mMaintenance = new DatabaseMaintenance(
+                getContext().getSharedPreferences("maintenance", Context.MODE_PRIVATE),
+                mOpenHelper.getStorageTuner());
+
         // Assumes that any failures will be reported by a thrown exception.
         return true;
     }
 
+    private void applySlowQueryThreshold(SharedPreferences prefs) {
+        String value = prefs.getString(PREF_SLOW_QUERY_MS,
+                String.valueOf(SlowQueryLog.DEFAULT_THRESHOLD_MS));
+        try {
+            mSlowQueries.setThresholdMillis(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            mSlowQueries.setThresholdMillis(SlowQueryLog.DEFAULT_THRESHOLD_MS);
+        }
+    }
+
+    private void applyHistoryKeep(SharedPreferences prefs) {
+        String value = prefs.getString(PREF_HISTORY_KEEP, String.valueOf(DEFAULT_HISTORY_KEEP));
+        try {
+            mHistoryKeep = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            mHistoryKeep = DEFAULT_HISTORY_KEEP;
+        }
+    }
+
+    /*
+     * Turns the pinyin of note texts on or off, and fills or clears it for the existing notes
+     * in the background, a batch at a time. Notes written meanwhile already follow the new
+     * setting.
+     */
+    private void applyPinyinNotes(SharedPreferences prefs) {
+        final boolean enabled = prefs.getBoolean(PREF_PINYIN_NOTES, false);
+        if (enabled == mPinyinNotes) {
+            return;
+        }
+        mPinyinNotes = enabled;
+        mBackgroundExecutor.execute(() -> {
+            try {
+                Pinyin.backfillInBatches(mOpenHelper.getWritableDatabase(),
+                        enabled ? NotePad.Notes.COLUMN_NAME_NOTE : null,
+                        NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+                mRowCache.invalidateAll();
+                // Smart folders with text conditions match the pinyin too.
+                scheduleSearchIndexing();
+            } catch (SQLException e) {
+                Log.w(TAG, "Failed to update the pinyin of the notes", e);
+            }
+        });
+    }
+
+    /**
+     * A test package can call this to get a handle to the database underlying NotePadProvider,
+     * so it can insert test data into the database. The test case class is responsible for
+     * instantiating the provider in a test context; {@link android.test.ProviderTestCase2} does
+     * this during the call to setUp()
+     *
+     * @return a handle to the database helper object for the provider's data.
+     */
+    DatabaseHelper getOpenHelperForTest() {
+        return mOpenHelper;
+    }
+
     /**
      * This method is called when a client calls
      * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}.
@@ -201,55 +599,80 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        Trace.beginSection("NotePadProvider.query");
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        boolean onMainThread = mMainThreadIo.begin();
+        try {
+            Cursor c = queryInternal(match, uri, projection, selection, selectionArgs, sortOrder);
+            long elapsed = System.nanoTime() - start;
+            if (mSlowQueries.isSlow(elapsed)) {
+                // Only slow queries are counted here whatever it costs, for the log.
+                recordSlowQuery(match, uri, projection, selection, sortOrder, c.getCount(),
+                        elapsed);
+            }
+            return mMainThreadIo.watch(mStats.countRows(c), uri);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            mStats.record(ProviderStats.OP_QUERY, match, elapsed);
+            if (onMainThread) {
+                mMainThreadIo.end("query", uri, elapsed);
+            }
+            Trace.endSection();
+        }
+    }
 
-        // Constructs a new query builder and sets its table name
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(NotePad.Notes.TABLE_NAME);
+    private Cursor queryInternal(int match, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
 
-        /**
-         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
-         */
-        switch (sUriMatcher.match(uri)) {
-            // If the incoming URI is for notes, chooses the Notes projection
-            case NOTES:
-                qb.setProjectionMap(sNotesProjectionMap);
-                break;
+        // Suggestions are answered from memory, without opening the database.
+        if (match == SUGGEST) {
+            return querySuggestions(uri, selectionArgs);
+        }
 
-            /* If the incoming URI is for a single note identified by its ID, chooses the
-             * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-             * it selects that single note
-             */
-            case NOTE_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Notes._ID +    // the name of the ID column
-                                "=" +
-                                // the position of the note ID itself in the incoming URI
-                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
-                break;
+        SQLiteQueryBuilder qb = newQueryBuilder(match, uri);
+        String orderBy = resolveSortOrder(match, sortOrder);
 
-            case LIVE_FOLDER_NOTES:
-                // If the incoming URI is from a live folder, chooses the live folder projection.
-                qb.setProjectionMap(sLiveFolderProjectionMap);
-                break;
+        // Opens the database object in "read" mode, since no writes need to be done.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
-            default:
-                // If the URI doesn't match any of the known patterns, throw an exception.
-                throw new IllegalArgumentException("Unknown URI " + uri);
+        if (match == NOTES_COUNT) {
+            return queryCount(qb, db, selection, selectionArgs);
         }
 
+        if (match == NOTE_REVISION) {
+            return queryRevision(db, uri, projection);
+        }
 
-        String orderBy;
-        // If no sort order is specified, uses the default
-        if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
-        } else {
-            // otherwise, uses the incoming sort order
-            orderBy = sortOrder;
+        if (match == SEARCH) {
+            return querySearch(db, uri, projection, selection, selectionArgs);
         }
 
-        // Opens the database object in "read" mode, since no writes need to be done.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // A smart folder is listed from its members, and from the notes written since they
+        // were last sorted in, checked against its query; its count catches up in the
+        // background.
+        if (match == SAVED_SEARCH_NOTES) {
+            List<String> args = new ArrayList<>();
+            String members = SmartFolders.membersWhere(db, Long.parseLong(uri.getPathSegments()
+                    .get(NotePad.SavedSearches.SAVED_SEARCH_ID_PATH_POSITION)), args);
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+            selection = TextUtils.isEmpty(selection) ? members
+                    : members + " AND (" + selection + ")";
+            selectionArgs = args.toArray(new String[0]);
+        }
+
+        // Reads of a single note without extra conditions are served from the row cache.
+        if (match == NOTE_ID && TextUtils.isEmpty(selection)) {
+            long id = ContentUris.parseId(uri);
+            Cursor cached = NoteRowCache.RowCursor.create(id, loadNoteRow(id), projection,
+                    this::loadNoteRow);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+        }
 
         /*
          * Performs the query. If no problems occur trying to read the database, then a Cursor
@@ -266,148 +689,1089 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 orderBy        // The sort order
         );
 
-        // Tells the Cursor what URI to watch, so it knows when its source data changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        // Tells the Cursor what URI to watch, so it knows when its source data changes. A
+        // smart folder, the notes with a tag or in a notebook change with the notes; the tags
+        // of a note are written under the note's URI.
+        c.setNotificationUri(getContext().getContentResolver(),
+                match == SAVED_SEARCH_NOTES || match == TAG_NOTES || match == NOTEBOOK_NOTES
+                        ? NotePad.Notes.CONTENT_URI : uri);
         return c;
     }
 
     /**
-     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
-     * Returns the MIME data type of the URI given as a parameter.
-     *
-     * @param uri The URI whose MIME type is desired.
-     * @return The MIME type of the URI.
-     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * Returns all columns of a note, from the row cache or else from the database, or null if
+     * the note doesn't exist.
      */
-    @Override
-    public String getType(Uri uri) {
-
-        /**
-         * Chooses the MIME type based on the incoming URI pattern
-         */
-        switch (sUriMatcher.match(uri)) {
-
-            // If the pattern is for notes or live folders, returns the general content type.
-            case NOTES:
-            case LIVE_FOLDER_NOTES:
-                return NotePad.Notes.CONTENT_TYPE;
-
-            // If the pattern is for note IDs, returns the note ID content type.
-            case NOTE_ID:
-                return NotePad.Notes.CONTENT_ITEM_TYPE;
-
-            // If the URI pattern doesn't match any permitted patterns, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+    private NoteRowCache.Row loadNoteRow(long id) {
+        NoteRowCache.Row row = mRowCache.get(id);
+        if (row != null) {
+            return row;
         }
+        long generation = mRowCache.generation();
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME, null,
+                NotePad.Notes._ID + " = ? AND " + LIVE, new String[]{String.valueOf(id)},
+                null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            row = NoteRowCache.Row.fromCursor(c);
+        } finally {
+            c.close();
+        }
+        mRowCache.put(id, row, generation);
+        return row;
     }
 
-//BEGIN_INCLUDE(stream)
-
     /**
-     * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
-     *
-     * @param uri            the URI to analyze
-     * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     *                       type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
-     * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
+     * Answers a query on the count URI with a single row holding the number of notes. Without
+     * a selection the total is read from the trigger-maintained summary table; with one, the
+     * matching notes are counted without reading any of their columns.
      */
-    @Override
-    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
-        /**
-         *  Chooses the data stream type based on the incoming URI pattern.
-         */
-        switch (sUriMatcher.match(uri)) {
-
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
-            case NOTES:
-            case LIVE_FOLDER_NOTES:
-                return null;
-
-            // If the pattern is for note IDs and the MIME filter is text/plain, then return
-            // text/plain
-            case NOTE_ID:
-                return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
-
-            // If the URI pattern doesn't match any permitted patterns, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+    private Cursor queryCount(SQLiteQueryBuilder qb, SQLiteDatabase db, String selection,
+                              String[] selectionArgs) {
+        Cursor c;
+        if (TextUtils.isEmpty(selection)) {
+            c = NoteCounts.queryTotal(db);
+        } else {
+            c = qb.query(db, new String[]{"count(*) AS " + NotePad.Notes._COUNT},
+                    selection, selectionArgs, null, null, null);
         }
+        // Any change to a note can change the count, so watch the whole notes URI.
+        c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        return c;
     }
 
     /**
-     * Returns a stream of data for each supported stream type. This method does a query on the
-     * incoming URI, then uses
-     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
-     * PipeDataWriter)} to start another thread in which to convert the data into a stream.
-     *
-     * @param uri            The URI pattern that points to the data stream
-     * @param mimeTypeFilter A String containing a MIME type. This method tries to get a stream of
-     *                       data with this MIME type.
-     * @param opts           Additional options supplied by the caller.  Can be interpreted as
-     *                       desired by the content provider.
-     * @return AssetFileDescriptor A handle to the file.
-     * @throws FileNotFoundException if there is no file associated with the incoming URI.
+     * Answers a query on a single revision URI with the revision's title and its text, rebuilt
+     * from the stored deltas. The cursor is empty if the note has no such revision.
      */
-    @Override
-    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
-            throws FileNotFoundException {
-
-        // Checks to see if the MIME type filter matches a supported MIME type.
-        String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
-
-        // If the MIME type is supported
-        if (mimeTypes != null) {
-
-            // Retrieves the note for this URI. Uses the query method defined for this provider,
-            // rather than using the database query method.
-            Cursor c = query(
-                    uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                    // and contents
-                    null,                   // No WHERE clause, get all matching records
-                    null,                   // Since there is no WHERE clause, no selection criteria
-                    null                    // Use the default sort order (modification date,
-                    // descending
-            );
-
-
-            // If the query fails or the cursor is empty, stop
-            if (c == null || !c.moveToFirst()) {
-
-                // If the cursor is empty, simply close the cursor and return
-                if (c != null) {
-                    c.close();
+    private Cursor queryRevision(SQLiteDatabase db, Uri uri, String[] projection) {
+        List<String> segments = uri.getPathSegments();
+        long noteId = Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        long revision = Long.parseLong(segments.get(NotePad.Revisions.REVISION_PATH_POSITION));
+        String[] columns = projection != null ? projection : new String[]{
+                NotePad.Revisions._ID, NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+                NotePad.Revisions.COLUMN_NAME_REVISION, NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+                NotePad.Revisions.COLUMN_NAME_TITLE, NotePad.Revisions.COLUMN_NAME_NOTE};
+        MatrixCursor result = new MatrixCursor(columns, 1);
+
+        // The note and the history are read in one transaction, so the current text and the
+        // newest revision agree when the text is rebuilt backward from it.
+        db.beginTransactionNonExclusive();
+        try {
+            String currentText = null;
+            Cursor note = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[]{NotePad.Notes.COLUMN_NAME_NOTE},
+                    NotePad.Notes._ID + " = ?", new String[]{String.valueOf(noteId)},
+                    null, null, null);
+            try {
+                if (note.moveToFirst()) {
+                    currentText = note.isNull(0) ? "" : note.getString(0);
                 }
-
-                // If the cursor is null, throw an exception
-                throw new FileNotFoundException("Unable to query " + uri);
+            } finally {
+                note.close();
             }
 
-            // Start a new thread that pipes the stream data back to the caller.
-            return new AssetFileDescriptor(
-                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH);
+            Cursor c = db.query(NotePad.Revisions.TABLE_NAME, new String[]{
+                            NotePad.Revisions._ID, NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+                            NotePad.Revisions.COLUMN_NAME_TITLE},
+                    NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                            + NotePad.Revisions.COLUMN_NAME_REVISION + " = ?",
+                    new String[]{String.valueOf(noteId), String.valueOf(revision)},
+                    null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    String text = RevisionStore.textAt(db, noteId, revision, currentText);
+                    Object[] row = new Object[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        String column = columns[i];
+                        if (NotePad.Revisions._ID.equals(column)) {
+                            row[i] = c.getLong(0);
+                        } else if (NotePad.Revisions.COLUMN_NAME_NOTE_ID.equals(column)) {
+                            row[i] = noteId;
+                        } else if (NotePad.Revisions.COLUMN_NAME_REVISION.equals(column)) {
+                            row[i] = revision;
+                        } else if (NotePad.Revisions.COLUMN_NAME_CREATE_DATE.equals(column)) {
+                            row[i] = c.getLong(1);
+                        } else if (NotePad.Revisions.COLUMN_NAME_TITLE.equals(column)) {
+                            row[i] = c.getString(2);
+                        } else if (NotePad.Revisions.COLUMN_NAME_NOTE.equals(column)) {
+                            row[i] = text;
+                        } else {
+                            throw new IllegalArgumentException("Invalid column " + column);
+                        }
+                    }
+                    result.addRow(row);
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-
-        // If the MIME type is not supported, return a read-only handle to the file.
-        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        return result;
     }
 
     /**
-     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
-     * to perform the actual work of converting the data in one of cursors to a
-     * stream of data for the client to read.
+     * Answers a query on the suggestions URI from {@link #mSuggestions}, starting to load them
+     * in the background if they aren't yet, or if removals have left them mostly garbage. The
+     * text is the last path segment, or else the first selection argument, as
+     * {@link SearchManager} passes it when the searchable configuration sets a selection.
+     */
+    private Cursor querySuggestions(Uri uri, String[] selectionArgs) {
+        String text = "";
+        if (uri.getPathSegments().size() > 1) {
+            text = uri.getLastPathSegment();
+        } else if (selectionArgs != null && selectionArgs.length > 0 && selectionArgs[0] != null) {
+            text = selectionArgs[0];
+        }
+        int limit = DEFAULT_SUGGESTIONS;
+        String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                // Keeps the default.
+            }
+        }
+
+        MatrixCursor result = new MatrixCursor(SUGGEST_COLUMNS, limit);
+        SuggestionTrie suggestions = mSuggestions;
+        if (suggestions == null || suggestions.needsRebuild()) {
+            loadSuggestions();
+        }
+        if (suggestions == null) {
+            return result;
+        }
+        int row = 0;
+        for (SuggestionTrie.Suggestion s : suggestions.suggest(text, limit)) {
+            result.addRow(new Object[]{
+                    row++,
+                    s.text,
+                    s.recent ? android.R.drawable.ic_menu_recent_history : null,
+                    s.text,
+                    s.noteId >= 0 ? ContentUris.withAppendedId(
+                            NotePad.Notes.CONTENT_ID_URI_BASE, s.noteId).toString() : null});
+        }
+        return result;
+    }
+
+    /*
+     * Builds the suggestions from the live notes and the recent searches in the background,
+     * unless that is already under way, and again if notes were written meanwhile.
+     */
+    private void loadSuggestions() {
+        if (!mSuggestionsLoading.compareAndSet(false, true)) {
+            return;
+        }
+        mBackgroundExecutor.execute(() -> {
+            try {
+                int writes;
+                do {
+                    writes = mSuggestionWrites.get();
+                    mSuggestions = buildSuggestions();
+                } while (writes != mSuggestionWrites.get());
+            } catch (SQLException e) {
+                Log.w(TAG, "Failed to load the search suggestions", e);
+            } finally {
+                mSuggestionsLoading.set(false);
+            }
+        });
+    }
+
+    private SuggestionTrie buildSuggestions() {
+        long start = SystemClock.elapsedRealtime();
+        SuggestionTrie suggestions = new SuggestionTrie();
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE},
+                LIVE, null, null, null, NotePad.Notes._ID);
+        try {
+            while (c.moveToNext()) {
+                suggestions.putNote(c.getLong(0), c.isNull(1) ? "" : c.getString(1),
+                        c.getLong(2));
+            }
+        } finally {
+            c.close();
+        }
+        for (String[] search : recentSearches()) {
+            suggestions.putSearch(search[1], Long.parseLong(search[0]));
+        }
+        Log.d(TAG, "Loaded " + suggestions.size() + " suggestions in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return suggestions;
+    }
+
+    // Reads the recent searches as {time, text} pairs, newest first.
+    private List<String[]> recentSearches() {
+        List<String[]> searches = new ArrayList<>();
+        String value = mSearchHistory.getString("searches", "");
+        for (String line : value.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                searches.add(new String[]{line.substring(0, tab), line.substring(tab + 1)});
+            }
+        }
+        return searches;
+    }
+
+    /*
+     * Records a search for the suggestions, replacing an earlier one with the same text in
+     * any case, and drops the oldest beyond MAX_RECENT_SEARCHES.
+     */
+    private synchronized void addRecentSearch(String text) {
+        text = text == null ? "" : text.replace('\n', ' ').replace('\t', ' ').trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<String[]> searches = recentSearches();
+        StringBuilder value = new StringBuilder().append(now).append('\t').append(text);
+        List<String> dropped = new ArrayList<>();
+        int kept = 1;
+        for (String[] search : searches) {
+            if (search[1].equalsIgnoreCase(text)) {
+                continue;
+            }
+            if (kept < MAX_RECENT_SEARCHES) {
+                value.append('\n').append(search[0]).append('\t').append(search[1]);
+                kept++;
+            } else {
+                dropped.add(search[1]);
+            }
+        }
+        mSearchHistory.edit().putString("searches", value.toString()).apply();
+
+        mSuggestionWrites.incrementAndGet();
+        SuggestionTrie suggestions = mSuggestions;
+        if (suggestions != null) {
+            for (String search : dropped) {
+                suggestions.removeSearch(search);
+            }
+            suggestions.putSearch(text, now);
+        }
+    }
+
+    /*
+     * Brings the suggestions up to date after a write: a note that was added or changed, with
+     * a null title or a negative modification date for the ones that didn't change.
+     */
+    private void putSuggestion(long id, String title, long modified) {
+        mSuggestionWrites.incrementAndGet();
+        SuggestionTrie suggestions = mSuggestions;
+        if (suggestions != null) {
+            suggestions.putNote(id, title, modified);
+        }
+    }
+
+    private void removeSuggestion(long id) {
+        mSuggestionWrites.incrementAndGet();
+        SuggestionTrie suggestions = mSuggestions;
+        if (suggestions != null) {
+            suggestions.removeNote(id);
+        }
+    }
+
+    // Rebuilds the suggestions after a write to any number of notes, if they are loaded.
+    private void reloadSuggestions() {
+        mSuggestionWrites.incrementAndGet();
+        if (mSuggestions != null) {
+            loadSuggestions();
+        }
+    }
+
+    /**
+     * Answers a query on the search URI. The notes containing every term of the search text
+     * are read once, scored by {@link SearchRanker} against statistics of all live notes
+     * gathered in one more pass, and returned best first with a snippet of their text around
+     * the first match, so the client never reads the note bodies to rank or highlight them.
+     */
+    private Cursor querySearch(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                               String[] selectionArgs) {
+        String text = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+        String[] columns = searchColumns(projection);
+        String mode = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_MODE);
+        if (NotePad.Notes.SEARCH_MODE_FUZZY.equals(mode)) {
+            return queryFuzzy(text == null ? "" : text, columns, selection, selectionArgs);
+        }
+        if (NotePad.Notes.SEARCH_MODE_QUERY.equals(mode)) {
+            return queryStructured(SearchQuery.parse(text == null ? "" : text), columns,
+                    selection, selectionArgs);
+        }
+        String[] terms = SearchRanker.terms(text == null ? "" : text);
+        String in = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_IN);
+        boolean inTitle = !NotePad.Notes.COLUMN_NAME_NOTE.equals(in);
+        boolean inNote = !NotePad.Notes.COLUMN_NAME_TITLE.equals(in);
+
+        // The same condition per term filters the notes and counts the notes containing it.
+        // A field is searched together with its pinyin, as SearchRanker.searchable() joins them.
+        StringBuilder statsSql = new StringBuilder("SELECT count(*), avg(");
+        statsSql.append(inTitle ? searchableLength(NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_TITLE_PINYIN) : "0")
+                .append(" + ")
+                .append(inNote ? searchableLength(NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_NOTE_PINYIN) : "0")
+                .append(')');
+        StringBuilder where = new StringBuilder(LIVE);
+        ArrayList<String> args = new ArrayList<>();
+        for (String term : terms) {
+            String pattern = SearchPlanner.likePattern(term);
+            StringBuilder condition = new StringBuilder("(");
+            if (inTitle) {
+                condition.append(NotePad.Notes.COLUMN_NAME_TITLE)
+                        .append(" LIKE ? ESCAPE '\\' OR ")
+                        .append(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN)
+                        .append(" LIKE ? ESCAPE '\\'");
+                args.add(pattern);
+                args.add(pattern);
+            }
+            if (inNote) {
+                condition.append(inTitle ? " OR " : "")
+                        .append(NotePad.Notes.COLUMN_NAME_NOTE)
+                        .append(" LIKE ? ESCAPE '\\' OR ")
+                        .append(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN)
+                        .append(" LIKE ? ESCAPE '\\'");
+                args.add(pattern);
+                args.add(pattern);
+            }
+            condition.append(')');
+            statsSql.append(", sum(").append(condition).append(')');
+            where.append(" AND ").append(condition);
+        }
+        statsSql.append(" FROM ").append(NotePad.Notes.TABLE_NAME).append(" WHERE ").append(LIVE);
+
+        long notes;
+        double avgLength;
+        long[] docFreq = new long[terms.length];
+        Cursor c = db.rawQuery(statsSql.toString(), args.toArray(new String[0]));
+        try {
+            c.moveToFirst();
+            notes = c.getLong(0);
+            avgLength = c.getDouble(1);
+            for (int i = 0; i < terms.length; i++) {
+                docFreq[i] = c.getLong(2 + i);
+            }
+        } finally {
+            c.close();
+        }
+        SearchRanker.Stats stats = new SearchRanker.Stats(notes, avgLength, docFreq);
+
+        if (!TextUtils.isEmpty(selection)) {
+            where.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+        long now = System.currentTimeMillis();
+        // Each result is {score, modification date, row}.
+        ArrayList<Object[]> results = new ArrayList<>();
+        c = db.query(NotePad.Notes.TABLE_NAME, null, where.toString(),
+                args.toArray(new String[0]), null, null, null);
+        try {
+            int titleColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+            int noteColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+            int titlePinyinColumn = c.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+            int notePinyinColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+            int modifiedColumn = c.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+            while (c.moveToNext()) {
+                String title = c.getString(titleColumn);
+                String note = c.getString(noteColumn);
+                long modified = c.getLong(modifiedColumn);
+                double score = SearchRanker.score(
+                        inTitle ? SearchRanker.searchable(title, c.getString(titlePinyinColumn))
+                                : null,
+                        inNote ? SearchRanker.searchable(note, c.getString(notePinyinColumn))
+                                : null,
+                        modified, now, terms, stats);
+                results.add(new Object[]{score, modified,
+                        searchRow(c, columns, note, terms, score)});
+            }
+        } finally {
+            c.close();
+        }
+        return searchResult(columns, results, stats);
+    }
+
+    // The SQL length of SearchRanker.searchable() for a field and its pinyin.
+    private static String searchableLength(String column, String pinyinColumn) {
+        return "ifnull(length(" + column + "), 0) + ifnull(length(" + pinyinColumn + ") + 1, 0)";
+    }
+
+    /**
+     * Answers a fuzzy query on the search URI from the {@link TrigramIndex}, and the notes it
+     * has yet to index by their exact words. Matches are highlighted in the snippet by the
+     * indexed words they matched, not by the misspelled search words.
+     */
+    private Cursor queryFuzzy(String text, String[] columns, String selection,
+                              String[] selectionArgs) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        TrigramIndex.Result found = TrigramIndex.search(db, text);
+
+        Map<Long, Double> scores = new HashMap<>();
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID + " IN (");
+        for (int i = 0; i < found.noteIds.length; i++) {
+            scores.put(found.noteIds[i], found.scores[i]);
+            where.append(i == 0 ? "" : ",").append(found.noteIds[i]);
+        }
+        where.append(") AND ").append(LIVE);
+        if (!TextUtils.isEmpty(selection)) {
+            where.append(" AND (").append(selection).append(')');
+        }
+        // Each result is {score, modification date, row}.
+        ArrayList<Object[]> results = new ArrayList<>();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, null, where.toString(), selectionArgs,
+                null, null, null);
+        try {
+            int idColumn = c.getColumnIndexOrThrow(NotePad.Notes._ID);
+            int noteColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+            int modifiedColumn = c.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+            while (c.moveToNext()) {
+                double score = scores.get(c.getLong(idColumn));
+                results.add(new Object[]{score, c.getLong(modifiedColumn),
+                        searchRow(c, columns, c.getString(noteColumn), found.matchedWords,
+                                score)});
+            }
+        } finally {
+            c.close();
+        }
+        return searchResult(columns, results,
+                new SearchRanker.Stats(found.noteIds.length, 0, new long[0]));
+    }
+
+    /**
+     * Answers a structured query on the search URI with the plan of {@link SearchPlanner},
+     * which looks up words in the {@link TrigramIndex} and scans the notes it has yet to index
+     * for them. The matches are ranked by {@link SearchRanker} on the
+     * text of their positive conditions. Its statistics come from the matches themselves and
+     * the note count, so that ranking reads no notes beyond the matches: the document
+     * frequency of a term is its count among the matches.
+     */
+    private Cursor queryStructured(SearchQuery query, String[] columns, String selection,
+                                   String[] selectionArgs) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        SearchPlanner.Plan plan = SearchPlanner.plan(db, query);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Structured search " + plan);
+        }
+
+        StringBuilder where = new StringBuilder();
+        ArrayList<String> args = new ArrayList<>(Arrays.asList(plan.args));
+        if (!plan.where.isEmpty()) {
+            where.append(plan.where).append(" AND ");
+        }
+        where.append(LIVE);
+        if (!TextUtils.isEmpty(selection)) {
+            where.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+
+        String[] terms = query.highlightTerms();
+        ArrayList<String[]> fields = new ArrayList<>();
+        ArrayList<Object[]> results = new ArrayList<>();
+        long[] docFreq = new long[terms.length];
+        long length = 0;
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, null, where.toString(),
+                args.toArray(new String[0]), null, null, null);
+        try {
+            int titleColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+            int noteColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+            int titlePinyinColumn = c.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+            int notePinyinColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+            int modifiedColumn = c.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+            while (c.moveToNext()) {
+                String title = SearchRanker.searchable(c.getString(titleColumn),
+                        c.getString(titlePinyinColumn));
+                String note = SearchRanker.searchable(c.getString(noteColumn),
+                        c.getString(notePinyinColumn));
+                for (int i = 0; i < terms.length; i++) {
+                    if (SearchRanker.matches(title, note, new String[]{terms[i]})) {
+                        docFreq[i]++;
+                    }
+                }
+                length += SearchRanker.length(title, note);
+                fields.add(new String[]{title, note});
+                // The score is filled in once the statistics are known.
+                results.add(new Object[]{0.0, c.getLong(modifiedColumn),
+                        searchRow(c, columns, c.getString(noteColumn), terms, 0)});
+            }
+        } finally {
+            c.close();
+        }
+
+        long notes = 0;
+        c = NoteCounts.queryTotal(db);
+        try {
+            if (c.moveToFirst()) {
+                notes = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        SearchRanker.Stats stats = new SearchRanker.Stats(Math.max(notes, results.size()),
+                results.isEmpty() ? 0 : (double) length / results.size(), docFreq);
+        long now = System.currentTimeMillis();
+        int scoreColumn = Arrays.asList(columns).indexOf(NotePad.Notes.COLUMN_NAME_SCORE);
+        for (int i = 0; i < results.size(); i++) {
+            Object[] result = results.get(i);
+            double score = SearchRanker.score(fields.get(i)[0], fields.get(i)[1],
+                    (Long) result[1], now, terms, stats);
+            result[0] = score;
+            if (scoreColumn >= 0) {
+                ((Object[]) result[2])[scoreColumn] = score;
+            }
+        }
+        return searchResult(columns, results, stats);
+    }
+
+    /*
+     * Returns the columns of a search result, checking that the projection only names note
+     * columns and the search columns.
+     */
+    private static String[] searchColumns(String[] projection) {
+        String[] columns = projection != null ? projection : new String[]{
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES, NotePad.Notes.COLUMN_NAME_SCORE};
+        for (String column : columns) {
+            if (!sNotesProjectionMap.containsKey(column)
+                    && !NotePad.Notes.COLUMN_NAME_SNIPPET.equals(column)
+                    && !NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES.equals(column)
+                    && !NotePad.Notes.COLUMN_NAME_SCORE.equals(column)) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+        }
+        return columns;
+    }
+
+    /*
+     * Builds the result row of the note under the cursor, cutting the snippet around the
+     * given terms.
+     */
+    private static Object[] searchRow(Cursor c, String[] columns, String note, String[] terms,
+                                      double score) {
+        SearchRanker.Snippet snippet = null;
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (NotePad.Notes.COLUMN_NAME_SCORE.equals(column)) {
+                row[i] = score;
+            } else if (NotePad.Notes.COLUMN_NAME_SNIPPET.equals(column)
+                    || NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES.equals(column)) {
+                if (snippet == null) {
+                    snippet = SearchRanker.snippet(note, terms);
+                }
+                row[i] = NotePad.Notes.COLUMN_NAME_SNIPPET.equals(column)
+                        ? snippet.text : snippet.matches;
+            } else {
+                row[i] = columnValue(c, c.getColumnIndexOrThrow(column));
+            }
+        }
+        return row;
+    }
+
+    /*
+     * Sorts {score, modification date, row} results best first, and newest first among equal
+     * scores, into a result cursor.
+     */
+    private Cursor searchResult(String[] columns, ArrayList<Object[]> results,
+                                SearchRanker.Stats stats) {
+        Collections.sort(results, (a, b) -> {
+            int byScore = Double.compare((Double) b[0], (Double) a[0]);
+            return byScore != 0 ? byScore : Long.compare((Long) b[1], (Long) a[1]);
+        });
+        SearchRanker.ResultCursor result = new SearchRanker.ResultCursor(columns, results.size(),
+                stats);
+        for (Object[] r : results) {
+            result.addRow((Object[]) r[2]);
+        }
+        result.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        return result;
+    }
+
+    private static Object columnValue(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return c.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates a query builder for the given URI match, with the table, projection map and
+     * any "where" clause implied by the URI already set.
+     *
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    private SQLiteQueryBuilder newQueryBuilder(int match, Uri uri) {
+
+        // Constructs a new query builder and sets its table name
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+
+        /**
+         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
+         */
+        switch (match) {
+            // If the incoming URI is for notes, chooses the Notes projection
+            case NOTES:
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(LIVE);
+                break;
+
+            /* If the incoming URI is for a single note identified by its ID, chooses the
+             * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
+             * it selects that single note
+             */
+            case NOTE_ID:
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(
+                        NotePad.Notes._ID +    // the name of the ID column
+                                "=" +
+                                // the position of the note ID itself in the incoming URI
+                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                                + " AND " + LIVE);
+                break;
+
+            case LIVE_FOLDER_NOTES:
+                // If the incoming URI is from a live folder, chooses the live folder projection.
+                qb.setProjectionMap(sLiveFolderProjectionMap);
+                qb.appendWhere(LIVE);
+                break;
+
+            case NOTES_COUNT:
+                // Counts ignore the caller's projection, so no projection map is needed.
+                qb.appendWhere(LIVE);
+                break;
+
+            case TRASH:
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(TRASHED);
+                break;
+
+            case TRASH_ID:
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(NotePad.Notes._ID + "="
+                        + uri.getPathSegments().get(NotePad.Notes.TRASH_ID_PATH_POSITION)
+                        + " AND " + TRASHED);
+                break;
+
+            case SEARCH:
+                // Searches are answered by querySearch(); the builder only serves to explain
+                // slow queries.
+                qb.appendWhere(LIVE);
+                break;
+
+            case SAVED_SEARCHES:
+                qb.setTables(NotePad.SavedSearches.TABLE_NAME);
+                qb.setProjectionMap(sSavedSearchesProjectionMap);
+                break;
+
+            case SAVED_SEARCH_ID:
+                qb.setTables(NotePad.SavedSearches.TABLE_NAME);
+                qb.setProjectionMap(sSavedSearchesProjectionMap);
+                qb.appendWhere(NotePad.SavedSearches._ID + "=" + uri.getPathSegments()
+                        .get(NotePad.SavedSearches.SAVED_SEARCH_ID_PATH_POSITION));
+                break;
+
+            case SAVED_SEARCH_NOTES:
+                // The members, selected by queryInternal() as a range of their key, drive the
+                // query through the notes' IDs.
+                qb.setTables(NotePad.Notes.TABLE_NAME);
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(LIVE);
+                break;
+
+            case TAGS:
+                qb.setTables(NotePad.Tags.TABLE_NAME);
+                qb.setProjectionMap(sTagsProjectionMap);
+                break;
+
+            case TAG_ID:
+                qb.setTables(NotePad.Tags.TABLE_NAME);
+                qb.setProjectionMap(sTagsProjectionMap);
+                qb.appendWhere(NotePad.Tags._ID + "=" + uri.getPathSegments()
+                        .get(NotePad.Tags.TAG_ID_PATH_POSITION));
+                break;
+
+            case TAG_NOTES:
+                // As for a smart folder, the tag's range of the join table's index drives.
+                qb.setTables(NoteTags.NOTES_WITH_TAG);
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(NoteTags.JOIN_TABLE + ".tag_id=" + uri.getPathSegments()
+                        .get(NotePad.Tags.TAG_ID_PATH_POSITION) + " AND " + LIVE);
+                break;
+
+            case NOTE_TAGS:
+            case NOTE_TAG:
+                // The note's range of the join table's key drives.
+                qb.setTables(NoteTags.TAGS_OF_NOTE);
+                qb.setProjectionMap(sTagsProjectionMap);
+                qb.appendWhere(NoteTags.JOIN_TABLE + ".note_id="
+                        + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                if (match == NOTE_TAG) {
+                    qb.appendWhere(" AND " + NoteTags.JOIN_TABLE + ".tag_id=" + uri
+                            .getPathSegments().get(NotePad.Tags.NOTE_TAG_ID_PATH_POSITION));
+                }
+                break;
+
+            case NOTEBOOKS:
+                qb.setTables(NotePad.Notebooks.TABLE_NAME);
+                qb.setProjectionMap(sNotebooksProjectionMap);
+                break;
+
+            case NOTEBOOK_ID:
+                qb.setTables(NotePad.Notebooks.TABLE_NAME);
+                qb.setProjectionMap(sNotebooksProjectionMap);
+                qb.appendWhere(NotePad.Notebooks._ID + "=" + uri.getPathSegments()
+                        .get(NotePad.Notebooks.NOTEBOOK_ID_PATH_POSITION));
+                break;
+
+            case NOTEBOOK_NOTES:
+                // The subtree is a range of the notebooks' path index, and the notes of each
+                // notebook in it a range of the notes' notebook index.
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID + " IN (SELECT "
+                        + NotePad.Notebooks._ID + " FROM " + NotePad.Notebooks.TABLE_NAME
+                        + " WHERE " + NotebookTree.subtree(uri.getPathSegments()
+                        .get(NotePad.Notebooks.NOTEBOOK_ID_PATH_POSITION)) + ") AND " + LIVE);
+                break;
+
+            case NOTE_REVISIONS:
+            case NOTE_REVISION:
+                // The revisions of one note. Single revisions are answered by queryRevision();
+                // the builder only serves to explain slow queries.
+                qb.setTables(NotePad.Revisions.TABLE_NAME);
+                qb.setProjectionMap(sRevisionsProjectionMap);
+                qb.appendWhere(NotePad.Revisions.COLUMN_NAME_NOTE_ID + "="
+                        + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                break;
+
+            default:
+                // If the URI doesn't match any of the known patterns, throw an exception.
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        return qb;
+    }
+
+    private static String resolveSortOrder(int match, String sortOrder) {
+        // If no sort order is specified, uses the default
+        if (TextUtils.isEmpty(sortOrder)) {
+            if (match == NOTE_REVISIONS || match == NOTE_REVISION) {
+                return NotePad.Revisions.DEFAULT_SORT_ORDER;
+            } else if (match == TRASH) {
+                return NotePad.Notes.TRASH_SORT_ORDER;
+            } else if (match == SAVED_SEARCHES || match == SAVED_SEARCH_ID) {
+                return NotePad.SavedSearches.DEFAULT_SORT_ORDER;
+            } else if (match == TAGS || match == TAG_ID || match == NOTE_TAGS
+                    || match == NOTE_TAG) {
+                return NotePad.Tags.DEFAULT_SORT_ORDER;
+            } else if (match == NOTEBOOKS || match == NOTEBOOK_ID) {
+                return NotePad.Notebooks.DEFAULT_SORT_ORDER;
+            }
+            return NotePad.Notes.DEFAULT_SORT_ORDER;
+        }
+        // otherwise, uses the incoming sort order
+        return sortOrder;
+    }
+
+    /**
+     * Adds a query to the slow-query log, then looks up its plan on the background thread so
+     * the caller doesn't pay for the EXPLAIN. The plan is computed without the selection
+     * arguments; SQLite plans the same way for unbound parameters. The URI is logged as its
+     * pattern, see {@link #uriPattern}.
+     */
+    private void recordSlowQuery(final int match, final Uri uri, final String[] projection,
+                                 final String selection, String sortOrder, int rows,
+                                 long elapsedNanos) {
+        final String orderBy = resolveSortOrder(match, sortOrder);
+        final SlowQueryLog.Entry entry =
+                mSlowQueries.record(uriPattern(uri), selection, orderBy, rows,
+                        elapsedNanos);
+        mBackgroundExecutor.execute(() -> {
+            StringBuilder plan = new StringBuilder();
+            try {
+                String sql = newQueryBuilder(match, uri)
+                        .buildQuery(projection, selection, null, null, orderBy, null);
+                Cursor c = mOpenHelper.getReadableDatabase()
+                        .rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+                try {
+                    int detail = c.getColumnIndex("detail");
+                    while (c.moveToNext()) {
+                        if (plan.length() > 0) {
+                            plan.append('\n');
+                        }
+                        plan.append(c.getString(detail));
+                    }
+                } finally {
+                    c.close();
+                }
+            } catch (SQLException | IllegalArgumentException e) {
+                plan.append("unavailable: ").append(e.getMessage());
+            }
+            mSlowQueries.setPlan(entry, plan.toString());
+        });
+    }
+
+    /**
+     * Returns a URI as the pattern it matched, for the slow-query log: without its query
+     * string, which holds the search text, and with "#" for each ID and "*" for the text of
+     * a suggestion query. The path of a URI that matched no pattern is left out.
+     */
+    static String uriPattern(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        StringBuilder pattern = new StringBuilder(uri.getScheme()).append("://")
+                .append(uri.getAuthority());
+        if (match == UriMatcher.NO_MATCH) {
+            return pattern.append("/*").toString();
+        }
+        List<String> segments = uri.getPathSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            pattern.append('/');
+            if (match == SUGGEST && i > 0) {
+                pattern.append('*');
+            } else if (TextUtils.isDigitsOnly(segment)) {
+                pattern.append('#');
+            } else {
+                pattern.append(segment);
+            }
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
+     * Returns the MIME data type of the URI given as a parameter.
+     *
+     * @param uri The URI whose MIME type is desired.
+     * @return The MIME type of the URI.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public String getType(Uri uri) {
+
+        /**
+         * Chooses the MIME type based on the incoming URI pattern
+         */
+        switch (sUriMatcher.match(uri)) {
+
+            // If the pattern is for notes or live folders, returns the general content type.
+            case NOTES:
+            case LIVE_FOLDER_NOTES:
+            case TRASH:
+            case SEARCH:
+                return NotePad.Notes.CONTENT_TYPE;
+
+            // If the pattern is for note IDs, returns the note ID content type.
+            case NOTE_ID:
+            case TRASH_ID:
+                return NotePad.Notes.CONTENT_ITEM_TYPE;
+
+            case NOTES_COUNT:
+                return NotePad.Notes.CONTENT_COUNT_TYPE;
+
+            case NOTE_REVISIONS:
+                return NotePad.Revisions.CONTENT_TYPE;
+
+            case NOTE_REVISION:
+                return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
+            case SUGGEST:
+                return SearchManager.SUGGEST_MIME_TYPE;
+
+            case SAVED_SEARCHES:
+                return NotePad.SavedSearches.CONTENT_TYPE;
+
+            case SAVED_SEARCH_ID:
+                return NotePad.SavedSearches.CONTENT_ITEM_TYPE;
+
+            case SAVED_SEARCH_NOTES:
+            case TAG_NOTES:
+            case NOTEBOOK_NOTES:
+                return NotePad.Notes.CONTENT_TYPE;
+
+            case NOTEBOOKS:
+                return NotePad.Notebooks.CONTENT_TYPE;
+
+            case NOTEBOOK_ID:
+                return NotePad.Notebooks.CONTENT_ITEM_TYPE;
+
+            case TAGS:
+            case NOTE_TAGS:
+                return NotePad.Tags.CONTENT_TYPE;
+
+            case TAG_ID:
+            case NOTE_TAG:
+                return NotePad.Tags.CONTENT_ITEM_TYPE;
+
+            // If the URI pattern doesn't match any permitted patterns, throws an exception.
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+//BEGIN_INCLUDE(stream)
+
+    /**
+     * Returns the types of available data streams.  URIs to specific notes are supported.
+     * The application can convert such a note to a plain text stream.
+     *
+     * @param uri            the URI to analyze
+     * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
+     *                       type for MIME types that match the filter. Currently, only text/plain MIME types match.
+     * @return a data stream MIME type. Currently, only text/plan is returned.
+     * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        /**
+         *  Chooses the data stream type based on the incoming URI pattern.
+         */
+        switch (sUriMatcher.match(uri)) {
+
+            // If the pattern is for notes or live folders, return null. Data streams are not
+            // supported for this type of URI.
+            case NOTES:
+            case LIVE_FOLDER_NOTES:
+            case NOTES_COUNT:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION:
+            case TRASH:
+            case TRASH_ID:
+            case SEARCH:
+            case SUGGEST:
+            case SAVED_SEARCHES:
+            case SAVED_SEARCH_ID:
+            case SAVED_SEARCH_NOTES:
+            case TAGS:
+            case TAG_ID:
+            case TAG_NOTES:
+            case NOTE_TAGS:
+            case NOTE_TAG:
+            case NOTEBOOKS:
+            case NOTEBOOK_ID:
+            case NOTEBOOK_NOTES:
+                return null;
+
+            // If the pattern is for note IDs and the MIME filter is text/plain, then return
+            // text/plain
+            case NOTE_ID:
+                return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the URI pattern doesn't match any permitted patterns, throws an exception.
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Returns a stream of data for each supported stream type. This method does a query on the
+     * incoming URI, then uses
+     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
+     * PipeDataWriter)} to start another thread in which to convert the data into a stream.
+     *
+     * @param uri            The URI pattern that points to the data stream
+     * @param mimeTypeFilter A String containing a MIME type. This method tries to get a stream of
+     *                       data with this MIME type.
+     * @param opts           Additional options supplied by the caller.  Can be interpreted as
+     *                       desired by the content provider.
+     * @return AssetFileDescriptor A handle to the file.
+     * @throws FileNotFoundException if there is no file associated with the incoming URI.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        Trace.beginSection("NotePadProvider.openTypedAssetFile");
+        long start = System.nanoTime();
+        boolean onMainThread = mMainThreadIo.begin();
+        try {
+            return openTypedAssetFileInternal(uri, mimeTypeFilter, opts);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            mStats.record(ProviderStats.OP_OPEN_FILE, sUriMatcher.match(uri), elapsed);
+            if (onMainThread) {
+                mMainThreadIo.end("open", uri, elapsed);
+            }
+            Trace.endSection();
+        }
+    }
+
+    private AssetFileDescriptor openTypedAssetFileInternal(Uri uri, String mimeTypeFilter,
+                                                           Bundle opts)
+            throws FileNotFoundException {
+
+        // Checks to see if the MIME type filter matches a supported MIME type.
+        String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
+
+        // If the MIME type is supported
+        if (mimeTypes != null) {
+
+            // Retrieves the note for this URI. Uses the query logic defined for this provider,
+            // rather than using the database query method, but not query() itself, so the
+            // open isn't recorded in the stats a second time, as a query.
+            Cursor c = queryInternal(
+                    sUriMatcher.match(uri), // The pattern the URI matched
+                    uri,                    // The URI of a note
+                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
+                    // and contents
+                    null,                   // No WHERE clause, get all matching records
+                    null,                   // Since there is no WHERE clause, no selection criteria
+                    null                    // Use the default sort order (modification date,
+                    // descending
+            );
+
+
+            // If the query fails or the cursor is empty, stop
+            if (c == null || !c.moveToFirst()) {
+
+                // If the cursor is empty, simply close the cursor and return
+                if (c != null) {
+                    c.close();
+                }
+
+                // If the cursor is null, throw an exception
+                throw new FileNotFoundException("Unable to query " + uri);
+            }
+
+            // Start a new thread that pipes the stream data back to the caller.
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        // If the MIME type is not supported, return a read-only handle to the file.
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    /**
+     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
+     * to perform the actual work of converting the data in one of cursors to a
+     * stream of data for the client to read.
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
                                 Bundle opts, Cursor c) {
         // We currently only support conversion-to-text from a single note entry,
         // so no need for cursor data type checking here.
-        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        CountingOutputStream fout =
+                new CountingOutputStream(new FileOutputStream(output.getFileDescriptor()));
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new OutputStreamWriter(fout, StandardCharsets.UTF_8));
@@ -419,6 +1783,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             if (pw != null) {
                 pw.flush();
             }
+            mStats.addBytesStreamed(fout.getCount());
             try {
                 fout.close();
             } catch (IOException e) {
@@ -439,9 +1804,36 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        Trace.beginSection("NotePadProvider.insert");
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        boolean onMainThread = mMainThreadIo.begin();
+        try {
+            return insertInternal(match, uri, initialValues);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            mStats.record(ProviderStats.OP_INSERT, match, elapsed);
+            if (onMainThread) {
+                mMainThreadIo.end("insert", uri, elapsed);
+            }
+            Trace.endSection();
+        }
+    }
+
+    private Uri insertInternal(int match, Uri uri, ContentValues initialValues) {
+
+        if (match == SAVED_SEARCHES) {
+            return insertSavedSearch(uri, initialValues);
+        }
+        if (match == TAGS || match == NOTE_TAGS) {
+            return insertTag(match, uri, initialValues);
+        }
+        if (match == NOTEBOOKS) {
+            return insertNotebook(uri, initialValues);
+        }
 
         // Validates the incoming URI. Only the full provider URI is allowed for inserts.
-        if (sUriMatcher.match(uri) != NOTES) {
+        if (match != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
@@ -482,32 +1874,396 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
+        // Every note starts at version 1, whatever the caller passed, and the content hash
+        // always describes the note text.
+        values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+        values.remove(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        values.remove(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+        ContentHash.putInto(values);
+        Pinyin.putInto(values, mPinyinNotes);
+        checkOrder(values);
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                // if values is empty.
-                values                           // A map of column names, and the values to insert
-                // into the columns.
-        );
+        // New notes go first in the manual order unless the caller placed them. The first key
+        // is read in the insert's transaction, so two new notes don't get the same key.
+        long rowId;
+        db.beginTransaction();
+        try {
+            if (!values.containsKey(NotePad.Notes.COLUMN_NAME_POSITION)) {
+                Integer pinned = values.getAsInteger(NotePad.Notes.COLUMN_NAME_PINNED);
+                values.put(NotePad.Notes.COLUMN_NAME_POSITION,
+                        NoteOrder.top(db, pinned != null && pinned != 0));
+            }
+
+            // Performs the insert and returns the ID of the new note.
+            rowId = db.insert(
+                    NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                    NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to
+                    // null if values is empty.
+                    values                           // A map of column names, and the values to
+                    // insert into the columns.
+            );
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
             // Creates a URI with the note ID pattern and the new row ID appended to it.
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
-            // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
-            return noteUri;
+            // Notifies observers registered against this provider that the data changed.
+            notifyChange(noteUri);
+            if (values.get(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID) != null) {
+                notifyChange(NotePad.Notebooks.CONTENT_URI);
+            }
+            scheduleSearchIndexing();
+            putSuggestion(rowId, values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                    values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+            return noteUri;
+        }
+
+        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+//END_INCLUDE(stream)
+
+    /**
+     * Saves a search and fills its smart folder, in one transaction. The name defaults to the
+     * query.
+     *
+     * @throws IllegalArgumentException if the values have no query, or one without conditions.
+     */
+    private Uri insertSavedSearch(Uri uri, ContentValues initialValues) {
+        ContentValues values = initialValues != null
+                ? new ContentValues(initialValues) : new ContentValues();
+        String query = checkSavedQuery(values);
+        if (query == null) {
+            throw new IllegalArgumentException("A saved search needs a query");
+        }
+        if (!values.containsKey(NotePad.SavedSearches.COLUMN_NAME_NAME)) {
+            values.put(NotePad.SavedSearches.COLUMN_NAME_NAME, query.trim());
+        }
+        if (!values.containsKey(NotePad.SavedSearches.COLUMN_NAME_CREATE_DATE)) {
+            values.put(NotePad.SavedSearches.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(NotePad.SavedSearches.TABLE_NAME, null, values);
+            if (rowId > 0) {
+                SmartFolders.fill(db, rowId, query);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowId > 0) {
+            // Sorts in the notes the index had yet to see.
+            scheduleSearchIndexing();
+            Uri searchUri = ContentUris.withAppendedId(NotePad.SavedSearches.CONTENT_ID_URI_BASE,
+                    rowId);
+            notifyChange(searchUri);
+            return searchUri;
+        }
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /*
+     * Returns the query of saved search values, or null if they don't set one. The note count
+     * can't be written.
+     *
+     * @throws IllegalArgumentException if the query has no conditions.
+     */
+    private static String checkSavedQuery(ContentValues values) {
+        values.remove(NotePad.SavedSearches.COLUMN_NAME_NOTE_COUNT);
+        if (!values.containsKey(NotePad.SavedSearches.COLUMN_NAME_QUERY)) {
+            return null;
+        }
+        String query = values.getAsString(NotePad.SavedSearches.COLUMN_NAME_QUERY);
+        if (query == null || SearchQuery.parse(query).groups().isEmpty()) {
+            throw new IllegalArgumentException("A saved search needs a query with conditions");
+        }
+        return query;
+    }
+
+    /**
+     * Updates saved searches. Those whose query changes have their smart folder filled again,
+     * in the same transaction.
+     */
+    private int updateSavedSearches(int match, Uri uri, ContentValues values, String where,
+                                    String[] whereArgs) {
+        values = values != null ? new ContentValues(values) : new ContentValues();
+        String query = checkSavedQuery(values);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String finalWhere = savedSearchWhere(match, uri, where);
+        int count;
+        db.beginTransaction();
+        try {
+            List<Long> ids = new ArrayList<>();
+            if (query != null) {
+                Cursor c = db.query(NotePad.SavedSearches.TABLE_NAME,
+                        new String[]{NotePad.SavedSearches._ID}, finalWhere, whereArgs,
+                        null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            count = db.update(NotePad.SavedSearches.TABLE_NAME, values, finalWhere, whereArgs);
+            for (long id : ids) {
+                SmartFolders.fill(db, id, query);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            if (query != null) {
+                scheduleSearchIndexing();
+            }
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes saved searches. Their smart folders go with them by trigger; the notes stay.
+     */
+    private int deleteSavedSearches(int match, Uri uri, String where, String[] whereArgs) {
+        int count = mOpenHelper.getWritableDatabase().delete(NotePad.SavedSearches.TABLE_NAME,
+                savedSearchWhere(match, uri, where), whereArgs);
+        if (count > 0) {
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    // Restricts a caller's selection to the saved search of a single saved search URI.
+    private static String savedSearchWhere(int match, Uri uri, String where) {
+        if (match != SAVED_SEARCH_ID) {
+            return where;
+        }
+        String finalWhere = NotePad.SavedSearches._ID + " = " + uri.getPathSegments()
+                .get(NotePad.SavedSearches.SAVED_SEARCH_ID_PATH_POSITION);
+        return TextUtils.isEmpty(where) ? finalWhere : finalWhere + " AND (" + where + ")";
+    }
+
+    /**
+     * Creates a tag, or tags a note. A note is tagged by {@link NotePad.Tags#_ID}, or by
+     * {@link NotePad.Tags#COLUMN_NAME_NAME}, which creates the tag if no tag has the name yet.
+     * Creating a tag that exists, or tagging a note with a tag it has, returns the existing
+     * URI.
+     *
+     * @throws IllegalArgumentException if a new tag's name is empty
+     * @throws SQLException if the note is in the trash or doesn't exist, or the tag doesn't
+     *                      exist
+     */
+    private Uri insertTag(int match, Uri uri, ContentValues values) {
+        Long tagId = values != null ? values.getAsLong(NotePad.Tags._ID) : null;
+        String name = values != null ? values.getAsString(NotePad.Tags.COLUMN_NAME_NAME) : null;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Uri result = null;
+        db.beginTransaction();
+        try {
+            if (tagId == null || match == TAGS) {
+                tagId = NoteTags.tagId(db, name);
+            }
+            if (match == TAGS) {
+                result = ContentUris.withAppendedId(NotePad.Tags.CONTENT_ID_URI_BASE, tagId);
+            } else {
+                long noteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                if (NoteTags.add(db, noteId, tagId)) {
+                    result = NotePad.Tags.noteTagUri(noteId, tagId);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (result == null) {
+            throw new SQLException("Failed to insert row into " + uri);
+        }
+        // The counts change with the tags of a note, and the note's tags are under its URI.
+        notifyChange(NotePad.Tags.CONTENT_URI);
+        if (match == NOTE_TAGS) {
+            notifyChange(uri);
+        }
+        return result;
+    }
+
+    /**
+     * Renames tags. Only the name can be written.
+     *
+     * @throws IllegalArgumentException if the name is empty
+     * @throws SQLException if another tag has the name
+     */
+    private int updateTags(int match, Uri uri, ContentValues values, String where,
+                           String[] whereArgs) {
+        String name = values != null ? values.getAsString(NotePad.Tags.COLUMN_NAME_NAME) : null;
+        name = name != null ? name.trim() : "";
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Tag name is empty");
+        }
+        ContentValues renamed = new ContentValues();
+        renamed.put(NotePad.Tags.COLUMN_NAME_NAME, name);
+        int count = mOpenHelper.getWritableDatabase().update(NotePad.Tags.TABLE_NAME, renamed,
+                tagWhere(match, uri, NotePad.Tags._ID, where), whereArgs);
+        if (count > 0) {
+            notifyChange(NotePad.Tags.CONTENT_URI);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes tags, taking them off their notes by trigger, or takes tags off a note. The
+     * selection of a note's tags is on the {@code tag_id} of the join table.
+     */
+    private int deleteTags(int match, Uri uri, String where, String[] whereArgs) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (match == TAGS || match == TAG_ID) {
+            int count = db.delete(NotePad.Tags.TABLE_NAME,
+                    tagWhere(match, uri, NotePad.Tags._ID, where), whereArgs);
+            if (count > 0) {
+                // Deleted tags leave the notes that had them.
+                notifyChange(NotePad.Tags.CONTENT_URI);
+                notifyChange(NotePad.Notes.CONTENT_URI);
+            }
+            return count;
+        }
+        long noteId = Long.parseLong(
+                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        int count = db.delete(NoteTags.JOIN_TABLE,
+                "note_id = " + noteId + " AND " + tagWhere(match, uri, "tag_id", where),
+                whereArgs);
+        if (count > 0) {
+            notifyChange(NotePad.Tags.CONTENT_URI);
+            notifyChange(NotePad.Tags.noteTagsUri(noteId));
+        }
+        return count;
+    }
+
+    // Restricts a caller's selection to the tag of a single tag URI, in the given column.
+    private static String tagWhere(int match, Uri uri, String column, String where) {
+        String finalWhere;
+        if (match == TAG_ID) {
+            finalWhere = column + " = "
+                    + uri.getPathSegments().get(NotePad.Tags.TAG_ID_PATH_POSITION);
+        } else if (match == NOTE_TAG) {
+            finalWhere = column + " = "
+                    + uri.getPathSegments().get(NotePad.Tags.NOTE_TAG_ID_PATH_POSITION);
+        } else {
+            return TextUtils.isEmpty(where) ? "1" : "(" + where + ")";
+        }
+        return TextUtils.isEmpty(where) ? finalWhere : finalWhere + " AND (" + where + ")";
+    }
+
+    /**
+     * Creates a notebook, at the top level or inside its
+     * {@link NotePad.Notebooks#COLUMN_NAME_PARENT_ID}.
+     *
+     * @throws IllegalArgumentException if the name is empty
+     * @throws SQLException if the parent doesn't exist
+     */
+    private Uri insertNotebook(Uri uri, ContentValues initialValues) {
+        ContentValues values = checkNotebook(initialValues);
+        if (!values.containsKey(NotePad.Notebooks.COLUMN_NAME_NAME)) {
+            throw new IllegalArgumentException("A notebook needs a name");
+        }
+        long rowId = mOpenHelper.getWritableDatabase().insert(NotePad.Notebooks.TABLE_NAME,
+                null, values);
+        if (rowId > 0) {
+            notifyChange(NotePad.Notebooks.CONTENT_URI);
+            return ContentUris.withAppendedId(NotePad.Notebooks.CONTENT_ID_URI_BASE, rowId);
+        }
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /*
+     * Returns the writable columns of notebook values, the name trimmed. The path and counts
+     * are kept by triggers.
+     *
+     * @throws IllegalArgumentException if the values set an empty name
+     */
+    private static ContentValues checkNotebook(ContentValues initialValues) {
+        ContentValues values = new ContentValues();
+        if (initialValues == null) {
+            return values;
+        }
+        if (initialValues.containsKey(NotePad.Notebooks.COLUMN_NAME_NAME)) {
+            String name = initialValues.getAsString(NotePad.Notebooks.COLUMN_NAME_NAME);
+            name = name != null ? name.trim() : "";
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Notebook name is empty");
+            }
+            values.put(NotePad.Notebooks.COLUMN_NAME_NAME, name);
+        }
+        if (initialValues.containsKey(NotePad.Notebooks.COLUMN_NAME_PARENT_ID)) {
+            values.put(NotePad.Notebooks.COLUMN_NAME_PARENT_ID,
+                    initialValues.getAsLong(NotePad.Notebooks.COLUMN_NAME_PARENT_ID));
+        }
+        return values;
+    }
+
+    /**
+     * Renames or moves notebooks. A move rewrites the paths of the notebooks moved and the
+     * counts of the ancestors they leave and join, by trigger; the notes aren't touched.
+     *
+     * @throws SQLException if a new parent doesn't exist or is inside the notebook moved
+     */
+    private int updateNotebooks(int match, Uri uri, ContentValues initialValues, String where,
+                                String[] whereArgs) {
+        ContentValues values = checkNotebook(initialValues);
+        if (values.size() == 0) {
+            return 0;
+        }
+        int count = mOpenHelper.getWritableDatabase().update(NotePad.Notebooks.TABLE_NAME,
+                values, notebookWhere(match, uri, where), whereArgs);
+        if (count > 0) {
+            notifyChange(NotePad.Notebooks.CONTENT_URI);
+            if (values.containsKey(NotePad.Notebooks.COLUMN_NAME_PARENT_ID)) {
+                // The subtrees listed through the notebooks have changed.
+                notifyChange(NotePad.Notes.CONTENT_URI);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deletes notebooks with the notebooks inside them, by trigger. Their notes stay, outside
+     * any notebook.
+     */
+    private int deleteNotebooks(int match, Uri uri, String where, String[] whereArgs) {
+        int count = mOpenHelper.getWritableDatabase().delete(NotePad.Notebooks.TABLE_NAME,
+                notebookWhere(match, uri, where), whereArgs);
+        if (count > 0) {
+            // The notes left their notebooks, so cached rows are out of date.
+            mRowCache.invalidateAll();
+            notifyChange(NotePad.Notebooks.CONTENT_URI);
+            notifyChange(NotePad.Notes.CONTENT_URI);
         }
+        return count;
+    }
 
-        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
-        throw new SQLException("Failed to insert row into " + uri);
+    // Restricts a caller's selection to the notebook of a single notebook URI.
+    private static String notebookWhere(int match, Uri uri, String where) {
+        if (match != NOTEBOOK_ID) {
+            return where;
+        }
+        String finalWhere = NotePad.Notebooks._ID + " = " + uri.getPathSegments()
+                .get(NotePad.Notebooks.NOTEBOOK_ID_PATH_POSITION);
+        return TextUtils.isEmpty(where) ? finalWhere : finalWhere + " AND (" + where + ")";
     }
-//END_INCLUDE(stream)
 
     /**
      * This is called when a client calls
@@ -517,6 +2273,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * a set of records. The record or records must also match the input selection criteria
      * specified by where and whereArgs.
      * <p>
+     * Notes deleted through the notes or note ID URIs are moved to the trash, from where they
+     * can be restored. Deleting through {@link NotePad.Notes#TRASH_URI} or a URI under it
+     * deletes notes permanently.
+     * <p>
      * If rows were deleted, then listeners are notified of the change.
      *
      * @return If a "where" clause is used, the number of rows affected is returned, otherwise
@@ -525,6 +2285,33 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        Trace.beginSection("NotePadProvider.delete");
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        boolean onMainThread = mMainThreadIo.begin();
+        try {
+            return deleteInternal(match, uri, where, whereArgs);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            mStats.record(ProviderStats.OP_DELETE, match, elapsed);
+            if (onMainThread) {
+                mMainThreadIo.end("delete", uri, elapsed);
+            }
+            Trace.endSection();
+        }
+    }
+
+    private int deleteInternal(int match, Uri uri, String where, String[] whereArgs) {
+
+        if (match == SAVED_SEARCHES || match == SAVED_SEARCH_ID) {
+            return deleteSavedSearches(match, uri, where, whereArgs);
+        }
+        if (match == TAGS || match == TAG_ID || match == NOTE_TAGS || match == NOTE_TAG) {
+            return deleteTags(match, uri, where, whereArgs);
+        }
+        if (match == NOTEBOOKS || match == NOTEBOOK_ID) {
+            return deleteNotebooks(match, uri, where, whereArgs);
+        }
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -533,16 +2320,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         int count;
 
         // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
-            // If the incoming pattern matches the general pattern for notes, does a delete
-            // based on the incoming "where" columns and arguments.
+            // If the incoming pattern matches the general pattern for notes, moves the notes
+            // selected by the incoming "where" columns and arguments to the trash.
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name
-                        where,                     // The incoming where clause column names
-                        whereArgs                  // The incoming where clause values
-                );
+                count = moveToTrash(db, whereLive(where), whereArgs);
                 break;
 
             // If the incoming URI matches a single note ID, does the delete based on the
@@ -557,7 +2340,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                         NotePad.Notes._ID +                              // The ID column name
                                 " = " +                                          // test for equality
                                 uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION) +
+                                " AND " + LIVE                                   // not in the trash
                 ;
 
                 // If there were additional selection criteria, append them to the final
@@ -566,12 +2350,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                // Performs the delete.
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name.
-                        finalWhere,                // The final WHERE clause
-                        whereArgs                  // The incoming where clause values.
-                );
+                // Moves the note to the trash.
+                count = moveToTrash(db, finalWhere, whereArgs);
+                break;
+
+            // Deleting from the trash deletes for good, in batches.
+            case TRASH:
+                count = purgeTrash(db, where, whereArgs, false);
+                break;
+
+            case TRASH_ID:
+                finalWhere = NotePad.Notes._ID + " = "
+                        + uri.getPathSegments().get(NotePad.Notes.TRASH_ID_PATH_POSITION);
+                if (where != null) {
+                    finalWhere = finalWhere + " AND " + where;
+                }
+                count = purgeTrash(db, finalWhere, whereArgs, false);
                 break;
 
             // If the incoming pattern is invalid, throws an exception.
@@ -579,16 +2373,97 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        invalidateRowCache(match, uri);
+        if (count > 0 && match == NOTE_ID) {
+            removeSuggestion(ContentUris.parseId(uri));
+        } else if (count > 0 && match == NOTES) {
+            reloadSuggestions();
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        if (match == NOTES || match == NOTE_ID) {
+            // The trash isn't under the note URIs, so its observers are told separately.
+            notifyChange(NotePad.Notes.TRASH_URI);
+            if (count > 0) {
+                // Notes moved to the trash leave their smart folders, tag and notebook counts.
+                scheduleSearchIndexing();
+                notifyChange(NotePad.Tags.CONTENT_URI);
+                notifyChange(NotePad.Notebooks.CONTENT_URI);
+            }
+        }
 
         // Returns the number of rows deleted.
         return count;
     }
 
+    /**
+     * Moves the selected notes to the trash. Nothing else about the notes changes, so restoring
+     * one brings it back as it was, version included: the version trigger only fires on the
+     * title, text and color. An editor that had the note open still can't save over the
+     * deletion, since updates leave out notes in the trash, and its save then counts 0.
+     */
+    private static int moveToTrash(SQLiteDatabase db, String where, String[] whereArgs) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        return db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+    }
+
+    /**
+     * Permanently deletes notes in the trash that match the selection, {@link #TRASH_PURGE_BATCH}
+     * notes per statement. Every statement commits on its own, together with the removal of
+     * the notes' revisions by trigger, so other writers wait at most for one batch.
+     *
+     * @param oneBatch stop after the first batch instead of deleting every match
+     * @return the number of notes deleted.
+     */
+    private static int purgeTrash(SQLiteDatabase db, String where, String[] whereArgs,
+                                  boolean oneBatch) {
+        String batch = NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + TRASHED
+                + (TextUtils.isEmpty(where) ? "" : " AND (" + where + ")")
+                + " LIMIT " + TRASH_PURGE_BATCH + ")";
+        int total = 0;
+        int deleted;
+        do {
+            deleted = db.delete(NotePad.Notes.TABLE_NAME, batch, whereArgs);
+            total += deleted;
+        } while (!oneBatch && deleted == TRASH_PURGE_BATCH);
+        return total;
+    }
+
+    /**
+     * Takes a note out of the trash.
+     *
+     * @return 1 if the note was restored, 0 if it isn't in the trash.
+     */
+    private int restoreFromTrash(long id) {
+        ContentValues values = new ContentValues();
+        values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        int count = mOpenHelper.getWritableDatabase().update(NotePad.Notes.TABLE_NAME, values,
+                NotePad.Notes._ID + " = ? AND " + TRASHED, new String[]{String.valueOf(id)});
+        if (count > 0) {
+            // Restores are rare enough to rebuild the suggestions rather than read the title.
+            reloadSuggestions();
+            scheduleSearchIndexing();
+            // The notes URI covers both the note list and the trash.
+            notifyChange(NotePad.Notes.CONTENT_URI);
+            notifyChange(NotePad.Tags.CONTENT_URI);
+            notifyChange(NotePad.Notebooks.CONTENT_URI);
+        }
+        return count;
+    }
+
+    /**
+     * Restricts a caller's selection to notes outside the trash.
+     */
+    private static String whereLive(String where) {
+        return TextUtils.isEmpty(where) ? LIVE : LIVE + " AND (" + where + ")";
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#update(Uri, ContentValues, String, String[])}
@@ -611,6 +2486,50 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        Trace.beginSection("NotePadProvider.update");
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        boolean onMainThread = mMainThreadIo.begin();
+        try {
+            return updateInternal(match, uri, values, where, whereArgs);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            mStats.record(ProviderStats.OP_UPDATE, match, elapsed);
+            if (onMainThread) {
+                mMainThreadIo.end("update", uri, elapsed);
+            }
+            Trace.endSection();
+        }
+    }
+
+    private int updateInternal(int match, Uri uri, ContentValues values, String where,
+                               String[] whereArgs) {
+
+        if (match == SAVED_SEARCHES || match == SAVED_SEARCH_ID) {
+            return updateSavedSearches(match, uri, values, where, whereArgs);
+        }
+        if (match == TAGS || match == TAG_ID) {
+            return updateTags(match, uri, values, where, whereArgs);
+        }
+        if (match == NOTEBOOKS || match == NOTEBOOK_ID) {
+            return updateNotebooks(match, uri, values, where, whereArgs);
+        }
+
+        // The version is maintained by a trigger and the content hash follows the text;
+        // clients can only use them in the selection.
+        if (values != null) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+            values.remove(NotePad.Notes.COLUMN_NAME_CONTENT_HASH);
+            values.remove(NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH);
+            // Notes go in and out of the trash by delete() and call(METHOD_RESTORE) only.
+            values.remove(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+            values.remove(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN);
+            ContentHash.putInto(values);
+            Pinyin.putInto(values, mPinyinNotes);
+            checkOrder(values);
+        }
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -618,17 +2537,24 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         String finalWhere;
 
         // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
+                // Every note needs a key of its own; a key set on many notes at once would be
+                // shared by all of them.
+                if (values != null && values.containsKey(NotePad.Notes.COLUMN_NAME_POSITION)) {
+                    throw new IllegalArgumentException(
+                            "A position can only be set on a single note: " + uri);
+                }
 
-                // Does the update and returns the number of rows updated.
+                // Does the update and returns the number of rows updated. Notes in the trash
+                // can't be changed.
                 count = db.update(
                         NotePad.Notes.TABLE_NAME, // The database table name.
                         values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
+                        whereLive(where),         // The where clause column names.
                         whereArgs                 // The where clause column values to select on.
                 );
                 break;
@@ -647,7 +2573,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                         NotePad.Notes._ID +                              // The ID column name
                                 " = " +                                          // test for equality
                                 uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION) +
+                                " AND " + LIVE                                   // not in the trash
                 ;
 
                 // If there were additional selection criteria, append them to the final WHERE
@@ -656,32 +2583,488 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        finalWhere,               // The final WHERE clause to use
-                        // placeholders for whereArgs
-                        whereArgs                 // The where clause column values to select on, or
-                        // null if the values are in the where argument.
-                );
+                db.beginTransaction();
+                try {
+                    // A note pinned or unpinned without a place goes first in its new part of
+                    // the manual order. The first key is read in the update's transaction, as in
+                    // insert(), so two notes pinned at once don't get the same key.
+                    if (values != null && values.containsKey(NotePad.Notes.COLUMN_NAME_PINNED)
+                            && !values.containsKey(NotePad.Notes.COLUMN_NAME_POSITION)) {
+                        values.put(NotePad.Notes.COLUMN_NAME_POSITION, NoteOrder.top(db,
+                                Boolean.TRUE.equals(
+                                        values.getAsBoolean(NotePad.Notes.COLUMN_NAME_PINNED))));
+                    }
+
+                    // Saves of the title or text are recorded in the note's history.
+                    int keep = mHistoryKeep;
+                    if (keep != RevisionStore.KEEP_NONE && values != null
+                            && (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                            || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE))) {
+                        count = updateWithHistory(db, Long.parseLong(noteId), values,
+                                finalWhere, whereArgs, keep);
+                    } else {
+                        // Does the update and returns the number of rows updated.
+                        count = db.update(
+                                NotePad.Notes.TABLE_NAME, // The database table name.
+                                values,          // A map of column names and new values to use.
+                                finalWhere,      // The final WHERE clause to use
+                                // placeholders for whereArgs
+                                whereArgs        // The where clause column values to select on,
+                                // or null if the values are in the where argument.
+                        );
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        invalidateRowCache(match, uri);
+        if (count > 0 && values != null
+                && (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE))) {
+            if (match == NOTE_ID) {
+                Long modified = values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+                putSuggestion(ContentUris.parseId(uri),
+                        values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                                ? values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE) : null,
+                        modified != null ? modified : -1);
+            } else {
+                reloadSuggestions();
+            }
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        if (count > 0 && values != null
+                && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID)) {
+            notifyChange(NotePad.Notebooks.CONTENT_URI);
+        }
+
+        // Smart folders also depend on the color and dates, so any change is indexed; notes
+        // whose title and text didn't change aren't queued for the trigram index.
+        if (count > 0) {
+            scheduleSearchIndexing();
+        }
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Checks the manual order values of a note: a position must be a key {@link NoteOrder}
+     * could have made, so that there is room around it, and the pin is stored as 1 or 0.
+     *
+     * @throws IllegalArgumentException if the position is not a valid key
+     */
+    private static void checkOrder(ContentValues values) {
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_POSITION)) {
+            String position = values.getAsString(NotePad.Notes.COLUMN_NAME_POSITION);
+            if (position == null) {
+                throw new IllegalArgumentException("A note's position can't be null");
+            }
+            NoteOrder.check(position);
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_PINNED)) {
+            // Read as a boolean, so that true and false are taken as well as 1 and 0.
+            Boolean pinned = values.getAsBoolean(NotePad.Notes.COLUMN_NAME_PINNED);
+            values.put(NotePad.Notes.COLUMN_NAME_PINNED, Boolean.TRUE.equals(pinned) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Updates a single note and records the save as a revision, in one transaction, so the
+     * history never disagrees with the note. Updates through the notes URI, which can touch
+     * any number of notes at once, are not recorded; the next recorded save keeps the text
+     * they left as a revision of its own. Once the history of the note is longer
+     * than the settings allow, it is compacted on the background thread.
+     */
+    private int updateWithHistory(SQLiteDatabase db, long noteId, ContentValues values,
+                                  String where, String[] whereArgs, int keep) {
+        String[] idArgs = {String.valueOf(noteId)};
+        String[] columns = {NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_VERSION, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE};
+        int count;
+        db.beginTransaction();
+        try {
+            Cursor before = db.query(NotePad.Notes.TABLE_NAME, columns,
+                    NotePad.Notes._ID + " = ?", idArgs, null, null, null);
+            String oldTitle = null;
+            String oldText = null;
+            long oldVersion = 0;
+            long oldModified = 0;
+            try {
+                if (before.moveToFirst()) {
+                    oldTitle = before.getString(0);
+                    oldText = before.isNull(1) ? "" : before.getString(1);
+                    oldVersion = before.getLong(2);
+                    oldModified = before.getLong(3);
+                }
+            } finally {
+                before.close();
+            }
+
+            count = db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+
+            if (count > 0 && oldText != null) {
+                Cursor after = db.query(NotePad.Notes.TABLE_NAME, columns,
+                        NotePad.Notes._ID + " = ?", idArgs, null, null, null);
+                try {
+                    if (after.moveToFirst()) {
+                        RevisionStore.record(db, noteId, oldVersion, oldTitle, oldText,
+                                oldModified, after.getLong(2), after.getString(0),
+                                after.isNull(1) ? "" : after.getString(1),
+                                System.currentTimeMillis());
+                    }
+                } finally {
+                    after.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0 && keep != RevisionStore.KEEP_ALL) {
+            mBackgroundExecutor.execute(() -> compactHistory(noteId, keep));
+        }
+        return count;
+    }
+
+    /**
+     * Drops the oldest revisions of a note beyond the number the settings keep.
+     */
+    private void compactHistory(long noteId, int keep) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[]{NotePad.Notes.COLUMN_NAME_NOTE},
+                    NotePad.Notes._ID + " = ?", new String[]{String.valueOf(noteId)},
+                    null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    RevisionStore.compact(db, noteId, keep, c.isNull(0) ? "" : c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not compact the history of note " + noteId, e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the rows a write may have changed from the row cache. A write to a single note
+     * drops that note; a write with an arbitrary selection drops everything.
+     */
+    private void invalidateRowCache(int match, Uri uri) {
+        if (match == NOTE_ID) {
+            mRowCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mRowCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Releases the row cache, entirely or in part, when the system is short of memory.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mRowCache.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mRowCache.invalidateAll();
+        // Loaded again by the next suggestions query.
+        mSuggestions = null;
+    }
+
+    /**
+     * Indexes the notes written since the last run for the fuzzy search and sorts them into
+     * the smart folders, in the background. Writes in quick succession share a run.
+     */
+    private void scheduleSearchIndexing() {
+        if (!mSearchIndexing.compareAndSet(false, true)) {
+            return;
+        }
+        mBackgroundExecutor.execute(() -> {
+            // Cleared first, so a write during the run schedules another.
+            mSearchIndexing.set(false);
+            try {
+                catchUpSmartFolders();
+            } catch (SQLException e) {
+                Log.w(TAG, "Failed to index notes for search", e);
+            }
+        });
+    }
+
+    /**
+     * Brings the {@link TrigramIndex} and then the {@link SmartFolders} up to date, the
+     * folders depending on the words the index has.
+     */
+    private void catchUpSmartFolders() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        TrigramIndex.catchUp(db);
+        SmartFolders.catchUp(db);
+    }
+
+    /**
+     * Notifies observers of the given URI, and counts the notification in the provider stats.
+     * Inside {@link #applyBatch}, the URI is noted and notified once the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+        mStats.addNotification();
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Applies the operations in one transaction, so that a batch of writes, such as the moves
+     * of a drag in the list, costs one commit and either all of them apply or none do.
+     * Observers are notified after the commit, once for each URI that changed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> batch = new LinkedHashSet<>();
+        ContentProviderResult[] results;
+        mBatchNotifications.set(batch);
+        try {
+            db.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            mBatchNotifications.remove();
+        }
+        for (Uri uri : batch) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Handles provider-specific calls made through
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}.
+     * {@link NotePad#METHOD_STATS} returns a snapshot of the provider's counters and latency
+     * histograms; see {@link ProviderStats#toBundle()} for the key layout. Row cache counters
+     * are added under "row_cache.*" keys, and the storage profile under "storage.*" keys, see
+     * {@link StorageTuner#addTo}.
+     * {@link NotePad#METHOD_SLOW_QUERIES} returns the slow-query log, see
+     * {@link SlowQueryLog#toBundle()}. {@link NotePad#METHOD_MAIN_THREAD_IO} returns the
+     * main-thread calls by call site, see {@link MainThreadIoWatchdog#toBundle()}. Both clear
+     * what they recorded first if arg is "reset". {@link NotePad#METHOD_AGGREGATE} returns
+     * note counts from the summary table, see {@link NoteCounts#aggregate}.
+     * {@link NotePad#METHOD_DUPLICATES} returns notes with identical text, see
+     * {@link #findDuplicates()}.
+     * {@link NotePad#METHOD_RESTORE} and {@link NotePad#METHOD_PURGE_TRASH} take notes out of
+     * the trash and delete expired ones. {@link NotePad#METHOD_MAINTENANCE} runs or cancels a
+     * {@link DatabaseMaintenance} task. {@link NotePad#METHOD_ADD_RECENT_SEARCH} records a
+     * search for the suggestions. {@link NotePad#METHOD_DIAGNOSTICS} returns the full
+     * text report printed by {@link #dump} under the "report" key.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.METHOD_STATS.equals(method)) {
+            Bundle stats = mStats.toBundle();
+            mRowCache.addTo(stats);
+            mOpenHelper.getStorageTuner().addTo(stats);
+            return stats;
+        } else if (NotePad.METHOD_SLOW_QUERIES.equals(method)) {
+            if ("reset".equals(arg)) {
+                mSlowQueries.clear();
+            }
+            return mSlowQueries.toBundle();
+        } else if (NotePad.METHOD_MAIN_THREAD_IO.equals(method)) {
+            if ("reset".equals(arg)) {
+                mMainThreadIo.reset();
+            }
+            return mMainThreadIo.toBundle();
+        } else if (NotePad.METHOD_AGGREGATE.equals(method)) {
+            return NoteCounts.aggregate(mOpenHelper.getReadableDatabase(),
+                    System.currentTimeMillis());
+        } else if (NotePad.METHOD_DUPLICATES.equals(method)) {
+            return findDuplicates();
+        } else if (NotePad.METHOD_RESTORE.equals(method)) {
+            Bundle b = new Bundle();
+            b.putInt("restored", restoreFromTrash(parseArg(method, arg)));
+            return b;
+        } else if (NotePad.METHOD_PURGE_TRASH.equals(method)) {
+            int purged = purgeTrash(mOpenHelper.getWritableDatabase(),
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " < ?",
+                    new String[]{String.valueOf(parseArg(method, arg))}, true);
+            if (purged > 0) {
+                notifyChange(NotePad.Notes.TRASH_URI);
+            }
+            Bundle b = new Bundle();
+            b.putInt("purged", purged);
+            b.putInt("batch_size", TRASH_PURGE_BATCH);
+            return b;
+        } else if (NotePad.METHOD_MAINTENANCE.equals(method)) {
+            if (arg == null) {
+                return mMaintenance.toBundle();
+            } else if ("cancel".equals(arg)) {
+                mMaintenance.cancel();
+                return null;
+            }
+            return mMaintenance.run(mOpenHelper.getWritableDatabase(), arg);
+        } else if (NotePad.METHOD_ADD_RECENT_SEARCH.equals(method)) {
+            addRecentSearch(arg);
+            return null;
+        } else if (NotePad.METHOD_DIAGNOSTICS.equals(method)) {
+            StringWriter report = new StringWriter();
+            PrintWriter pw = new PrintWriter(report);
+            dumpDiagnostics(pw);
+            pw.flush();
+            Bundle b = new Bundle();
+            b.putString("report", report.toString());
+            return b;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // The number a call method takes as its arg, an ID or a time.
+    private static long parseArg(String method, String arg) {
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid arg for " + method + ": " + arg);
+        }
+    }
+
+    /**
+     * Finds notes with identical, non-empty text. Candidates are grouped by content hash and
+     * length using the hash index, and each group is confirmed by comparing the texts
+     * themselves, so a hash collision is never reported as a duplicate.
+     *
+     * @return a Bundle with a parcelable list under "groups"; each group has the note IDs
+     * under "ids", most recently modified first, and the text length under "length".
+     */
+    private Bundle findDuplicates() {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        ArrayList<Bundle> groups = new ArrayList<>();
+        Cursor candidates = db.rawQuery("SELECT " + NotePad.Notes.COLUMN_NAME_CONTENT_HASH
+                + ", " + NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH
+                + " > 0 AND " + LIVE + " GROUP BY 1, 2 HAVING COUNT(*) > 1", null);
+        try {
+            while (candidates.moveToNext()) {
+                String[] args = {candidates.getString(0), candidates.getString(1)};
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                        new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE},
+                        NotePad.Notes.COLUMN_NAME_CONTENT_HASH + " = ? AND "
+                                + NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH + " = ? AND " + LIVE,
+                        args, null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+                try {
+                    // Splits the candidates by actual text, in case of a hash collision.
+                    HashMap<String, ArrayList<Long>> byText = new HashMap<>();
+                    while (c.moveToNext()) {
+                        ArrayList<Long> ids = byText.get(c.getString(1));
+                        if (ids == null) {
+                            ids = new ArrayList<>();
+                            byText.put(c.getString(1), ids);
+                        }
+                        ids.add(c.getLong(0));
+                    }
+                    for (ArrayList<Long> ids : byText.values()) {
+                        if (ids.size() < 2) {
+                            continue;
+                        }
+                        long[] idArray = new long[ids.size()];
+                        for (int i = 0; i < idArray.length; i++) {
+                            idArray[i] = ids.get(i);
+                        }
+                        Bundle group = new Bundle();
+                        group.putLongArray("ids", idArray);
+                        group.putLong("length", candidates.getLong(1));
+                        groups.add(group);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            candidates.close();
+        }
+        Bundle result = new Bundle();
+        result.putParcelableArrayList("groups", groups);
+        return result;
+    }
+
+    /**
+     * Prints the provider stats for {@code adb shell dumpsys activity provider
+     * com.example.android.notepad/.NotePadProvider}.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpDiagnostics(writer);
+    }
+
+    private void dumpDiagnostics(PrintWriter pw) {
+        mStats.dump(pw);
+        mRowCache.dump(pw);
+        SuggestionTrie suggestions = mSuggestions;
+        pw.println("Suggestions: " + (suggestions == null ? "not loaded"
+                : suggestions.size() + " texts, " + suggestions.footprintBytes() + " bytes"));
+        mOpenHelper.getStorageTuner().dump(pw);
+        pw.println();
+        mSlowQueries.dump(pw);
+        pw.println();
+        mMainThreadIo.dump(pw);
+        pw.println();
+        mMaintenance.dump(pw);
+    }
+
+    /**
+     * An OutputStream that counts the bytes written through it, so that
+     * {@link #writeDataToPipe} can report how much data was streamed.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
     /**
      * This class helps open, create, and upgrade the database file. Set to package visibility
      * for testing purposes.
@@ -689,9 +3072,39 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        private final StorageTuner mStorageTuner;
+
         DatabaseHelper(Context context) {
             // calls the super constructor, requesting the default cursor factory.
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            mStorageTuner = new StorageTuner(
+                    context.getSharedPreferences("storage_tuning", Context.MODE_PRIVATE));
+        }
+
+        StorageTuner getStorageTuner() {
+            return mStorageTuner;
+        }
+
+        /**
+         * Turns on incremental vacuum, which only takes effect on a database with no tables
+         * yet; existing databases are converted by {@link DatabaseMaintenance}. Then applies
+         * the storage profile chosen by {@link StorageTuner}.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            mStorageTuner.configure(db);
+        }
+
+        /**
+         * Rebuilds the note counts if the time zone offset changed since the last open, so
+         * that their days stay local, see {@link NoteCounts#checkZone}.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (!db.isReadOnly()) {
+                NoteCounts.checkZone(db);
+            }
         }
 
         /**
@@ -706,32 +3119,108 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                     + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_COLOR + " INTEGER DEFAULT 0"
+                    + NotePad.Notes.COLUMN_NAME_COLOR + " INTEGER DEFAULT 0,"
+                    + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1,"
+                    + NotePad.Notes.COLUMN_NAME_CONTENT_HASH + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_CONTENT_LENGTH + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE_PINYIN + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_POSITION + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_PINNED + " INTEGER NOT NULL DEFAULT 0"
                     + ");");
+            createNoteIndexes(db);
+            NoteCounts.create(db);
+            createVersionTrigger(db);
+            createContentHashIndex(db);
+            RevisionStore.createTable(db);
+            createTrashIndex(db);
+            TrigramIndex.createTables(db);
+            createFilterIndexes(db);
+            createPinyinIndex(db);
+            SmartFolders.createTables(db);
+            NoteTags.createTables(db);
+            NotebookTree.createTables(db);
+            NoteOrder.createIndex(db);
+        }
+
+        static void createNoteIndexes(SQLiteDatabase db) {
             db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_title ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_TITLE + ");");
             db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_note ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_NOTE + ");");
         }
 
         /**
-         * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded the database
-         * by destroying the existing data.
-         * A real application should upgrade the database in place.
+         * Indexes the notes in the trash only; live notes, the vast majority, cost the index
+         * nothing. Used to list the trash and to find expired notes.
+         */
+        static void createTrashIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_deleted_at ON "
+                    + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_DELETED_AT
+                    + ") WHERE " + TRASHED);
+        }
+
+        /**
+         * Indexes the columns structured searches filter on, color and modification date,
+         * so that {@link SearchPlanner} can answer such a condition without a scan.
+         */
+        static void createFilterIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_color ON "
+                    + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_COLOR + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_modified ON "
+                    + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ")");
+        }
+
+        /**
+         * Indexes the pinyin of the notes that have some, leaving out the notes without
+         * Chinese, so that {@link SearchPlanner} can match a word against it without reading
+         * every note.
+         */
+        static void createPinyinIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_pinyin ON "
+                    + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN
+                    + ", " + NotePad.Notes.COLUMN_NAME_NOTE_PINYIN + ") WHERE "
+                    + SearchPlanner.HAS_PINYIN);
+        }
+
+        static void createContentHashIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_content_hash ON "
+                    + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_CONTENT_HASH
+                    + ")");
+        }
+
+        /**
+         * Creates the trigger that increments a note's version on every update of its title,
+         * text or color, the columns an editor saves. Trashing, filing, pinning and moving a
+         * note, and the columns the provider derives, leave the version alone, so that they
+         * don't turn an open editor's next save into a conflict. The WHEN clause skips updates
+         * that set the version themselves.
+         */
+        static void createVersionTrigger(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS notes_version AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ", " + NotePad.Notes.COLUMN_NAME_COLOR + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN NEW." + NotePad.Notes.COLUMN_NAME_VERSION
+                    + " = OLD." + NotePad.Notes.COLUMN_NAME_VERSION
+                    + " BEGIN UPDATE " + NotePad.Notes.TABLE_NAME
+                    + " SET " + NotePad.Notes.COLUMN_NAME_VERSION + " = OLD."
+                    + NotePad.Notes.COLUMN_NAME_VERSION + " + 1"
+                    + " WHERE " + NotePad.Notes._ID + " = NEW." + NotePad.Notes._ID + ";"
+                    + " END;");
+        }
+
+        /**
+         * Upgrades the database in place through {@link NotePadMigrations}, inside the
+         * transaction SQLiteOpenHelper opens for the upgrade, so that notes survive an upgrade
+         * from any earlier version.
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             // Logs that the database is being upgraded
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            if (oldVersion < 3) {
-                try {
-                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_COLOR + " INTEGER DEFAULT 0;");
-                } catch (SQLException ignored) {
-                }
-            } else {
-                db.execSQL("DROP TABLE IF EXISTS notes");
-                onCreate(db);
-            }
+                    + newVersion);
+            NotePadMigrations.migrate(db, oldVersion, newVersion);
         }
     }
 
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ComponentCallbacks2;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * An LRU cache of whole note rows, keyed by note ID and bounded by the approximate number of
+ * bytes the rows hold rather than by their count, so a few very long notes can't pin a lot of
+ * memory.
+ * <p>
+ * {@link NotePadProvider} serves single-note queries from the cache and invalidates entries
+ * after every update or delete. A reader that missed the cache only stores the row it read if
+ * no invalidation happened since it started reading, see {@link #generation()}, so a row read
+ * just before a concurrent write is never cached.
+ * 笔记行缓存：按字节数限制大小的 LRU 缓存，更新或删除时失效，内存紧张时释放。
+ */
+final class NoteRowCache {
+
+    // Rough per-object costs used to estimate how much memory a row holds.
+    private static final int ROW_OVERHEAD_BYTES = 64;
+    private static final int VALUE_OVERHEAD_BYTES = 16;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    /**
+     * One cached row: all columns of a note, as read from the notes table.
+     */
+    static final class Row {
+        final String[] columns;
+        final Object[] values;
+        final int sizeBytes;
+
+        private Row(String[] columns, Object[] values, int sizeBytes) {
+            this.columns = columns;
+            this.values = values;
+            this.sizeBytes = sizeBytes;
+        }
+
+        /**
+         * Copies the current row of the cursor.
+         */
+        static Row fromCursor(Cursor c) {
+            String[] columns = c.getColumnNames();
+            Object[] values = new Object[columns.length];
+            int size = ROW_OVERHEAD_BYTES;
+            for (int i = 0; i < columns.length; i++) {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = c.getLong(i);
+                        size += VALUE_OVERHEAD_BYTES;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i] = c.getDouble(i);
+                        size += VALUE_OVERHEAD_BYTES;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String s = c.getString(i);
+                        values[i] = s;
+                        size += STRING_OVERHEAD_BYTES + 2 * s.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = c.getBlob(i);
+                        values[i] = blob;
+                        size += VALUE_OVERHEAD_BYTES + blob.length;
+                        break;
+                    default:
+                        values[i] = null;
+                        size += 4;
+                        break;
+                }
+            }
+            return new Row(columns, values, size);
+        }
+
+        // Position of the named column in this row, or -1.
+        int indexOf(String column) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equals(column)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a note row again when a {@link RowCursor} is requeried.
+     */
+    interface Loader {
+        /**
+         * @return the row, or null if the note doesn't exist (any more).
+         */
+        Row load(long id);
+    }
+
+    private final LruCache<Long, Row> mCache;
+
+    // Bumped by every invalidation. Guarded by this.
+    private long mGeneration;
+
+    /**
+     * @param maxBytes the approximate number of bytes the cached rows may hold.
+     */
+    NoteRowCache(int maxBytes) {
+        mCache = new LruCache<Long, Row>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Row row) {
+                return row.sizeBytes;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached row, or null on a miss. Hits and misses are counted.
+     */
+    Row get(long id) {
+        return mCache.get(id);
+    }
+
+    /**
+     * Returns the current generation. Read it before reading a row from the database, and
+     * pass it to {@link #put} afterwards.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a row read from the database, unless the cache was invalidated since
+     * {@code generation} was read.
+     */
+    synchronized void put(long id, Row row, long generation) {
+        if (generation == mGeneration) {
+            mCache.put(id, row);
+        }
+    }
+
+    /**
+     * Drops one note. Call after the note has been written or deleted.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mCache.remove(id);
+    }
+
+    /**
+     * Drops every note. Call after a write that may have touched any number of notes.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    /**
+     * Releases memory when the system asks for it: everything once the process is in the
+     * background or memory is critically low, half of the cache otherwise.
+     */
+    void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+        } else {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Adds the cache counters to a stats Bundle, under "row_cache.*" keys.
+     */
+    void addTo(Bundle b) {
+        b.putLong("row_cache.hits", mCache.hitCount());
+        b.putLong("row_cache.misses", mCache.missCount());
+        b.putLong("row_cache.evictions", mCache.evictionCount());
+        b.putLong("row_cache.size_bytes", mCache.size());
+        b.putLong("row_cache.max_bytes", mCache.maxSize());
+    }
+
+    void dump(PrintWriter pw) {
+        int hits = mCache.hitCount();
+        int misses = mCache.missCount();
+        int lookups = hits + misses;
+        pw.println("Note row cache: " + hits + " hits, " + misses + " misses ("
+                + (lookups == 0 ? 0 : 100 * hits / lookups) + "% hit rate), "
+                + mCache.evictionCount() + " evictions, " + mCache.size() + " of "
+                + mCache.maxSize() + " bytes used");
+    }
+
+    /**
+     * A single-row cursor over a cached note, with the caller's projection. Requerying reads
+     * the row again through the {@link Loader}, so clients that call requery() to refresh see
+     * the latest saved note just as they would with a database cursor.
+     */
+    static final class RowCursor extends AbstractCursor {
+        private final long mId;
+        private final String[] mColumns;
+        private final Loader mLoader;
+        private Row mRow;
+        // Position in mRow of each projected column. A requery can find the note deleted, in
+        // which case mRow is null and the cursor is empty.
+        private int[] mIndexes;
+
+        /**
+         * Returns a cursor over the row with the given projection, or null if there is no row
+         * or the projection names a column the row doesn't have; such queries go to the
+         * database instead.
+         */
+        static RowCursor create(long id, Row row, String[] projection, Loader loader) {
+            if (row == null) {
+                return null;
+            }
+            String[] columns = projection != null ? projection : row.columns;
+            for (String column : columns) {
+                if (row.indexOf(column) < 0) {
+                    return null;
+                }
+            }
+            return new RowCursor(id, columns, loader, row);
+        }
+
+        private RowCursor(long id, String[] columns, Loader loader, Row row) {
+            mId = id;
+            mColumns = columns;
+            mLoader = loader;
+            setRow(row);
+        }
+
+        private void setRow(Row row) {
+            mRow = row;
+            if (row != null) {
+                mIndexes = new int[mColumns.length];
+                for (int i = 0; i < mColumns.length; i++) {
+                    mIndexes[i] = row.indexOf(mColumns[i]);
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean requery() {
+            setRow(mLoader.load(mId));
+            return super.requery();
+        }
+
+        private Object value(int column) {
+            if (mRow == null || getPosition() != 0) {
+                throw new IllegalStateException("Cursor is not positioned on the note");
+            }
+            int index = mIndexes[column];
+            return index < 0 ? null : mRow.values[index];
+        }
+
+        @Override
+        public int getCount() {
+            return mRow == null ? 0 : 1;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+            return value instanceof byte[] ? (byte[]) value : super.getBlob(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+    }
+}
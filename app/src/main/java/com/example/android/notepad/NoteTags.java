@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The tags and which notes have them.
+ * <p>
+ * {@link #JOIN_TABLE} holds one (note, tag) row per tagged note. Its primary key lists the
+ * tags of a note and an index on the tag lists the notes with a tag; since the table has no
+ * rowid, the index carries the note ID too, so either direction is one range of one b-tree
+ * and the notes are then looked up by ID. Each tag's {@link NotePad.Tags#COLUMN_NAME_NOTE_COUNT}
+ * is kept by triggers as notes are tagged, untagged, trashed, restored and purged, so the tag
+ * list shows its counts without counting. Deleting a note or a tag drops its rows by trigger.
+ * 标签及笔记-标签关联表：双向索引查询，触发器维护每个标签的笔记数。
+ */
+final class NoteTags {
+
+    static final String JOIN_TABLE = "note_tags";
+
+    /**
+     * The tables of the notes with a tag, for a query builder: the tag's rows drive, so the
+     * caller must restrict {@code note_tags.tag_id}.
+     */
+    static final String NOTES_WITH_TAG = JOIN_TABLE + " CROSS JOIN " + NotePad.Notes.TABLE_NAME
+            + " ON " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = "
+            + JOIN_TABLE + ".note_id";
+
+    /**
+     * The tables of the tags of a note, for a query builder: the note's rows drive, so the
+     * caller must restrict {@code note_tags.note_id}.
+     */
+    static final String TAGS_OF_NOTE = JOIN_TABLE + " CROSS JOIN " + NotePad.Tags.TABLE_NAME
+            + " ON " + NotePad.Tags.TABLE_NAME + "." + NotePad.Tags._ID + " = "
+            + JOIN_TABLE + ".tag_id";
+
+    // This class cannot be instantiated
+    private NoteTags() {
+    }
+
+    // Whether the note with the given ID expression is live, one that is not in the trash.
+    private static String isLive(String noteId) {
+        return "EXISTS (SELECT 1 FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                + NotePad.Notes._ID + " = " + noteId + " AND "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL)";
+    }
+
+    // Adds delta to the counts of the tags of the note with the given ID expression.
+    private static String count(String noteId, int delta) {
+        return "UPDATE " + NotePad.Tags.TABLE_NAME + " SET "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + (delta < 0 ? " - " : " + ")
+                + Math.abs(delta) + " WHERE " + NotePad.Tags._ID + " IN (SELECT tag_id FROM "
+                + JOIN_TABLE + " WHERE note_id = " + noteId + ");";
+    }
+
+    /**
+     * Creates the tags, the join table and the triggers that maintain them. Call from
+     * {@link NotePadProvider.DatabaseHelper#onCreate} and the migration that adds them.
+     */
+    static void createTables(SQLiteDatabase db) {
+        String tags = NotePad.Tags.TABLE_NAME;
+        String notes = NotePad.Notes.TABLE_NAME;
+        String deletedAt = NotePad.Notes.COLUMN_NAME_DELETED_AT;
+        db.execSQL("CREATE TABLE " + tags + " ("
+                + NotePad.Tags._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Tags.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE COLLATE NOCASE,"
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE " + JOIN_TABLE + " (note_id INTEGER NOT NULL,"
+                + " tag_id INTEGER NOT NULL, PRIMARY KEY (note_id, tag_id)) WITHOUT ROWID");
+        // The primary key is appended to the index, making it (tag_id, note_id).
+        db.execSQL("CREATE INDEX idx_note_tags_tag ON " + JOIN_TABLE + " (tag_id)");
+
+        // Only live notes are counted; a note's tags are counted out when it is trashed, so
+        // untagging it or purging it from the trash leaves the counts alone.
+        db.execSQL("CREATE TRIGGER note_tags_insert AFTER INSERT ON " + JOIN_TABLE
+                + " WHEN " + isLive("NEW.note_id")
+                + " BEGIN UPDATE " + tags + " SET " + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " + 1 WHERE " + NotePad.Tags._ID
+                + " = NEW.tag_id; END");
+        db.execSQL("CREATE TRIGGER note_tags_delete AFTER DELETE ON " + JOIN_TABLE
+                + " WHEN " + isLive("OLD.note_id")
+                + " BEGIN UPDATE " + tags + " SET " + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " - 1 WHERE " + NotePad.Tags._ID
+                + " = OLD.tag_id; END");
+        db.execSQL("CREATE TRIGGER note_tags_trash AFTER UPDATE OF " + deletedAt + " ON " + notes
+                + " WHEN OLD." + deletedAt + " IS NULL AND NEW." + deletedAt + " IS NOT NULL"
+                + " BEGIN " + count("NEW." + NotePad.Notes._ID, -1) + " END");
+        db.execSQL("CREATE TRIGGER note_tags_restore AFTER UPDATE OF " + deletedAt + " ON "
+                + notes + " WHEN OLD." + deletedAt + " IS NOT NULL AND NEW." + deletedAt
+                + " IS NULL BEGIN " + count("NEW." + NotePad.Notes._ID, 1) + " END");
+        // Counted out before the delete, while the note's rows are still there to find its
+        // tags; once it is gone, note_tags_delete doesn't count them out again.
+        db.execSQL("CREATE TRIGGER note_tags_purge BEFORE DELETE ON " + notes
+                + " WHEN OLD." + deletedAt + " IS NULL"
+                + " BEGIN " + count("OLD." + NotePad.Notes._ID, -1) + " END");
+        db.execSQL("CREATE TRIGGER note_tags_cleanup AFTER DELETE ON " + notes
+                + " BEGIN DELETE FROM " + JOIN_TABLE + " WHERE note_id = OLD._id; END");
+        db.execSQL("CREATE TRIGGER tags_cleanup AFTER DELETE ON " + tags
+                + " BEGIN DELETE FROM " + JOIN_TABLE + " WHERE tag_id = OLD._id; END");
+    }
+
+    /**
+     * Returns the ID of the tag with the given name, ignoring case, creating it if there is
+     * none. The name is trimmed first.
+     *
+     * @throws IllegalArgumentException if the name is empty
+     */
+    static long tagId(SQLiteDatabase db, String name) {
+        name = name != null ? name.trim() : "";
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Tag name is empty");
+        }
+        String[] args = {name};
+        db.execSQL("INSERT OR IGNORE INTO " + NotePad.Tags.TABLE_NAME + " ("
+                + NotePad.Tags.COLUMN_NAME_NAME + ") VALUES (?)", args);
+        return DatabaseUtils.longForQuery(db, "SELECT " + NotePad.Tags._ID + " FROM "
+                + NotePad.Tags.TABLE_NAME + " WHERE " + NotePad.Tags.COLUMN_NAME_NAME + " = ?",
+                args);
+    }
+
+    /**
+     * Tags a live note with an existing tag. Returns whether the note has the tag now: false if
+     * it is in the trash or doesn't exist, or if the tag doesn't exist.
+     */
+    static boolean add(SQLiteDatabase db, long noteId, long tagId) {
+        String[] args = {Long.toString(noteId), Long.toString(tagId)};
+        db.execSQL("INSERT OR IGNORE INTO " + JOIN_TABLE + " SELECT ?1, ?2 WHERE " + isLive("?1")
+                + " AND EXISTS (SELECT 1 FROM " + NotePad.Tags.TABLE_NAME + " WHERE "
+                + NotePad.Tags._ID + " = ?2)", args);
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + JOIN_TABLE
+                + " WHERE note_id = ?1 AND tag_id = ?2) AND " + isLive("?1"), args) != 0;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The notebook hierarchy, path-encoded.
+ * <p>
+ * Every notebook stores the IDs of its ancestors and its own as a path, "/3/12/40/", which
+ * triggers set on insert and rewrite on a move. The notebooks inside one are then exactly
+ * those whose path starts with its path, one range of the path index, so that the notes of a
+ * subtree are listed by one query: a range of the notebooks, and the notes of each through
+ * the index on {@link NotePad.Notes#COLUMN_NAME_NOTEBOOK_ID}. Notes point at their notebook
+ * only, so a move rewrites the paths of the notebooks it moves and none of their notes.
+ * <p>
+ * Each notebook keeps the number of live notes in it and in its whole subtree, updated by
+ * triggers as notes are filed, moved, trashed, restored and deleted, and as notebooks move,
+ * so that the drawer reads its counts without counting. A note's ancestors are found by
+ * testing which paths are prefixes of its notebook's path; that scans the notebooks, which
+ * are few, and never the notes.
+ * 笔记本层级：路径编码，子树为路径索引上的一个区间；触发器维护每个笔记本及其子树的笔记数。
+ */
+final class NotebookTree {
+
+    // This class cannot be instantiated
+    private NotebookTree() {
+    }
+
+    // The path of the notebook with the given ID expression, or NULL if there is none.
+    private static String pathOf(String notebookId) {
+        return "(SELECT " + NotePad.Notebooks.COLUMN_NAME_PATH + " FROM "
+                + NotePad.Notebooks.TABLE_NAME + " WHERE " + NotePad.Notebooks._ID + " = "
+                + notebookId + ")";
+    }
+
+    // The smallest string greater than every path starting with the given one: its closing
+    // "/" becomes "0", the next character.
+    private static String pathEnd(String path) {
+        return "(substr(" + path + ", 1, length(" + path + ") - 1) || '0')";
+    }
+
+    // Whether the notebook row is the notebook with the given path or one of its ancestors.
+    private static String isAncestorOf(String path) {
+        return "substr(" + path + ", 1, length(" + NotePad.Notebooks.COLUMN_NAME_PATH + ")) = "
+                + NotePad.Notebooks.COLUMN_NAME_PATH;
+    }
+
+    // Adds delta to the counts of the notebook with the given ID expression and to the totals
+    // of its ancestors, if the condition holds.
+    private static String count(String notebookId, int delta, String condition) {
+        String sign = delta < 0 ? " - " : " + ";
+        return "UPDATE " + NotePad.Notebooks.TABLE_NAME + " SET "
+                + NotePad.Notebooks.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.Notebooks.COLUMN_NAME_NOTE_COUNT + sign + "(" + NotePad.Notebooks._ID
+                + " = " + notebookId + "), "
+                + NotePad.Notebooks.COLUMN_NAME_TOTAL_COUNT + " = "
+                + NotePad.Notebooks.COLUMN_NAME_TOTAL_COUNT + sign + Math.abs(delta)
+                + " WHERE " + condition + " AND " + isAncestorOf(pathOf(notebookId)) + ";";
+    }
+
+    /**
+     * Returns a condition on the notebooks table that selects the notebook with the given ID
+     * expression and the notebooks inside it, as a range of the path index.
+     */
+    static String subtree(String notebookId) {
+        return NotePad.Notebooks.COLUMN_NAME_PATH + " >= " + pathOf(notebookId) + " AND "
+                + NotePad.Notebooks.COLUMN_NAME_PATH + " < " + pathEnd(pathOf(notebookId));
+    }
+
+    /**
+     * Creates the notebooks, the index of the notes by notebook, and the triggers that keep
+     * the paths and counts. Call from {@link NotePadProvider.DatabaseHelper#onCreate} and the
+     * migration that adds them, once the notes have their notebook column.
+     */
+    static void createTables(SQLiteDatabase db) {
+        String notebooks = NotePad.Notebooks.TABLE_NAME;
+        String notes = NotePad.Notes.TABLE_NAME;
+        String path = NotePad.Notebooks.COLUMN_NAME_PATH;
+        String parentId = NotePad.Notebooks.COLUMN_NAME_PARENT_ID;
+        String totalCount = NotePad.Notebooks.COLUMN_NAME_TOTAL_COUNT;
+        String notebookId = NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID;
+        String deletedAt = NotePad.Notes.COLUMN_NAME_DELETED_AT;
+        db.execSQL("CREATE TABLE " + notebooks + " ("
+                + NotePad.Notebooks._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notebooks.COLUMN_NAME_NAME + " TEXT NOT NULL,"
+                + parentId + " INTEGER,"
+                + path + " TEXT NOT NULL DEFAULT '',"
+                + NotePad.Notebooks.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + totalCount + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_notebooks_path ON " + notebooks + " (" + path + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_notes_notebook ON " + notes + " ("
+                + notebookId + ")");
+
+        // The path is set once the notebook has its ID. A parent must exist, and a notebook
+        // can't move into itself or a notebook inside it.
+        db.execSQL("CREATE TRIGGER notebooks_parent BEFORE INSERT ON " + notebooks
+                + " WHEN NEW." + parentId + " IS NOT NULL AND " + pathOf("NEW." + parentId)
+                + " IS NULL BEGIN SELECT RAISE(ABORT, 'no such parent notebook'); END");
+        db.execSQL("CREATE TRIGGER notebooks_path AFTER INSERT ON " + notebooks
+                + " BEGIN UPDATE " + notebooks + " SET " + path + " = IFNULL("
+                + pathOf("NEW." + parentId) + ", '/') || NEW._id || '/' WHERE "
+                + NotePad.Notebooks._ID + " = NEW._id; END");
+        db.execSQL("CREATE TRIGGER notebooks_move_check BEFORE UPDATE OF " + parentId + " ON "
+                + notebooks + " WHEN NEW." + parentId + " IS NOT NULL AND IFNULL(substr("
+                + pathOf("NEW." + parentId) + ", 1, length(OLD." + path + ")) = OLD." + path
+                + ", 1) BEGIN SELECT RAISE(ABORT, 'no such parent notebook, or inside the"
+                + " notebook moved'); END");
+        // A move takes the subtree's total from the old ancestors, rewrites the paths of the
+        // subtree, one range of the index, and adds the total to the new ancestors.
+        db.execSQL("CREATE TRIGGER notebooks_move AFTER UPDATE OF " + parentId + " ON "
+                + notebooks + " WHEN OLD." + parentId + " IS NOT NEW." + parentId + " BEGIN"
+                + " UPDATE " + notebooks + " SET " + totalCount + " = " + totalCount
+                + " - OLD." + totalCount + " WHERE " + NotePad.Notebooks._ID + " <> OLD._id"
+                + " AND " + isAncestorOf("OLD." + path) + ";"
+                + " UPDATE " + notebooks + " SET " + path + " = IFNULL("
+                + pathOf("NEW." + parentId) + ", '/') || OLD._id || '/' || substr(" + path
+                + ", length(OLD." + path + ") + 1) WHERE " + path + " >= OLD." + path
+                + " AND " + path + " < " + pathEnd("OLD." + path) + ";"
+                + " UPDATE " + notebooks + " SET " + totalCount + " = " + totalCount
+                + " + OLD." + totalCount + " WHERE " + NotePad.Notebooks._ID + " <> OLD._id"
+                + " AND " + isAncestorOf(pathOf("OLD._id")) + "; END");
+        // Deleting a notebook deletes its subtree in one statement, so this doesn't need to
+        // fire again for the notebooks inside; their notes stay, outside any notebook.
+        db.execSQL("CREATE TRIGGER notebooks_notes_release BEFORE DELETE ON " + notebooks
+                + " BEGIN UPDATE " + notes + " SET " + notebookId + " = NULL WHERE "
+                + notebookId + " = OLD._id; END");
+        db.execSQL("CREATE TRIGGER notebooks_cleanup AFTER DELETE ON " + notebooks
+                + " BEGIN DELETE FROM " + notebooks + " WHERE " + path + " > OLD." + path
+                + " AND " + path + " < " + pathEnd("OLD." + path) + "; END");
+
+        // A note can only be filed in a notebook that exists.
+        String noteCheck = " WHEN NEW." + notebookId + " IS NOT NULL AND "
+                + pathOf("NEW." + notebookId) + " IS NULL"
+                + " BEGIN SELECT RAISE(ABORT, 'no such notebook'); END";
+        db.execSQL("CREATE TRIGGER notebooks_note_insert_check BEFORE INSERT ON " + notes
+                + noteCheck);
+        db.execSQL("CREATE TRIGGER notebooks_note_update_check BEFORE UPDATE OF " + notebookId
+                + " ON " + notes + noteCheck);
+
+        // Only live notes are counted, as in NoteCounts.
+        db.execSQL("CREATE TRIGGER notebooks_count_insert AFTER INSERT ON " + notes
+                + " WHEN NEW." + notebookId + " IS NOT NULL AND NEW." + deletedAt + " IS NULL"
+                + " BEGIN " + count("NEW." + notebookId, 1, "1") + " END");
+        db.execSQL("CREATE TRIGGER notebooks_count_delete AFTER DELETE ON " + notes
+                + " WHEN OLD." + notebookId + " IS NOT NULL AND OLD." + deletedAt + " IS NULL"
+                + " BEGIN " + count("OLD." + notebookId, -1, "1") + " END");
+        db.execSQL("CREATE TRIGGER notebooks_count_update AFTER UPDATE OF " + notebookId + ", "
+                + deletedAt + " ON " + notes + " WHEN OLD." + notebookId + " IS NOT NEW."
+                + notebookId + " OR (OLD." + deletedAt + " IS NULL) <> (NEW." + deletedAt
+                + " IS NULL) BEGIN "
+                + count("OLD." + notebookId, -1, "OLD." + deletedAt + " IS NULL")
+                + count("NEW." + notebookId, 1, "NEW." + deletedAt + " IS NULL")
+                + " END");
+    }
+}
@@ -16,28 +16,45 @@
 
 package com.example.android.notepad;
 
+import android.app.SearchManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.SQLException;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.RemoteException;
+import android.text.SpannableString;
+import android.text.Spanned;
 import android.text.format.DateUtils;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StyleSpan;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.view.DragEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.SearchView;
@@ -45,14 +62,29 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import androidx.appcompat.app.ActionBarDrawerToggle;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.app.AppCompatDelegate;
+import androidx.core.view.ViewCompat;
+import androidx.drawerlayout.widget.DrawerLayout;
+import androidx.tracing.Trace;
 
 import com.google.android.material.appbar.MaterialToolbar;
+import com.google.android.material.chip.Chip;
+import com.google.android.material.chip.ChipGroup;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.google.android.material.snackbar.Snackbar;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -85,8 +117,12 @@ public class NotesList extends AppCompatActivity {
             NotePad.Notes.COLUMN_NAME_NOTE, // 2 内容
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 3 修改日期
             NotePad.Notes.COLUMN_NAME_COLOR, // 4 颜色
+            NotePad.Notes.COLUMN_NAME_POSITION, // 5 手动排序位置
+            NotePad.Notes.COLUMN_NAME_PINNED, // 6 是否置顶
     };
 
+    private static final int COLUMN_INDEX_ID = 0;
+
     /**
      * The index of the title column
      * 标题列的索引
@@ -100,10 +136,15 @@ public class NotesList extends AppCompatActivity {
      */
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
     private static final int COLUMN_INDEX_COLOR = 4;
-    // 搜索模式：全部/标题/内容
+    private static final int COLUMN_INDEX_POSITION = 5;
+    private static final int COLUMN_INDEX_PINNED = 6;
+    // 拖动排序的写入攒批间隔（毫秒），期间的多次拖动在一个事务中写入
+    private static final long MOVE_FLUSH_DELAY_MS = 500L;
+    // 搜索模式：全部/标题/内容/模糊
     private static final int SEARCH_MODE_ALL = 0;
     private static final int SEARCH_MODE_TITLE = 1;
     private static final int SEARCH_MODE_CONTENT = 2;
+    private static final int SEARCH_MODE_FUZZY = 3;
     private static final long SEARCH_DEBOUNCE_MS = 250L; // 搜索防抖时间（毫秒）
     private final Handler searchHandler = new Handler(Looper.getMainLooper());
     // AppCompat 改造新增字段
@@ -114,6 +155,40 @@ public class NotesList extends AppCompatActivity {
     private SearchView searchView; // 搜索框
     private Spinner searchModeSpinner; // 搜索模式选择框
     private Runnable searchRunnable; // 搜索任务
+    private FrameMetricsCollector frameMetrics; // 帧耗时统计
+    // 首屏快照：冷启动时显示，后台查询完成后替换
+    private final ExecutorService listExecutor = Executors.newSingleThreadExecutor();
+    private File snapshotFile;
+    private boolean showsDefaultList; // 是否显示默认笔记列表（只有它保存快照）
+    private Cursor snapshotCursor; // 从快照读出的光标
+    private Cursor savedCursor; // 最近一次写入快照的光标
+    private ContentObserver notesObserver; // 监听笔记变化并刷新列表
+    private SearchSession searchSession; // 增量搜索会话（缓存上次结果）
+    // 当前打开的智能文件夹，-1 表示全部笔记；过滤线程也会读取
+    private volatile long smartFolderId = -1;
+    // 当前选中的标签，-1 表示不按标签筛选；与智能文件夹互斥
+    private volatile long tagId = -1;
+    private View tagBar; // 标签筛选条
+    private ChipGroup tagChips;
+    private ContentObserver tagsObserver; // 监听标签及其计数变化
+    // 当前打开的笔记本（含其子笔记本），-1 表示不按笔记本筛选；与智能文件夹、标签互斥
+    private volatile long notebookId = -1;
+    private DrawerLayout drawerLayout; // 笔记本抽屉
+    private ListView notebookList;
+    private ContentObserver notebooksObserver; // 监听笔记本及其计数变化
+    // 抽屉中的笔记本，按树的先序排列；第 0 项为全部笔记
+    private final List<Long> notebookIds = new ArrayList<>();
+    private final List<String> notebookNames = new ArrayList<>();
+    private final List<String> notebookPaths = new ArrayList<>();
+    private final List<Integer> notebookDepths = new ArrayList<>();
+    private final List<String> notebookLabels = new ArrayList<>();
+    private boolean manualOrder; // 是否按手动排序显示，可拖动调整
+    // 已拖动但列表尚未重新查询的笔记：ID -> {是否置顶, 位置键}
+    private final Map<Long, Object[]> movedNotes = new HashMap<>();
+    // 待写入的拖动结果，攒批后在后台一次写入
+    private final ArrayList<ContentProviderOperation> pendingMoves = new ArrayList<>();
+    private int movesInFlight; // 已提交后台、尚未写完的批次数
+    private final Runnable flushMoves = this::flushMoves;
 
     /**
      * onCreate is called when Android starts this Activity from scratch.
@@ -140,9 +215,20 @@ public class NotesList extends AppCompatActivity {
         if (toolbar != null) {
             setSupportActionBar(toolbar);
         }
+        // 笔记本抽屉：点击导航按钮打开
+        drawerLayout = findViewById(R.id.drawer_layout);
+        ActionBarDrawerToggle drawerToggle = new ActionBarDrawerToggle(this, drawerLayout,
+                toolbar, R.string.drawer_open, R.string.drawer_close);
+        drawerLayout.addDrawerListener(drawerToggle);
+        drawerToggle.syncState();
         // 绑定 ListView（替代 ListActivity 内置列表）
         listView = findViewById(android.R.id.list);
 
+        // 每日清理回收站中过期的笔记（已安排时不重复安排）
+        TrashPurgeWorker.schedule(this);
+        // 设备空闲且充电时每日维护数据库（统计信息、空间回收、完整性检查）
+        MaintenanceWorker.schedule(this);
+
         /* If no data is given in the Intent that started this Activity, then this Activity
          * was started when the intent filter matched a MAIN action. We should use the default
          * provider URI.
@@ -163,19 +249,26 @@ public class NotesList extends AppCompatActivity {
          */
         listView.setOnCreateContextMenuListener(this);
 
-        /* Performs a managed query. The Activity handles closing and requerying the cursor
-         * when needed.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
+        /* Shows the snapshot of the list saved the last time it changed, if there is one, so
+         * that the first screen doesn't wait for the database. The live list is queried on a
+         * background thread by loadList() below and replaces the snapshot when it is ready.
          */
-        Uri notesUri = getIntent().getData() != null ? getIntent().getData() : NotePad.Notes.CONTENT_URI;
-        Cursor cursor = getContentResolver().query(
-                notesUri,            // Use the default content URI for the provider.
-                PROJECTION,                       // Return the note ID and title for each note.
-                null,                             // No where clause, return all records.
-                null,                             // No where clause, therefore no where column values.
-                NotePad.Notes.DEFAULT_SORT_ORDER  // Use the default sort order.
-        );
+        snapshotFile = new File(getFilesDir(), ListSnapshot.FILE_NAME);
+        showsDefaultList = NotePad.Notes.CONTENT_URI.equals(getIntent().getData());
+        manualOrder = getSharedPreferences("settings", MODE_PRIVATE)
+                .getBoolean("manual_order", false);
+        searchSession = new SearchSession(getContentResolver(), getIntent().getData(), PROJECTION,
+                listSortOrder());
+        Cursor cursor = null;
+        if (showsDefaultList) {
+            Trace.beginSection("NotesList.snapshot");
+            try {
+                cursor = ListSnapshot.read(snapshotFile, PROJECTION);
+            } finally {
+                Trace.endSection();
+            }
+            snapshotCursor = cursor;
+        }
 
         /*
          * The following two arrays create a "map" between columns in the cursor and view IDs
@@ -194,13 +287,16 @@ public class NotesList extends AppCompatActivity {
                 NotePad.Notes.COLUMN_NAME_TITLE,
                 NotePad.Notes.COLUMN_NAME_NOTE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-                NotePad.Notes.COLUMN_NAME_COLOR
+                NotePad.Notes.COLUMN_NAME_COLOR,
+                NotePad.Notes.COLUMN_NAME_POSITION,
+                NotePad.Notes.COLUMN_NAME_PINNED
         };
 
         // The view IDs that will display the cursor columns, initialized to the TextView in
         // noteslist_item.xml
         // 初始化视图 ID 数组
-        int[] viewIDs = {android.R.id.text1, R.id.note_preview, R.id.timestamp_text, R.id.card_root};
+        int[] viewIDs = {android.R.id.text1, R.id.note_preview, R.id.timestamp_text, R.id.card_root,
+                R.id.drag_handle, R.id.pin_icon};
 
         // Creates the backing adapter for the ListView.
         // 创建 SimpleCursorAdapter 适配器，将光标数据绑定到列表视图
@@ -215,54 +311,12 @@ public class NotesList extends AppCompatActivity {
         );
 
         adapter.setViewBinder((view, cursor1, columnIndex) -> {
-            SharedPreferences sp = getSharedPreferences("settings", MODE_PRIVATE);
-            boolean useRelative = sp.getBoolean("pref_relative_time", true);
-            boolean showPreview = sp.getBoolean("pref_show_preview", true);
-            if (columnIndex == COLUMN_INDEX_MODIFICATION_DATE) {
-                long timestamp = cursor1.getLong(columnIndex);
-                if (useRelative) {
-                    CharSequence rel = DateUtils.getRelativeTimeSpanString(
-                            timestamp, System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS);
-                    ((TextView) view).setText(rel);
-                } else {
-                    java.text.DateFormat df = android.text.format.DateFormat.getDateFormat(this);
-                    java.text.DateFormat tf = android.text.format.DateFormat.getTimeFormat(this);
-                    java.util.Date d = new java.util.Date(timestamp);
-                    ((TextView) view).setText(String.format("%s %s", df.format(d), tf.format(d))); // 显示日期和时间
-                }
-                return true;
-            } else if (columnIndex == COLUMN_INDEX_NOTE) {
-                if (!showPreview && view instanceof TextView) {
-                    ((TextView) view).setText("");
-                    return true;
-                }
-                return false;
-            } else if (columnIndex == COLUMN_INDEX_COLOR) {
-                int colorIdx = cursor1.getInt(columnIndex);
-                int resolved;
-                switch (colorIdx) {
-                    case 1:
-                        resolved = getResources().getColor(R.color.noteColorYellow);
-                        break;
-                    case 2:
-                        resolved = getResources().getColor(R.color.noteColorGreen);
-                        break;
-                    case 3:
-                        resolved = getResources().getColor(R.color.noteColorBlue);
-                        break;
-                    case 4:
-                        resolved = getResources().getColor(R.color.noteColorRed);
-                        break;
-                    default:
-                        resolved = getResources().getColor(R.color.colorSurface);
-                }
-                // 只改变卡片背景色，避免整行容器被染色
-                if (view instanceof com.google.android.material.card.MaterialCardView) {
-                    ((com.google.android.material.card.MaterialCardView) view).setCardBackgroundColor(resolved);
-                }
-                return true;
+            Trace.beginSection("NotesList.bindView");
+            try {
+                return bindColumn(view, cursor1, columnIndex);
+            } finally {
+                Trace.endSection();
             }
-            return false;
         });
 
         // Sets the ListView's adapter to be the cursor adapter that was just created.
@@ -270,6 +324,76 @@ public class NotesList extends AppCompatActivity {
         mAdapter = adapter;
         listView.setAdapter(mAdapter);
 
+        // 列表数据变化时更新首屏快照
+        mAdapter.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                saveSnapshot();
+                // 重新查询到的列表已含全部写完的拖动结果
+                clearMovedNotes();
+            }
+        });
+        loadList();
+
+        // 笔记增删改后在后台重新查询当前列表（沿用当前搜索条件）
+        notesObserver = new ContentObserver(searchHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                searchSession.invalidate();
+                if (mAdapter != null) {
+                    mAdapter.getFilter().filter(currentQuery);
+                }
+            }
+        };
+        getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI, true,
+                notesObserver);
+
+        // 标签筛选条：点击标签只显示带该标签的笔记，再次点击恢复全部
+        tagBar = findViewById(R.id.tag_bar);
+        tagChips = findViewById(R.id.tag_chips);
+        tagsObserver = new ContentObserver(searchHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                loadTags();
+            }
+        };
+        getContentResolver().registerContentObserver(NotePad.Tags.CONTENT_URI, false,
+                tagsObserver);
+        loadTags();
+
+        // 笔记本树：点击只显示该笔记本及其子笔记本中的笔记，长按可移动或删除
+        notebookList = findViewById(R.id.notebook_list);
+        notebookList.setAdapter(new ArrayAdapter<String>(this,
+                android.R.layout.simple_list_item_activated_1, notebookLabels) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                View view = super.getView(position, convertView, parent);
+                int indent = Math.round(16 * getResources().getDisplayMetrics().density);
+                view.setPaddingRelative(indent * (1 + notebookDepths.get(position)),
+                        view.getPaddingTop(), view.getPaddingEnd(), view.getPaddingBottom());
+                return view;
+            }
+        });
+        notebookList.setOnItemClickListener((parent, view, position, id) -> {
+            setScope(-1, -1, notebookIds.get(position), notebookNames.get(position));
+            drawerLayout.closeDrawers();
+        });
+        notebookList.setOnItemLongClickListener((parent, view, position, id) -> {
+            if (position > 0) {
+                editNotebook(position);
+            }
+            return true;
+        });
+        notebooksObserver = new ContentObserver(searchHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                loadNotebooks();
+            }
+        };
+        getContentResolver().registerContentObserver(NotePad.Notebooks.CONTENT_URI, false,
+                notebooksObserver);
+        loadNotebooks();
+
         // 绑定 SearchView 与适配器的过滤逻辑（按标题或内容模糊匹配）
         searchView = findViewById(R.id.search_view);
         searchView.setQueryHint(getString(R.string.search_hint_all));
@@ -282,7 +406,8 @@ public class NotesList extends AppCompatActivity {
                 new String[]{
                         getString(R.string.menu_search_all),
                         getString(R.string.menu_search_title),
-                        getString(R.string.menu_search_content)
+                        getString(R.string.menu_search_content),
+                        getString(R.string.menu_search_fuzzy)
                 });
         modeAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         searchModeSpinner.setAdapter(modeAdapter);
@@ -297,9 +422,12 @@ public class NotesList extends AppCompatActivity {
                 } else if (position == 1) {
                     searchMode = SEARCH_MODE_TITLE;
                     searchView.setQueryHint(getString(R.string.search_hint_title));
-                } else {
+                } else if (position == 2) {
                     searchMode = SEARCH_MODE_CONTENT;
                     searchView.setQueryHint(getString(R.string.search_hint_content));
+                } else {
+                    searchMode = SEARCH_MODE_FUZZY;
+                    searchView.setQueryHint(getString(R.string.search_hint_fuzzy));
                 }
                 // 模式切换也走防抖，避免立刻多次查询
                 if (searchRunnable != null) {
@@ -319,35 +447,46 @@ public class NotesList extends AppCompatActivity {
         });
 
         adapter.setFilterQueryProvider(constraint -> {
-            if (constraint == null || constraint.length() == 0) {
-                return getContentResolver().query(
-                        getIntent().getData(),
-                        PROJECTION,
-                        null,
-                        null,
-                        NotePad.Notes.DEFAULT_SORT_ORDER
-                );
-            } else {
-                String selection;
-                String[] selectionArgs;
-                if (searchMode == SEARCH_MODE_TITLE) {
-                    selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? COLLATE NOCASE";
-                    selectionArgs = new String[]{"%" + constraint + "%"};
-                } else if (searchMode == SEARCH_MODE_CONTENT) {
-                    selection = NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ? COLLATE NOCASE";
-                    selectionArgs = new String[]{"%" + constraint + "%"};
-                } else { // SEARCH_MODE_ALL
-                    selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? COLLATE NOCASE OR " +
-                            NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ? COLLATE NOCASE";
-                    selectionArgs = new String[]{"%" + constraint + "%", "%" + constraint + "%"};
+            Trace.beginSection("NotesList.filter");
+            try {
+                return runFilterQuery(constraint);
+            } finally {
+                Trace.endSection();
+            }
+        });
+
+        // 搜索建议：最近的搜索和笔记标题，由 provider 从内存中的前缀树返回
+        SimpleCursorAdapter suggestionsAdapter = new SimpleCursorAdapter(this,
+                android.R.layout.simple_list_item_1, null,
+                new String[]{SearchManager.SUGGEST_COLUMN_TEXT_1},
+                new int[]{android.R.id.text1}, 0);
+        suggestionsAdapter.setFilterQueryProvider(constraint -> getContentResolver().query(
+                NotePad.Notes.SUGGEST_URI.buildUpon()
+                        .appendPath(constraint != null ? constraint.toString() : "").build(),
+                null, null, null, null));
+        searchView.setSuggestionsAdapter(suggestionsAdapter);
+        searchView.setOnSuggestionListener(new SearchView.OnSuggestionListener() {
+            @Override
+            public boolean onSuggestionSelect(int position) {
+                return false;
+            }
+
+            @Override
+            public boolean onSuggestionClick(int position) {
+                Cursor c = searchView.getSuggestionsAdapter().getCursor();
+                if (c == null || !c.moveToPosition(position)) {
+                    return false;
                 }
-                return getContentResolver().query(
-                        getIntent().getData(),
-                        PROJECTION,
-                        selection,
-                        selectionArgs,
-                        NotePad.Notes.DEFAULT_SORT_ORDER
-                );
+                // 标题建议直接打开笔记，最近搜索则重新执行
+                String data = c.getString(c.getColumnIndexOrThrow(
+                        SearchManager.SUGGEST_COLUMN_INTENT_DATA));
+                if (data != null) {
+                    startActivity(new Intent(Intent.ACTION_EDIT, Uri.parse(data)));
+                } else {
+                    searchView.setQuery(c.getString(c.getColumnIndexOrThrow(
+                            SearchManager.SUGGEST_COLUMN_QUERY)), true);
+                }
+                return true;
             }
         });
 
@@ -356,6 +495,9 @@ public class NotesList extends AppCompatActivity {
             public boolean onQueryTextSubmit(String query) {
                 currentQuery = query;
                 mAdapter.getFilter().filter(query); // 提交时立即过滤
+                // 记录到最近搜索，供搜索建议使用
+                listExecutor.execute(() -> getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                        NotePad.METHOD_ADD_RECENT_SEARCH, query, null));
                 return true;
             }
 
@@ -376,6 +518,9 @@ public class NotesList extends AppCompatActivity {
             }
         });
 
+        // 手动排序：拖动手柄把笔记放到松手处
+        listView.setOnDragListener((v, event) -> onListDrag(event));
+
         // 使用 ListView 的点击回调，直接使用稳定的 id 参数
         listView.setOnItemClickListener((l, v, position, id) -> {
             if (id == AdapterView.INVALID_ROW_ID) return;
@@ -395,6 +540,846 @@ public class NotesList extends AppCompatActivity {
         }
     }
 
+    /**
+     * Queries the live list on a background thread and replaces the snapshot with it, unless a
+     * search has already replaced the list.
+     */
+    private void loadList() {
+        listExecutor.execute(() -> {
+            Cursor live;
+            Trace.beginSection("NotesList.initialLoad");
+            try {
+                live = runFilterQuery(null);
+            } finally {
+                Trace.endSection();
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed() || mAdapter.getCursor() != snapshotCursor) {
+                    if (live != null) {
+                        live.close();
+                    }
+                    return;
+                }
+                mAdapter.changeCursor(live);
+            });
+        });
+    }
+
+    /**
+     * Saves the first rows of the full list as the snapshot shown on the next cold start. The
+     * rows are copied here, on the main thread that owns the cursor, and written to the file
+     * in the background. Filtered lists and lists passed in by other apps aren't saved.
+     */
+    private void saveSnapshot() {
+        Cursor cursor = mAdapter.getCursor();
+        if (!showsDefaultList || cursor == null || cursor == snapshotCursor
+                || cursor == savedCursor || cursor.isClosed() || currentQuery.length() > 0
+                || smartFolderId >= 0 || tagId >= 0 || notebookId >= 0) {
+            return;
+        }
+        savedCursor = cursor;
+        Object[][] rows = ListSnapshot.capture(cursor);
+        listExecutor.execute(() -> ListSnapshot.write(snapshotFile, rows));
+    }
+
+    /**
+     * Returns a search result snippet with its matches in bold on the highlight color.
+     */
+    private CharSequence highlightSnippet(String snippet, String matches) {
+        SpannableString text = new SpannableString(snippet == null ? "" : snippet);
+        int[] offsets = SearchRanker.parseMatches(matches);
+        int highlight = getResources().getColor(R.color.searchHighlight);
+        for (int i = 0; i + 1 < offsets.length; i += 2) {
+            int start = Math.min(offsets[i], text.length());
+            int end = Math.min(offsets[i + 1], text.length());
+            text.setSpan(new BackgroundColorSpan(highlight), start, end,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new StyleSpan(Typeface.BOLD), start, end,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return text;
+    }
+
+    /**
+     * Binds one cursor column to its view in a list item. Returns true when the column was
+     * handled here, false to let SimpleCursorAdapter bind it as plain text.
+     */
+    private boolean bindColumn(View view, Cursor cursor, int columnIndex) {
+        SharedPreferences sp = getSharedPreferences("settings", MODE_PRIVATE);
+        boolean useRelative = sp.getBoolean("pref_relative_time", true);
+        boolean showPreview = sp.getBoolean("pref_show_preview", true);
+        if (columnIndex == COLUMN_INDEX_MODIFICATION_DATE) {
+            long timestamp = cursor.getLong(columnIndex);
+            if (useRelative) {
+                CharSequence rel = DateUtils.getRelativeTimeSpanString(
+                        timestamp, System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS);
+                ((TextView) view).setText(rel);
+            } else {
+                java.text.DateFormat df = android.text.format.DateFormat.getDateFormat(this);
+                java.text.DateFormat tf = android.text.format.DateFormat.getTimeFormat(this);
+                java.util.Date d = new java.util.Date(timestamp);
+                ((TextView) view).setText(String.format("%s %s", df.format(d), tf.format(d))); // 显示日期和时间
+            }
+            return true;
+        } else if (columnIndex == COLUMN_INDEX_NOTE) {
+            if (!showPreview && view instanceof TextView) {
+                ((TextView) view).setText("");
+                return true;
+            }
+            // 搜索结果显示匹配处的摘要并高亮匹配文字
+            int snippetIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+            if (snippetIndex >= 0 && view instanceof TextView) {
+                ((TextView) view).setText(highlightSnippet(cursor.getString(snippetIndex),
+                        cursor.getString(cursor.getColumnIndex(
+                                NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES))));
+                return true;
+            }
+            return false;
+        } else if (columnIndex == COLUMN_INDEX_PINNED) {
+            view.setVisibility(isPinned(cursor) ? View.VISIBLE : View.GONE);
+            return true;
+        } else if (columnIndex == COLUMN_INDEX_POSITION) {
+            // 快照中的行没有位置键，不能拖动
+            view.setVisibility(canDrag() && !cursor.isNull(columnIndex)
+                    ? View.VISIBLE : View.GONE);
+            view.setOnTouchListener((handle, event) -> {
+                if (event.getActionMasked() != MotionEvent.ACTION_DOWN) {
+                    return false;
+                }
+                startMove(handle);
+                return true;
+            });
+            return true;
+        } else if (columnIndex == COLUMN_INDEX_COLOR) {
+            int colorIdx = cursor.getInt(columnIndex);
+            int resolved;
+            switch (colorIdx) {
+                case 1:
+                    resolved = getResources().getColor(R.color.noteColorYellow);
+                    break;
+                case 2:
+                    resolved = getResources().getColor(R.color.noteColorGreen);
+                    break;
+                case 3:
+                    resolved = getResources().getColor(R.color.noteColorBlue);
+                    break;
+                case 4:
+                    resolved = getResources().getColor(R.color.noteColorRed);
+                    break;
+                default:
+                    resolved = getResources().getColor(R.color.colorSurface);
+            }
+            // 只改变卡片背景色，避免整行容器被染色
+            if (view instanceof com.google.android.material.card.MaterialCardView) {
+                ((com.google.android.material.card.MaterialCardView) view).setCardBackgroundColor(resolved);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queries the notes matching the search box text in the current search mode. Called by the
+     * adapter's filter on a background thread. While the user keeps typing, the search session
+     * narrows the previous result instead of querying again. In the default mode, text using
+     * the query syntax, such as "color:red" or "-draft", is run as a structured query.
+     */
+    private Cursor runFilterQuery(CharSequence constraint) {
+        String text = constraint == null ? "" : constraint.toString();
+        long folder = smartFolderId;
+        if (folder >= 0) {
+            return queryScope(NotePad.SavedSearches.notesUri(folder), text);
+        }
+        long tag = tagId;
+        if (tag >= 0) {
+            return queryScope(NotePad.Tags.notesUri(tag), text);
+        }
+        long notebook = notebookId;
+        if (notebook >= 0) {
+            return queryScope(NotePad.Notebooks.notesUri(notebook), text);
+        }
+        if (searchMode == SEARCH_MODE_FUZZY) {
+            return searchSession.searchFuzzy(text);
+        }
+        String in;
+        if (searchMode == SEARCH_MODE_TITLE) {
+            in = NotePad.Notes.COLUMN_NAME_TITLE;
+        } else if (searchMode == SEARCH_MODE_CONTENT) {
+            in = NotePad.Notes.COLUMN_NAME_NOTE;
+        } else if (SearchQuery.isStructured(text)) {
+            return searchSession.searchQuery(text);
+        } else { // SEARCH_MODE_ALL
+            in = null;
+        }
+        return searchSession.search(text, in);
+    }
+
+    /**
+     * Lists the notes of a smart folder, a tag or a notebook, read from its index, narrowed to
+     * those containing the text in their title or text if there is one.
+     */
+    private Cursor queryScope(Uri scope, String text) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (!text.trim().isEmpty()) {
+            String pattern = SearchPlanner.likePattern(text.trim());
+            selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? ESCAPE '\\' OR "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ? ESCAPE '\\'";
+            selectionArgs = new String[]{pattern, pattern};
+        }
+        return getContentResolver().query(scope, PROJECTION, selection, selectionArgs,
+                listSortOrder());
+    }
+
+    // 当前的列表排序：手动排序或按修改时间
+    private String listSortOrder() {
+        return manualOrder ? NotePad.Notes.MANUAL_SORT_ORDER : NotePad.Notes.DEFAULT_SORT_ORDER;
+    }
+
+    // 只有手动排序且未搜索时才能拖动：搜索结果按相关度排列
+    private boolean canDrag() {
+        return manualOrder && currentQuery.trim().isEmpty();
+    }
+
+    // 行是否置顶，已拖动但尚未重新查询的以拖动结果为准
+    private boolean isPinned(Cursor cursor) {
+        Object[] moved = movedNotes.get(cursor.getLong(COLUMN_INDEX_ID));
+        return moved != null ? (Boolean) moved[0] : cursor.getInt(COLUMN_INDEX_PINNED) != 0;
+    }
+
+    // 行的 {是否置顶, 位置键}，超出列表时为 null
+    private Object[] rowOrder(Cursor cursor, int position) {
+        if (position < 0 || !cursor.moveToPosition(position)) {
+            return null;
+        }
+        Object[] moved = movedNotes.get(cursor.getLong(COLUMN_INDEX_ID));
+        return moved != null ? moved : new Object[]{cursor.getInt(COLUMN_INDEX_PINNED) != 0,
+                cursor.getString(COLUMN_INDEX_POSITION)};
+    }
+
+    // 按下拖动手柄：以整行为拖动影子开始拖动，本地状态为行在适配器中的位置
+    private void startMove(View handle) {
+        int position = listView.getPositionForView(handle);
+        if (position == ListView.INVALID_POSITION) {
+            return;
+        }
+        View row = listView.getChildAt(position - listView.getFirstVisiblePosition());
+        ViewCompat.startDragAndDrop(row, ClipData.newPlainText("note", ""),
+                new View.DragShadowBuilder(row), position - listView.getHeaderViewsCount(), 0);
+    }
+
+    private boolean onListDrag(DragEvent event) {
+        switch (event.getAction()) {
+            case DragEvent.ACTION_DRAG_STARTED:
+                return event.getLocalState() instanceof Integer;
+            case DragEvent.ACTION_DRAG_LOCATION:
+                // 靠近上下边缘时滚动列表
+                int edge = listView.getHeight() / 8;
+                int y = (int) event.getY();
+                if (y < edge) {
+                    listView.smoothScrollBy(-edge, 100);
+                } else if (y > listView.getHeight() - edge) {
+                    listView.smoothScrollBy(edge, 100);
+                }
+                return true;
+            case DragEvent.ACTION_DROP:
+                int to = listView.pointToPosition((int) event.getX(), (int) event.getY());
+                View last = listView.getChildAt(listView.getChildCount() - 1);
+                if (to == ListView.INVALID_POSITION && last != null
+                        && event.getY() >= last.getBottom()) {
+                    // 放在最后一行之下
+                    to = listView.getLastVisiblePosition();
+                }
+                if (to == ListView.INVALID_POSITION) {
+                    return false;
+                }
+                moveNote((Integer) event.getLocalState(), to - listView.getHeaderViewsCount());
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Moves a note from one row of the list to another. The note takes a key between those of
+     * its new neighbours in the section it lands in, pinned or not, so usually only its own
+     * row is written. Notes after it whose keys don't sort after the one before it, as equal
+     * keys written at the same time elsewhere can leave, get new keys in the order shown. The
+     * list shows the move at once, and the writes are batched for a moment so that a quick
+     * series of moves is saved in one transaction.
+     */
+    private void moveNote(int from, int to) {
+        Cursor cursor = mAdapter.getCursor();
+        if (cursor == null || from == to || from < 0 || to < 0 || to >= cursor.getCount()
+                || !cursor.moveToPosition(from)) {
+            return;
+        }
+        long id = cursor.getLong(COLUMN_INDEX_ID);
+        Object[] previous = rowOrder(cursor, to > from ? to : to - 1);
+        Object[] next = rowOrder(cursor, to > from ? to + 1 : to);
+        boolean pinned = previous != null ? (Boolean) previous[0]
+                : next != null && (Boolean) next[0];
+        String before = previous != null && previous[0].equals(pinned)
+                ? (String) previous[1] : null;
+
+        // 找到放下处之后第一个键大于前一行的笔记；其间键不大于前一行的笔记一起重新取键
+        List<Long> ids = new ArrayList<>();
+        ids.add(id);
+        String after = null;
+        for (int j = to > from ? to + 1 : to; ; j++) {
+            if (j == from) {
+                continue;
+            }
+            Object[] order = rowOrder(cursor, j);
+            if (order == null || !order[0].equals(pinned) || order[1] == null) {
+                break;
+            }
+            if (before == null || ((String) order[1]).compareTo(before) > 0) {
+                after = (String) order[1];
+                break;
+            }
+            ids.add(cursor.getLong(COLUMN_INDEX_ID));
+        }
+        String[] keys = new String[ids.size()];
+        try {
+            String key = before;
+            for (int k = 0; k < keys.length; k++) {
+                key = NoteOrder.between(key, after);
+                keys[k] = key;
+            }
+        } catch (IllegalArgumentException e) {
+            // 数据库中的键无效，不是本应用写入的
+            Log.w(TAG, "Note " + id + " not moved", e);
+            return;
+        }
+        for (int k = 0; k < keys.length; k++) {
+            movedNotes.put(ids.get(k), new Object[]{pinned, keys[k]});
+            pendingMoves.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                            NotePad.Notes.CONTENT_ID_URI_BASE, ids.get(k)))
+                    .withValue(NotePad.Notes.COLUMN_NAME_POSITION, keys[k])
+                    .withValue(NotePad.Notes.COLUMN_NAME_PINNED, pinned ? 1 : 0)
+                    .build());
+        }
+
+        // 在同一个底层游标上叠加行的顺序，立即显示移动结果
+        int[] order;
+        Cursor rows;
+        if (cursor instanceof MovedRowsCursor) {
+            order = ((MovedRowsCursor) cursor).order.clone();
+            rows = ((MovedRowsCursor) cursor).getWrappedCursor();
+        } else {
+            order = new int[cursor.getCount()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            rows = cursor;
+        }
+        int row = order[from];
+        if (to > from) {
+            System.arraycopy(order, from + 1, order, from, to - from);
+        } else {
+            System.arraycopy(order, to, order, to + 1, from - to);
+        }
+        order[to] = row;
+        mAdapter.swapCursor(new MovedRowsCursor(rows, order));
+
+        searchHandler.removeCallbacks(flushMoves);
+        searchHandler.postDelayed(flushMoves, MOVE_FLUSH_DELAY_MS);
+    }
+
+    // 在后台一次写入攒下的拖动结果；失败时重新查询，恢复数据库中的顺序
+    private void flushMoves() {
+        if (pendingMoves.isEmpty()) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> moves = new ArrayList<>(pendingMoves);
+        pendingMoves.clear();
+        movesInFlight++;
+        listExecutor.execute(() -> {
+            boolean saved = false;
+            try {
+                getContentResolver().applyBatch(NotePad.AUTHORITY, moves);
+                saved = true;
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                Log.w(TAG, "Moves not saved", e);
+            }
+            final boolean refresh = !saved;
+            runOnUiThread(() -> {
+                movesInFlight--;
+                if (refresh) {
+                    movedNotes.clear();
+                    searchSession.invalidate();
+                    mAdapter.getFilter().filter(currentQuery);
+                } else {
+                    clearMovedNotes();
+                }
+            });
+        });
+    }
+
+    // 列表已重新查询且没有未写完的拖动时，清除拖动结果
+    private void clearMovedNotes() {
+        Cursor cursor = mAdapter.getCursor();
+        if (!(cursor instanceof MovedRowsCursor) && pendingMoves.isEmpty()
+                && movesInFlight == 0) {
+            movedNotes.clear();
+        }
+    }
+
+    /**
+     * Saves the current search as a smart folder. Title searches keep their field; the other
+     * modes are saved as typed, in the structured query syntax.
+     */
+    private void saveSearch() {
+        String query = currentQuery.trim();
+        if (searchMode == SEARCH_MODE_TITLE && !SearchQuery.isStructured(query)) {
+            query = "title:\"" + query.replace("\"", "") + "\"";
+        }
+        final String saved = query;
+        listExecutor.execute(() -> {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.SavedSearches.COLUMN_NAME_QUERY, saved);
+            try {
+                getContentResolver().insert(NotePad.SavedSearches.CONTENT_URI, values);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Search not saved: " + saved, e);
+                return;
+            }
+            runOnUiThread(() -> Snackbar.make(listView, R.string.smart_folder_saved,
+                    Snackbar.LENGTH_SHORT).show());
+        });
+    }
+
+    /**
+     * Reads the smart folders in the background and lets the user open one, or go back to all
+     * notes.
+     */
+    private void showSmartFolders() {
+        listExecutor.execute(() -> {
+            final List<Long> ids = new ArrayList<>();
+            final List<String> names = new ArrayList<>();
+            final List<String> items = new ArrayList<>();
+            ids.add(-1L);
+            names.add(null);
+            items.add(getString(R.string.smart_folder_all_notes));
+            Cursor c = getContentResolver().query(NotePad.SavedSearches.CONTENT_URI,
+                    new String[]{NotePad.SavedSearches._ID, NotePad.SavedSearches.COLUMN_NAME_NAME,
+                            NotePad.SavedSearches.COLUMN_NAME_NOTE_COUNT},
+                    null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                        names.add(c.getString(1));
+                        items.add(getString(R.string.smart_folder_item, c.getString(1),
+                                c.getInt(2)));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.menu_smart_folders)
+                        .setItems(items.toArray(new String[0]), (dialog, which) ->
+                                setScope(ids.get(which), -1, -1, names.get(which)))
+                        .show();
+            });
+        });
+    }
+
+    /**
+     * Shows the notes of a smart folder, a tag or a notebook, at most one of them not -1, or
+     * all notes, keeping the text in the search box as a filter. The name is shown as the
+     * subtitle.
+     */
+    private void setScope(long folder, long tag, long notebook, String name) {
+        smartFolderId = folder;
+        tagId = tag;
+        notebookId = notebook;
+        checkTagChip();
+        notebookList.setItemChecked(Math.max(notebookIds.indexOf(notebook), 0), true);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(name);
+        }
+        searchSession.invalidate();
+        mAdapter.getFilter().filter(currentQuery);
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Reads the tags and their counts in the background and shows them as chips above the
+     * list. The bar is hidden while there are no tags; if the selected tag is gone, all notes
+     * are shown again.
+     */
+    private void loadTags() {
+        listExecutor.execute(() -> {
+            final List<Long> ids = new ArrayList<>();
+            final List<String> names = new ArrayList<>();
+            final List<String> labels = new ArrayList<>();
+            Cursor c = getContentResolver().query(NotePad.Tags.CONTENT_URI, new String[]{
+                            NotePad.Tags._ID, NotePad.Tags.COLUMN_NAME_NAME,
+                            NotePad.Tags.COLUMN_NAME_NOTE_COUNT},
+                    null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                        names.add(c.getString(1));
+                        labels.add(getString(R.string.tag_chip, c.getString(1), c.getInt(2)));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                tagChips.removeAllViews();
+                for (int i = 0; i < ids.size(); i++) {
+                    final long id = ids.get(i);
+                    final String name = names.get(i);
+                    Chip chip = new Chip(this);
+                    chip.setText(labels.get(i));
+                    chip.setTag(id);
+                    chip.setCheckable(true);
+                    chip.setOnClickListener(v -> setScope(-1, tagId == id ? -1 : id, -1,
+                            tagId == id ? null : name));
+                    tagChips.addView(chip);
+                }
+                tagBar.setVisibility(ids.isEmpty() ? View.GONE : View.VISIBLE);
+                if (tagId >= 0 && !ids.contains(tagId)) {
+                    setScope(-1, -1, -1, null);
+                } else {
+                    checkTagChip();
+                }
+            });
+        });
+    }
+
+    // 只勾选当前标签对应的 chip
+    private void checkTagChip() {
+        for (int i = 0; i < tagChips.getChildCount(); i++) {
+            View chip = tagChips.getChildAt(i);
+            ((Chip) chip).setChecked(Long.valueOf(tagId).equals(chip.getTag()));
+        }
+    }
+
+    /**
+     * Reads all tags and those of the note in the background, and lets the user check the
+     * note's tags or add a new one. The changes are written in the background.
+     */
+    private void editTags(final long noteId) {
+        listExecutor.execute(() -> {
+            final List<Long> ids = new ArrayList<>();
+            final List<String> names = new ArrayList<>();
+            List<Long> noteTags = new ArrayList<>();
+            Cursor c = getContentResolver().query(NotePad.Tags.CONTENT_URI, new String[]{
+                    NotePad.Tags._ID, NotePad.Tags.COLUMN_NAME_NAME}, null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                        names.add(c.getString(1));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            c = getContentResolver().query(NotePad.Tags.noteTagsUri(noteId),
+                    new String[]{NotePad.Tags._ID}, null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        noteTags.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            final boolean[] had = new boolean[ids.size()];
+            for (int i = 0; i < had.length; i++) {
+                had[i] = noteTags.contains(ids.get(i));
+            }
+            final boolean[] checked = had.clone();
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.menu_tags)
+                        .setMultiChoiceItems(names.toArray(new String[0]), checked,
+                                (dialog, which, isChecked) -> checked[which] = isChecked)
+                        .setPositiveButton(android.R.string.ok, (dialog, which) ->
+                                listExecutor.execute(() -> {
+                                    for (int i = 0; i < had.length; i++) {
+                                        if (checked[i] && !had[i]) {
+                                            ContentValues values = new ContentValues();
+                                            values.put(NotePad.Tags._ID, ids.get(i));
+                                            getContentResolver().insert(
+                                                    NotePad.Tags.noteTagsUri(noteId), values);
+                                        } else if (!checked[i] && had[i]) {
+                                            getContentResolver().delete(NotePad.Tags.noteTagUri(
+                                                    noteId, ids.get(i)), null, null);
+                                        }
+                                    }
+                                }))
+                        .setNeutralButton(R.string.tag_new, (dialog, which) -> newTag(noteId))
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            });
+        });
+    }
+
+    /**
+     * Asks for the name of a tag to put on the note, creating the tag if there is none by
+     * that name.
+     */
+    private void newTag(final long noteId) {
+        final EditText input = new EditText(this);
+        input.setHint(R.string.tag_name_hint);
+        input.setSingleLine(true);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.tag_new)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    final String name = input.getText().toString().trim();
+                    if (name.isEmpty()) {
+                        return;
+                    }
+                    listExecutor.execute(() -> {
+                        ContentValues values = new ContentValues();
+                        values.put(NotePad.Tags.COLUMN_NAME_NAME, name);
+                        try {
+                            getContentResolver().insert(NotePad.Tags.noteTagsUri(noteId),
+                                    values);
+                        } catch (SQLException e) {
+                            // 笔记已移入回收站
+                            Log.w(TAG, "Note " + noteId + " not tagged", e);
+                        }
+                    });
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Reads the notebooks and their counts in the background and shows them in the drawer as a
+     * tree, each notebook under its parent, after "All notes". If the open notebook is gone,
+     * all notes are shown again.
+     */
+    private void loadNotebooks() {
+        listExecutor.execute(() -> {
+            final Map<Long, List<Object[]>> children = new HashMap<>();
+            Cursor c = getContentResolver().query(NotePad.Notebooks.CONTENT_URI, new String[]{
+                            NotePad.Notebooks._ID, NotePad.Notebooks.COLUMN_NAME_NAME,
+                            NotePad.Notebooks.COLUMN_NAME_PARENT_ID,
+                            NotePad.Notebooks.COLUMN_NAME_PATH,
+                            NotePad.Notebooks.COLUMN_NAME_TOTAL_COUNT},
+                    null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        long parent = c.isNull(2) ? -1 : c.getLong(2);
+                        List<Object[]> list = children.get(parent);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            children.put(parent, list);
+                        }
+                        list.add(new Object[]{c.getLong(0), c.getString(1), c.getString(3),
+                                c.getInt(4)});
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            for (List<Object[]> list : children.values()) {
+                Collections.sort(list, (a, b) ->
+                        ((String) a[1]).compareToIgnoreCase((String) b[1]));
+            }
+            final List<Long> ids = new ArrayList<>();
+            final List<String> names = new ArrayList<>();
+            final List<String> paths = new ArrayList<>();
+            final List<Integer> depths = new ArrayList<>();
+            final List<String> labels = new ArrayList<>();
+            ids.add(-1L);
+            names.add(null);
+            paths.add("/");
+            depths.add(0);
+            labels.add(getString(R.string.smart_folder_all_notes));
+            addNotebooks(children, -1, 0, ids, names, paths, depths, labels);
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                notebookIds.clear();
+                notebookIds.addAll(ids);
+                notebookNames.clear();
+                notebookNames.addAll(names);
+                notebookPaths.clear();
+                notebookPaths.addAll(paths);
+                notebookDepths.clear();
+                notebookDepths.addAll(depths);
+                notebookLabels.clear();
+                notebookLabels.addAll(labels);
+                ((ArrayAdapter<?>) notebookList.getAdapter()).notifyDataSetChanged();
+                if (notebookId >= 0 && !ids.contains(notebookId)) {
+                    setScope(-1, -1, -1, null);
+                } else {
+                    notebookList.setItemChecked(Math.max(ids.indexOf(notebookId), 0), true);
+                }
+            });
+        });
+    }
+
+    // 先序遍历：每个笔记本后紧跟其子笔记本，子笔记本按名称排序
+    private void addNotebooks(Map<Long, List<Object[]>> children, long parent, int depth,
+            List<Long> ids, List<String> names, List<String> paths, List<Integer> depths,
+            List<String> labels) {
+        List<Object[]> list = children.get(parent);
+        if (list == null) {
+            return;
+        }
+        for (Object[] notebook : list) {
+            ids.add((Long) notebook[0]);
+            names.add((String) notebook[1]);
+            paths.add((String) notebook[2]);
+            depths.add(depth);
+            labels.add(getString(R.string.notebook_item, notebook[1], notebook[3]));
+            addNotebooks(children, (Long) notebook[0], depth + 1, ids, names, paths, depths,
+                    labels);
+        }
+    }
+
+    /**
+     * Asks for a name and creates a notebook, inside the open notebook if there is one. The
+     * notebook is written in the background.
+     */
+    private void newNotebook() {
+        final long parent = notebookId;
+        final EditText input = new EditText(this);
+        input.setHint(R.string.notebook_name_hint);
+        input.setSingleLine(true);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_new_notebook)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    final String name = input.getText().toString().trim();
+                    if (name.isEmpty()) {
+                        return;
+                    }
+                    listExecutor.execute(() -> {
+                        ContentValues values = new ContentValues();
+                        values.put(NotePad.Notebooks.COLUMN_NAME_NAME, name);
+                        if (parent >= 0) {
+                            values.put(NotePad.Notebooks.COLUMN_NAME_PARENT_ID, parent);
+                        }
+                        try {
+                            getContentResolver().insert(NotePad.Notebooks.CONTENT_URI, values);
+                        } catch (SQLException e) {
+                            // 父笔记本已被删除
+                            Log.w(TAG, "Notebook " + name + " not created", e);
+                        }
+                    });
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Lets the user move the notebook at the given drawer position under another notebook or to
+     * the top level, or delete it with the notebooks inside it. Its notes are kept.
+     */
+    private void editNotebook(int position) {
+        final long notebook = notebookIds.get(position);
+        final String path = notebookPaths.get(position);
+        final Uri uri = ContentUris.withAppendedId(NotePad.Notebooks.CONTENT_ID_URI_BASE,
+                notebook);
+        new AlertDialog.Builder(this)
+                .setTitle(notebookNames.get(position))
+                .setItems(new String[]{getString(R.string.notebook_move),
+                        getString(R.string.notebook_delete)}, (dialog, which) -> {
+                    if (which == 1) {
+                        listExecutor.execute(() -> getContentResolver().delete(uri, null, null));
+                        return;
+                    }
+                    // 不能移到自身或其子笔记本中
+                    final List<Long> targets = new ArrayList<>();
+                    List<String> items = new ArrayList<>();
+                    targets.add(-1L);
+                    items.add(getString(R.string.notebook_top_level));
+                    for (int i = 1; i < notebookIds.size(); i++) {
+                        if (!notebookPaths.get(i).startsWith(path)) {
+                            targets.add(notebookIds.get(i));
+                            items.add(notebookLabels.get(i));
+                        }
+                    }
+                    new AlertDialog.Builder(this)
+                            .setTitle(R.string.notebook_move)
+                            .setItems(items.toArray(new String[0]), (d, target) -> {
+                                final long parent = targets.get(target);
+                                listExecutor.execute(() -> {
+                                    ContentValues values = new ContentValues();
+                                    if (parent >= 0) {
+                                        values.put(NotePad.Notebooks.COLUMN_NAME_PARENT_ID,
+                                                parent);
+                                    } else {
+                                        values.putNull(NotePad.Notebooks.COLUMN_NAME_PARENT_ID);
+                                    }
+                                    try {
+                                        getContentResolver().update(uri, values, null, null);
+                                    } catch (SQLException e) {
+                                        // 目标笔记本已被删除
+                                        Log.w(TAG, "Notebook " + notebook + " not moved", e);
+                                    }
+                                });
+                            })
+                            .show();
+                })
+                .show();
+    }
+
+    /**
+     * Lets the user file a note in a notebook, or in none. The note is written in the
+     * background.
+     */
+    private void moveToNotebook(final long noteId) {
+        final List<Long> targets = new ArrayList<>();
+        List<String> items = new ArrayList<>();
+        targets.add(-1L);
+        items.add(getString(R.string.notebook_none));
+        for (int i = 1; i < notebookIds.size(); i++) {
+            targets.add(notebookIds.get(i));
+            items.add(notebookLabels.get(i));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_move_to_notebook)
+                .setItems(items.toArray(new String[0]), (dialog, which) -> {
+                    final long notebook = targets.get(which);
+                    listExecutor.execute(() -> {
+                        ContentValues values = new ContentValues();
+                        if (notebook >= 0) {
+                            values.put(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID, notebook);
+                        } else {
+                            values.putNull(NotePad.Notes.COLUMN_NAME_NOTEBOOK_ID);
+                        }
+                        try {
+                            getContentResolver().update(ContentUris.withAppendedId(
+                                    NotePad.Notes.CONTENT_ID_URI_BASE, noteId), values, null,
+                                    null);
+                        } catch (SQLException e) {
+                            // 笔记本已被删除
+                            Log.w(TAG, "Note " + noteId + " not moved", e);
+                        }
+                    });
+                })
+                .show();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -405,6 +1390,19 @@ public class NotesList extends AppCompatActivity {
         if (listView != null) {
             listView.invalidateViews();
         }
+        frameMetrics = FrameMetricsCollector.attach(this, TAG);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // 离开前写入攒下的拖动结果
+        searchHandler.removeCallbacks(flushMoves);
+        flushMoves();
+        if (frameMetrics != null) {
+            frameMetrics.detach();
+            frameMetrics = null;
+        }
     }
 
     /**
@@ -470,7 +1468,15 @@ public class NotesList extends AppCompatActivity {
         // If the clipboard is empty, disables the menu's Paste option.
         mPasteItem.setEnabled(clipboard.hasPrimaryClip());
 
-        // Gets the number of notes currently being displayed.
+        // 有搜索内容时才能保存；打开智能文件夹时可删除它
+        menu.findItem(R.id.menu_save_search).setEnabled(
+                smartFolderId < 0 && tagId < 0 && notebookId < 0
+                        && !currentQuery.trim().isEmpty());
+        menu.findItem(R.id.menu_delete_smart_folder).setVisible(smartFolderId >= 0);
+        menu.findItem(R.id.menu_manual_order).setChecked(manualOrder);
+
+        // Gets the number of notes currently being displayed, for the current filter. The list
+        // view has already counted the adapter's cursor, so this doesn't query anything.
         final boolean haveItems = mAdapter.getCount() > 0;
 
         // If there are any notes in the list (which implies that one of
@@ -571,6 +1577,29 @@ public class NotesList extends AppCompatActivity {
             item.setChecked(true);
             recreate(); // 重新应用主题
             return true;
+        } else if (item.getItemId() == R.id.menu_manual_order) {
+            getSharedPreferences("settings", MODE_PRIVATE)
+                    .edit().putBoolean("manual_order", !manualOrder).apply();
+            recreate(); // 以新的排序重新查询
+            return true;
+        } else if (item.getItemId() == R.id.menu_smart_folders) {
+            showSmartFolders();
+            return true;
+        } else if (item.getItemId() == R.id.menu_save_search) {
+            saveSearch();
+            return true;
+        } else if (item.getItemId() == R.id.menu_delete_smart_folder) {
+            final Uri folder = ContentUris.withAppendedId(
+                    NotePad.SavedSearches.CONTENT_ID_URI_BASE, smartFolderId);
+            listExecutor.execute(() -> getContentResolver().delete(folder, null, null));
+            setScope(-1, -1, -1, null);
+            return true;
+        } else if (item.getItemId() == R.id.menu_new_notebook) {
+            newNotebook();
+            return true;
+        } else if (item.getItemId() == R.id.menu_trash) {
+            startActivity(new Intent(this, TrashActivity.class));
+            return true;
         } else if (item.getItemId() == R.id.menu_settings) {
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
@@ -629,6 +1658,11 @@ public class NotesList extends AppCompatActivity {
         // Sets the menu header to be the title of the selected note.
         menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
 
+        // 置顶只在手动排序中起作用
+        menu.findItem(R.id.context_pin).setVisible(manualOrder && !cursor.isNull(
+                COLUMN_INDEX_POSITION)).setTitle(isPinned(cursor) ? R.string.menu_unpin
+                : R.string.menu_pin);
+
         // Append to the
         // menu items for any other activities that can do stuff with it
         // as well.  This does a query on the system for any activities that
@@ -683,7 +1717,14 @@ public class NotesList extends AppCompatActivity {
                     noteUri));
             return true;
         } else if (id == R.id.context_delete) {
-            getContentResolver().delete(noteUri, null, null);
+            // 在后台移入回收站，并提供撤销
+            listExecutor.execute(() -> getContentResolver().delete(noteUri, null, null));
+            final long noteId = info.id;
+            Snackbar.make(listView, R.string.note_moved_to_trash, Snackbar.LENGTH_LONG)
+                    .setAction(R.string.undo, v -> listExecutor.execute(() ->
+                            getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                                    NotePad.METHOD_RESTORE, String.valueOf(noteId), null)))
+                    .show();
             return true;
         } else if (id == R.id.context_color) {
             // 弹出颜色选择对话框，避免菜单过长
@@ -708,6 +1749,23 @@ public class NotesList extends AppCompatActivity {
                     })
                     .show();
             return true;
+        } else if (id == R.id.context_tags) {
+            editTags(info.id);
+            return true;
+        } else if (id == R.id.context_notebook) {
+            moveToNotebook(info.id);
+            return true;
+        } else if (id == R.id.context_pin) {
+            Cursor cursor = (Cursor) mAdapter.getItem(info.position);
+            final boolean pin = cursor == null || !isPinned(cursor);
+            movedNotes.remove(info.id);
+            // 不带位置键写入：由 provider 放到新分区的最前面
+            listExecutor.execute(() -> {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_PINNED, pin ? 1 : 0);
+                getContentResolver().update(noteUri, values, null, null);
+            });
+            return true;
         }
         return super.onContextItemSelected(item);
     }
@@ -718,6 +1776,102 @@ public class NotesList extends AppCompatActivity {
         if (searchRunnable != null) {
             searchHandler.removeCallbacks(searchRunnable);
         }
+        if (notesObserver != null) {
+            getContentResolver().unregisterContentObserver(notesObserver);
+        }
+        if (tagsObserver != null) {
+            getContentResolver().unregisterContentObserver(tagsObserver);
+        }
+        if (notebooksObserver != null) {
+            getContentResolver().unregisterContentObserver(notebooksObserver);
+        }
+        if (searchSession != null) {
+            searchSession.logStats();
+        }
+        // 已排队的快照写入仍会完成
+        listExecutor.shutdown();
+        if (mAdapter != null) {
+            mAdapter.changeCursor(null);
+        }
         super.onDestroy();
     }
+
+    /**
+     * A cursor over the same rows in another order, shown while moves are being saved so
+     * the list doesn't wait for a new query. Closing it closes the rows.
+     */
+    private static final class MovedRowsCursor extends CursorWrapper {
+
+        final int[] order;
+        private int position = -1;
+
+        MovedRowsCursor(Cursor rows, int[] order) {
+            super(rows);
+            this.order = order;
+        }
+
+        @Override
+        public boolean moveToPosition(int newPosition) {
+            if (newPosition < 0) {
+                position = -1;
+                return false;
+            }
+            if (newPosition >= order.length) {
+                position = order.length;
+                return false;
+            }
+            position = newPosition;
+            return super.moveToPosition(order[newPosition]);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(position + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(order.length - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(position + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(position - 1);
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean isFirst() {
+            return order.length > 0 && position == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return order.length > 0 && position == order.length - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return order.length == 0 || position == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return order.length == 0 || position == order.length;
+        }
+    }
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+
+/**
+ * Transliterates Chinese text into toneless pinyin, so that "huiyi" or its initials "hy" find
+ * "会议记录".
+ * <p>
+ * The provider stores the transliteration of every title, and of every text if
+ * {@link NotePadProvider#PREF_PINYIN_NOTES} is on, in
+ * {@link NotePad.Notes#COLUMN_NAME_TITLE_PINYIN} and {@link NotePad.Notes#COLUMN_NAME_NOTE_PINYIN}
+ * when the note is written, and searches match them as well as the text itself. A stored
+ * value holds the full pinyin and the initials, "huiyijilu|hyjl"; the bar keeps a search term
+ * from matching across the two. Letters and digits of other scripts are kept, lower case, and
+ * everything else is dropped, so that "Q3 会议" gives "q3huiyi|q3hy". Text without a Chinese character the table knows has no
+ * transliteration: searching its text directly finds the same notes.
+ * <p>
+ * The table covers the 3,755 characters of GB 2312 level 1, which make up nearly all of
+ * everyday text, with the most common reading of each; ü is written "v", as pinyin input
+ * methods take it.
+ * 拼音转写：为中文标题（可选正文）生成全拼和首字母，供搜索匹配。
+ */
+final class Pinyin {
+
+    // Each syllable followed by its characters, in the order of the syllables.
+    private static final String TABLE =
+            "a啊阿ai哀哎唉埃挨爱癌皑矮碍艾蔼隘an俺安岸按暗案氨胺鞍ang昂盎肮ao傲凹奥懊敖澳熬" +
+            "翱袄ba八叭吧坝巴扒把拔捌爸疤笆罢耙芭跋霸靶bai佰拜摆柏白百稗败ban伴办半扮扳拌搬斑" +
+            "板版班瓣绊般颁bang傍帮梆棒榜磅绑膀蚌谤邦镑bao保包堡宝报抱暴爆胞苞薄褒豹雹饱鲍" +
+            "bei倍北卑备悲惫杯焙狈碑背被贝辈钡ben奔本笨苯beng崩泵甭绷蹦迸bi壁币庇弊彼必敝" +
+            "比毕毖毙痹碧笔臂蓖蔽逼避鄙闭陛鼻bian便卞变扁编贬辨辩辫边遍鞭biao彪标膘表" +
+            "bie别憋瘪鳖bin宾彬摈斌滨濒bing丙兵冰并柄炳病秉饼bo伯剥勃博卜帛拨搏播波渤玻箔" +
+            "脖膊舶菠钵铂驳bu不哺埔埠布怖捕步簿补部ca擦cai彩才材猜睬菜蔡裁财踩采can参惨惭掺" +
+            "残灿蚕餐cang仓沧舱苍藏cao操曹槽糙草ce侧册厕测策ceng层曾蹭cha叉察岔差插搽" +
+            "查碴茬茶诧chai拆柴豺chan产搀缠蝉谗铲阐颤馋chang倡偿厂唱场尝常敞昌猖畅肠" +
+            "chao吵嘲巢抄朝潮炒超钞che彻扯掣撤澈车chen尘忱晨沉臣衬趁辰郴陈" +
+            "cheng乘呈城惩成承撑橙澄秤称程诚逞骋chi侈吃尺弛持斥池炽痴翅耻赤迟驰齿" +
+            "chong充冲宠崇虫chou丑仇愁抽畴瞅稠筹绸臭踌酬chu储出初厨处搐楚橱滁畜矗础触躇锄" +
+            "除雏chuai揣chuan串传喘川椽穿船chuang创幢床疮窗闯chui吹垂捶椎炊锤" +
+            "chun唇春椿淳纯蠢醇chuo戳绰ci伺刺慈次此瓷疵磁茨词赐辞雌cong丛从匆囱聪葱" +
+            "cou凑cu促簇粗醋cuan窜篡蹿cui催崔摧淬瘁粹翠脆cun存寸村cuo挫措搓撮磋错" +
+            "da大打搭瘩答达dai代傣呆带待怠戴歹殆袋贷逮dan丹但单弹惮担掸旦氮淡耽胆蛋诞郸" +
+            "dang党当挡档荡dao倒刀到导岛悼捣盗祷稻蹈道de地得德的deng凳灯登瞪等蹬邓" +
+            "di低堤嫡帝底弟抵敌涤滴狄笛第缔翟蒂迪递dian佃典垫奠店惦掂殿淀滇点电甸碘靛颠" +
+            "diao凋刁叼吊掉碉调钓雕die叠爹碟蝶谍跌迭ding丁叮定盯订钉锭顶鼎diu丢" +
+            "dong东侗冬冻动恫懂栋洞董dou兜抖斗痘豆逗都陡du堵妒度杜毒渡犊独督睹肚读赌镀" +
+            "duan断段短端缎锻dui兑堆对队dun吨囤墩敦盾蹲遁钝顿duo剁哆垛堕多夺惰掇朵舵跺躲" +
+            "e俄厄娥峨恶扼蛾讹遏鄂额饿鹅en恩er二儿尔洱而耳贰饵fa乏伐发法珐筏罚阀fan凡反帆樊" +
+            "泛烦犯番矾繁翻范藩贩返钒饭fang仿坊妨房放方纺肪芳访防fei匪吠啡废沸肥肺菲诽费非飞" +
+            "fen份分吩坟奋忿愤氛汾焚粉粪纷芬酚feng丰冯凤奉封峰枫烽疯缝蜂讽逢锋风fou否" +
+            "fu付伏佛俘俯傅副咐复夫妇孵富幅府弗扶抚拂敷斧服氟浮涪父甫福符缚肤腐腑腹袱覆讣负赋赴辅辐" +
+            "釜阜附ga嘎噶gai改概溉盖该钙gan干感敢杆柑甘秆竿肝赣赶gang冈刚岗杠港纲缸肛钢" +
+            "gao告搞皋稿篙糕羔膏镐高ge个割各咯哥戈搁格歌疙胳葛铬阁隔革鸽gei给gen根跟" +
+            "geng埂庚更梗羹耕耿gong供公共功宫工巩弓恭拱攻汞贡躬龚gou勾垢够构沟狗苟购钩" +
+            "gu估古咕固姑孤故沽箍股菇蛊谷辜雇顾骨鼓gua刮剐寡挂瓜褂guai乖怪拐guan关冠官惯" +
+            "棺灌管罐观贯馆guang光广逛gui傀刽圭归柜桂炔瑰癸硅规诡贵跪轨闺鬼龟gun棍滚辊" +
+            "guo国果裹过郭锅ha哈蛤hai亥咳孩害氦海还骇骸han函含喊寒悍憨憾捍撼旱汉汗涵焊罕翰" +
+            "邯酣韩hang夯杭航hao号嚎壕好毫浩耗豪貉郝he何合呵和喝核河涸盒禾荷菏褐贺赫阂鹤" +
+            "hei嘿黑hen很恨狠痕heng亨哼恒横衡hong哄宏弘洪烘红虹轰鸿hou侯候厚后吼喉猴" +
+            "hu乎互呼唬壶弧忽户护沪湖狐瑚糊胡葫虎蝴hua划化华哗滑猾画花话huai坏徊怀槐淮" +
+            "huan唤宦幻患换桓欢涣焕环痪缓豢huang凰幌恍惶慌晃煌皇磺簧荒蝗谎黄hui会卉回徽恢" +
+            "悔惠慧挥晦毁汇灰烩秽绘蛔讳诲贿辉hun婚昏浑混荤魂huo伙惑或活火祸获豁货霍ji伎冀几击" +
+            "剂即及吉圾基妓姬嫉季寂寄己忌急悸技挤既机极棘汲济激畸疾祭积稽箕籍级纪继绩缉肌脊蓟藉计讥记" +
+            "辑迹际集饥鸡jia价佳假加嘉夹嫁家架枷甲稼茄荚贾钾颊驾jian件俭健兼减剑剪坚奸尖建拣捡" +
+            "柬检歼涧渐溅煎监硷碱笺简箭缄肩舰艰茧荐见贱践鉴键间饯jiang僵匠奖姜将桨江浆疆蒋讲酱降" +
+            "jiao交侥剿叫娇搅教椒浇焦狡矫礁窖绞缴胶脚蕉角轿较郊酵铰饺骄jie介借劫姐届戒截捷接揭" +
+            "杰洁界疥皆睫秸竭结节芥街解诫阶jin仅今劲尽巾斤晋津浸烬禁筋紧襟谨近进金锦靳" +
+            "jing井京兢净境径惊敬景晶痉睛竞竟粳精经茎荆警镜靖静颈鲸jiong炯窘jiu久九厩咎就" +
+            "揪救旧灸玖疚究纠臼舅酒韭ju举俱具剧句咀局居巨惧拒拘据桔沮炬狙疽矩聚菊距踞锯鞠驹" +
+            "juan倦卷娟捐眷绢鹃jue倔决嚼抉掘撅攫爵绝觉诀jun俊军君均峻浚竣菌郡钧骏ka卡咖喀" +
+            "kai凯开慨揩楷kan刊勘坎堪槛看砍kang亢康慷扛抗炕糠kao拷烤考靠ke克刻可坷壳客" +
+            "柯棵渴磕科苛课颗ken啃垦恳肯keng吭坑kong孔恐控空kou口寇扣抠ku哭库枯窟苦裤" +
+            "酷kua垮夸挎胯跨kuai侩块快筷kuan宽款kuang况匡旷框狂眶矿筐kui亏奎岿愧溃" +
+            "盔窥葵馈魁kun困坤捆昆kuo廓扩括阔la啦喇垃拉腊蜡辣lai来莱赖lan兰婪懒拦揽栏滥" +
+            "澜烂篮缆蓝览谰阑lang廊朗榔浪狼琅郎lao佬劳姥捞涝潦烙牢老酪le乐了肋lei儡勒垒擂" +
+            "泪磊类累蕾镭雷leng冷棱楞li丽例俐傈利力励历厉厘吏哩李栗梨沥漓犁狸理璃痢砾礼离立篱粒" +
+            "荔莉里隶鲤黎lia俩lian帘廉怜恋敛涟炼练联脸莲连链镰liang两亮凉晾梁粮粱良谅辆量" +
+            "liao僚寥廖撂撩料燎疗聊辽镣lie列劣烈猎裂lin临凛吝拎林淋琳磷赁邻霖鳞" +
+            "ling令伶凌另岭灵玲羚菱铃陵零领龄liu六刘柳榴流溜琉留瘤硫馏long咙垄拢窿笼聋陇隆" +
+            "龙lou娄搂楼漏篓陋lu卢卤庐录戮掳潞炉碌禄芦虏赂路陆露颅鲁鹿麓luan乱卵孪峦挛滦" +
+            "lun仑伦抡沦纶论轮luo洛箩络罗萝落螺裸逻锣骆骡lv侣吕屡履律旅氯滤率绿缕虑铝驴" +
+            "lve掠略ma吗嘛妈玛码蚂马骂麻mai买卖埋脉迈麦man慢曼满漫瞒蔓蛮谩馒" +
+            "mang忙氓盲芒茫莽mao冒卯帽毛猫矛茂茅貌贸铆锚me么mei妹媒媚寐昧枚梅每没煤玫眉美" +
+            "酶镁霉men们门闷meng孟梦檬猛盟萌蒙锰mi密幂弥泌眯秘米糜蜜觅谜迷醚靡" +
+            "mian免冕勉娩棉眠绵缅面miao妙庙描渺瞄秒苗藐mie灭蔑min悯抿敏民皿闽" +
+            "ming名命明螟铭鸣miu谬mo墨寞抹摩摸摹末模沫漠磨膜莫蘑陌魔默mou某牟谋" +
+            "mu亩募墓姆幕慕拇暮木母牡牧目睦穆na呐哪娜拿纳那钠nai乃奈奶氖耐nan南男难" +
+            "nang囊nao恼挠淖脑闹ne呢nei内馁nen嫩neng能ni你倪匿妮尼拟泥溺腻逆霓" +
+            "nian年念拈捻撵碾蔫辗niang娘酿niao尿鸟nie啮孽捏涅聂镊镍nin您" +
+            "ning凝宁拧柠泞狞niu扭牛纽钮nong农弄浓脓nu努奴怒nuan暖nuo懦挪糯诺" +
+            "nv女nve疟虐o哦ou偶呕欧殴沤藕鸥pa啪帕怕爬琶趴pai徘拍排派湃牌pan判叛攀潘畔" +
+            "盘盼磐pang乓庞旁耪胖pao刨咆抛泡炮袍跑pei佩呸培沛胚裴赔配陪pen喷盆" +
+            "peng彭抨捧朋棚澎烹砰硼碰篷膨蓬鹏pi僻劈匹啤坯屁批披毗琵疲痞皮砒脾譬辟霹" +
+            "pian偏片篇骗piao漂瓢票飘pie撇瞥pin品拼聘贫频ping乒凭坪屏平瓶苹萍评" +
+            "po坡婆泊泼破粕迫颇魄pou剖pu仆圃扑普曝朴浦瀑脯莆菩葡蒲谱铺qi七乞企其凄启器奇契妻" +
+            "岂崎弃戚旗期柒栖棋欺歧气汽沏泣漆畦砌祁祈脐讫起迄骑齐qia恰掐洽qian乾仟前千堑嵌扦欠" +
+            "歉浅潜牵签谦谴迁遣钎钱钳铅黔qiang呛墙强抢枪羌腔蔷qiao乔侨俏峭巧悄撬敲桥橇瞧窍翘" +
+            "锹鞘qie且切怯窃qin亲侵勤寝擒沁琴禽秦芹钦qing倾卿庆情擎晴氢氰清请轻青顷" +
+            "qiong琼穷qiu丘囚求泅球秋邱酋qu区去取娶屈曲渠蛆趋趣躯驱龋quan全券劝圈拳权泉" +
+            "犬痊醛颧que却榷瘸确缺雀鹊qun群裙ran冉染然燃rang嚷壤攘瓤让rao扰绕饶" +
+            "re惹热ren人仁任刃壬妊忍纫认韧reng仍扔ri日rong冗容戎溶熔绒茸荣蓉融" +
+            "rou揉柔肉ru乳儒入如孺汝茹蠕褥辱ruan软阮rui瑞蕊锐run润闰ruo弱若" +
+            "sa撒洒萨sai塞腮赛鳃san三伞叁散sang丧嗓桑sao嫂扫搔骚se涩瑟色sen森" +
+            "seng僧sha傻刹厦啥杀沙煞砂纱莎shai晒筛shan删善山扇擅杉汕煽珊缮膳苫衫赡闪陕" +
+            "shang上伤商墒尚晌裳赏shao勺哨少捎梢烧稍绍芍邵韶she奢射慑摄涉社舌舍蛇设赊赦" +
+            "shei谁shen什伸呻娠婶审慎沈深渗甚申砷神绅肾身sheng剩升圣声牲生甥盛省绳胜" +
+            "shi世事仕似使侍势匙十史嗜噬士失始实室尸屎市师式恃拭拾施时是柿氏湿狮矢石示虱蚀视誓识试" +
+            "诗适逝释食饰驶shou兽受售守寿手授收瘦首shu书叔墅孰属庶恕戍抒数暑曙术束枢树梳殊淑漱" +
+            "熟疏竖署舒蔬薯蜀赎输述黍鼠shua刷耍shuai帅摔甩衰shuan拴栓shuang双爽霜" +
+            "shui水睡税shun吮瞬舜顺shuo朔烁硕说si丝司嗣嘶四寺巳思撕斯死私肆饲" +
+            "song宋怂松耸讼诵送颂sou嗽搜擞艘su俗僳塑宿溯粟素肃苏诉速酥suan算蒜酸" +
+            "sui岁碎祟穗绥虽遂隋随隧髓sun孙损笋suo唆所梭琐索缩蓑锁ta他塌塔她它拓挞獭踏蹋" +
+            "tai台太态抬汰泰胎苔酞tan叹坍坛坦探摊檀毯滩潭炭痰瘫碳袒谈谭贪tang倘唐堂塘搪棠汤" +
+            "淌烫糖膛趟躺tao套掏桃涛淘滔绦萄讨逃陶te特teng疼腾藤誊ti体剃剔啼嚏屉惕提替梯涕" +
+            "踢蹄锑题tian填天恬添甜田腆舔tiao挑条眺跳迢tie帖贴铁ting亭停厅听庭廷挺汀烃" +
+            "艇tong同彤捅桐桶痛瞳童筒统通酮铜tou偷头投透tu兔凸吐图土屠徒涂秃突途tuan团湍" +
+            "tui推腿蜕褪退颓tun吞屯臀tuo唾妥托拖椭脱陀驮驼鸵wa哇娃挖洼瓦蛙袜wai外歪" +
+            "wan万丸婉完宛弯惋挽晚湾烷玩皖碗腕豌顽wang亡妄往忘旺望枉汪王网wei为伟伪位卫危味" +
+            "唯喂围委威尉尾巍微惟慰未桅渭潍畏纬维胃苇萎蔚谓违韦魏wen吻文温瘟稳紊纹蚊问闻" +
+            "weng嗡瓮翁wo卧我挝握斡沃涡窝蜗wu乌五伍侮务勿午吴吾呜坞屋巫悟戊捂无晤梧武毋污物舞" +
+            "芜诬误钨雾xi习吸喜嘻夕媳希席息悉惜戏昔晰析檄汐洗溪烯熄熙牺犀矽硒稀系细膝袭西铣锡隙" +
+            "xia下侠匣吓夏峡暇狭瞎虾辖霞xian仙先县咸嫌宪弦掀显涎献现纤线羡腺舷衔贤锨闲限险陷馅" +
+            "鲜xiang乡享像厢向响巷想橡湘相祥箱翔襄详象镶项香xiao哮啸嚣孝宵小效晓校消淆硝笑肖" +
+            "萧销霄xie些写协卸屑懈挟携斜械楔歇泄泻胁蝎蟹谐谢邪鞋xin信心忻新欣芯薪衅辛锌" +
+            "xing兴刑型姓幸形性惺星杏猩腥行邢醒xiong兄凶匈汹熊胸雄xiu休修嗅朽秀绣羞袖锈" +
+            "xu叙吁嘘墟婿序徐恤戌旭絮绪续蓄虚许酗需须xuan喧宣悬旋玄癣眩绚轩选xue削学穴薛血雪" +
+            "靴xun勋寻巡循旬殉汛熏训讯询迅逊驯ya丫亚压呀哑崖押涯牙芽蚜衙讶轧雅鸦鸭yan严厌咽唁" +
+            "堰奄宴岩延彦掩沿淹演炎烟焉焰燕盐眼研砚艳蜒衍言谚阉阎雁颜验yang仰佯养央扬杨样殃氧洋漾" +
+            "疡痒秧羊阳鸯yao咬妖姚尧摇瑶窑耀腰舀药要谣遥邀钥ye业也冶叶噎夜掖曳椰液爷耶腋野页" +
+            "yi一义乙亦亿以仪伊依倚医壹夷姨宜屹已异彝役忆意抑揖易椅毅沂溢疑疫益矣移绎翌翼肄胰臆艺蚁" +
+            "衣裔议译诣谊逸遗邑铱颐yin印吟因姻寅尹引殷淫茵荫银阴隐音饮ying婴应影映樱盈硬缨英荧" +
+            "莹萤营蝇赢迎颖鹰yo哟yong佣勇咏庸恿拥永泳涌用痈臃蛹踊雍you优佑又友右尤幼幽忧悠有" +
+            "油游犹由诱邮酉釉铀yu与予于余俞喻域娱宇寓屿峪御愈愉愚榆欲浴淤渔渝狱玉盂禹羽育舆芋虞裕誉" +
+            "语豫迂逾遇郁隅雨预驭鱼yuan元冤原员园圆垣怨愿援渊源猿缘苑袁辕远院鸳yue岳悦曰月粤约" +
+            "越跃阅yun云允匀孕晕耘蕴运郧酝陨韵za匝咋杂砸zai再哉在宰栽灾载zan咱攒暂赞" +
+            "zang脏葬赃zao凿噪早枣澡灶燥皂糟藻蚤躁造遭ze则择泽责zei贼zen怎" +
+            "zeng增憎赠zha乍喳扎札柞栅榨渣炸眨诈铡闸zhai债宅寨摘斋窄zhan占展崭战斩栈毡" +
+            "沾湛盏瞻站粘绽蘸詹zhang丈仗帐张彰掌杖樟涨漳瘴章胀账长障zhao兆召找招昭沼照爪罩肇" +
+            "赵zhe哲折浙着者著蔗蛰辙这遮锗zhen侦振斟枕珍甄疹真砧臻诊贞针镇阵震" +
+            "zheng争帧征怔拯挣政整正狰症睁蒸证郑zhi之侄值制只吱址峙帜志执指挚掷支旨智枝植止殖" +
+            "汁治滞炙痔直知秩稚窒纸织置职肢脂至致芝蜘质趾zhong中仲众忠盅种终肿衷重钟" +
+            "zhou周咒宙州帚昼洲皱粥肘舟诌轴骤zhu主住助嘱拄朱柱株注烛煮猪珠瞩祝竹筑蛀蛛诛诸贮逐" +
+            "铸驻zhua抓zhuai拽zhuan专撰砖篆赚转zhuang壮妆庄撞桩状装" +
+            "zhui坠缀赘追锥zhun准谆zhuo卓啄拙捉桌浊灼茁酌zi仔兹咨姿子字孜淄渍滋滓籽紫自" +
+            "资zong宗总棕纵综踪鬃zou奏揍走邹zu卒族祖租组诅足阻zuan纂钻zui嘴最罪醉" +
+            "zun尊遵zuo佐作做坐左座昨琢";
+
+    // The characters of the table in code point order, and the index of the syllable of each.
+    private static final char[] sChars;
+    private static final short[] sSyllableOf;
+    private static final String[] sSyllables;
+
+    static {
+        String[] syllables = new String[512];
+        int syllableCount = 0;
+        long[] entries = new long[TABLE.length()];
+        int entryCount = 0;
+        for (int i = 0; i < TABLE.length(); ) {
+            int start = i;
+            while (TABLE.charAt(i) < 0x80) {
+                i++;
+            }
+            syllables[syllableCount] = TABLE.substring(start, i);
+            while (i < TABLE.length() && TABLE.charAt(i) >= 0x80) {
+                entries[entryCount++] = ((long) TABLE.charAt(i) << 16) | syllableCount;
+                i++;
+            }
+            syllableCount++;
+        }
+        Arrays.sort(entries, 0, entryCount);
+        sChars = new char[entryCount];
+        sSyllableOf = new short[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            sChars[i] = (char) (entries[i] >>> 16);
+            sSyllableOf[i] = (short) entries[i];
+        }
+        sSyllables = Arrays.copyOf(syllables, syllableCount);
+    }
+
+    // Separates the full pinyin from the initials in a stored transliteration.
+    private static final char SEPARATOR = '|';
+
+    // This class cannot be instantiated
+    private Pinyin() {
+    }
+
+    /**
+     * Returns the toneless pinyin of a character, or null if it isn't in the table.
+     */
+    static String syllable(char c) {
+        int i = Arrays.binarySearch(sChars, c);
+        return i < 0 ? null : sSyllables[sSyllableOf[i]];
+    }
+
+    /**
+     * Returns the transliteration of a text as stored by the provider, "huiyijilu|hyjl", or
+     * null if the text has no Chinese character the table knows.
+     */
+    static String of(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder full = null;
+        StringBuilder initials = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String syllable = c < 0x4E00 ? null : syllable(c);
+            if (syllable != null) {
+                if (full == null) {
+                    // The first Chinese character; the text so far is copied below.
+                    full = new StringBuilder(text.length() * 3);
+                    initials = new StringBuilder(text.length());
+                    for (int j = 0; j < i; j++) {
+                        appendOther(full, initials, text.charAt(j));
+                    }
+                }
+                full.append(syllable);
+                initials.append(syllable.charAt(0));
+            } else if (full != null) {
+                appendOther(full, initials, c);
+            }
+        }
+        return full == null ? null : full.append(SEPARATOR).append(initials).toString();
+    }
+
+    private static void appendOther(StringBuilder full, StringBuilder initials, char c) {
+        if (Character.isLetterOrDigit(c)) {
+            char lower = Character.toLowerCase(c);
+            full.append(lower);
+            initials.append(lower);
+        }
+    }
+
+    /**
+     * Adds the transliteration of the title, and of the text if asked to, to values about to
+     * be written, for the fields the values change.
+     */
+    static void putInto(ContentValues values, boolean withNote) {
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN,
+                    of(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+        }
+        if (withNote && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN,
+                    of(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        }
+    }
+
+    /**
+     * Fills an empty transliteration column of every note from its source column, or clears
+     * it, with the version trigger dropped so that the change doesn't count as an edit. For
+     * the migrations, whose databases may still have a version trigger that fires on every
+     * column; call inside a transaction.
+     *
+     * @param source the column to transliterate, {@link NotePad.Notes#COLUMN_NAME_TITLE} or
+     *               {@link NotePad.Notes#COLUMN_NAME_NOTE}, or null to clear the target
+     * @param target the column of its transliteration
+     */
+    static void backfill(SQLiteDatabase db, String source, String target) {
+        db.execSQL("DROP TRIGGER IF EXISTS notes_version");
+        try {
+            long lastId = Long.MIN_VALUE;
+            do {
+                lastId = backfillBatch(db, source, target, lastId);
+            } while (lastId != Long.MAX_VALUE);
+        } finally {
+            NotePadProvider.DatabaseHelper.createVersionTrigger(db);
+        }
+    }
+
+    /**
+     * Like {@link #backfill}, for a database that is in use: each batch is a transaction of its
+     * own, so that a note being saved waits for one batch at most. The version trigger ignores
+     * the transliteration columns, so it stays in place. Call outside a transaction.
+     */
+    static void backfillInBatches(SQLiteDatabase db, String source, String target) {
+        long lastId = Long.MIN_VALUE;
+        do {
+            db.beginTransaction();
+            try {
+                lastId = backfillBatch(db, source, target, lastId);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } while (lastId != Long.MAX_VALUE);
+    }
+
+    /*
+     * Fills or clears the transliteration of the next batch of notes after the given ID, and
+     * returns the last ID of the batch, or Long.MAX_VALUE after the last one.
+     */
+    private static long backfillBatch(SQLiteDatabase db, String source, String target,
+                                      long afterId) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + target + " = ? WHERE " + NotePad.Notes._ID + " = ?");
+        // Clearing reads the target itself, to skip the notes that have none.
+        String[] columns = {NotePad.Notes._ID, source != null ? source : target};
+        long lastId = afterId;
+        int count = 0;
+        try {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns,
+                    NotePad.Notes._ID + " > ?", new String[]{String.valueOf(afterId)},
+                    null, null, NotePad.Notes._ID,
+                    String.valueOf(NotePadMigrations.BACKFILL_BATCH_SIZE));
+            try {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    count++;
+                    if (source == null) {
+                        if (c.isNull(1)) {
+                            continue;
+                        }
+                        update.bindNull(1);
+                    } else {
+                        String pinyin = of(c.getString(1));
+                        if (pinyin == null) {
+                            // Most notes have no Chinese text; the column is still empty.
+                            continue;
+                        }
+                        update.bindString(1, pinyin);
+                    }
+                    update.bindLong(2, lastId);
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            update.close();
+        }
+        return count == NotePadMigrations.BACKFILL_BATCH_SIZE ? lastId : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters and latency histograms for {@link NotePadProvider}.
+ * <p>
+ * Every provider operation is recorded against the URI match code that served it. Latencies
+ * go into power-of-two microsecond buckets, so recording a call costs a handful of atomic
+ * increments and no allocation. The numbers are read back by
+ * {@link NotePadProvider#dump} and by the {@link NotePad#METHOD_STATS} provider call.
+ * 记录 NotePadProvider 各操作的调用次数与耗时分布，热路径上只有少量原子自增。
+ */
+final class ProviderStats {
+
+    // Operation slots. Each one is recorded separately for every URI match code.
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_UPDATE = 2;
+    static final int OP_DELETE = 3;
+    static final int OP_OPEN_FILE = 4;
+    private static final int OP_COUNT = 5;
+
+    private static final String[] OP_NAMES = {
+            "query", "insert", "update", "delete", "open_file"
+    };
+
+    /**
+     * Number of latency buckets. Bucket 0 holds calls under 1us, bucket i holds calls in
+     * [2^(i-1), 2^i) us and the last bucket collects everything slower than ~0.5 s.
+     */
+    static final int BUCKET_COUNT = 21;
+
+    // Names of the URI match codes, indexed by match code. Index 0 collects unmatched URIs.
+    private final String[] mMatchNames;
+    private final int mMatchCount;
+
+    // Per (op, match) totals, laid out as [op * mMatchCount + match].
+    private final AtomicLongArray mCalls;
+    private final AtomicLongArray mTotalMicros;
+    private final AtomicLongArray mMaxMicros;
+    // Per (op, match, bucket) counts, laid out as [(op * mMatchCount + match) * BUCKET_COUNT + b].
+    private final AtomicLongArray mHistogram;
+
+    private final AtomicLong mRowsReturned = new AtomicLong();
+    private final AtomicLong mBytesStreamed = new AtomicLong();
+    private final AtomicLong mNotificationsSent = new AtomicLong();
+
+    private final long mStartedAt = System.currentTimeMillis();
+
+    /**
+     * @param matchNames names of the provider's URI match codes, indexed by match code. Index 0
+     *                   is used for URIs that did not match any pattern.
+     */
+    ProviderStats(String[] matchNames) {
+        mMatchNames = matchNames;
+        mMatchCount = matchNames.length;
+        mCalls = new AtomicLongArray(OP_COUNT * mMatchCount);
+        mTotalMicros = new AtomicLongArray(OP_COUNT * mMatchCount);
+        mMaxMicros = new AtomicLongArray(OP_COUNT * mMatchCount);
+        mHistogram = new AtomicLongArray(OP_COUNT * mMatchCount * BUCKET_COUNT);
+    }
+
+    /**
+     * Records one finished operation.
+     *
+     * @param op          one of the OP_ constants
+     * @param match       the UriMatcher code, or any value outside the known range if the URI
+     *                    did not match
+     * @param elapsedNanos wall time spent in the operation
+     */
+    void record(int op, int match, long elapsedNanos) {
+        if (match <= 0 || match >= mMatchCount) {
+            match = 0;
+        }
+        int slot = op * mMatchCount + match;
+        long micros = elapsedNanos / 1000L;
+        mCalls.incrementAndGet(slot);
+        mTotalMicros.addAndGet(slot, micros);
+        long max;
+        while (micros > (max = mMaxMicros.get(slot))) {
+            if (mMaxMicros.compareAndSet(slot, max, micros)) {
+                break;
+            }
+        }
+        mHistogram.incrementAndGet(slot * BUCKET_COUNT + bucketFor(micros));
+    }
+
+    /**
+     * Returns the cursor wrapped so that its rows are added to the rows returned when the
+     * caller closes it. Counting waits for the close because a database cursor steps through
+     * the whole result the first time it is counted; by then the caller has done that if it
+     * read any row, and a database cursor closed unread returned none.
+     */
+    Cursor countRows(Cursor c) {
+        return c != null ? new RowCountingCursor(c) : null;
+    }
+
+    private final class RowCountingCursor extends CursorWrapper {
+        private boolean mCounted;
+
+        RowCountingCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public void close() {
+            if (!mCounted && !isClosed()) {
+                mCounted = true;
+                Cursor c = getWrappedCursor();
+                if (!(c instanceof AbstractWindowedCursor)
+                        || ((AbstractWindowedCursor) c).hasWindow()) {
+                    mRowsReturned.addAndGet(c.getCount());
+                }
+            }
+            super.close();
+        }
+    }
+
+    void addBytesStreamed(long bytes) {
+        mBytesStreamed.addAndGet(bytes);
+    }
+
+    void addNotification() {
+        mNotificationsSent.incrementAndGet();
+    }
+
+    // Maps a latency to its power-of-two bucket without branching on every boundary.
+    private static int bucketFor(long micros) {
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(b, BUCKET_COUNT - 1);
+    }
+
+    // The exclusive upper bound of a bucket, in microseconds.
+    private static long bucketUpperMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Estimates a percentile from one histogram row. The result is the upper bound of the
+     * bucket that contains the requested rank, so it is never optimistic.
+     */
+    private long percentileMicros(int slot, long calls, double fraction) {
+        if (calls == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(calls * fraction);
+        long seen = 0;
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            seen += mHistogram.get(slot * BUCKET_COUNT + b);
+            if (seen >= rank) {
+                return bucketUpperMicros(b);
+            }
+        }
+        return bucketUpperMicros(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Copies the current numbers into a Bundle. Keys are "<op>.<match>.<field>", for example
+     * "query.notes.calls"; histograms are stored as long arrays under "<op>.<match>.histogram".
+     * Only (op, match) pairs that have been used at least once are included.
+     */
+    Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putLong("since", mStartedAt);
+        b.putLong("rows_returned", mRowsReturned.get());
+        b.putLong("bytes_streamed", mBytesStreamed.get());
+        b.putLong("notifications_sent", mNotificationsSent.get());
+
+        long[] bounds = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bounds[i] = bucketUpperMicros(i);
+        }
+        b.putLongArray("histogram_bounds_us", bounds);
+
+        for (int op = 0; op < OP_COUNT; op++) {
+            for (int match = 0; match < mMatchCount; match++) {
+                int slot = op * mMatchCount + match;
+                long calls = mCalls.get(slot);
+                if (calls == 0) {
+                    continue;
+                }
+                String prefix = OP_NAMES[op] + "." + mMatchNames[match] + ".";
+                long[] histogram = new long[BUCKET_COUNT];
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    histogram[i] = mHistogram.get(slot * BUCKET_COUNT + i);
+                }
+                b.putLong(prefix + "calls", calls);
+                b.putLong(prefix + "total_us", mTotalMicros.get(slot));
+                b.putLong(prefix + "max_us", mMaxMicros.get(slot));
+                b.putLongArray(prefix + "histogram", histogram);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Writes a human readable report, used by {@code dumpsys activity provider}.
+     */
+    void dump(PrintWriter pw) {
+        pw.println("NotePadProvider stats since " + mStartedAt);
+        pw.println("  rows returned:      " + mRowsReturned.get());
+        pw.println("  bytes streamed:     " + mBytesStreamed.get());
+        pw.println("  notifications sent: " + mNotificationsSent.get());
+        pw.println("  op.match                     calls     avg_us     p50_us     p90_us     p99_us     max_us");
+        for (int op = 0; op < OP_COUNT; op++) {
+            for (int match = 0; match < mMatchCount; match++) {
+                int slot = op * mMatchCount + match;
+                long calls = mCalls.get(slot);
+                if (calls == 0) {
+                    continue;
+                }
+                pw.println(String.format(Locale.US,
+                        "  %-24s %8d %10d %10d %10d %10d %10d",
+                        OP_NAMES[op] + "." + mMatchNames[match],
+                        calls,
+                        mTotalMicros.get(slot) / calls,
+                        percentileMicros(slot, calls, 0.50),
+                        percentileMicros(slot, calls, 0.90),
+                        percentileMicros(slot, calls, 0.99),
+                        mMaxMicros.get(slot)));
+            }
+        }
+    }
+}
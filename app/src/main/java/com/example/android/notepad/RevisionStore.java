@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Stores the revision history of notes as deltas, with a full snapshot now and then.
+ * <p>
+ * Each revision row is numbered with the note's {@link NotePad.Notes#COLUMN_NAME_VERSION}
+ * after the save, and holds the edit that produced it as a single replaced range: the length
+ * of the unchanged prefix and suffix, the text that was removed and the text that was
+ * inserted. The same four values turn the previous text into the new one and back again, so
+ * a delta serves as both a forward and a reverse diff, and it costs as much as the edit, not
+ * the note.
+ * <p>
+ * A revision also carries a snapshot of the whole text when the deltas since the last
+ * snapshot add up to the length of the note, or after {@link #MAX_DELTAS_PER_SNAPSHOT}
+ * deltas. Any revision is then rebuilt by replaying a bounded number of deltas, forward from
+ * the nearest snapshot before it or backward from the current note text, whichever is shorter.
+ * 笔记修订历史：以增量（同时可正向和反向应用）保存每次修改，并定期保存完整快照以便快速读取任意版本。
+ */
+final class RevisionStore {
+
+    private static final String TAG = "RevisionStore";
+
+    // Columns that only the provider sees.
+    private static final String COLUMN_BODY = "body";
+    private static final String COLUMN_PREFIX = "prefix";
+    private static final String COLUMN_SUFFIX = "suffix";
+    private static final String COLUMN_INSERTED = "inserted";
+    private static final String COLUMN_REMOVED = "removed";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
+
+    /**
+     * Number of characters a revision's delta changed, for listing revisions.
+     */
+    static final String CHANGE_SIZE_EXPRESSION = "IFNULL(length(" + COLUMN_INSERTED + "),0)"
+            + " + IFNULL(length(" + COLUMN_REMOVED + "),0)";
+
+    /**
+     * 1 if the revision holds a full snapshot, else 0.
+     */
+    static final String IS_SNAPSHOT_EXPRESSION = "(" + COLUMN_BODY + " IS NOT NULL)";
+
+    /**
+     * Upper bound on the number of deltas replayed to rebuild a revision.
+     */
+    static final int MAX_DELTAS_PER_SNAPSHOT = 100;
+
+    /**
+     * Value of the keep-count setting that disables history, and that keeps all of it.
+     */
+    static final int KEEP_NONE = 0;
+    static final int KEEP_ALL = -1;
+
+    private static final String NOTE_AND_REVISION =
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                    + NotePad.Revisions.COLUMN_NAME_REVISION;
+
+    private RevisionStore() {
+    }
+
+    /**
+     * The difference between two texts, as one replaced range.
+     */
+    static final class Delta {
+        final int prefix;
+        final int suffix;
+        final String removed;
+        final String inserted;
+
+        Delta(int prefix, int suffix, String removed, String inserted) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        /**
+         * Computes the delta that turns {@code from} into {@code to}.
+         */
+        static Delta between(String from, String to) {
+            int max = Math.min(from.length(), to.length());
+            int prefix = 0;
+            while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix && from.charAt(from.length() - 1 - suffix)
+                    == to.charAt(to.length() - 1 - suffix)) {
+                suffix++;
+            }
+            return new Delta(prefix, suffix,
+                    from.substring(prefix, from.length() - suffix),
+                    to.substring(prefix, to.length() - suffix));
+        }
+
+        int size() {
+            return removed.length() + inserted.length();
+        }
+
+        /**
+         * Turns the old text into the new one.
+         *
+         * @throws IllegalArgumentException if the delta can't have been made from the text
+         */
+        String apply(String from) {
+            checkFits(from);
+            return from.substring(0, prefix) + inserted + from.substring(from.length() - suffix);
+        }
+
+        /**
+         * Turns the new text back into the old one.
+         *
+         * @throws IllegalArgumentException if the delta can't have been made to the text
+         */
+        String revert(String to) {
+            checkFits(to);
+            return to.substring(0, prefix) + removed + to.substring(to.length() - suffix);
+        }
+
+        private void checkFits(String text) {
+            if (prefix < 0 || suffix < 0 || prefix + suffix > text.length()) {
+                throw new IllegalArgumentException("Delta keeping " + prefix + " and " + suffix
+                        + " chars doesn't fit a text of " + text.length());
+            }
+        }
+    }
+
+    /**
+     * Creates the revisions table, and the trigger that removes a note's history when the
+     * note itself is deleted.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Revisions.COLUMN_NAME_TITLE + " TEXT,"
+                + COLUMN_BODY + " TEXT,"
+                + COLUMN_PREFIX + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_SUFFIX + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_REMOVED + " TEXT,"
+                + COLUMN_INSERTED + " TEXT,"
+                + COLUMN_CONTENT_HASH + " INTEGER,"
+                + "UNIQUE (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + ")"
+                + ");");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS revisions_cleanup AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = OLD."
+                + NotePad.Notes._ID + "; END;");
+    }
+
+    /**
+     * Records a save of a note. Call inside the transaction that wrote the note. The first
+     * recorded save also stores the text from before it, as a snapshot, so the note can be
+     * taken back to the state it had before its history started. So does a save of a note
+     * whose text was changed since its newest revision without being recorded, by an update
+     * of many notes at once, since the deltas no longer lead to that text.
+     */
+    static void record(SQLiteDatabase db, long noteId,
+                       long oldVersion, String oldTitle, String oldText, long oldModified,
+                       long newVersion, String newTitle, String newText, long now) {
+        String[] noteArgs = {String.valueOf(noteId)};
+        long latest = -1;
+        long latestHash = 0;
+        Cursor newest = db.query(NotePad.Revisions.TABLE_NAME, new String[]{
+                        NotePad.Revisions.COLUMN_NAME_REVISION, COLUMN_CONTENT_HASH},
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", noteArgs, null, null,
+                NotePad.Revisions.COLUMN_NAME_REVISION + " DESC", "1");
+        try {
+            if (newest.moveToFirst()) {
+                latest = newest.getLong(0);
+                latestHash = newest.getLong(1);
+            }
+        } finally {
+            newest.close();
+        }
+        if (latest < 0) {
+            insert(db, noteId, oldVersion, oldModified, oldTitle, oldText, true,
+                    Delta.between("", oldText));
+        } else if (oldVersion > latest && ContentHash.of(oldText) != latestHash) {
+            // The delta from the newest revision keeps the chain whole in both directions.
+            String latestText = textAt(db, noteId, latest, null);
+            insert(db, noteId, oldVersion, oldModified, oldTitle, oldText, true,
+                    Delta.between(latestText != null ? latestText : "", oldText));
+        }
+
+        Delta delta = Delta.between(oldText, newText);
+
+        // Deltas and changed characters since the last snapshot decide whether this revision
+        // gets one.
+        Cursor c = db.rawQuery("SELECT COUNT(*), IFNULL(SUM(" + CHANGE_SIZE_EXPRESSION + "), 0)"
+                + " FROM " + NotePad.Revisions.TABLE_NAME + " WHERE " + NOTE_AND_REVISION
+                + " > (SELECT IFNULL(MAX(" + NotePad.Revisions.COLUMN_NAME_REVISION + "), -1)"
+                + " FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_BODY
+                + " IS NOT NULL)", new String[]{noteArgs[0], noteArgs[0]});
+        long deltas;
+        long changed;
+        try {
+            c.moveToFirst();
+            deltas = c.getLong(0);
+            changed = c.getLong(1);
+        } finally {
+            c.close();
+        }
+        boolean snapshot = deltas + 1 >= MAX_DELTAS_PER_SNAPSHOT
+                || changed + delta.size() >= newText.length();
+        insert(db, noteId, newVersion, now, newTitle, newText, snapshot, delta);
+    }
+
+    private static void insert(SQLiteDatabase db, long noteId, long revision, long created,
+                               String title, String text, boolean snapshot, Delta delta) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_REVISION, revision);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, created);
+        values.put(NotePad.Revisions.COLUMN_NAME_TITLE, title);
+        values.put(COLUMN_BODY, snapshot ? text : null);
+        values.put(COLUMN_PREFIX, delta.prefix);
+        values.put(COLUMN_SUFFIX, delta.suffix);
+        values.put(COLUMN_REMOVED, delta.removed);
+        values.put(COLUMN_INSERTED, delta.inserted);
+        values.put(COLUMN_CONTENT_HASH, ContentHash.of(text));
+        db.insertWithOnConflict(NotePad.Revisions.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Rebuilds the text of a revision.
+     *
+     * @param currentText the note's current text, or null if unknown. Replaying backward from
+     *                    it is only possible if it is still the text of the newest revision;
+     *                    updates that aren't recorded, such as bulk updates, can change it.
+     * @return the text, or null if the note has no such revision or its deltas don't lead to
+     * it.
+     */
+    static String textAt(SQLiteDatabase db, long noteId, long revision, String currentText) {
+        String id = String.valueOf(noteId);
+        String rev = String.valueOf(revision);
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NOTE_AND_REVISION + " = ?", new String[]{id, rev}) == 0) {
+            return null;
+        }
+
+        // The nearest snapshot at or before the revision. The oldest revision always has one.
+        long snapshot = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + NotePad.Revisions.COLUMN_NAME_REVISION + "), -1) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE " + NOTE_AND_REVISION + " <= ? AND "
+                + COLUMN_BODY + " IS NOT NULL", new String[]{id, rev});
+        long forwardSteps = snapshot < 0 ? Long.MAX_VALUE
+                : countBetween(db, id, snapshot, revision);
+
+        long latest;
+        long latestHash;
+        Cursor newest = db.query(NotePad.Revisions.TABLE_NAME, new String[]{
+                        NotePad.Revisions.COLUMN_NAME_REVISION, COLUMN_CONTENT_HASH},
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", new String[]{id}, null, null,
+                NotePad.Revisions.COLUMN_NAME_REVISION + " DESC", "1");
+        try {
+            newest.moveToFirst();
+            latest = newest.getLong(0);
+            latestHash = newest.getLong(1);
+        } finally {
+            newest.close();
+        }
+        long backwardSteps = currentText != null && ContentHash.of(currentText) == latestHash
+                ? countBetween(db, id, revision, latest) : Long.MAX_VALUE;
+
+        try {
+            if (backwardSteps < forwardSteps) {
+                // Undoes the newer revisions, newest first.
+                String text = currentText;
+                Cursor c = queryDeltas(db, id, revision, latest, "DESC");
+                try {
+                    while (c.moveToNext()) {
+                        text = deltaAt(c).revert(text);
+                    }
+                } finally {
+                    c.close();
+                }
+                return text;
+            }
+            if (snapshot < 0) {
+                return null;
+            }
+
+            String text = DatabaseUtils.stringForQuery(db, "SELECT " + COLUMN_BODY + " FROM "
+                    + NotePad.Revisions.TABLE_NAME + " WHERE " + NOTE_AND_REVISION + " = ?",
+                    new String[]{id, String.valueOf(snapshot)});
+            Cursor c = queryDeltas(db, id, snapshot, revision, "ASC");
+            try {
+                while (c.moveToNext()) {
+                    text = deltaAt(c).apply(text);
+                }
+            } finally {
+                c.close();
+            }
+            return text;
+        } catch (IllegalArgumentException e) {
+            // A history written before unrecorded changes were caught can be broken.
+            Log.w(TAG, "Revision " + revision + " of note " + noteId + " can't be rebuilt", e);
+            return null;
+        }
+    }
+
+    // Number of revisions in (from, to].
+    private static long countBetween(SQLiteDatabase db, String id, long from, long to) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE " + NOTE_AND_REVISION + " > ? AND "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " <= ?",
+                new String[]{id, String.valueOf(from), String.valueOf(to)});
+    }
+
+    // The deltas of the revisions in (from, to], in the given order.
+    private static Cursor queryDeltas(SQLiteDatabase db, String id, long from, long to,
+                                      String order) {
+        return db.query(NotePad.Revisions.TABLE_NAME,
+                new String[]{COLUMN_PREFIX, COLUMN_SUFFIX, COLUMN_REMOVED, COLUMN_INSERTED},
+                NOTE_AND_REVISION + " > ? AND " + NotePad.Revisions.COLUMN_NAME_REVISION
+                        + " <= ?",
+                new String[]{id, String.valueOf(from), String.valueOf(to)},
+                null, null, NotePad.Revisions.COLUMN_NAME_REVISION + " " + order);
+    }
+
+    private static Delta deltaAt(Cursor c) {
+        return new Delta(c.getInt(0), c.getInt(1),
+                c.isNull(2) ? "" : c.getString(2), c.isNull(3) ? "" : c.getString(3));
+    }
+
+    /**
+     * Drops all but the newest {@code keep} revisions of a note. The oldest revision kept is
+     * turned into a snapshot first, so every remaining revision can still be rebuilt.
+     *
+     * @return the number of revisions dropped.
+     */
+    static int compact(SQLiteDatabase db, long noteId, int keep, String currentText) {
+        if (keep == KEEP_ALL) {
+            return 0;
+        }
+        String id = String.valueOf(noteId);
+        if (keep <= KEEP_NONE) {
+            return db.delete(NotePad.Revisions.TABLE_NAME,
+                    NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", new String[]{id});
+        }
+        Cursor c = db.query(NotePad.Revisions.TABLE_NAME,
+                new String[]{NotePad.Revisions.COLUMN_NAME_REVISION},
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", new String[]{id}, null, null,
+                NotePad.Revisions.COLUMN_NAME_REVISION + " DESC", (keep - 1) + ",1");
+        long oldestKept;
+        try {
+            if (!c.moveToFirst()) {
+                // Not more than keep revisions.
+                return 0;
+            }
+            oldestKept = c.getLong(0);
+        } finally {
+            c.close();
+        }
+        if (countBetween(db, id, Long.MIN_VALUE, oldestKept - 1) == 0) {
+            return 0;
+        }
+
+        String text = textAt(db, noteId, oldestKept, currentText);
+        if (text == null) {
+            // Without its text, the oldest revision kept couldn't become a snapshot.
+            return 0;
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_BODY, text);
+        // The delta, from a revision that is about to go, is never replayed again, but stays
+        // for the size of the change it lists.
+        db.update(NotePad.Revisions.TABLE_NAME, values, NOTE_AND_REVISION + " = ?",
+                new String[]{id, String.valueOf(oldestKept)});
+        return db.delete(NotePad.Revisions.TABLE_NAME, NOTE_AND_REVISION + " < ?",
+                new String[]{id, String.valueOf(oldestKept)});
+    }
+}
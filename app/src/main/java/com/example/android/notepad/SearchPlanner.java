@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns a {@link SearchQuery} into a "where" clause on the notes table that SQLite answers
+ * from an index where it can.
+ * <p>
+ * Every condition has a cost class: colors and modification dates compare a column that has
+ * an index, {@link SearchQuery#WORD} conditions look the word up in the {@link TrigramIndex}
+ * vocabulary and postings and in the pinyin of the notes that have some, title conditions
+ * scan the titles, and text conditions scan the titles and texts. The planner estimates how
+ * many notes each positive indexed condition matches, colors and dates from
+ * {@link NoteCounts} and words from their postings and pinyin matches, and lets the most
+ * selective one drive the query through its index. The other conditions have their index
+ * disabled with SQLite's unary "+", so that SQLite, which has no statistics on this table,
+ * can't pick a worse index, and are checked on the driven rows in order of cost, so that the
+ * scans of the note bodies only run on the rows everything else has let through.
+ * Excluded conditions never drive, since most notes match them.
+ * 结构化搜索查询计划：按代价排序条件，选最有选择性的索引条件驱动查询，正文扫描放在最后。
+ */
+final class SearchPlanner {
+
+    /**
+     * Holds for the notes whose title or text has a transliteration, the only ones a pinyin
+     * condition can match. It is also the condition of the index over the pinyin columns,
+     * which SQLite only uses for a query that has it word for word.
+     */
+    static final String HAS_PINYIN = "(" + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN
+            + " IS NOT NULL OR " + NotePad.Notes.COLUMN_NAME_NOTE_PINYIN + " IS NOT NULL)";
+
+    // Selects the notes whose pinyin contains a word, given its likePattern() twice.
+    private static final String PINYIN_MATCHES = "SELECT " + NotePad.Notes._ID + " FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + HAS_PINYIN + " AND ("
+            + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " LIKE ? ESCAPE '\\' OR "
+            + NotePad.Notes.COLUMN_NAME_NOTE_PINYIN + " LIKE ? ESCAPE '\\')";
+
+    // Cost classes, cheapest first.
+    private static final int COST_COLUMN = 0;
+    private static final int COST_WORD = 1;
+    private static final int COST_TITLE = 2;
+    private static final int COST_BODY = 3;
+
+    /**
+     * A planned query.
+     */
+    static final class Plan {
+        /**
+         * The condition on the notes table, not including the trash, or an empty string if
+         * the query has no conditions.
+         */
+        final String where;
+        final String[] args;
+        /**
+         * The conditions answered from an index, or null if the notes are scanned.
+         */
+        final String driver;
+        /**
+         * The estimated number of notes the driver matches, or -1 without a driver.
+         */
+        final long estimate;
+
+        Plan(String where, String[] args, String driver, long estimate) {
+            this.where = where;
+            this.args = args;
+            this.driver = driver;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public String toString() {
+            return (driver != null ? "driver " + driver + " (~" + estimate + " rows)" : "scan")
+                    + ": " + where;
+        }
+    }
+
+    // A group of the query and what the planner knows about it.
+    private static final class Group {
+        final List<SearchQuery.Predicate> predicates;
+        final int position;
+        int cost;
+        // Whether the group can drive the query, and how many notes it's estimated to match.
+        boolean indexed;
+        long estimate = -1;
+
+        Group(List<SearchQuery.Predicate> predicates, int position) {
+            this.predicates = predicates;
+            this.position = position;
+        }
+    }
+
+    // This class cannot be instantiated
+    private SearchPlanner() {
+    }
+
+    /**
+     * Plans a query. {@link SearchQuery#WORD} conditions are answered from the
+     * {@link TrigramIndex}, and for the notes it has queued, which are few unless it is far
+     * behind, by scanning their title and text for the word.
+     */
+    static Plan plan(SQLiteDatabase db, SearchQuery query) {
+        List<Group> groups = new ArrayList<>();
+        for (List<SearchQuery.Predicate> predicates : query.groups()) {
+            Group group = new Group(predicates, groups.size());
+            group.indexed = true;
+            for (SearchQuery.Predicate p : predicates) {
+                group.cost = Math.max(group.cost, cost(p));
+                group.indexed &= !p.negated && cost(p) <= COST_WORD;
+            }
+            groups.add(group);
+        }
+
+        // The date conditions that must all hold are one range on the modification date.
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        List<Group> range = new ArrayList<>();
+        for (Group group : groups) {
+            SearchQuery.Predicate p = group.predicates.get(0);
+            if (group.predicates.size() == 1 && !p.negated) {
+                if (p.kind == SearchQuery.AFTER) {
+                    from = Math.max(from, p.value);
+                    range.add(group);
+                } else if (p.kind == SearchQuery.BEFORE) {
+                    to = Math.min(to, p.value);
+                    range.add(group);
+                }
+            }
+        }
+
+        // Estimates the column conditions first, since they are read from the summary table,
+        // and then the words, counting no more postings than the best estimate so far.
+        List<Group> driver = null;
+        long best = Long.MAX_VALUE;
+        if (!range.isEmpty()) {
+            driver = range;
+            best = from < to ? NoteCounts.countModified(db, Math.max(0, from), to) : 0;
+        }
+        for (int pass = COST_COLUMN; pass <= COST_WORD; pass++) {
+            for (Group group : groups) {
+                if (!group.indexed || group.cost != pass || range.contains(group)) {
+                    continue;
+                }
+                long estimate = 0;
+                for (SearchQuery.Predicate p : group.predicates) {
+                    estimate += estimate(db, p, best == Long.MAX_VALUE ? -1 : best - estimate + 1);
+                }
+                group.estimate = estimate;
+                if (estimate < best) {
+                    best = estimate;
+                    driver = Collections.singletonList(group);
+                }
+            }
+        }
+
+        List<Group> ordered = new ArrayList<>(groups);
+        final List<Group> first = driver != null ? driver : Collections.<Group>emptyList();
+        Collections.sort(ordered, (a, b) -> {
+            if (first.contains(a) != first.contains(b)) {
+                return first.contains(a) ? -1 : 1;
+            }
+            if (a.cost != b.cost) {
+                return Integer.compare(a.cost, b.cost);
+            }
+            if (a.estimate >= 0 && b.estimate >= 0 && a.estimate != b.estimate) {
+                return Long.compare(a.estimate, b.estimate);
+            }
+            return Integer.compare(a.position, b.position);
+        });
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        StringBuilder description = driver != null ? new StringBuilder() : null;
+        for (Group group : ordered) {
+            boolean drives = first.contains(group);
+            appendGroup(where, args, group.predicates, !drives);
+            if (drives) {
+                description.append(description.length() > 0 ? " " : "")
+                        .append(group.predicates.size() == 1
+                                ? group.predicates.get(0).toString()
+                                : group.predicates.toString());
+            }
+        }
+        return new Plan(where.toString(), args.toArray(new String[0]),
+                description != null ? description.toString() : null,
+                driver != null ? best : -1);
+    }
+
+    /**
+     * Returns the query as a plain scan: every condition checked on every note, in the order
+     * it was written. The result is the same as that of {@link #plan}; this serves to measure
+     * what planning gains.
+     */
+    static Plan scanPlan(SearchQuery query) {
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        for (List<SearchQuery.Predicate> group : query.groups()) {
+            appendGroup(where, args, group, true);
+        }
+        return new Plan(where.toString(), args.toArray(new String[0]), null, -1);
+    }
+
+    /**
+     * Returns a LIKE pattern, for use with {@code ESCAPE '\'}, that matches text containing
+     * the term.
+     */
+    static String likePattern(String term) {
+        return "%" + term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    /**
+     * Returns a condition, taking {@link #wordPattern} as its argument, that holds when the
+     * column has a word starting with the pattern's word, as the {@link TrigramIndex} would
+     * find it. Only ASCII letters and digits count as part of a word here.
+     */
+    static String wordCondition(String column) {
+        return "(' ' || lower(" + column + ")) GLOB ?";
+    }
+
+    /**
+     * Returns the argument of {@link #wordCondition} for a lower-case word, which has no GLOB
+     * wildcards since it only has letters and digits.
+     */
+    static String wordPattern(String word) {
+        return "*[^0-9a-z]" + word + "*";
+    }
+
+    private static int cost(SearchQuery.Predicate p) {
+        switch (p.kind) {
+            case SearchQuery.COLOR:
+            case SearchQuery.BEFORE:
+            case SearchQuery.AFTER:
+                return COST_COLUMN;
+            case SearchQuery.WORD:
+                return COST_WORD;
+            case SearchQuery.TITLE:
+                return COST_TITLE;
+            default:
+                return COST_BODY;
+        }
+    }
+
+    /*
+     * Returns an estimate of the number of notes matching an indexed condition. Words are
+     * counted by their postings and pinyin matches, which include notes in the trash, each
+     * stopping past the limit if it isn't negative.
+     */
+    private static long estimate(SQLiteDatabase db, SearchQuery.Predicate p, long limit) {
+        switch (p.kind) {
+            case SearchQuery.COLOR:
+                return NoteCounts.countColor(db, (int) p.value);
+            case SearchQuery.AFTER:
+                return NoteCounts.countModified(db, Math.max(0, p.value), Long.MAX_VALUE);
+            case SearchQuery.BEFORE:
+                return NoteCounts.countModified(db, 0, p.value);
+            default:
+                String pattern = likePattern(p.text);
+                Cursor c = db.rawQuery("SELECT (SELECT count(*) FROM (SELECT 1 FROM "
+                        + TrigramIndex.POSTINGS_TABLE + " p JOIN " + TrigramIndex.TERMS_TABLE
+                        + " t ON t._id = p.term_id WHERE t.term >= ? AND t.term < ? LIMIT ?))"
+                        + " + (SELECT count(*) FROM (" + PINYIN_MATCHES + " LIMIT ?))",
+                        new String[]{p.text, prefixEnd(p.text), Long.toString(limit), pattern,
+                                pattern, Long.toString(limit)});
+                try {
+                    return c.moveToFirst() ? c.getLong(0) : 0;
+                } finally {
+                    c.close();
+                }
+        }
+    }
+
+    // Returns the smallest string greater than every string starting with the prefix.
+    private static String prefixEnd(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    private static void appendGroup(StringBuilder where, List<String> args,
+                                    List<SearchQuery.Predicate> group, boolean noIndex) {
+        where.append(where.length() > 0 ? " AND " : "");
+        if (group.size() > 1) {
+            where.append('(');
+        }
+        for (int i = 0; i < group.size(); i++) {
+            where.append(i > 0 ? " OR " : "");
+            appendPredicate(where, args, group.get(i), noIndex);
+        }
+        if (group.size() > 1) {
+            where.append(')');
+        }
+    }
+
+    /*
+     * Appends the SQL of a condition. An excluded condition is false for NULL values, as
+     * "title:x" is for a note without a title, so that its exclusion is true for them.
+     * Numbers are written into the SQL rather than bound: the unary plus that keeps a column's
+     * index out of the plan also drops its affinity, and the column would never equal the
+     * text an argument is bound as.
+     */
+    private static void appendPredicate(StringBuilder where, List<String> args,
+                                        SearchQuery.Predicate p, boolean noIndex) {
+        String plus = noIndex ? "+" : "";
+        if (p.negated) {
+            where.append("NOT IFNULL(");
+        }
+        switch (p.kind) {
+            case SearchQuery.COLOR:
+                where.append('(').append(plus).append(NotePad.Notes.COLUMN_NAME_COLOR)
+                        .append(" = ").append(p.value);
+                if (p.value == 0) {
+                    // Notes without a color have the default one.
+                    where.append(" OR ").append(plus).append(NotePad.Notes.COLUMN_NAME_COLOR)
+                            .append(" IS NULL");
+                }
+                where.append(')');
+                break;
+            case SearchQuery.BEFORE:
+            case SearchQuery.AFTER:
+                where.append(plus).append(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)
+                        .append(p.kind == SearchQuery.BEFORE ? " < " : " >= ").append(p.value);
+                break;
+            case SearchQuery.WORD:
+                // A note queued for indexing is scanned for the word instead of looked up by
+                // postings that may predate an edit. The word may also be pinyin, as in plain
+                // searches, which the index over the notes that have some answers.
+                String pending = NotePad.Notes._ID + " IN (SELECT note_id FROM "
+                        + TrigramIndex.PENDING_TABLE + ")";
+                where.append("(").append(plus).append(NotePad.Notes._ID)
+                        .append(" IN (SELECT p.note_id FROM ")
+                        .append(TrigramIndex.POSTINGS_TABLE).append(" p JOIN ")
+                        .append(TrigramIndex.TERMS_TABLE)
+                        .append(" t ON t._id = p.term_id WHERE t.term >= ? AND t.term < ?)")
+                        .append(" AND NOT +").append(pending).append(" OR ").append(plus)
+                        .append(pending).append(" AND (")
+                        .append(wordCondition(NotePad.Notes.COLUMN_NAME_TITLE)).append(" OR ")
+                        .append(wordCondition(NotePad.Notes.COLUMN_NAME_NOTE)).append(") OR ")
+                        .append(plus).append(NotePad.Notes._ID).append(" IN (")
+                        .append(PINYIN_MATCHES).append("))");
+                args.add(p.text);
+                args.add(prefixEnd(p.text));
+                args.add(wordPattern(p.text));
+                args.add(wordPattern(p.text));
+                args.add(likePattern(p.text));
+                args.add(likePattern(p.text));
+                break;
+            default:
+                String pattern = likePattern(p.text);
+                where.append('(').append(NotePad.Notes.COLUMN_NAME_TITLE)
+                        .append(" LIKE ? ESCAPE '\\' OR ")
+                        .append(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN)
+                        .append(" LIKE ? ESCAPE '\\'");
+                args.add(pattern);
+                args.add(pattern);
+                if (p.kind == SearchQuery.TEXT) {
+                    where.append(" OR ").append(NotePad.Notes.COLUMN_NAME_NOTE)
+                            .append(" LIKE ? ESCAPE '\\' OR ")
+                            .append(NotePad.Notes.COLUMN_NAME_NOTE_PINYIN)
+                            .append(" LIKE ? ESCAPE '\\'");
+                    args.add(pattern);
+                    args.add(pattern);
+                }
+                where.append(')');
+                break;
+        }
+        if (p.negated) {
+            where.append(", 0)");
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A parsed structured search, as typed in the search box:
+ * <ul>
+ * <li>{@code budget} matches notes with a word starting with "budget" in the title or text,
+ * or with "budget" anywhere in their pinyin, as plain searches do; words that aren't plain
+ * letters and digits, such as Chinese text, match anywhere</li>
+ * <li>{@code "team meeting"} matches the exact phrase anywhere in the title or text</li>
+ * <li>{@code title:plan} matches "plan" anywhere in the title</li>
+ * <li>{@code color:red} matches a color by name, English or Chinese, or palette index</li>
+ * <li>{@code after:2024-05-01} and {@code before:2024-06-01} match the modification date,
+ * from the start of the given day and until the start of the given day, in local time</li>
+ * <li>{@code -draft} excludes the notes matching a condition</li>
+ * <li>{@code red OR blue} matches either condition; OR binds tighter than the implied AND</li>
+ * </ul>
+ * A field whose value doesn't parse, such as {@code after:soon}, is searched as text, so no
+ * input is an error. The query is a conjunction of {@link #groups()}, each a disjunction of
+ * {@link Predicate}s; {@link SearchPlanner} turns it into SQL.
+ * 结构化搜索查询：解析 title:、color:、before:/after:、引号短语、-排除和 OR。
+ */
+final class SearchQuery {
+
+    /**
+     * Kinds of {@link Predicate}.
+     */
+    static final int WORD = 0;
+    static final int TEXT = 1;
+    static final int TITLE = 2;
+    static final int COLOR = 3;
+    static final int BEFORE = 4;
+    static final int AFTER = 5;
+
+    // Color names by palette index, as in the color picker.
+    private static final String[][] COLOR_NAMES = {
+            {"default", "none", "默认", "无"},
+            {"yellow", "黄", "黄色"},
+            {"green", "绿", "绿色"},
+            {"blue", "蓝", "蓝色"},
+            {"red", "红", "红色"},
+    };
+
+    private static final String[] DATE_FORMATS = {"yyyy-MM-dd", "yyyy/MM/dd"};
+
+    /**
+     * One condition of a query.
+     */
+    static final class Predicate {
+        final int kind;
+        final boolean negated;
+        // The case-folded text of WORD, TEXT and TITLE, the palette index of COLOR, and the
+        // boundary in milliseconds of BEFORE and AFTER.
+        final String text;
+        final long value;
+
+        Predicate(int kind, boolean negated, String text, long value) {
+            this.kind = kind;
+            this.negated = negated;
+            this.text = text;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            String name = new String[]{"word", "text", "title", "color", "before", "after"}[kind];
+            return (negated ? "-" : "") + name + ":" + (text != null ? text : value);
+        }
+    }
+
+    private final List<List<Predicate>> mGroups;
+
+    private SearchQuery(List<List<Predicate>> groups) {
+        mGroups = Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Returns the conditions of the query: every group must match, and a group matches if any
+     * of its predicates does.
+     */
+    List<List<Predicate>> groups() {
+        return mGroups;
+    }
+
+    /**
+     * Returns the folded text of the positive text conditions, for highlighting.
+     */
+    String[] highlightTerms() {
+        ArrayList<String> terms = new ArrayList<>();
+        for (List<Predicate> group : mGroups) {
+            for (Predicate p : group) {
+                if (!p.negated && p.text != null && !terms.contains(p.text)) {
+                    terms.add(p.text);
+                }
+            }
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    /**
+     * Returns whether the text uses any of the query syntax, and so should be parsed rather
+     * than searched as plain terms.
+     */
+    static boolean isStructured(String text) {
+        for (String token : tokenize(text)) {
+            if (token.startsWith("\"") || "OR".equals(token)
+                    || (token.length() > 1 && token.charAt(0) == '-')) {
+                return true;
+            }
+            int colon = token.indexOf(':');
+            if (colon > 0 && field(token.substring(0, colon)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a query. Never fails; text that isn't syntax is searched as text.
+     */
+    static SearchQuery parse(String text) {
+        List<List<Predicate>> groups = new ArrayList<>();
+        boolean or = false;
+        for (String token : tokenize(text)) {
+            if ("OR".equals(token)) {
+                or = !groups.isEmpty();
+                continue;
+            }
+            Predicate p = predicate(token);
+            if (p == null) {
+                continue;
+            }
+            if (or) {
+                groups.get(groups.size() - 1).add(p);
+            } else {
+                List<Predicate> group = new ArrayList<>();
+                group.add(p);
+                groups.add(group);
+            }
+            or = false;
+        }
+        return new SearchQuery(groups);
+    }
+
+    /*
+     * Splits the text at whitespace outside of double quotes. A quoted part stays in its
+     * token with its quotes; a missing closing quote is implied at the end.
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+                continue;
+            }
+            token.append(c);
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static int field(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "title":
+                return TITLE;
+            case "color":
+                return COLOR;
+            case "before":
+                return BEFORE;
+            case "after":
+                return AFTER;
+            default:
+                return -1;
+        }
+    }
+
+    private static Predicate predicate(String token) {
+        boolean negated = token.length() > 1 && token.charAt(0) == '-';
+        if (negated) {
+            token = token.substring(1);
+        }
+        int colon = token.indexOf(':');
+        int field = colon > 0 ? field(token.substring(0, colon)) : -1;
+        if (field >= 0) {
+            String value = unquote(token.substring(colon + 1));
+            if (field == TITLE && !value.isEmpty()) {
+                return new Predicate(TITLE, negated, SearchRanker.foldCase(value), 0);
+            }
+            if (field == COLOR) {
+                int color = color(value);
+                if (color >= 0) {
+                    return new Predicate(COLOR, negated, null, color);
+                }
+            }
+            if (field == BEFORE || field == AFTER) {
+                long day = startOfDay(value);
+                if (day >= 0) {
+                    return new Predicate(field, negated, null, day);
+                }
+            }
+        }
+        boolean phrase = token.startsWith("\"");
+        String text = SearchRanker.foldCase(unquote(token));
+        if (text.trim().isEmpty()) {
+            return null;
+        }
+        return new Predicate(!phrase && isWord(text) ? WORD : TEXT, negated, text, 0);
+    }
+
+    private static String unquote(String s) {
+        if (s.startsWith("\"")) {
+            s = s.substring(1);
+            if (s.endsWith("\"")) {
+                s = s.substring(0, s.length() - 1);
+            }
+        }
+        return s;
+    }
+
+    /*
+     * Returns whether a term can be looked up in the word index: ASCII letters and digits
+     * only, of a length the index keeps.
+     */
+    private static boolean isWord(String text) {
+        if (text.length() < TrigramIndex.MIN_WORD_LENGTH
+                || text.length() > TrigramIndex.MAX_WORD_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int color(String value) {
+        String name = value.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < COLOR_NAMES.length; i++) {
+            for (String n : COLOR_NAMES[i]) {
+                if (n.equals(name)) {
+                    return i;
+                }
+            }
+        }
+        if (name.length() == 1 && name.charAt(0) >= '0' && name.charAt(0) < '0' + COLOR_NAMES.length) {
+            return name.charAt(0) - '0';
+        }
+        return -1;
+    }
+
+    // Returns the start of the given day in local time, or -1 if the date doesn't parse.
+    private static long startOfDay(String value) {
+        for (String format : DATE_FORMATS) {
+            SimpleDateFormat parser = new SimpleDateFormat(format, Locale.ROOT);
+            parser.setLenient(false);
+            parser.setTimeZone(TimeZone.getDefault());
+            try {
+                Calendar day = Calendar.getInstance();
+                day.setTime(parser.parse(value));
+                return day.getTimeInMillis();
+            } catch (ParseException e) {
+                // Try the next format.
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.MatrixCursor;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Relevance ranking and snippets for {@link NotePad.Notes#SEARCH_URI}, shared by the provider
+ * and by {@link SearchSession}, which ranks a narrowed result in memory the same way.
+ * <p>
+ * The search text is split at whitespace into terms, and a note matches if every term occurs
+ * in its title or text, ignoring ASCII case as SQLite's LIKE does. Terms are matched as
+ * substrings rather than words, so that text without spaces between words, such as Chinese,
+ * can be searched; for the same reason lengths are counted in characters. Notes are scored
+ * with BM25, counting an occurrence in the title as {@link #TITLE_BOOST} occurrences in the
+ * text, and the score is raised by up to {@link #RECENCY_WEIGHT} for recently modified notes.
+ * Fields with Chinese text are searched together with their {@link Pinyin}, see
+ * {@link #searchable}.
+ * 搜索相关度排序：BM25 评分（标题加权、按修改时间加成）并生成带匹配位置的摘要。
+ */
+final class SearchRanker {
+
+    // BM25 parameters, at their usual values: term frequency saturation and length
+    // normalization.
+    static final double K1 = 1.2;
+    static final double B = 0.75;
+
+    /**
+     * Weight of an occurrence in the title relative to one in the text.
+     */
+    static final int TITLE_BOOST = 3;
+
+    /**
+     * Largest relative increase of the score of a note modified just now; it halves every
+     * {@link #RECENCY_HALF_LIFE_MS}.
+     */
+    static final double RECENCY_WEIGHT = 0.25;
+    static final long RECENCY_HALF_LIFE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Terms beyond this many are ignored.
+     */
+    static final int MAX_TERMS = 8;
+
+    /**
+     * Length of a snippet, not counting the ellipses.
+     */
+    static final int SNIPPET_CHARS = 120;
+
+    // Characters of context kept before the first match in a snippet.
+    private static final int SNIPPET_LEAD = 30;
+
+    private static final String ELLIPSIS = "…";
+
+    /**
+     * Extras of a search result: the number of notes searched and their average length, the
+     * statistics its scores were computed with.
+     */
+    static final String EXTRA_NOTES = "search.notes";
+    static final String EXTRA_AVG_LENGTH = "search.avg_length";
+
+    /**
+     * Collection statistics for the BM25 score.
+     */
+    static final class Stats {
+        final long notes;
+        final double avgLength;
+        final long[] docFreq;
+
+        Stats(long notes, double avgLength, long[] docFreq) {
+            this.notes = notes;
+            this.avgLength = avgLength;
+            this.docFreq = docFreq;
+        }
+    }
+
+    /**
+     * A snippet of a note's text and the character ranges of the matches in it.
+     */
+    static final class Snippet {
+        final String text;
+        final String matches;
+
+        Snippet(String text, String matches) {
+            this.text = text;
+            this.matches = matches;
+        }
+    }
+
+    /**
+     * A search result, with the statistics of its scores as extras. MatrixCursor only takes
+     * extras from API 23.
+     */
+    static final class ResultCursor extends MatrixCursor {
+        private final Bundle mExtras;
+
+        ResultCursor(String[] columns, int rows, Stats stats) {
+            super(columns, rows);
+            mExtras = new Bundle();
+            mExtras.putLong(EXTRA_NOTES, stats.notes);
+            mExtras.putDouble(EXTRA_AVG_LENGTH, stats.avgLength);
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+
+    // This class cannot be instantiated
+    private SearchRanker() {
+    }
+
+    /**
+     * Splits search text into distinct, case-folded terms.
+     */
+    static String[] terms(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        for (String term : foldCase(text).trim().split("\\s+")) {
+            if (!term.isEmpty() && !terms.contains(term) && terms.size() < MAX_TERMS) {
+                terms.add(term);
+            }
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    /**
+     * Folds ASCII letters to lower case and leaves everything else alone, as SQLite's NOCASE
+     * collation and LIKE operator do.
+     */
+    static String foldCase(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = (char) (ch + ('a' - 'A'));
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+
+    /**
+     * Returns a field as searched: its text, followed on a new line by its pinyin if it has
+     * one, as stored in {@link NotePad.Notes#COLUMN_NAME_TITLE_PINYIN}, so that a term matches
+     * either.
+     */
+    static String searchable(String text, String pinyin) {
+        if (pinyin == null) {
+            return text;
+        }
+        return (text == null ? "" : text) + '\n' + pinyin;
+    }
+
+    /**
+     * Returns whether every term occurs in the title or the text. Pass null for a field that
+     * isn't searched.
+     */
+    static boolean matches(String title, String note, String[] terms) {
+        String t = title == null ? "" : foldCase(title);
+        String n = note == null ? "" : foldCase(note);
+        for (String term : terms) {
+            if (!t.contains(term) && !n.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length a note counts for in the average length of {@link Stats}. Pass null
+     * for a field that isn't searched.
+     */
+    static int length(String title, String note) {
+        return (title == null ? 0 : title.length()) + (note == null ? 0 : note.length());
+    }
+
+    /**
+     * Scores a note. Pass null for a field that isn't searched.
+     */
+    static double score(String title, String note, long modified, long now, String[] terms,
+                        Stats stats) {
+        String t = title == null ? "" : foldCase(title);
+        String n = note == null ? "" : foldCase(note);
+        double norm = 1 - B + B * length(title, note) / Math.max(1, stats.avgLength);
+        double score = 0;
+        for (int i = 0; i < terms.length; i++) {
+            int tf = TITLE_BOOST * count(t, terms[i]) + count(n, terms[i]);
+            if (tf == 0) {
+                continue;
+            }
+            long df = Math.max(1, stats.docFreq[i]);
+            double idf = Math.log(1 + (stats.notes - df + 0.5) / (df + 0.5));
+            score += idf * tf * (K1 + 1) / (tf + K1 * norm);
+        }
+        if (terms.length == 0) {
+            // Without terms every note is equally relevant and recency decides.
+            score = 1;
+        }
+        double age = Math.max(0, now - modified);
+        return score * (1 + RECENCY_WEIGHT * Math.pow(0.5, age / RECENCY_HALF_LIFE_MS));
+    }
+
+    private static int count(String haystack, String term) {
+        int count = 0;
+        for (int i = haystack.indexOf(term); i >= 0; i = haystack.indexOf(term, i + term.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Cuts a snippet of about {@link #SNIPPET_CHARS} characters from the text, starting a little
+     * before the first match, with line breaks turned into spaces. The matches are given as
+     * comma-separated start and end offsets into the snippet, start inclusive and end
+     * exclusive: "2,6,40,44".
+     */
+    static Snippet snippet(String note, String[] terms) {
+        if (note == null) {
+            return new Snippet("", "");
+        }
+        String folded = foldCase(note);
+        int first = -1;
+        for (String term : terms) {
+            int i = folded.indexOf(term);
+            if (i >= 0 && (first < 0 || i < first)) {
+                first = i;
+            }
+        }
+        int start = first <= SNIPPET_LEAD ? 0 : first - SNIPPET_LEAD;
+        int end = Math.min(note.length(), start + SNIPPET_CHARS);
+        if (start > 0 && Character.isLowSurrogate(note.charAt(start))) {
+            start++;
+        }
+        if (end < note.length() && Character.isHighSurrogate(note.charAt(end - 1))) {
+            end--;
+        }
+        String prefix = start > 0 ? ELLIPSIS : "";
+        String text = prefix + note.substring(start, end).replace('\n', ' ').replace('\r', ' ')
+                + (end < note.length() ? ELLIPSIS : "");
+
+        // Collects the match ranges in the snippet, merging overlapping ones.
+        int[] ranges = new int[0];
+        int count = 0;
+        String window = folded.substring(start, end);
+        for (String term : terms) {
+            for (int i = window.indexOf(term); i >= 0; i = window.indexOf(term, i + 1)) {
+                if (count == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, Math.max(8, count * 2));
+                }
+                ranges[count++] = i;
+                ranges[count++] = i + term.length();
+            }
+        }
+        long[] sorted = new long[count / 2];
+        for (int k = 0; k < sorted.length; k++) {
+            sorted[k] = ((long) ranges[2 * k] << 32) | ranges[2 * k + 1];
+        }
+        Arrays.sort(sorted);
+        StringBuilder matches = new StringBuilder();
+        int openStart = -1;
+        int openEnd = -1;
+        for (long range : sorted) {
+            int s = (int) (range >>> 32) + prefix.length();
+            int e = (int) range + prefix.length();
+            if (openStart >= 0 && s <= openEnd) {
+                openEnd = Math.max(openEnd, e);
+                continue;
+            }
+            appendRange(matches, openStart, openEnd);
+            openStart = s;
+            openEnd = e;
+        }
+        appendRange(matches, openStart, openEnd);
+        return new Snippet(text, matches.toString());
+    }
+
+    private static void appendRange(StringBuilder matches, int start, int end) {
+        if (start < 0) {
+            return;
+        }
+        if (matches.length() > 0) {
+            matches.append(',');
+        }
+        matches.append(start).append(',').append(end);
+    }
+
+    /**
+     * Parses the match ranges of a snippet, as returned in
+     * {@link NotePad.Notes#COLUMN_NAME_SNIPPET_MATCHES}, into start and end offsets.
+     */
+    static int[] parseMatches(String matches) {
+        if (matches == null || matches.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = matches.split(",");
+        int[] offsets = new int[parts.length & ~1];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = Integer.parseInt(parts[i]);
+        }
+        return offsets;
+    }
+}
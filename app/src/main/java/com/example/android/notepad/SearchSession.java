@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the searches of one notes list, and answers a search that only narrows the previous one
+ * from the previous result rows, without asking the provider.
+ * <p>
+ * Searches go to {@link NotePad.Notes#SEARCH_URI}, which matches the notes containing every
+ * term of the text. Every note that contains "meeti" also contains "meet", so while the user
+ * types the rows found for "meet" are filtered, ranked and cut into snippets in memory with
+ * {@link SearchRanker}, as the provider would. The provider is queried again when the text no
+ * longer contains the previous text, the searched field changes, the notes change
+ * ({@link #invalidate()}), or the previous result had more than {@link #MAX_CACHED_ROWS} rows
+ * to keep. The list shown for an empty text is the provider's cursor, read a window at a
+ * time, and is never copied: it holds every note, and is read again on every change.
+ * <p>
+ * A narrowed result is scored with the number of notes and average length the provider
+ * reported for the previous search, and with term frequencies counted in the previous result.
+ * For a single term that gives the provider's order exactly.
+ * 增量搜索会话：新查询包含上一次查询时在内存中缩小并重新排序上次的结果集，否则回退到内容提供者查询。
+ */
+final class SearchSession {
+    private static final String TAG = "SearchSession";
+
+    /**
+     * Largest result kept for narrowing. The rows include the note text, so a larger list
+     * costs more memory than querying again saves.
+     */
+    static final int MAX_CACHED_ROWS = 2000;
+
+    // Searches answered in memory and by the provider, over all sessions in the process.
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String[] mSearchProjection;
+    private final String mSortOrder;
+    private final int mTitleIndex;
+    private final int mNoteIndex;
+    private final int mModifiedIndex;
+    private final int mTitlePinyinIndex;
+    private final int mNotePinyinIndex;
+
+    // Guarded by this: the last search result, in the search projection, and what it was
+    // found for.
+    private String mLastText;
+    private String mLastIn;
+    private Object[][] mLastRows;
+    private long mLastNotes;
+    private double mLastAvgLength;
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param uri        the list shown when the search text is empty
+     * @param projection the columns of the list; the session adds the pinyin of the title and
+     *                   text, and searches add the snippet, its matches and the score after
+     *                   them. The title, note and modification date columns are needed to
+     *                   narrow results in memory.
+     */
+    SearchSession(ContentResolver resolver, Uri uri, String[] projection, String sortOrder) {
+        mResolver = resolver;
+        mUri = uri;
+        mSortOrder = sortOrder;
+        mTitlePinyinIndex = projection.length;
+        mNotePinyinIndex = projection.length + 1;
+        mProjection = Arrays.copyOf(projection, projection.length + 2);
+        mProjection[mTitlePinyinIndex] = NotePad.Notes.COLUMN_NAME_TITLE_PINYIN;
+        mProjection[mNotePinyinIndex] = NotePad.Notes.COLUMN_NAME_NOTE_PINYIN;
+        mSearchProjection = Arrays.copyOf(mProjection, mProjection.length + 3);
+        mSearchProjection[mProjection.length] = NotePad.Notes.COLUMN_NAME_SNIPPET;
+        mSearchProjection[mProjection.length + 1] = NotePad.Notes.COLUMN_NAME_SNIPPET_MATCHES;
+        mSearchProjection[mProjection.length + 2] = NotePad.Notes.COLUMN_NAME_SCORE;
+        mTitleIndex = Arrays.asList(projection).indexOf(NotePad.Notes.COLUMN_NAME_TITLE);
+        mNoteIndex = Arrays.asList(projection).indexOf(NotePad.Notes.COLUMN_NAME_NOTE);
+        mModifiedIndex = Arrays.asList(projection).indexOf(
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+    }
+
+    /**
+     * Returns the notes matching the text, best match first, or the whole list if the text is
+     * empty.
+     *
+     * @param in the field to search, {@link NotePad.Notes#COLUMN_NAME_TITLE} or
+     *           {@link NotePad.Notes#COLUMN_NAME_NOTE}, or null for both
+     */
+    Cursor search(String text, String in) {
+        if (text.isEmpty()) {
+            // The list isn't a search: it is neither kept nor counted.
+            return mResolver.query(mUri, mProjection, null, null, mSortOrder);
+        }
+        Object[][] previous;
+        long notes;
+        double avgLength;
+        int generation;
+        synchronized (this) {
+            previous = narrows(text, in) ? mLastRows : null;
+            notes = mLastNotes;
+            avgLength = mLastAvgLength;
+            generation = mGeneration;
+        }
+        if (previous != null) {
+            Object[][] rows = rank(previous, text, in, notes, avgLength);
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    remember(text, in, rows, notes, avgLength);
+                }
+                mHits++;
+            }
+            sHits.incrementAndGet();
+            return toCursor(rows, mSearchProjection);
+        }
+
+        Cursor c = query(text, in);
+        synchronized (this) {
+            mMisses++;
+        }
+        sMisses.incrementAndGet();
+        if (c == null || c.getCount() > MAX_CACHED_ROWS) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    remember(null, null, null, 0, 0);
+                }
+            }
+            return c;
+        }
+        Object[][] rows;
+        Bundle extras;
+        try {
+            rows = copyRows(c);
+            extras = c.getExtras();
+        } finally {
+            c.close();
+        }
+        synchronized (this) {
+            // A change to the notes during the query may or may not be in these rows.
+            if (generation == mGeneration) {
+                remember(text, in, rows, extras.getLong(SearchRanker.EXTRA_NOTES),
+                        extras.getDouble(SearchRanker.EXTRA_AVG_LENGTH));
+            }
+        }
+        return toCursor(rows, mSearchProjection);
+    }
+
+    /**
+     * Returns the notes containing words close to those of the text, best match first, or the
+     * whole list if the text is empty. A fuzzy result can't be narrowed: a typo in the longer
+     * text may match notes the shorter text didn't, so every fuzzy search goes to the provider
+     * and its rows aren't kept.
+     */
+    Cursor searchFuzzy(String text) {
+        return searchUncached(text, NotePad.Notes.SEARCH_MODE_FUZZY);
+    }
+
+    /**
+     * Returns the notes matching a structured query, see
+     * {@link NotePad.Notes#SEARCH_MODE_QUERY}, best match first, or the whole list if the text
+     * is empty. Like a fuzzy result, it can't be narrowed: typing more can turn a condition
+     * into an exclusion or an alternative, so every query goes to the provider.
+     */
+    Cursor searchQuery(String text) {
+        return searchUncached(text, NotePad.Notes.SEARCH_MODE_QUERY);
+    }
+
+    private Cursor searchUncached(String text, String mode) {
+        if (text.trim().isEmpty()) {
+            return search("", null);
+        }
+        synchronized (this) {
+            mMisses++;
+        }
+        sMisses.incrementAndGet();
+        return mResolver.query(NotePad.Notes.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, text)
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_MODE, mode)
+                        .build(),
+                mSearchProjection, null, null, null);
+    }
+
+    /**
+     * Forgets the last result; call when the notes have changed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        remember(null, null, null, 0, 0);
+    }
+
+    private void remember(String text, String in, Object[][] rows, long notes, double avgLength) {
+        mLastText = text;
+        mLastIn = in;
+        mLastRows = rows;
+        mLastNotes = notes;
+        mLastAvgLength = avgLength;
+    }
+
+    private boolean narrows(String text, String in) {
+        if (mLastRows == null || mTitleIndex < 0 || mNoteIndex < 0 || mModifiedIndex < 0) {
+            return false;
+        }
+        if (!(in == null ? mLastIn == null : in.equals(mLastIn))) {
+            return false;
+        }
+        return SearchRanker.foldCase(text).contains(SearchRanker.foldCase(mLastText));
+    }
+
+    private Cursor query(String text, String in) {
+        Uri.Builder uri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, text);
+        if (in != null) {
+            uri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH_IN, in);
+        }
+        return mResolver.query(uri.build(), mSearchProjection, null, null, null);
+    }
+
+    // The title as searched, with its pinyin, or null if it isn't searched.
+    private String title(Object[] row, String in) {
+        return NotePad.Notes.COLUMN_NAME_NOTE.equals(in) ? null : SearchRanker.searchable(
+                (String) row[mTitleIndex], (String) row[mTitlePinyinIndex]);
+    }
+
+    // The text as searched, with its pinyin, or null if it isn't searched.
+    private String note(Object[] row, String in) {
+        return NotePad.Notes.COLUMN_NAME_TITLE.equals(in) ? null : SearchRanker.searchable(
+                (String) row[mNoteIndex], (String) row[mNotePinyinIndex]);
+    }
+
+    /*
+     * Filters the previous rows down to the notes matching the text and ranks them as the
+     * provider would, counting term frequencies in the previous rows.
+     */
+    private Object[][] rank(Object[][] previous, String text, String in, long notes,
+                            double avgLength) {
+        String[] terms = SearchRanker.terms(text);
+        long[] docFreq = new long[terms.length];
+        for (Object[] row : previous) {
+            String title = title(row, in);
+            String note = note(row, in);
+            String t = title == null ? "" : SearchRanker.foldCase(title);
+            String n = note == null ? "" : SearchRanker.foldCase(note);
+            for (int i = 0; i < terms.length; i++) {
+                if (t.contains(terms[i]) || n.contains(terms[i])) {
+                    docFreq[i]++;
+                }
+            }
+        }
+        SearchRanker.Stats stats = new SearchRanker.Stats(notes, avgLength, docFreq);
+
+        long now = System.currentTimeMillis();
+        ArrayList<Object[]> matches = new ArrayList<>();
+        for (Object[] row : previous) {
+            String title = title(row, in);
+            String note = note(row, in);
+            if (!SearchRanker.matches(title, note, terms)) {
+                continue;
+            }
+            Object[] ranked = Arrays.copyOf(row, mSearchProjection.length);
+            SearchRanker.Snippet snippet = SearchRanker.snippet((String) row[mNoteIndex], terms);
+            ranked[mProjection.length] = snippet.text;
+            ranked[mProjection.length + 1] = snippet.matches;
+            ranked[mProjection.length + 2] = SearchRanker.score(title, note,
+                    (Long) row[mModifiedIndex], now, terms, stats);
+            matches.add(ranked);
+        }
+        int score = mProjection.length + 2;
+        Collections.sort(matches, (a, b) -> {
+            int byScore = Double.compare((Double) b[score], (Double) a[score]);
+            return byScore != 0 ? byScore
+                    : Long.compare((Long) b[mModifiedIndex], (Long) a[mModifiedIndex]);
+        });
+        return matches.toArray(new Object[0][]);
+    }
+
+    private static Object[][] copyRows(Cursor c) {
+        Object[][] rows = new Object[c.getCount()][];
+        int columns = c.getColumnCount();
+        for (int i = 0; c.moveToNext(); i++) {
+            Object[] row = new Object[columns];
+            for (int col = 0; col < columns; col++) {
+                switch (c.getType(col)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[col] = c.getLong(col);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[col] = c.getDouble(col);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[col] = c.getString(col);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[col] = c.getBlob(col);
+                        break;
+                    default:
+                        row[col] = null;
+                        break;
+                }
+            }
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    private static Cursor toCursor(Object[][] rows, String[] columns) {
+        MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the share of this session's searches answered from the previous result, from 0
+     * to 1.
+     */
+    synchronized float hitRatio() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0f : (float) mHits / total;
+    }
+
+    synchronized void logStats() {
+        Log.i(TAG, mHits + " of " + (mHits + mMisses) + " searches narrowed in memory ("
+                + Math.round(100 * hitRatio()) + "%)");
+    }
+
+    static void dump(PrintWriter pw) {
+        long hits = sHits.get();
+        long total = hits + sMisses.get();
+        pw.println("Search sessions: " + hits + " of " + total + " searches narrowed in memory ("
+                + (total == 0 ? 0 : 100 * hits / total) + "% hit ratio)");
+    }
+}
@@ -1,15 +1,39 @@
 package com.example.android.notepad;
 
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import com.google.android.material.appbar.MaterialToolbar;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
+import androidx.preference.PreferenceCategory;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceManager;
 import androidx.preference.SwitchPreferenceCompat;
 import androidx.appcompat.app.AppCompatDelegate;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class SettingsActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -28,6 +52,23 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     public static class SettingsFragment extends PreferenceFragmentCompat {
+        // 导出诊断信息（慢查询日志、Provider 统计）到用户选择的文件
+        private final ActivityResultLauncher<Intent> exportDiagnosticsLauncher =
+                registerForActivityResult(
+                        new ActivityResultContracts.StartActivityForResult(),
+                        result -> {
+                            if (result.getResultCode() == Activity.RESULT_OK
+                                    && result.getData() != null) {
+                                Uri uri = result.getData().getData();
+                                if (uri != null) {
+                                    writeDiagnostics(uri);
+                                }
+                            }
+                        });
+
+        // 导出在后台线程写文件
+        private final ExecutorService diagnosticsExecutor = Executors.newSingleThreadExecutor();
+
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             PreferenceManager pm = getPreferenceManager();
@@ -73,12 +114,67 @@ public class SettingsActivity extends AppCompatActivity {
             color.setDefaultValue("0");
             color.setSummaryProvider(ListPreference.SimpleSummaryProvider.getInstance());
 
+            // Revision history: how many versions of each note the provider keeps
+            ListPreference history = new ListPreference(requireContext());
+            history.setKey(NotePadProvider.PREF_HISTORY_KEEP);
+            history.setTitle(getString(R.string.pref_title_history_keep));
+            history.setEntries(new CharSequence[]{
+                    getString(R.string.pref_history_keep_off),
+                    getString(R.string.pref_history_keep_count, 20),
+                    getString(R.string.pref_history_keep_count, 100),
+                    getString(R.string.pref_history_keep_all)
+            });
+            history.setEntryValues(new CharSequence[]{"0", "20", "100", "-1"});
+            history.setDefaultValue(String.valueOf(NotePadProvider.DEFAULT_HISTORY_KEEP));
+            history.setSummaryProvider(ListPreference.SimpleSummaryProvider.getInstance());
+
+            // Pinyin search of note texts; titles are always searchable by pinyin
+            SwitchPreferenceCompat pinyinNotes = new SwitchPreferenceCompat(requireContext());
+            pinyinNotes.setKey(NotePadProvider.PREF_PINYIN_NOTES);
+            pinyinNotes.setTitle(getString(R.string.pref_title_pinyin_notes));
+            pinyinNotes.setSummary(getString(R.string.pref_summary_pinyin_notes));
+            pinyinNotes.setDefaultValue(false);
+
             // Build the screen
             androidx.preference.PreferenceScreen screen = getPreferenceManager().createPreferenceScreen(requireContext());
             screen.addPreference(theme);
             screen.addPreference(relative);
             screen.addPreference(preview);
             screen.addPreference(color);
+            screen.addPreference(history);
+            screen.addPreference(pinyinNotes);
+
+            // Diagnostics
+            PreferenceCategory diagnostics = new PreferenceCategory(requireContext());
+            diagnostics.setTitle(getString(R.string.pref_category_diagnostics));
+            screen.addPreference(diagnostics);
+
+            ListPreference slowQuery = new ListPreference(requireContext());
+            slowQuery.setKey(NotePadProvider.PREF_SLOW_QUERY_MS);
+            slowQuery.setTitle(getString(R.string.pref_title_slow_query));
+            slowQuery.setEntries(new CharSequence[]{
+                    getString(R.string.pref_slow_query_off),
+                    "16 ms", "50 ms", "100 ms", "250 ms"
+            });
+            slowQuery.setEntryValues(new CharSequence[]{"0", "16", "50", "100", "250"});
+            slowQuery.setDefaultValue(String.valueOf(SlowQueryLog.DEFAULT_THRESHOLD_MS));
+            slowQuery.setSummaryProvider(ListPreference.SimpleSummaryProvider.getInstance());
+            diagnostics.addPreference(slowQuery);
+
+            Preference export = new Preference(requireContext());
+            export.setKey("pref_export_diagnostics");
+            export.setTitle(getString(R.string.pref_title_export_diagnostics));
+            export.setSummary(getString(R.string.pref_summary_export_diagnostics));
+            export.setOnPreferenceClickListener(p -> {
+                Intent create = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                create.addCategory(Intent.CATEGORY_OPENABLE);
+                create.setType("text/plain");
+                create.putExtra(Intent.EXTRA_TITLE, "notepad-diagnostics.txt");
+                exportDiagnosticsLauncher.launch(create);
+                return true;
+            });
+            diagnostics.addPreference(export);
+
             setPreferenceScreen(screen);
 
             // 主题变更立即生效（全局夜间模式）
@@ -91,5 +187,64 @@ public class SettingsActivity extends AppCompatActivity {
                 return true;
             });
         }
+
+        @Override
+        public void onDestroy() {
+            // An export already started still finishes.
+            diagnosticsExecutor.shutdown();
+            super.onDestroy();
+        }
+
+        /**
+         * Writes the provider's diagnostics report (stats and slow-query log) and the recorded
+         * frame metrics to the given document, in the background, and says when it's done.
+         */
+        private void writeDiagnostics(Uri uri) {
+            Context context = requireContext().getApplicationContext();
+            Handler mainHandler = new Handler(Looper.getMainLooper());
+            diagnosticsExecutor.execute(() -> {
+                try {
+                    exportDiagnostics(context, uri);
+                    mainHandler.post(() -> Toast.makeText(context,
+                            R.string.export_diagnostics_done, Toast.LENGTH_SHORT).show());
+                } catch (IOException e) {
+                    mainHandler.post(() -> Toast.makeText(context,
+                            context.getString(R.string.export_diagnostics_failed, e.getMessage()),
+                            Toast.LENGTH_LONG).show());
+                }
+            });
+        }
+
+        private static void exportDiagnostics(Context context, Uri uri) throws IOException {
+            Bundle result = context.getContentResolver().call(
+                    NotePad.Notes.CONTENT_URI, NotePad.METHOD_DIAGNOSTICS, null, null);
+            String report = result != null ? result.getString("report", "") : "";
+            OutputStream os = context.getContentResolver().openOutputStream(uri);
+            if (os == null) {
+                throw new IOException("Unable to open " + uri);
+            }
+            try (PrintWriter pw = new PrintWriter(
+                    new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+                pw.println("NotePad diagnostics, " + new Date());
+                pw.println();
+                pw.print(report);
+                NoteIndex.get(context).dump(pw);
+                SearchSession.dump(pw);
+                File frameLog = new File(context.getFilesDir(),
+                        FrameMetricsCollector.LOG_FILE_NAME);
+                if (frameLog.exists()) {
+                    pw.println();
+                    pw.println("Frame metrics");
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            new FileInputStream(frameLog), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            pw.println("  " + line);
+                        }
+                    }
+                }
+                pw.flush();
+            }
+        }
     }
 }
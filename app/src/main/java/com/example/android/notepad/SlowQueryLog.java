@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded ring buffer of queries that took longer than a configurable threshold.
+ * <p>
+ * Selections are stored with their literals stripped, and URIs as the patterns they matched,
+ * so the log never holds note text typed into a search box. The query plan is filled in
+ * later by {@link NotePadProvider}, off the calling thread, with
+ * {@link #setPlan(Entry, String)}.
+ * 慢查询记录：保存超过阈值的查询（去除字面量的条件、排序、行数、耗时与查询计划）。
+ */
+final class SlowQueryLog {
+
+    /**
+     * Default threshold in milliseconds. A threshold of 0 turns the log off.
+     */
+    static final long DEFAULT_THRESHOLD_MS = 50;
+
+    // Number of entries kept; older entries are overwritten.
+    private static final int CAPACITY = 32;
+
+    // 'quoted strings' (with '' escapes) and bare numbers, replaced by "?" when normalizing.
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+    /**
+     * One recorded query.
+     */
+    static final class Entry {
+        final long timestamp;
+        final String uri;
+        final String selection;
+        final String sortOrder;
+        final int rows;
+        final long durationMicros;
+        // Written once by the background plan lookup, read by dump/call.
+        volatile String plan;
+
+        Entry(long timestamp, String uri, String selection, String sortOrder, int rows,
+              long durationMicros) {
+            this.timestamp = timestamp;
+            this.uri = uri;
+            this.selection = selection;
+            this.sortOrder = sortOrder;
+            this.rows = rows;
+            this.durationMicros = durationMicros;
+        }
+    }
+
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private int mNext;
+    private long mTotalRecorded;
+
+    private volatile long mThresholdMicros = DEFAULT_THRESHOLD_MS * 1000L;
+
+    /**
+     * Sets the threshold. Queries at or above it are recorded; 0 disables recording.
+     */
+    void setThresholdMillis(long thresholdMs) {
+        mThresholdMicros = Math.max(0, thresholdMs) * 1000L;
+    }
+
+    long getThresholdMillis() {
+        return mThresholdMicros / 1000L;
+    }
+
+    /**
+     * Cheap check for the query hot path.
+     */
+    boolean isSlow(long elapsedNanos) {
+        long threshold = mThresholdMicros;
+        return threshold > 0 && elapsedNanos / 1000L >= threshold;
+    }
+
+    /**
+     * Records a slow query and returns its entry, so the caller can attach the plan later.
+     * The URI and selection are normalized before they are stored.
+     */
+    Entry record(String uri, String selection, String sortOrder, int rows, long elapsedNanos) {
+        Entry e = new Entry(System.currentTimeMillis(), normalize(uri), normalize(selection),
+                sortOrder, rows, elapsedNanos / 1000L);
+        synchronized (mEntries) {
+            mEntries[mNext] = e;
+            mNext = (mNext + 1) % CAPACITY;
+            mTotalRecorded++;
+        }
+        return e;
+    }
+
+    void setPlan(Entry e, String plan) {
+        e.plan = plan;
+    }
+
+    /**
+     * Drops the recorded queries and starts the total over, for a new measurement.
+     */
+    void clear() {
+        synchronized (mEntries) {
+            for (int i = 0; i < CAPACITY; i++) {
+                mEntries[i] = null;
+            }
+            mNext = 0;
+            mTotalRecorded = 0;
+        }
+    }
+
+    /**
+     * Replaces string and numeric literals with "?", so that queries differing only in their
+     * values look the same, and no user text is retained.
+     */
+    static String normalize(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        String s = STRING_LITERAL.matcher(sql).replaceAll("?");
+        return NUMBER_LITERAL.matcher(s).replaceAll("?");
+    }
+
+    // Returns the entries oldest first.
+    private ArrayList<Entry> snapshot() {
+        ArrayList<Entry> list = new ArrayList<>(CAPACITY);
+        synchronized (mEntries) {
+            for (int i = 0; i < CAPACITY; i++) {
+                Entry e = mEntries[(mNext + i) % CAPACITY];
+                if (e != null) {
+                    list.add(e);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Copies the log into a Bundle: "threshold_ms", "total_recorded" and a parcelable list of
+     * per-query Bundles under "queries", oldest first.
+     */
+    Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putLong("threshold_ms", getThresholdMillis());
+        synchronized (mEntries) {
+            b.putLong("total_recorded", mTotalRecorded);
+        }
+        ArrayList<Bundle> queries = new ArrayList<>();
+        for (Entry e : snapshot()) {
+            Bundle q = new Bundle();
+            q.putLong("timestamp", e.timestamp);
+            q.putString("uri", e.uri);
+            q.putString("selection", e.selection);
+            q.putString("sort_order", e.sortOrder);
+            q.putInt("rows", e.rows);
+            q.putLong("duration_us", e.durationMicros);
+            q.putString("plan", e.plan);
+            queries.add(q);
+        }
+        b.putParcelableArrayList("queries", queries);
+        return b;
+    }
+
+    /**
+     * Writes a human readable report of the recorded queries.
+     */
+    void dump(PrintWriter pw) {
+        ArrayList<Entry> entries = snapshot();
+        pw.println("Slow queries (threshold " + getThresholdMillis() + " ms, "
+                + entries.size() + " kept)");
+        for (Entry e : entries) {
+            pw.println("  " + e.timestamp + " " + (e.durationMicros / 1000.0) + " ms, "
+                    + e.rows + " rows: " + e.uri);
+            pw.println("    where: " + e.selection);
+            pw.println("    order: " + e.sortOrder);
+            String plan = e.plan;
+            if (plan != null) {
+                for (String line : plan.split("\n")) {
+                    pw.println("    plan:  " + line);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The membership of the smart folders: which live notes match each saved search.
+ * <p>
+ * {@link #MEMBERS_TABLE} holds one (search, note) row per match, keyed by search so that a
+ * folder is listed by a range of its primary key, and indexed by note so that a note's rows
+ * are replaced cheaply. A saved search is filled once, by its {@link SearchPlanner} plan, when
+ * it is saved or its query changes. After that, as for the {@link TrigramIndex}, triggers
+ * queue every inserted or changed note in {@link #PENDING_TABLE}, and {@link #catchUp}
+ * checks the queued notes against every saved search by ID, so a write costs one queued row
+ * and a note is only searched for where it changed. The provider runs it in the background
+ * after writes; until then, a folder is listed with its queued notes checked against its
+ * query as it is read, see {@link #membersWhere}. Nothing is queued while there are no saved
+ * searches. Deleting a note or a saved search drops its rows by trigger.
+ * 智能文件夹成员表：保存的搜索匹配的笔记，按写入增量维护，打开文件夹时按索引读取。
+ */
+final class SmartFolders {
+
+    static final String MEMBERS_TABLE = "saved_search_notes";
+    static final String PENDING_TABLE = "saved_search_pending";
+
+    // Notes checked per transaction by catchUp().
+    private static final int BATCH_SIZE = 200;
+
+    // This class cannot be instantiated
+    private SmartFolders() {
+    }
+
+    /**
+     * Creates the saved searches, their membership and queue, and the triggers that maintain
+     * them. Call from {@link NotePadProvider.DatabaseHelper#onCreate} and the migration that
+     * adds them.
+     */
+    static void createTables(SQLiteDatabase db) {
+        String searches = NotePad.SavedSearches.TABLE_NAME;
+        String notes = NotePad.Notes.TABLE_NAME;
+        db.execSQL("CREATE TABLE " + searches + " ("
+                + NotePad.SavedSearches._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.SavedSearches.COLUMN_NAME_NAME + " TEXT,"
+                + NotePad.SavedSearches.COLUMN_NAME_QUERY + " TEXT NOT NULL,"
+                + NotePad.SavedSearches.COLUMN_NAME_CREATE_DATE + " INTEGER)");
+        db.execSQL("CREATE TABLE " + MEMBERS_TABLE + " (search_id INTEGER NOT NULL,"
+                + " note_id INTEGER NOT NULL, PRIMARY KEY (search_id, note_id)) WITHOUT ROWID");
+        db.execSQL("CREATE INDEX idx_saved_search_notes_note ON " + MEMBERS_TABLE
+                + " (note_id)");
+        db.execSQL("CREATE TABLE " + PENDING_TABLE + " (note_id INTEGER PRIMARY KEY)");
+
+        // Every column a query can test; the pinyin ones change when their backfill runs.
+        String queue = " WHEN EXISTS (SELECT 1 FROM " + searches + ")"
+                + " BEGIN INSERT OR IGNORE INTO " + PENDING_TABLE + " VALUES (NEW._id); END";
+        db.execSQL("CREATE TRIGGER saved_search_pending_insert AFTER INSERT ON " + notes
+                + queue);
+        db.execSQL("CREATE TRIGGER saved_search_pending_update AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                + NotePad.Notes.COLUMN_NAME_COLOR + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+                + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE_PINYIN + " ON " + notes + queue);
+        db.execSQL("CREATE TRIGGER saved_search_notes_cleanup AFTER DELETE ON " + notes
+                + " BEGIN DELETE FROM " + MEMBERS_TABLE + " WHERE note_id = OLD._id;"
+                + " DELETE FROM " + PENDING_TABLE + " WHERE note_id = OLD._id; END");
+        db.execSQL("CREATE TRIGGER saved_search_cleanup AFTER DELETE ON " + searches
+                + " BEGIN DELETE FROM " + MEMBERS_TABLE + " WHERE search_id = OLD._id; END");
+    }
+
+    /**
+     * Replaces the members of a saved search with every live note matching its query, using
+     * the planned query. The notes the {@link TrigramIndex} hasn't indexed yet, matched by
+     * their exact words there, are queued here as well, and get their place in the folder for
+     * good from the next {@link #catchUp}.
+     */
+    static void fill(SQLiteDatabase db, long searchId, String query) {
+        SearchPlanner.Plan plan = SearchPlanner.plan(db, SearchQuery.parse(query));
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + MEMBERS_TABLE + " WHERE search_id = " + searchId);
+            db.execSQL("INSERT INTO " + MEMBERS_TABLE + " SELECT " + searchId + ", "
+                    + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + (plan.where.isEmpty() ? "" : plan.where + " AND ")
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL", plan.args);
+            db.execSQL("INSERT OR IGNORE INTO " + PENDING_TABLE + " SELECT note_id FROM "
+                    + TrigramIndex.PENDING_TABLE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns a condition on the notes table that holds for the members of a saved search, and
+     * adds its arguments: the notes sorted into the folder and not queued since, and the
+     * queued notes matching the query, checked as the next {@link #catchUp} would. Without
+     * such a search, the condition holds for no note.
+     */
+    static String membersWhere(SQLiteDatabase db, long searchId, List<String> args) {
+        String query = null;
+        Cursor c = db.query(NotePad.SavedSearches.TABLE_NAME,
+                new String[]{NotePad.SavedSearches.COLUMN_NAME_QUERY},
+                NotePad.SavedSearches._ID + " = " + searchId, null, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                query = c.getString(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (query == null) {
+            return "0";
+        }
+        SearchPlanner.Plan plan = SearchPlanner.scanPlan(SearchQuery.parse(query));
+        Collections.addAll(args, plan.args);
+        String id = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
+        String pending = id + " IN (SELECT note_id FROM " + PENDING_TABLE + ")";
+        return "(" + id + " IN (SELECT note_id FROM " + MEMBERS_TABLE + " WHERE search_id = "
+                + searchId + ") AND NOT +" + pending + " OR " + pending
+                + (plan.where.isEmpty() ? "" : " AND " + plan.where) + ")";
+    }
+
+    /**
+     * Checks the queued notes against every saved search, a batch per transaction. Notes the
+     * {@link TrigramIndex} still has queued are left for a later run, since their words may
+     * not be indexed yet; bring it up to date first.
+     *
+     * @return the number of notes checked
+     */
+    static int catchUp(SQLiteDatabase db) {
+        int checked = 0;
+        while (true) {
+            db.beginTransaction();
+            try {
+                StringBuilder batch = new StringBuilder();
+                int count = 0;
+                Cursor c = db.rawQuery("SELECT note_id FROM " + PENDING_TABLE
+                        + " WHERE note_id NOT IN (SELECT note_id FROM "
+                        + TrigramIndex.PENDING_TABLE + ") LIMIT " + BATCH_SIZE, null);
+                try {
+                    while (c.moveToNext()) {
+                        batch.append(count++ == 0 ? "" : ",").append(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                if (count == 0) {
+                    db.setTransactionSuccessful();
+                    return checked;
+                }
+                // Read in the batch's transaction, so that a search changed or deleted since
+                // the last batch isn't filled with its old query.
+                List<Long> ids = new ArrayList<>();
+                List<SearchPlanner.Plan> plans = new ArrayList<>();
+                readPlans(db, ids, plans);
+                String notes = " IN (" + batch + ")";
+                db.execSQL("DELETE FROM " + MEMBERS_TABLE + " WHERE note_id" + notes);
+                for (int i = 0; i < ids.size(); i++) {
+                    SearchPlanner.Plan plan = plans.get(i);
+                    db.execSQL("INSERT INTO " + MEMBERS_TABLE + " SELECT " + ids.get(i) + ", "
+                            + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                            + " WHERE " + NotePad.Notes._ID + notes + " AND "
+                            + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL"
+                            + (plan.where.isEmpty() ? "" : " AND " + plan.where), plan.args);
+                }
+                db.execSQL("DELETE FROM " + PENDING_TABLE + " WHERE note_id" + notes);
+                db.setTransactionSuccessful();
+                checked += count;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    // Each search is checked by ID, so its conditions are scanned rather than planned.
+    private static void readPlans(SQLiteDatabase db, List<Long> ids,
+                                  List<SearchPlanner.Plan> plans) {
+        Cursor c = db.query(NotePad.SavedSearches.TABLE_NAME, new String[]{
+                        NotePad.SavedSearches._ID, NotePad.SavedSearches.COLUMN_NAME_QUERY},
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+                plans.add(SearchPlanner.scanPlan(SearchQuery.parse(c.getString(1))));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Chooses the connection settings of the notes database by measuring them on the notes on
+ * this device, and applies the chosen profile whenever the database is opened.
+ * <p>
+ * Each candidate {@link Profile} sets the page cache size, the memory-mapped I/O size and the
+ * temporary store. {@link #tune} runs a workload shaped like the app's own queries (the
+ * notes list, a text search and single-note reads) under every candidate, several rounds in
+ * turn, and keeps the fastest one if it beats the SQLite defaults by at least
+ * {@link #MIN_GAIN_PERCENT}. It runs as a {@link DatabaseMaintenance} task, the first time
+ * and again once the number of notes has doubled. The page size and the synchronous level are
+ * left alone: the first can only change with a full VACUUM, and lowering the second trades
+ * durability for speed.
+ * 存储参数自适应调优：在本机数据上测量候选配置，持久化最快的配置并在打开数据库时应用。
+ */
+final class StorageTuner {
+    private static final String TAG = "StorageTuner";
+
+    /**
+     * A set of connection settings. Zero values keep the connection's default.
+     */
+    static final class Profile {
+        final String name;
+        final int cacheKib;
+        final long mmapBytes;
+        final boolean memoryTempStore;
+
+        Profile(String name, int cacheKib, long mmapBytes, boolean memoryTempStore) {
+            this.name = name;
+            this.cacheKib = cacheKib;
+            this.mmapBytes = mmapBytes;
+            this.memoryTempStore = memoryTempStore;
+        }
+    }
+
+    static final Profile DEFAULT = new Profile("default", 0, 0, false);
+
+    static final Profile[] PROFILES = {
+            DEFAULT,
+            new Profile("large_cache", 8 * 1024, 0, false),
+            new Profile("mmap", 0, 32L * 1024 * 1024, false),
+            new Profile("memory_temp", 0, 0, true),
+            new Profile("combined", 8 * 1024, 32L * 1024 * 1024, true),
+    };
+
+    /**
+     * Smallest improvement over the defaults, in percent, for a profile to be chosen; smaller
+     * differences are within the noise of the measurement.
+     */
+    static final int MIN_GAIN_PERCENT = 5;
+
+    // The workload runs this many times under every profile, interleaved, and the fastest run
+    // counts, so that a profile isn't favored by running while the device was less busy.
+    private static final int ROUNDS = 3;
+
+    // Single-note reads in the workload.
+    private static final int POINT_READS = 50;
+
+    // The profile is measured again when the number of notes has grown by this factor, and by
+    // at least MIN_GROWTH notes.
+    private static final int GROWTH_FACTOR = 2;
+    private static final int MIN_GROWTH = 1000;
+
+    private final SharedPreferences mPrefs;
+
+    // The connection's settings before any profile was applied, read when it was configured.
+    private volatile long mDefaultCacheSize = -2000;
+    private volatile long mDefaultMmapSize;
+    private volatile long mDefaultTempStore;
+
+    StorageTuner(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Applies the chosen profile to a new connection. Call from
+     * {@link android.database.sqlite.SQLiteOpenHelper#onConfigure}.
+     */
+    void configure(SQLiteDatabase db) {
+        mDefaultCacheSize = pragma(db, "cache_size");
+        mDefaultMmapSize = mmapSize(db, "mmap_size");
+        mDefaultTempStore = pragma(db, "temp_store");
+        apply(db, chosen());
+    }
+
+    /**
+     * Returns the profile chosen by the last tuning, or {@link #DEFAULT}.
+     */
+    Profile chosen() {
+        String name = mPrefs.getString("profile", DEFAULT.name);
+        for (Profile p : PROFILES) {
+            if (p.name.equals(name)) {
+                return p;
+            }
+        }
+        return DEFAULT;
+    }
+
+    private void apply(SQLiteDatabase db, Profile profile) {
+        db.execSQL("PRAGMA cache_size = "
+                + (profile.cacheKib > 0 ? -profile.cacheKib : mDefaultCacheSize));
+        mmapSize(db, "mmap_size = "
+                + (profile.mmapBytes > 0 ? profile.mmapBytes : mDefaultMmapSize));
+        db.execSQL("PRAGMA temp_store = " + (profile.memoryTempStore ? 2 : mDefaultTempStore));
+    }
+
+    /**
+     * Measures every profile and keeps the fastest, if the notes have never been measured or
+     * have grown enough since.
+     *
+     * Puts whether the tuning "skipped", or the chosen "profile" and its "gain_percent", in the
+     * result.
+     */
+    void tune(SQLiteDatabase db, CancellationSignal signal, Bundle result) {
+        long notes = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+        long tunedNotes = mPrefs.getLong("tuned_notes", -1);
+        if (tunedNotes >= 0 && (notes < tunedNotes * GROWTH_FACTOR
+                || notes - tunedNotes < MIN_GROWTH)) {
+            result.putBoolean("skipped", true);
+            return;
+        }
+
+        long[] ids = samplePointReads(db);
+        long[] best = new long[PROFILES.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        try {
+            // Warms up the file system cache so the first profile isn't penalized.
+            runWorkload(db, signal, ids);
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < PROFILES.length; i++) {
+                    apply(db, PROFILES[i]);
+                    best[i] = Math.min(best[i], runWorkload(db, signal, ids));
+                }
+            }
+        } finally {
+            apply(db, chosen());
+        }
+
+        int winner = 0;
+        for (int i = 1; i < PROFILES.length; i++) {
+            if (best[i] < best[winner]) {
+                winner = i;
+            }
+        }
+        int gain = (int) (100 * (best[0] - best[winner]) / Math.max(1, best[0]));
+        if (gain < MIN_GAIN_PERCENT) {
+            winner = 0;
+            gain = 0;
+        }
+        Profile profile = PROFILES[winner];
+        mPrefs.edit()
+                .putString("profile", profile.name)
+                .putInt("gain_percent", gain)
+                .putLong("default_us", best[0] / 1000)
+                .putLong("profile_us", best[winner] / 1000)
+                .putLong("tuned_notes", notes)
+                .putLong("page_size", pragma(db, "page_size"))
+                .putLong("tuned_at", System.currentTimeMillis())
+                .apply();
+        apply(db, profile);
+        Log.i(TAG, "Chose " + profile.name + " for " + notes + " notes, " + gain
+                + "% faster than the defaults");
+        result.putString("profile", profile.name);
+        result.putInt("gain_percent", gain);
+    }
+
+    private static long[] samplePointReads(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + " ORDER BY RANDOM() LIMIT " + POINT_READS, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Runs the notes list query, a text search and single-note reads, stepping through every
+     * row as the list does, and returns the elapsed time in nanoseconds.
+     */
+    private static long runWorkload(SQLiteDatabase db, CancellationSignal signal, long[] ids) {
+        long start = System.nanoTime();
+        drain(db.rawQuery("SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_COLOR + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL ORDER BY "
+                + NotePad.Notes.DEFAULT_SORT_ORDER, null, signal));
+        drain(db.rawQuery("SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?",
+                new String[]{"%the%"}, signal));
+        for (long id : ids) {
+            drain(db.rawQuery("SELECT * FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes._ID + " = ?", new String[]{String.valueOf(id)}, signal));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void drain(Cursor c) {
+        try {
+            while (c.moveToNext()) {
+                // Stepping is the work being measured.
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long pragma(SQLiteDatabase db, String pragma) {
+        // Through a query: the platform rejects statements that return rows in execSQL().
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + pragma, null);
+    }
+
+    /*
+     * Runs an mmap_size pragma and returns the size in effect. Where the platform's SQLite is
+     * built without memory mapping the pragma returns no row, which reads as 0.
+     */
+    private static long mmapSize(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Adds the chosen profile and its measured gain under "storage.*" keys.
+     */
+    void addTo(Bundle b) {
+        Profile profile = chosen();
+        b.putString("storage.profile", profile.name);
+        b.putInt("storage.cache_kib", profile.cacheKib);
+        b.putLong("storage.mmap_bytes", profile.mmapBytes);
+        b.putBoolean("storage.memory_temp_store", profile.memoryTempStore);
+        b.putInt("storage.gain_percent", mPrefs.getInt("gain_percent", 0));
+        b.putLong("storage.default_us", mPrefs.getLong("default_us", 0));
+        b.putLong("storage.profile_us", mPrefs.getLong("profile_us", 0));
+        b.putLong("storage.tuned_notes", mPrefs.getLong("tuned_notes", 0));
+        b.putLong("storage.page_size", mPrefs.getLong("page_size", 0));
+        b.putLong("storage.tuned_at", mPrefs.getLong("tuned_at", 0));
+    }
+
+    void dump(PrintWriter pw) {
+        if (!mPrefs.contains("tuned_at")) {
+            pw.println("Storage profile: " + DEFAULT.name + " (not measured yet)");
+            return;
+        }
+        pw.println("Storage profile: " + chosen().name + ", "
+                + mPrefs.getInt("gain_percent", 0) + "% faster than the defaults ("
+                + mPrefs.getLong("profile_us", 0) + " us vs " + mPrefs.getLong("default_us", 0)
+                + " us per workload) on " + mPrefs.getLong("tuned_notes", 0) + " notes, page size "
+                + mPrefs.getLong("page_size", 0) + ", measured "
+                + new Date(mPrefs.getLong("tuned_at", 0)));
+    }
+}
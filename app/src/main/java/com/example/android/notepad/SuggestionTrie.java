@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The search suggestions of {@link NotePad.Notes#SUGGEST_URI}: recent searches and note
+ * titles, in a prefix trie, so that a suggestion lookup per keystroke walks a few nodes in
+ * memory instead of querying the database.
+ * <p>
+ * Texts are keyed case-insensitively, and a title and a search with the same key are one
+ * suggestion. The trie is path-compressed: every node holds a run of characters of a shared
+ * char buffer, so a text adds at most two nodes. Nodes, suggestions and the notes they came
+ * from live in parallel primitive arrays, as in {@link NoteIndex}, and each node records the
+ * weight of the best suggestion below it, so a lookup visits the best suggestions first and
+ * stops once it has enough. A title weighs its note's modification date, the latest among
+ * notes sharing the title, and a search the time it was made plus {@link #RECENT_BOOST_MS},
+ * so that recent searches come before titles.
+ * <p>
+ * Removed notes and searches leave their nodes behind; {@link #needsRebuild} tells when they
+ * outnumber the live ones. Instances are thread-safe.
+ * 搜索建议前缀树：最近搜索和笔记标题按前缀在内存中查找，每次按键无需查询数据库。
+ */
+final class SuggestionTrie {
+
+    /**
+     * How much newer a recent search counts than its time, relative to titles.
+     */
+    static final long RECENT_BOOST_MS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Texts are keyed by at most this many characters; longer ones are suggested by their
+     * start.
+     */
+    static final int MAX_KEY_LENGTH = 64;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Weight of a node without suggestions below it.
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * A suggestion: the text, the most recently modified note with that title or -1 if there
+     * is none, and whether it was searched for recently.
+     */
+    static final class Suggestion {
+        final String text;
+        final long noteId;
+        final boolean recent;
+
+        Suggestion(String text, long noteId, boolean recent) {
+            this.text = text;
+            this.noteId = noteId;
+            this.recent = recent;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    // Nodes; node 0 is the root. A node's label is mChars[mLabelStart, mLabelStart + length).
+    private int[] mLabelStart = new int[INITIAL_CAPACITY];
+    private int[] mLabelLength = new int[INITIAL_CAPACITY];
+    private int[] mParent = new int[INITIAL_CAPACITY];
+    private int[] mFirstChild = new int[INITIAL_CAPACITY];
+    private int[] mNextSibling = new int[INITIAL_CAPACITY];
+    private int[] mEntry = new int[INITIAL_CAPACITY];
+    private long[] mBest = new long[INITIAL_CAPACITY];
+    private int mNodeCount;
+    private char[] mChars = new char[INITIAL_CAPACITY * 8];
+    private int mCharsEnd;
+
+    // Suggestions, by entry. A title count of zero and a search time of zero mean none.
+    private String[] mText = new String[INITIAL_CAPACITY];
+    private int[] mEntryNode = new int[INITIAL_CAPACITY];
+    private int[] mTitleCount = new int[INITIAL_CAPACITY];
+    private long[] mTitleModified = new long[INITIAL_CAPACITY];
+    private long[] mLatestNote = new long[INITIAL_CAPACITY];
+    private long[] mSearchTime = new long[INITIAL_CAPACITY];
+    private int mEntryCount;
+    private int mLiveEntries;
+
+    // Notes sorted by ID, with the entry of their title, or -1 for an empty title.
+    private long[] mNoteIds = new long[INITIAL_CAPACITY];
+    private int[] mNoteEntry = new int[INITIAL_CAPACITY];
+    private long[] mNoteModified = new long[INITIAL_CAPACITY];
+    private int mNoteCount;
+
+    SuggestionTrie() {
+        newNode(-1, 0, 0);
+    }
+
+    /**
+     * Adds or changes a note. Pass a null title or a negative modification date to keep the
+     * note's current one.
+     */
+    synchronized void putNote(long id, String title, long modified) {
+        int entry = -1;
+        if (title != null) {
+            String key = key(title, true);
+            entry = key.isEmpty() ? -1 : entryFor(key);
+        }
+        int i = Arrays.binarySearch(mNoteIds, 0, mNoteCount, id);
+        if (i >= 0) {
+            if (title == null) {
+                entry = mNoteEntry[i];
+            }
+            if (modified < 0) {
+                modified = mNoteModified[i];
+            }
+            removeNoteAt(i);
+        }
+        modified = Math.max(0, modified);
+        if (entry >= 0) {
+            boolean wasLive = isLive(entry);
+            mTitleCount[entry]++;
+            if (mTitleCount[entry] == 1 || modified >= mTitleModified[entry]) {
+                mTitleModified[entry] = modified;
+                mLatestNote[entry] = id;
+                if (title != null) {
+                    mText[entry] = title;
+                }
+            }
+            updateLive(entry, wasLive);
+        }
+        i = -Arrays.binarySearch(mNoteIds, 0, mNoteCount, id) - 1;
+        ensureNoteCapacity(mNoteCount + 1);
+        int tail = mNoteCount - i;
+        System.arraycopy(mNoteIds, i, mNoteIds, i + 1, tail);
+        System.arraycopy(mNoteEntry, i, mNoteEntry, i + 1, tail);
+        System.arraycopy(mNoteModified, i, mNoteModified, i + 1, tail);
+        mNoteIds[i] = id;
+        mNoteEntry[i] = entry;
+        mNoteModified[i] = modified;
+        mNoteCount++;
+    }
+
+    /**
+     * Removes a note, if it's there.
+     */
+    synchronized void removeNote(long id) {
+        int i = Arrays.binarySearch(mNoteIds, 0, mNoteCount, id);
+        if (i >= 0) {
+            removeNoteAt(i);
+        }
+    }
+
+    private void removeNoteAt(int i) {
+        int entry = mNoteEntry[i];
+        long id = mNoteIds[i];
+        int tail = mNoteCount - i - 1;
+        System.arraycopy(mNoteIds, i + 1, mNoteIds, i, tail);
+        System.arraycopy(mNoteEntry, i + 1, mNoteEntry, i, tail);
+        System.arraycopy(mNoteModified, i + 1, mNoteModified, i, tail);
+        mNoteCount--;
+        if (entry < 0) {
+            return;
+        }
+        boolean wasLive = isLive(entry);
+        mTitleCount[entry]--;
+        if (mTitleCount[entry] > 0 && mLatestNote[entry] == id) {
+            // Another note has the title; the latest of them takes over.
+            mTitleModified[entry] = 0;
+            for (int n = 0; n < mNoteCount; n++) {
+                if (mNoteEntry[n] == entry && mNoteModified[n] >= mTitleModified[entry]) {
+                    mTitleModified[entry] = mNoteModified[n];
+                    mLatestNote[entry] = mNoteIds[n];
+                }
+            }
+        }
+        updateLive(entry, wasLive);
+    }
+
+    /**
+     * Adds a search made at the given time, or moves it up if it was made before.
+     */
+    synchronized void putSearch(String text, long time) {
+        String key = key(text, true);
+        if (key.isEmpty()) {
+            return;
+        }
+        int entry = entryFor(key);
+        boolean wasLive = isLive(entry);
+        mSearchTime[entry] = Math.max(1, time);
+        if (mTitleCount[entry] == 0) {
+            mText[entry] = text.trim();
+        }
+        updateLive(entry, wasLive);
+    }
+
+    /**
+     * Removes a search, if it's there.
+     */
+    synchronized void removeSearch(String text) {
+        int node = find(key(text, true), true);
+        int entry = node < 0 ? -1 : mEntry[node];
+        if (entry >= 0 && mSearchTime[entry] != 0) {
+            boolean wasLive = isLive(entry);
+            mSearchTime[entry] = 0;
+            updateLive(entry, wasLive);
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} suggestions starting with the text, ignoring case, best
+     * first.
+     */
+    synchronized List<Suggestion> suggest(String text, int limit) {
+        List<Suggestion> suggestions = new ArrayList<>();
+        int start = find(key(text, false), false);
+        if (start < 0 || mBest[start] == NONE) {
+            return suggestions;
+        }
+        // Items are nodes, to expand, and the entries of nodes, to return, as node * 2 + 1.
+        PriorityQueue<Integer> queue = new PriorityQueue<>(16,
+                (a, b) -> Long.compare(itemWeight(b), itemWeight(a)));
+        queue.add(start * 2);
+        while (!queue.isEmpty() && suggestions.size() < limit) {
+            int item = queue.poll();
+            int node = item / 2;
+            int entry = mEntry[node];
+            if (item % 2 == 1) {
+                suggestions.add(new Suggestion(mText[entry],
+                        mTitleCount[entry] > 0 ? mLatestNote[entry] : -1,
+                        mSearchTime[entry] != 0));
+                continue;
+            }
+            if (entry >= 0 && isLive(entry)) {
+                queue.add(node * 2 + 1);
+            }
+            for (int child = mFirstChild[node]; child >= 0; child = mNextSibling[child]) {
+                if (mBest[child] != NONE) {
+                    queue.add(child * 2);
+                }
+            }
+        }
+        return suggestions;
+    }
+
+    private long itemWeight(int item) {
+        return item % 2 == 1 ? weight(mEntry[item / 2]) : mBest[item / 2];
+    }
+
+    /**
+     * Returns whether removed notes and searches hold more memory than the live ones, so that
+     * the trie is better rebuilt.
+     */
+    synchronized boolean needsRebuild() {
+        return mEntryCount > INITIAL_CAPACITY && mEntryCount - mLiveEntries > mLiveEntries;
+    }
+
+    /**
+     * Returns the number of suggestions.
+     */
+    synchronized int size() {
+        return mLiveEntries;
+    }
+
+    /**
+     * Returns the memory held by the arrays of the trie, in bytes, not counting the texts.
+     */
+    synchronized long footprintBytes() {
+        return (long) mLabelStart.length * (6 * 4 + 8) + 2L * mChars.length
+                + (long) mText.length * (4 + 4 + 4 + 8 + 8 + 8)
+                + (long) mNoteIds.length * (8 + 4 + 8);
+    }
+
+    /*
+     * Returns the key of a text: lower case, without leading spaces, and for whole texts
+     * without trailing ones either, at most MAX_KEY_LENGTH characters.
+     */
+    private static String key(String text, boolean whole) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (whole && end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        end = Math.min(end, start + MAX_KEY_LENGTH);
+        char[] key = new char[end - start];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = Character.toLowerCase(text.charAt(start + i));
+        }
+        return new String(key);
+    }
+
+    private boolean isLive(int entry) {
+        return mTitleCount[entry] > 0 || mSearchTime[entry] != 0;
+    }
+
+    private long weight(int entry) {
+        if (!isLive(entry)) {
+            return NONE;
+        }
+        long search = mSearchTime[entry] != 0 ? mSearchTime[entry] + RECENT_BOOST_MS : NONE;
+        return Math.max(search, mTitleCount[entry] > 0 ? mTitleModified[entry] : NONE);
+    }
+
+    private void updateLive(int entry, boolean wasLive) {
+        boolean live = isLive(entry);
+        if (live != wasLive) {
+            mLiveEntries += live ? 1 : -1;
+        }
+        updateBest(mEntryNode[entry]);
+    }
+
+    // Recomputes the best weight of a node and of its ancestors, as far as it changes.
+    private void updateBest(int node) {
+        for (int n = node; n >= 0; n = mParent[n]) {
+            long best = mEntry[n] >= 0 ? weight(mEntry[n]) : NONE;
+            for (int child = mFirstChild[n]; child >= 0; child = mNextSibling[child]) {
+                best = Math.max(best, mBest[child]);
+            }
+            if (n != node && best == mBest[n]) {
+                break;
+            }
+            mBest[n] = best;
+        }
+    }
+
+    /*
+     * Returns the node at the end of the key, or -1 if no text starts with it. Unless exact,
+     * the key may end inside the node's label.
+     */
+    private int find(String key, boolean exact) {
+        int node = 0;
+        int i = 0;
+        while (i < key.length()) {
+            int child = child(node, key.charAt(i));
+            if (child < 0) {
+                return -1;
+            }
+            int start = mLabelStart[child];
+            int length = mLabelLength[child];
+            int k = 0;
+            while (k < length && i + k < key.length()) {
+                if (mChars[start + k] != key.charAt(i + k)) {
+                    return -1;
+                }
+                k++;
+            }
+            if (exact && k < length) {
+                return -1;
+            }
+            i += k;
+            node = child;
+        }
+        return node;
+    }
+
+    // Returns the entry of a key, adding nodes and the entry as needed.
+    private int entryFor(String key) {
+        int node = 0;
+        int i = 0;
+        while (i < key.length()) {
+            int child = child(node, key.charAt(i));
+            if (child < 0) {
+                ensureCharCapacity(key.length() - i);
+                key.getChars(i, key.length(), mChars, mCharsEnd);
+                node = newNode(node, mCharsEnd, key.length() - i);
+                mCharsEnd += key.length() - i;
+                break;
+            }
+            int start = mLabelStart[child];
+            int length = mLabelLength[child];
+            int common = 1;
+            while (common < length && i + common < key.length()
+                    && mChars[start + common] == key.charAt(i + common)) {
+                common++;
+            }
+            if (common < length) {
+                child = split(child, common);
+            }
+            node = child;
+            i += common;
+        }
+        if (mEntry[node] < 0) {
+            ensureEntryCapacity(mEntryCount + 1);
+            int entry = mEntryCount++;
+            mEntry[node] = entry;
+            mEntryNode[entry] = node;
+            mLatestNote[entry] = -1;
+        }
+        return mEntry[node];
+    }
+
+    // Adds a node as the first child of a parent.
+    private int newNode(int parent, int labelStart, int labelLength) {
+        ensureNodeCapacity(mNodeCount + 1);
+        int node = mNodeCount++;
+        mLabelStart[node] = labelStart;
+        mLabelLength[node] = labelLength;
+        mParent[node] = parent;
+        mFirstChild[node] = -1;
+        mEntry[node] = -1;
+        mBest[node] = NONE;
+        if (parent >= 0) {
+            mNextSibling[node] = mFirstChild[parent];
+            mFirstChild[parent] = node;
+        } else {
+            mNextSibling[node] = -1;
+        }
+        return node;
+    }
+
+    // Splits a node after the first characters of its label, returning the new upper node.
+    private int split(int node, int length) {
+        int parent = mParent[node];
+        int upper = newNode(parent, mLabelStart[node], length);
+        // newNode() put the upper node first among the children; take the old one out.
+        for (int n = upper; ; n = mNextSibling[n]) {
+            if (mNextSibling[n] == node) {
+                mNextSibling[n] = mNextSibling[node];
+                break;
+            }
+        }
+        mFirstChild[upper] = node;
+        mNextSibling[node] = -1;
+        mParent[node] = upper;
+        mLabelStart[node] += length;
+        mLabelLength[node] -= length;
+        mBest[upper] = mBest[node];
+        return upper;
+    }
+
+    private int child(int node, char first) {
+        for (int child = mFirstChild[node]; child >= 0; child = mNextSibling[child]) {
+            if (mChars[mLabelStart[child]] == first) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureNodeCapacity(int capacity) {
+        if (capacity <= mLabelStart.length) {
+            return;
+        }
+        int size = Math.max(capacity, mLabelStart.length * 2);
+        mLabelStart = Arrays.copyOf(mLabelStart, size);
+        mLabelLength = Arrays.copyOf(mLabelLength, size);
+        mParent = Arrays.copyOf(mParent, size);
+        mFirstChild = Arrays.copyOf(mFirstChild, size);
+        mNextSibling = Arrays.copyOf(mNextSibling, size);
+        mEntry = Arrays.copyOf(mEntry, size);
+        mBest = Arrays.copyOf(mBest, size);
+    }
+
+    private void ensureCharCapacity(int extra) {
+        if (mCharsEnd + extra > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(mCharsEnd + extra, mChars.length * 2));
+        }
+    }
+
+    private void ensureEntryCapacity(int capacity) {
+        if (capacity <= mText.length) {
+            return;
+        }
+        int size = Math.max(capacity, mText.length * 2);
+        mText = Arrays.copyOf(mText, size);
+        mEntryNode = Arrays.copyOf(mEntryNode, size);
+        mTitleCount = Arrays.copyOf(mTitleCount, size);
+        mTitleModified = Arrays.copyOf(mTitleModified, size);
+        mLatestNote = Arrays.copyOf(mLatestNote, size);
+        mSearchTime = Arrays.copyOf(mSearchTime, size);
+    }
+
+    private void ensureNoteCapacity(int capacity) {
+        if (capacity <= mNoteIds.length) {
+            return;
+        }
+        int size = Math.max(capacity, mNoteIds.length * 2);
+        mNoteIds = Arrays.copyOf(mNoteIds, size);
+        mNoteEntry = Arrays.copyOf(mNoteEntry, size);
+        mNoteModified = Arrays.copyOf(mNoteModified, size);
+    }
+}
@@ -17,12 +17,16 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Toast;
 
 /**
  * This Activity allows the user to edit a note's title. It displays a floating window
@@ -44,11 +48,15 @@ public class TitleEditor extends Activity {
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_VERSION, // 2
     };
 
     // The position of the title column in a Cursor returned by the provider.
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    // The position of the version column in a Cursor returned by the provider.
+    private static final int COLUMN_INDEX_VERSION = 2;
+
     // A Cursor object that will contain the results of querying the provider for a note.
     private Cursor mCursor;
 
@@ -58,6 +66,13 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The title and version of the note as read in onResume().
+    private String mOriginalTitle;
+    private long mVersion;
+
+    // The titles of all notes, to warn while typing that a title is already taken.
+    private NoteIndex mIndex;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -92,6 +107,31 @@ public class TitleEditor extends Activity {
 
         // Gets the View ID for the EditText box
         mText = this.findViewById(R.id.title);
+
+        mIndex = NoteIndex.get(this);
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                checkDuplicateTitle(s.toString().trim());
+            }
+        });
+    }
+
+    /**
+     * Flags the title field if another note already has this title. The lookup runs against
+     * the in-memory {@link NoteIndex}, so it is cheap enough to do on every keystroke.
+     */
+    private void checkDuplicateTitle(String title) {
+        long other = mIndex.findTitle(title, ContentUris.parseId(mUri));
+        mText.setError(other >= 0 ? getString(R.string.title_duplicate) : null);
     }
 
     /**
@@ -113,7 +153,9 @@ public class TitleEditor extends Activity {
             mCursor.moveToFirst();
 
             // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mOriginalTitle = mCursor.getString(COLUMN_INDEX_TITLE);
+            mVersion = mCursor.getLong(COLUMN_INDEX_VERSION);
+            mText.setText(mOriginalTitle);
         }
     }
 
@@ -137,11 +179,17 @@ public class TitleEditor extends Activity {
 
         if (mCursor != null) {
 
+            String title = mText.getText().toString();
+            if (title.equals(mOriginalTitle)) {
+                // Nothing to save.
+                return;
+            }
+
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
 
             /*
              * Updates the provider with the note's new title.
@@ -151,13 +199,69 @@ public class TitleEditor extends Activity {
              * local database, the block will be momentary, but in a real app you should use
              * android.content.AsyncQueryHandler or android.os.AsyncTask.
              */
-            getContentResolver().update(
+            int count = getContentResolver().update(
                 mUri,    // The URI for the note to update.
                 values,  // The values map containing the columns to update and the values to use.
-                null,    // No selection criteria is used, so no "where" columns are needed.
-                null     // No "where" columns are used, so no "where" values are needed.
+                NotePad.Notes.VERSION_SELECTION,         // Only if the note is unchanged since
+                new String[] {String.valueOf(mVersion)}  // it was read.
             );
 
+            if (count == 0) {
+                saveTitleAfterConflict(values);
+            } else {
+                mOriginalTitle = title;
+                mVersion = queryVersion();
+            }
+        }
+    }
+
+    /**
+     * Called when the note changed elsewhere after this editor read it. Only the title matters
+     * here: if somebody else only changed the text or color, the new title is still applied,
+     * but a title changed elsewhere is kept.
+     */
+    private void saveTitleAfterConflict(ContentValues values) {
+        Cursor c = getContentResolver().query(mUri, PROJECTION, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                // The note was deleted.
+                return;
+            }
+            String currentTitle = c.getString(COLUMN_INDEX_TITLE);
+            long currentVersion = c.getLong(COLUMN_INDEX_VERSION);
+            if (mOriginalTitle != null && mOriginalTitle.equals(currentTitle)) {
+                int count = getContentResolver().update(mUri, values,
+                    NotePad.Notes.VERSION_SELECTION,
+                    new String[] {String.valueOf(currentVersion)});
+                if (count > 0) {
+                    mOriginalTitle = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+                    mVersion = queryVersion();
+                    return;
+                }
+            }
+            Toast.makeText(this, R.string.title_not_saved_conflict, Toast.LENGTH_LONG).show();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the note's current version, as the write left it, or the one this editor holds
+     * if the note is gone.
+     */
+    private long queryVersion() {
+        Cursor c = getContentResolver().query(mUri,
+            new String[] {NotePad.Notes.COLUMN_NAME_VERSION}, null, null, null);
+        if (c == null) {
+            return mVersion;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : mVersion;
+        } finally {
+            c.close();
         }
     }
 
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ListView;
+import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.android.material.appbar.MaterialToolbar;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the notes in the trash, most recently deleted first. A note can be restored or
+ * deleted for good, and the whole trash can be emptied. Notes left in the trash are deleted
+ * by {@link TrashPurgeWorker} once they expire. The trash is read and changed on a background
+ * thread.
+ * 回收站界面：恢复或永久删除已删除的笔记。
+ */
+public class TrashActivity extends AppCompatActivity {
+
+    private static final String[] PROJECTION = new String[]{
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_DELETED_AT
+    };
+
+    private SimpleCursorAdapter mAdapter;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_trash);
+        MaterialToolbar toolbar = findViewById(R.id.top_app_bar_trash);
+        if (toolbar != null) {
+            setSupportActionBar(toolbar);
+            toolbar.setNavigationIcon(androidx.appcompat.R.drawable.abc_ic_ab_back_material);
+            toolbar.setNavigationOnClickListener(v -> finish());
+            toolbar.setSubtitle(getString(R.string.trash_retention_hint,
+                    TimeUnit.MILLISECONDS.toDays(NotePadProvider.TRASH_RETENTION_MILLIS)));
+        }
+
+        ListView list = findViewById(android.R.id.list);
+        list.setEmptyView(findViewById(android.R.id.empty));
+        mAdapter = new SimpleCursorAdapter(this, android.R.layout.simple_list_item_2, null,
+                new String[]{NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_DELETED_AT},
+                new int[]{android.R.id.text1, android.R.id.text2}, 0);
+        mAdapter.setViewBinder((view, cursor, columnIndex) -> {
+            if (columnIndex != cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_DELETED_AT)) {
+                return false;
+            }
+            CharSequence when = DateUtils.getRelativeTimeSpanString(cursor.getLong(columnIndex),
+                    System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS);
+            ((TextView) view).setText(getString(R.string.trash_deleted_time, when));
+            return true;
+        });
+        list.setAdapter(mAdapter);
+        list.setOnItemClickListener((parent, view, position, id) -> {
+            Cursor c = (Cursor) mAdapter.getItem(position);
+            showActions(id, c.getString(c.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh(null);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mExecutor.shutdown();
+        mAdapter.changeCursor(null);
+        super.onDestroy();
+    }
+
+    /**
+     * Makes the change, if any, then reads the trash again, in the background, and shows it.
+     */
+    private void refresh(Runnable change) {
+        mExecutor.execute(() -> {
+            if (change != null) {
+                change.run();
+            }
+            Cursor c = getContentResolver().query(NotePad.Notes.TRASH_URI, PROJECTION,
+                    null, null, NotePad.Notes.TRASH_SORT_ORDER);
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    if (c != null) {
+                        c.close();
+                    }
+                    return;
+                }
+                mAdapter.changeCursor(c);
+                supportInvalidateOptionsMenu();
+            });
+        });
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.trash_options_menu, menu);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        MenuItem empty = menu.findItem(R.id.menu_empty_trash);
+        if (empty != null) {
+            empty.setVisible(mAdapter.getCount() > 0);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.menu_empty_trash) {
+            new AlertDialog.Builder(this)
+                    .setMessage(R.string.trash_empty_confirm)
+                    // The provider deletes in batches, each in a short transaction.
+                    .setPositiveButton(R.string.menu_empty_trash, (d, w) -> refresh(() ->
+                            getContentResolver().delete(NotePad.Notes.TRASH_URI, null, null)))
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showActions(long id, String title) {
+        new AlertDialog.Builder(this)
+                .setTitle(TextUtils.isEmpty(title) ? getString(android.R.string.untitled) : title)
+                .setItems(new CharSequence[]{
+                        getString(R.string.trash_restore),
+                        getString(R.string.trash_delete_forever)
+                }, (d, which) -> {
+                    if (which == 0) {
+                        refresh(() -> getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                                NotePad.METHOD_RESTORE, String.valueOf(id), null));
+                        Toast.makeText(this, R.string.trash_restored, Toast.LENGTH_SHORT).show();
+                    } else {
+                        refresh(() -> getContentResolver().delete(ContentUris.withAppendedId(
+                                NotePad.Notes.TRASH_URI, id), null, null));
+                    }
+                })
+                .show();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes notes that have been in the trash for longer than
+ * {@link NotePadProvider#TRASH_RETENTION_MILLIS}, once a day.
+ * <p>
+ * The provider deletes one batch per {@link NotePad#METHOD_PURGE_TRASH} call, each in a short
+ * transaction of its own, and the worker keeps asking until a batch comes back short. Between
+ * batches other writers get the database, and a stopped worker gives up after the current
+ * batch; the rest is picked up the next day.
+ * 回收站清理任务：每天分批永久删除在回收站中超过保留期的笔记。
+ */
+public class TrashPurgeWorker extends Worker {
+
+    private static final String WORK_NAME = "trash_purge";
+
+    public TrashPurgeWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Schedules the daily purge, unless it is already scheduled.
+     */
+    static void schedule(Context context) {
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(
+                TrashPurgeWorker.class, 1, TimeUnit.DAYS)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiresBatteryNotLow(true)
+                        .build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+                WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        ContentResolver resolver = getApplicationContext().getContentResolver();
+        String cutoff = String.valueOf(
+                System.currentTimeMillis() - NotePadProvider.TRASH_RETENTION_MILLIS);
+        while (!isStopped()) {
+            Bundle result = resolver.call(NotePad.Notes.CONTENT_URI,
+                    NotePad.METHOD_PURGE_TRASH, cutoff, null);
+            if (result == null
+                    || result.getInt("purged") < result.getInt("batch_size")) {
+                break;
+            }
+        }
+        return Result.success();
+    }
+}
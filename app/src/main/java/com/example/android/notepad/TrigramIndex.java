@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A trigram index of the words in the notes, for typo-tolerant searches.
+ * <p>
+ * Every distinct word of the titles and texts is stored once in {@link #TERMS_TABLE}, with its
+ * trigrams in {@link #TRIGRAMS_TABLE} and the notes containing it in {@link #POSTINGS_TABLE}.
+ * A misspelled search word is looked up by its trigrams among the words, which are far fewer
+ * than the notes; the words sharing the most trigrams are checked by trigram similarity and
+ * edit distance, and the notes containing the accepted words come from their postings.
+ * <p>
+ * Triggers queue the ID of every inserted or edited note in {@link #PENDING_TABLE}, and
+ * {@link #catchUp} indexes the queued notes. The provider runs it in the background after
+ * writes, so the index is maintained on every write path, the upgrade included, without
+ * tokenizing text in the write itself or in a search. Until then, searches match the queued
+ * notes by their exact words instead, see {@link #search} and {@link SearchPlanner}. Deleting a
+ * note drops its postings by trigger; words left without notes are removed by {@link #prune}.
+ * 三元组模糊搜索索引：按词的三元组查找拼写相近的词，再由倒排表找到包含这些词的笔记。
+ */
+final class TrigramIndex {
+    private static final String TAG = "TrigramIndex";
+
+    static final String TERMS_TABLE = "search_terms";
+    static final String TRIGRAMS_TABLE = "term_trigrams";
+    static final String POSTINGS_TABLE = "note_terms";
+    static final String PENDING_TABLE = "search_pending";
+
+    /**
+     * Words shorter or longer than these are not indexed. Longer "words" are mostly links and
+     * unbroken runs of Chinese text, which aren't misspelled the way words are.
+     */
+    static final int MIN_WORD_LENGTH = 2;
+    static final int MAX_WORD_LENGTH = 24;
+
+    /**
+     * Smallest trigram similarity (shared trigrams over all distinct trigrams of both words)
+     * for a word to match when its edit distance is too large.
+     */
+    static final double MIN_SIMILARITY = 0.4;
+
+    /**
+     * Most results of a fuzzy search.
+     */
+    static final int MAX_RESULTS = 100;
+
+    // Words sharing the most trigrams with a search word that are checked, and words that
+    // are accepted, per search word.
+    private static final int MAX_CANDIDATES = 500;
+    private static final int MAX_MATCHED_WORDS = 16;
+
+    // Notes indexed per transaction by catchUp().
+    private static final int BATCH_SIZE = 200;
+
+    // This class cannot be instantiated
+    private TrigramIndex() {
+    }
+
+    /**
+     * Creates the tables and triggers of the index. Call from
+     * {@link NotePadProvider.DatabaseHelper#onCreate} and the migration that adds it.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TERMS_TABLE + " (_id INTEGER PRIMARY KEY,"
+                + " term TEXT NOT NULL UNIQUE)");
+        db.execSQL("CREATE TABLE " + TRIGRAMS_TABLE + " (trigram INTEGER NOT NULL,"
+                + " term_id INTEGER NOT NULL, PRIMARY KEY (trigram, term_id)) WITHOUT ROWID");
+        db.execSQL("CREATE TABLE " + POSTINGS_TABLE + " (note_id INTEGER NOT NULL,"
+                + " term_id INTEGER NOT NULL, PRIMARY KEY (note_id, term_id)) WITHOUT ROWID");
+        db.execSQL("CREATE INDEX idx_note_terms_term ON " + POSTINGS_TABLE + " (term_id)");
+        db.execSQL("CREATE TABLE " + PENDING_TABLE + " (note_id INTEGER PRIMARY KEY)");
+
+        String notes = NotePad.Notes.TABLE_NAME;
+        db.execSQL("CREATE TRIGGER search_pending_insert AFTER INSERT ON " + notes
+                + " BEGIN INSERT OR IGNORE INTO " + PENDING_TABLE + " VALUES (NEW._id); END");
+        db.execSQL("CREATE TRIGGER search_pending_update AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " ON " + notes
+                + " BEGIN INSERT OR IGNORE INTO " + PENDING_TABLE + " VALUES (NEW._id); END");
+        db.execSQL("CREATE TRIGGER search_postings_cleanup AFTER DELETE ON " + notes + " BEGIN"
+                + " DELETE FROM " + POSTINGS_TABLE + " WHERE note_id = OLD._id;"
+                + " DELETE FROM " + PENDING_TABLE + " WHERE note_id = OLD._id; END");
+    }
+
+    /**
+     * Queues every note for indexing, as after the upgrade that adds the index.
+     */
+    static void queueAll(SQLiteDatabase db) {
+        db.execSQL("INSERT OR IGNORE INTO " + PENDING_TABLE + " SELECT " + NotePad.Notes._ID
+                + " FROM " + NotePad.Notes.TABLE_NAME);
+    }
+
+    /**
+     * Indexes the queued notes, a batch per transaction.
+     *
+     * @return the number of notes indexed
+     */
+    static int catchUp(SQLiteDatabase db) {
+        int indexed = 0;
+        Writer writer = new Writer(db);
+        try {
+            while (true) {
+                int batch = 0;
+                db.beginTransaction();
+                try {
+                    Cursor c = db.rawQuery("SELECT p.note_id, n."
+                            + NotePad.Notes.COLUMN_NAME_TITLE + ", n."
+                            + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + PENDING_TABLE
+                            + " p LEFT JOIN " + NotePad.Notes.TABLE_NAME + " n ON n."
+                            + NotePad.Notes._ID + " = p.note_id LIMIT " + BATCH_SIZE, null);
+                    try {
+                        while (c.moveToNext()) {
+                            Set<String> words = new HashSet<>();
+                            addWords(c.getString(1), words);
+                            addWords(c.getString(2), words);
+                            writer.indexNote(c.getLong(0), words);
+                            batch++;
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                indexed += batch;
+                if (batch < BATCH_SIZE) {
+                    break;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (indexed > 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Indexed " + indexed + " notes");
+        }
+        return indexed;
+    }
+
+    /*
+     * The statements of catchUp(), compiled once for all the notes it indexes.
+     */
+    private static final class Writer {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mFindTerm;
+        private final SQLiteStatement mInsertTerm;
+        private final SQLiteStatement mInsertTrigram;
+        private final SQLiteStatement mInsertPosting;
+        private final SQLiteStatement mDeletePosting;
+        private final SQLiteStatement mDeletePending;
+
+        Writer(SQLiteDatabase db) {
+            mDb = db;
+            mFindTerm = db.compileStatement("SELECT _id FROM " + TERMS_TABLE + " WHERE term = ?");
+            mInsertTerm = db.compileStatement("INSERT INTO " + TERMS_TABLE + " (term) VALUES (?)");
+            mInsertTrigram = db.compileStatement("INSERT OR IGNORE INTO " + TRIGRAMS_TABLE
+                    + " VALUES (?, ?)");
+            mInsertPosting = db.compileStatement("INSERT OR IGNORE INTO " + POSTINGS_TABLE
+                    + " VALUES (?, ?)");
+            mDeletePosting = db.compileStatement("DELETE FROM " + POSTINGS_TABLE
+                    + " WHERE note_id = ? AND term_id = ?");
+            mDeletePending = db.compileStatement("DELETE FROM " + PENDING_TABLE
+                    + " WHERE note_id = ?");
+        }
+
+        /*
+         * Replaces the postings of a note with the given words, adding words not seen before
+         * to the vocabulary with their trigrams, and takes the note off the queue.
+         */
+        void indexNote(long noteId, Set<String> words) {
+            Map<String, Long> existing = new HashMap<>();
+            Cursor c = mDb.rawQuery("SELECT t._id, t.term FROM " + POSTINGS_TABLE + " p JOIN "
+                    + TERMS_TABLE + " t ON t._id = p.term_id WHERE p.note_id = ?",
+                    new String[]{String.valueOf(noteId)});
+            try {
+                while (c.moveToNext()) {
+                    existing.put(c.getString(1), c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+
+            for (Map.Entry<String, Long> entry : existing.entrySet()) {
+                if (!words.contains(entry.getKey())) {
+                    mDeletePosting.bindLong(1, noteId);
+                    mDeletePosting.bindLong(2, entry.getValue());
+                    mDeletePosting.executeUpdateDelete();
+                }
+            }
+            for (String word : words) {
+                if (!existing.containsKey(word)) {
+                    mInsertPosting.bindLong(1, noteId);
+                    mInsertPosting.bindLong(2, termId(word));
+                    mInsertPosting.executeInsert();
+                }
+            }
+            mDeletePending.bindLong(1, noteId);
+            mDeletePending.executeUpdateDelete();
+        }
+
+        private long termId(String word) {
+            mFindTerm.bindString(1, word);
+            try {
+                return mFindTerm.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // A new word.
+            }
+            mInsertTerm.bindString(1, word);
+            long id = mInsertTerm.executeInsert();
+            for (long trigram : trigrams(word)) {
+                mInsertTrigram.bindLong(1, trigram);
+                mInsertTrigram.bindLong(2, id);
+                mInsertTrigram.executeInsert();
+            }
+            return id;
+        }
+
+        void close() {
+            mFindTerm.close();
+            mInsertTerm.close();
+            mInsertTrigram.close();
+            mInsertPosting.close();
+            mDeletePosting.close();
+            mDeletePending.close();
+        }
+    }
+
+    /**
+     * Removes the words no note contains any more, with their trigrams.
+     *
+     * @return the number of words removed
+     */
+    static int prune(SQLiteDatabase db) {
+        int removed = db.delete(TERMS_TABLE, "NOT EXISTS (SELECT 1 FROM " + POSTINGS_TABLE
+                + " WHERE term_id = " + TERMS_TABLE + "._id)", null);
+        if (removed > 0) {
+            db.delete(TRIGRAMS_TABLE, "term_id NOT IN (SELECT _id FROM " + TERMS_TABLE + ")",
+                    null);
+        }
+        return removed;
+    }
+
+    /**
+     * Adds the distinct words of a text, lower case, to a set.
+     */
+    static void addWords(String text, Set<String> words) {
+        if (text == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                int length = i - start;
+                if (length >= MIN_WORD_LENGTH && length <= MAX_WORD_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct trigrams of a word, padded with two spaces in front and one behind
+     * so that the start of a word weighs more than its end, each packed into a long.
+     */
+    static long[] trigrams(String word) {
+        String padded = "  " + word + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16)
+                    | padded.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    /**
+     * Returns the trigram similarity of two words: the shared distinct trigrams over all
+     * distinct trigrams of both, from 0 to 1.
+     */
+    static double similarity(long[] a, long[] b) {
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+
+    /**
+     * Returns the edit distance between two words, counting a swap of adjacent characters as
+     * one edit.
+     */
+    static int editDistance(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                        d[i - 1][j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    // Edits tolerated in a word of the given length: one typo per four letters or so.
+    private static int maxEdits(int length) {
+        return length <= 4 ? 1 : length <= 8 ? 2 : 3;
+    }
+
+    /**
+     * The result of a fuzzy search: note IDs, best first, with their scores and the indexed
+     * words that matched the search words.
+     */
+    static final class Result {
+        final long[] noteIds;
+        final double[] scores;
+        final String[] matchedWords;
+
+        Result(long[] noteIds, double[] scores, String[] matchedWords) {
+            this.noteIds = noteIds;
+            this.scores = scores;
+            this.matchedWords = matchedWords;
+        }
+    }
+
+    /**
+     * Finds the live notes containing, for every word of the text, a word that is close to it.
+     * A note scores the sum, over the search words, of its best word's closeness: the mean of
+     * the trigram similarity and one minus the edit distance relative to the longer word, so
+     * 1 for an exact match.
+     * <p>
+     * Notes queued for indexing are matched by a scan of their title and text instead, which
+     * finds them only if they have a word starting with every search word as typed, with a
+     * closeness of 1 for each. Their postings, which may be those of their text before an
+     * edit, are ignored.
+     */
+    static Result search(SQLiteDatabase db, String text) {
+        Set<String> queryWords = new LinkedHashSet<>();
+        addWords(text, queryWords);
+        Map<Long, Double> scores = queryWords.isEmpty() ? new HashMap<>() : null;
+        Set<String> matchedWords = new LinkedHashSet<>();
+        for (String word : queryWords) {
+            Map<Long, Double> closeness = new HashMap<>();
+            for (Object[] match : closeWords(db, word)) {
+                closeness.put((Long) match[0], (Double) match[2]);
+                matchedWords.add((String) match[1]);
+            }
+            Map<Long, Double> noteScores = notesContaining(db, closeness);
+            if (scores == null) {
+                scores = noteScores;
+            } else {
+                // Every search word must match; the closeness adds up.
+                Map<Long, Double> both = new HashMap<>();
+                for (Map.Entry<Long, Double> e : noteScores.entrySet()) {
+                    Double previous = scores.get(e.getKey());
+                    if (previous != null) {
+                        both.put(e.getKey(), previous + e.getValue());
+                    }
+                }
+                scores = both;
+            }
+            if (scores.isEmpty()) {
+                break;
+            }
+        }
+        addPending(db, queryWords, scores, matchedWords);
+
+        ArrayList<Map.Entry<Long, Double>> ranked = new ArrayList<>(scores.entrySet());
+        // Best first, then the most recently created.
+        Collections.sort(ranked, (a, b) -> {
+            int byScore = Double.compare(b.getValue(), a.getValue());
+            return byScore != 0 ? byScore : Long.compare(b.getKey(), a.getKey());
+        });
+        int n = Math.min(ranked.size(), MAX_RESULTS);
+        long[] ids = new long[n];
+        double[] noteScores = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = ranked.get(i).getKey();
+            noteScores[i] = ranked.get(i).getValue();
+        }
+        return new Result(ids, noteScores, matchedWords.toArray(new String[0]));
+    }
+
+    /*
+     * Replaces the scores of the notes queued for indexing with those of an exact match, for
+     * the queued notes that have a word starting with every search word.
+     */
+    private static void addPending(SQLiteDatabase db, Set<String> queryWords,
+                                   Map<Long, Double> scores, Set<String> matchedWords) {
+        StringBuilder sql = new StringBuilder("SELECT p.note_id, n." + NotePad.Notes._ID
+                + " IS NOT NULL");
+        List<String> args = new ArrayList<>();
+        for (String word : queryWords) {
+            sql.append(" AND (").append(SearchPlanner.wordCondition("n."
+                    + NotePad.Notes.COLUMN_NAME_TITLE)).append(" OR ")
+                    .append(SearchPlanner.wordCondition("n." + NotePad.Notes.COLUMN_NAME_NOTE))
+                    .append(')');
+            args.add(SearchPlanner.wordPattern(word));
+            args.add(SearchPlanner.wordPattern(word));
+        }
+        sql.append(" FROM ").append(PENDING_TABLE).append(" p LEFT JOIN ")
+                .append(NotePad.Notes.TABLE_NAME).append(" n ON n.").append(NotePad.Notes._ID)
+                .append(" = p.note_id");
+        boolean found = false;
+        Cursor c = db.rawQuery(sql.toString(), args.toArray(new String[0]));
+        try {
+            while (c.moveToNext()) {
+                scores.remove(c.getLong(0));
+                if (c.getInt(1) != 0 && !queryWords.isEmpty()) {
+                    scores.put(c.getLong(0), (double) queryWords.size());
+                    found = true;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (found) {
+            matchedWords.addAll(queryWords);
+        }
+    }
+
+    /*
+     * Returns the indexed words close enough to a search word, closest first, as
+     * {ID, word, closeness}.
+     */
+    private static List<Object[]> closeWords(SQLiteDatabase db, String word) {
+        long[] trigrams = trigrams(word);
+        StringBuilder in = new StringBuilder();
+        for (long t : trigrams) {
+            in.append(in.length() == 0 ? "" : ",").append(t);
+        }
+        Cursor c = db.rawQuery("SELECT t._id, t.term FROM (SELECT term_id, count(*) AS shared"
+                + " FROM " + TRIGRAMS_TABLE + " WHERE trigram IN (" + in + ") GROUP BY term_id"
+                + " ORDER BY shared DESC LIMIT " + MAX_CANDIDATES + ") s JOIN " + TERMS_TABLE
+                + " t ON t._id = s.term_id", null);
+        ArrayList<Object[]> accepted = new ArrayList<>();
+        try {
+            while (c.moveToNext()) {
+                String candidate = c.getString(1);
+                double similarity = similarity(trigrams, trigrams(candidate));
+                int edits = editDistance(word, candidate);
+                if (edits > maxEdits(word.length()) && similarity < MIN_SIMILARITY) {
+                    continue;
+                }
+                double closeness = (similarity
+                        + 1 - (double) edits / Math.max(word.length(), candidate.length())) / 2;
+                accepted.add(new Object[]{c.getLong(0), candidate, closeness});
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(accepted, (a, b) -> Double.compare((Double) b[2], (Double) a[2]));
+        return accepted.subList(0, Math.min(accepted.size(), MAX_MATCHED_WORDS));
+    }
+
+    /*
+     * Returns the live notes containing any of the given words, each with the closeness of
+     * its closest word.
+     */
+    private static Map<Long, Double> notesContaining(SQLiteDatabase db,
+                                                     Map<Long, Double> closeness) {
+        Map<Long, Double> notes = new HashMap<>();
+        if (closeness.isEmpty()) {
+            return notes;
+        }
+        StringBuilder in = new StringBuilder();
+        for (Long id : closeness.keySet()) {
+            in.append(in.length() == 0 ? "" : ",").append(id);
+        }
+        Cursor c = db.rawQuery("SELECT p.note_id, p.term_id FROM " + POSTINGS_TABLE + " p JOIN "
+                + NotePad.Notes.TABLE_NAME + " n ON n." + NotePad.Notes._ID + " = p.note_id"
+                + " WHERE p.term_id IN (" + in + ") AND n."
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL", null);
+        try {
+            while (c.moveToNext()) {
+                double value = closeness.get(c.getLong(1));
+                Double best = notes.get(c.getLong(0));
+                if (best == null || value > best) {
+                    notes.put(c.getLong(0), value);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return notes;
+    }
+}